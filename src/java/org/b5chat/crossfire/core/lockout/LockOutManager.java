@@ -28,6 +28,7 @@ import org.b5chat.crossfire.core.property.PropertyEventListener;
 import org.b5chat.crossfire.core.util.ClassUtils;
 import org.b5chat.crossfire.core.util.cache.Cache;
 import org.b5chat.crossfire.core.util.cache.CacheFactory;
+import org.b5chat.crossfire.core.util.cache.CacheLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -76,6 +77,12 @@ public class LockOutManager {
 
     /* Cache of locked out accounts */
     private Cache<String,LockOutFlag> lockOutCache;
+    private final CacheLoader<String, LockOutFlag, RuntimeException> lockOutLoader =
+            new CacheLoader<String, LockOutFlag, RuntimeException>() {
+        public LockOutFlag load(String username) {
+            return provider.getDisabledStatus(username);
+        }
+    };
     private ILockOutProvider provider;
 
     /**
@@ -150,19 +157,8 @@ public class LockOutManager {
         if (provider.shouldNotBeCached()) {
             return provider.getDisabledStatus(username);
         }
-        LockOutFlag flag = lockOutCache.get(username);
         // If ID wan't found in cache, load it up and put it there.
-        if (flag == null) {
-            synchronized (username.intern()) {
-                flag = lockOutCache.get(username);
-                // If group wan't found in cache, load it up and put it there.
-                if (flag == null) {
-                    flag = provider.getDisabledStatus(username);
-                    lockOutCache.put(username, flag);
-                }
-            }
-        }
-        return flag;
+        return lockOutCache.get(username, lockOutLoader);
     }
 
     /**
@@ -76,6 +76,11 @@ public class ClientStanzaHandler extends StanzaHandler {
         return true;
     }
 
+    @Override
+	IConnection.CompressionPolicy getCompressionPolicy() {
+        return LocalClientSession.getCompressionPolicy();
+    }
+
     @Override
 	boolean createSession(String namespace, String serverName, XmlPullParser xpp, IConnection connection)
             throws XmlPullParserException {
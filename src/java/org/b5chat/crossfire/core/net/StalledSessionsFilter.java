@@ -34,7 +34,11 @@ import org.slf4j.LoggerFactory;
  * MINA filter that will close sessions that are failing to read outgoing traffic
  * and whose outgoing queue is around 5MB. Use the system property <tt>session.stalled.cap</tt>
  * to set the max number of bytes allowed in the outgoing queue of a session before considering
- * it stalled.
+ * it stalled.<p>
+ *
+ * Closing the session is the last resort. Low value stanzas are dropped or held well before
+ * the cap is reached while the queue is congested (see
+ * {@link org.b5chat.crossfire.core.nio.OutboundQueue}).
  *
  * @author Gaston Dombiak
  */
@@ -24,6 +24,8 @@ import java.io.StringReader;
 
 
 import org.b5chat.crossfire.core.net.sasl.SASLAuthentication;
+import org.b5chat.crossfire.core.nio.LazyMessage;
+import org.b5chat.crossfire.core.nio.StanzaHeader;
 import org.b5chat.crossfire.core.property.Globals;
 import org.b5chat.crossfire.core.util.LocaleUtils;
 import org.b5chat.crossfire.core.util.StringUtils;
@@ -73,6 +75,10 @@ public abstract class StanzaHandler {
      */
     private SASLAuthentication.Status saslStatus;
 
+    // Flag that indicates that the client requested compression and the server is waiting
+    // for the new compressed stream
+    private boolean waitingCompressionACK = false;
+
     /**
      * ISession associated with the socket reader.
      */
@@ -118,6 +124,10 @@ public abstract class StanzaHandler {
                 startedSASL = false;
                 saslSuccessful();
             }
+            else if (waitingCompressionACK) {
+                waitingCompressionACK = false;
+                compressionSuccessful();
+            }
             return;
         }
 
@@ -131,9 +141,19 @@ public abstract class StanzaHandler {
             return;
         }
         // Create DOM object from received stanza
-        Element doc = reader.read(new StringReader(stanza)).getRootElement();
-        if (doc == null) {
-            // No document found.
+        process(reader.read(new StringReader(stanza)).getRootElement());
+    }
+
+    /**
+     * Processes a stanza that was already parsed. Stream headers and the end of the
+     * stream are always received as text by {@link #process(String, XMPPPacketReader)}.
+     *
+     * @param doc the received stanza.
+     * @throws Exception if an error occured while processing the stanza.
+     */
+    public void process(Element doc) throws Exception {
+        if (doc == null || !sessionCreated) {
+            // No document found or the stream was not opened yet.
             return;
         }
         String tag = doc.getName();
@@ -147,12 +167,43 @@ public abstract class StanzaHandler {
             // User is responding to SASL challenge. Process response
             saslStatus = SASLAuthentication.handle(session, doc);
         }
+        else if ("compress".equals(tag)) {
+            // Client is trying to initiate compression
+            if (compressClient(doc)) {
+                // Compression was successful so open a new stream and offer
+                // resource binding and session establishment (to client sessions only)
+                waitingCompressionACK = true;
+            }
+        }
         else {
-            process(doc);
+            processPacket(doc);
+        }
+    }
+
+    /**
+     * Processes a message stanza whose element tree was not built. The message is routed
+     * as a {@link LazyMessage} so the tree is built only if the message content is used.
+     *
+     * @param header the header of the received message.
+     * @throws Exception if an error occured while processing the stanza.
+     */
+    public void process(StanzaHeader header) throws Exception {
+        if (!sessionCreated) {
+            // The stream was not opened yet.
+            return;
         }
+        Message packet;
+        try {
+            packet = new LazyMessage(header, !validateJIDs());
+        }
+        catch (IllegalArgumentException e) {
+            rejectMalformedMessage(header.getElement(), e);
+            return;
+        }
+        processMessage(packet);
     }
 
-    private void process(Element doc) throws UnauthorizedException {
+    private void processPacket(Element doc) throws UnauthorizedException {
         if (doc == null) {
             return;
         }
@@ -164,14 +215,7 @@ public abstract class StanzaHandler {
                 packet = new Message(doc, !validateJIDs());
             }
             catch (IllegalArgumentException e) {
-                Log.debug("Rejecting packet. JID malformed", e);
-                // The original packet contains a malformed JID so answer with an error.
-                Message reply = new Message();
-                reply.setID(doc.attributeValue("id"));
-                reply.setTo(session.getAddress());
-                reply.getElement().addAttribute("from", doc.attributeValue("to"));
-                reply.setError(PacketError.Condition.jid_malformed);
-                session.process(reply);
+                rejectMalformedMessage(doc, e);
                 return;
             }
             processMessage(packet);
@@ -306,6 +350,17 @@ public abstract class StanzaHandler {
         session.incrementClientPacketCount();
     }
 
+    private void rejectMalformedMessage(Element doc, IllegalArgumentException e) {
+        Log.debug("Rejecting packet. JID malformed", e);
+        // The original packet contains a malformed JID so answer with an error.
+        Message reply = new Message();
+        reply.setID(doc.attributeValue("id"));
+        reply.setTo(session.getAddress());
+        reply.getElement().addAttribute("from", doc.attributeValue("to"));
+        reply.setError(PacketError.Condition.jid_malformed);
+        session.process(reply);
+    }
+
     /**
      * Process the received Message packet. Registered
      * {@link org.b5chat.crossfire.xmpp.interceptor.IPacketInterceptor} will be invoked before
@@ -357,6 +412,86 @@ public abstract class StanzaHandler {
     }
 
 
+    /**
+     * Start using compression but first check if the connection can and should use compression.
+     * The connection will be closed if the requested method is not supported, if the connection
+     * is already using compression or if client requested to use compression but this feature
+     * is disabled.
+     *
+     * @param doc the element sent by the client requesting compression. Compression method is
+     *            included.
+     * @return true if it was possible to use compression.
+     */
+    private boolean compressClient(Element doc) {
+        String error = null;
+        if (getCompressionPolicy() == IConnection.CompressionPolicy.disabled) {
+            // Client requested compression but this feature is disabled
+            error = "<failure xmlns='http://jabber.org/protocol/compress'><setup-failed/></failure>";
+            // Log a warning so that admins can track this case from the server side
+            Log.warn("Client requested compression while compression is disabled. Closing " +
+                    "connection : " + connection);
+        }
+        else if (connection.isCompressed()) {
+            // Client requested compression but connection is already compressed
+            error = "<failure xmlns='http://jabber.org/protocol/compress'><setup-failed/></failure>";
+            // Log a warning so that admins can track this case from the server side
+            Log.warn("Client requested compression and connection is already compressed. Closing " +
+                    "connection : " + connection);
+        }
+        else {
+            // Check that the requested method is supported
+            String method = doc.elementText("method");
+            if (!"zlib".equals(method)) {
+                error = "<failure xmlns='http://jabber.org/protocol/compress'><unsupported-method/></failure>";
+                // Log a warning so that admins can track this case from the server side
+                Log.warn("Requested compression method is not supported: " + method +
+                        ". Closing connection : " + connection);
+            }
+        }
+
+        if (error != null) {
+            // Deliver stanza
+            connection.deliverRawText(error);
+            return false;
+        }
+        else {
+            // Start using compression for incoming traffic
+            connection.addCompression();
+
+            // Indicate client that he can proceed and compress the socket
+            connection.deliverRawText("<compressed xmlns='http://jabber.org/protocol/compress'/>");
+
+            // Start using compression for outgoing traffic
+            connection.startCompression();
+            return true;
+        }
+    }
+
+    /**
+     * After compression was successful we should open a new stream and offer
+     * new stream features such as resource binding and session establishment. Notice that
+     * resource binding and session establishment should only be offered to clients (i.e. not
+     * to servers or external components)
+     */
+    private void compressionSuccessful() {
+        StringBuilder sb = new StringBuilder(340);
+        sb.append(geStreamHeader());
+        sb.append("<stream:features>");
+        // Include SASL mechanisms only if client has not been authenticated
+        if (session.getStatus() != ISession.STATUS_AUTHENTICATED) {
+            // Include available SASL Mechanisms
+            sb.append(SASLAuthentication.getSASLMechanisms(session));
+        }
+        // Include specific features such as resource binding and session establishment
+        // for client sessions
+        String specificFeatures = session.getAvailableStreamFeatures();
+        if (specificFeatures != null) {
+            sb.append(specificFeatures);
+        }
+        sb.append("</stream:features>");
+        connection.deliverRawText(sb.toString());
+    }
+
     private String geStreamHeader() {
         StringBuilder sb = new StringBuilder(200);
         sb.append("<?xml version='1.0' encoding='");
@@ -524,6 +659,14 @@ public abstract class StanzaHandler {
      */
     abstract boolean validateJIDs();
 
+    /**
+     * Returns whether compression is optional or is disabled for the connections
+     * handled by this handler.
+     *
+     * @return whether compression is optional or is disabled.
+     */
+    abstract IConnection.CompressionPolicy getCompressionPolicy();
+
     /**
      * Creates the appropriate {@link ISession} subclass based on the specified namespace.
      *
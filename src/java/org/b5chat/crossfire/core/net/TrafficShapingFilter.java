@@ -0,0 +1,316 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.net;
+
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoSession;
+import org.b5chat.crossfire.core.property.Globals;
+import org.b5chat.crossfire.core.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MINA filter that limits the incoming traffic of each session using a token bucket.
+ * Sessions that read more bytes than allowed are not closed. Instead reading from the
+ * socket is suspended until the bucket has been refilled, so a flooding client slows down
+ * by itself without taking processing threads away from other sessions.<p>
+ *
+ * Limits are defined per listener and per user class. For the client listener use the system
+ * properties <tt>xmpp.client.shaping.rate</tt> (bytes per second) and
+ * <tt>xmpp.client.shaping.burst</tt> (bytes that may be read at once, the rate by default).
+ * Authenticated sessions may use different limits for their user class (i.e. <tt>user</tt> or
+ * <tt>anonymous</tt>) by setting <tt>xmpp.client.shaping.[class].rate</tt> and
+ * <tt>xmpp.client.shaping.[class].burst</tt>. A rate that is not greater than zero
+ * disables shaping, which is the default.
+ *
+ * @see org.b5chat.crossfire.xmpp.IConnection#setTrafficClass(String)
+ */
+public class TrafficShapingFilter extends IoFilterAdapter {
+
+    private static final Logger Log = LoggerFactory.getLogger(TrafficShapingFilter.class);
+
+    public static final String NAME = "shaper";
+
+    private static final String BUCKET = "SHAPING-BUCKET";
+
+    private final String listener;
+
+    private final AtomicInteger throttledSessions = new AtomicInteger();
+    private final AtomicLong throttles = new AtomicLong();
+    private final AtomicLong throttledBytes = new AtomicLong();
+
+    /**
+     * Creates a new filter whose limits are defined by the properties of the specified listener.
+     *
+     * @param listener the name of the listener (e.g. <tt>client</tt>).
+     */
+    public TrafficShapingFilter(String listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message)
+            throws Exception {
+        if (message instanceof ByteBuffer) {
+            Bucket bucket = getBucket(session);
+            if (bucket != null) {
+                shape(session, bucket, ((ByteBuffer) message).remaining(), System.nanoTime());
+            }
+        }
+        // Bytes that were already read are always processed
+        nextFilter.messageReceived(session, message);
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        Bucket bucket = (Bucket) session.removeAttribute(BUCKET);
+        if (bucket != null) {
+            synchronized (bucket) {
+                if (bucket.suspended) {
+                    bucket.suspended = false;
+                    throttledSessions.decrementAndGet();
+                }
+            }
+        }
+        nextFilter.sessionClosed(session);
+    }
+
+    /**
+     * Sets the user class whose limits will be applied to the session from now on. A session
+     * uses the limits of the listener until a class is set.
+     *
+     * @param session the session whose user class has changed.
+     * @param userClass the user class of the session (e.g. <tt>user</tt> or <tt>anonymous</tt>).
+     */
+    public void setUserClass(IoSession session, String userClass) {
+        Bucket bucket = (Bucket) session.getAttribute(BUCKET);
+        Rate rate = getRate(userClass);
+        if (bucket == null) {
+            session.setAttribute(BUCKET, new Bucket(rate, System.nanoTime()));
+        }
+        else {
+            synchronized (bucket) {
+                long now = System.nanoTime();
+                bucket.take(0, now);
+                bucket.setRate(rate, now);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sessions whose reads are suspended at the moment.
+     *
+     * @return the number of sessions whose reads are suspended.
+     */
+    public int getThrottledSessions() {
+        return throttledSessions.get();
+    }
+
+    /**
+     * Returns the number of times that reading from a session was suspended.
+     *
+     * @return the number of times that reading from a session was suspended.
+     */
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    /**
+     * Returns the number of received bytes that went over the allowed rate.
+     *
+     * @return the number of received bytes that went over the allowed rate.
+     */
+    public long getThrottledBytes() {
+        return throttledBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return listener + " throttled sessions: " + getThrottledSessions() + ", throttles: " +
+                getThrottles() + ", throttled bytes: " + getThrottledBytes();
+    }
+
+    /**
+     * Takes the read bytes from the bucket of the session and suspends reading if the bucket
+     * went empty.
+     */
+    void shape(IoSession session, Bucket bucket, int bytes, long now) {
+        long delay;
+        synchronized (bucket) {
+            delay = bucket.take(bytes, now);
+            if (delay <= 0) {
+                return;
+            }
+            throttledBytes.addAndGet(Math.min(bytes, bucket.deficit()));
+            if (bucket.suspended) {
+                return;
+            }
+            bucket.suspended = true;
+        }
+        throttledSessions.incrementAndGet();
+        throttles.incrementAndGet();
+        session.suspendRead();
+        if (Log.isDebugEnabled()) {
+            Log.debug("Suspending reads for " + delay + " ms of session: " + session);
+        }
+        scheduleResume(session, bucket, delay);
+    }
+
+    /**
+     * Resumes reading from the session if its bucket was refilled. Otherwise waits some more.
+     */
+    void resume(IoSession session, Bucket bucket, long now) {
+        long delay;
+        synchronized (bucket) {
+            if (!bucket.suspended) {
+                // The session was closed
+                return;
+            }
+            delay = bucket.take(0, now);
+            if (delay <= 0) {
+                bucket.suspended = false;
+            }
+        }
+        if (delay > 0) {
+            scheduleResume(session, bucket, delay);
+        }
+        else {
+            throttledSessions.decrementAndGet();
+            session.resumeRead();
+        }
+    }
+
+    void scheduleResume(final IoSession session, final Bucket bucket, long delay) {
+        TaskEngine.getInstance().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                resume(session, bucket, System.nanoTime());
+            }
+        }, delay);
+    }
+
+    /**
+     * Returns the limits to apply to the specified user class or to the listener if
+     * the class is <tt>null</tt>.
+     *
+     * @param userClass the user class or null for the limits of the listener.
+     * @return the limits or null if incoming traffic is not shaped.
+     */
+    Rate getRate(String userClass) {
+        String prefix = "xmpp." + listener + ".shaping.";
+        int rate = Globals.getIntProperty(prefix + "rate", -1);
+        int burst = Globals.getIntProperty(prefix + "burst", rate);
+        if (userClass != null) {
+            rate = Globals.getIntProperty(prefix + userClass + ".rate", rate);
+            burst = Globals.getIntProperty(prefix + userClass + ".burst", Math.max(burst, rate));
+        }
+        return rate > 0 ? new Rate(rate, burst) : null;
+    }
+
+    private Bucket getBucket(IoSession session) {
+        Bucket bucket = (Bucket) session.getAttribute(BUCKET);
+        if (bucket == null) {
+            bucket = new Bucket(getRate(null), System.nanoTime());
+            session.setAttribute(BUCKET, bucket);
+        }
+        return bucket.rate != null ? bucket : null;
+    }
+
+    /**
+     * Allowed rate and burst of incoming bytes.
+     */
+    static class Rate {
+
+        final int bytesPerSecond;
+        final int burst;
+
+        Rate(int bytesPerSecond, int burst) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.burst = Math.max(burst, 1);
+        }
+    }
+
+    /**
+     * Token bucket of a session. Tokens are bytes and the bucket may go into debt when more
+     * bytes than available were read. Reads remain suspended until the debt has been paid.
+     */
+    static class Bucket {
+
+        Rate rate;
+        boolean suspended;
+        private long tokens;
+        private long lastRefill;
+
+        Bucket(Rate rate, long now) {
+            setRate(rate, now);
+        }
+
+        /**
+         * Changes the limits of the bucket. A debt is kept but tokens over the new burst size
+         * are lost.
+         */
+        void setRate(Rate rate, long now) {
+            if (rate != null) {
+                tokens = this.rate == null ? rate.burst : Math.min(tokens, rate.burst);
+            }
+            this.rate = rate;
+            this.lastRefill = now;
+        }
+
+        /**
+         * Takes the specified number of bytes and returns the number of milliseconds to
+         * wait until the bucket is no longer in debt.
+         */
+        long take(int bytes, long now) {
+            if (rate == null) {
+                tokens = 0;
+                return 0;
+            }
+            long elapsed = now - lastRefill;
+            if (elapsed >= (rate.burst - tokens) * 1000000000L / rate.bytesPerSecond) {
+                // The bucket is full. Checked first since elapsed * rate overflows after long idle times
+                tokens = rate.burst;
+                lastRefill = now;
+            }
+            else {
+                long refill = elapsed * rate.bytesPerSecond / 1000000000L;
+                if (refill > 0) {
+                    tokens += refill;
+                    // Keep the time of the bytes that were not refilled yet
+                    lastRefill += refill * 1000000000L / rate.bytesPerSecond;
+                }
+            }
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return 0;
+            }
+            return Math.max(1, (-tokens * 1000L + rate.bytesPerSecond - 1) / rate.bytesPerSecond);
+        }
+
+        int deficit() {
+            return tokens < 0 ? (int) Math.min(-tokens, Integer.MAX_VALUE) : 0;
+        }
+    }
+}
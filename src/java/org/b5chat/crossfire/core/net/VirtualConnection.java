@@ -107,6 +107,23 @@ public abstract class VirtualConnection implements IConnection {
         return null;
     }
 
+    public boolean isCompressed() {
+        // Return false since compression is not used for virtual connections
+        return false;
+    }
+
+    public void addCompression() {
+        //Ignore
+    }
+
+    public void startCompression() {
+        //Ignore
+    }
+
+    public void setTrafficClass(String userClass) {
+        //Ignore
+    }
+
     public boolean validate() {
         // Return true since the virtual connection is valid until it no longer exists
         return true;
@@ -19,6 +19,7 @@
 
 package org.b5chat.crossfire.core.nio;
 
+import java.io.UnsupportedEncodingException;
 
 import org.apache.mina.common.IdleStatus;
 import org.apache.mina.common.IoSession;
@@ -45,7 +46,11 @@ public class ClientConnectionHandler extends ConnectionHandler {
 	private static final Logger Log = LoggerFactory.getLogger(ClientConnectionHandler.class);
 
     public ClientConnectionHandler(String serverName) {
-        super(serverName);
+        this(serverName, null);
+    }
+
+    public ClientConnectionHandler(String serverName, IdleSessionTracker idleTracker) {
+        super(serverName, idleTracker);
     }
 
     @Override
@@ -111,4 +116,32 @@ public class ClientConnectionHandler extends ConnectionHandler {
             }
         }
     }
+
+    /**
+     * Returns the XMPP ping sent to idle sessions of authenticated clients, unless
+     * pinging clients was disabled with the <tt>xmpp.client.idle.ping</tt> property.
+     *
+     * @see ConnectionHandler#getIdlePing(IoSession)
+     */
+    @Override
+	byte[] getIdlePing(IoSession session) {
+        // Only ping sessions of clients that are authenticated
+        if (Globals.getBooleanProperty("xmpp.client.idle.ping", true)) {
+            final ClientStanzaHandler handler = (ClientStanzaHandler) session.getAttribute(HANDLER);
+            final JID entity = handler == null ? null : handler.getAddress();
+            if (entity != null) {
+                final IQ pingRequest = new IQ(Type.get);
+                pingRequest.setChildElement("ping", IQPingHandler.NAMESPACE);
+                pingRequest.setFrom(serverName);
+                pingRequest.setTo(entity);
+                try {
+                    return pingRequest.toXML().getBytes(CHARSET);
+                }
+                catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return null;
+    }
 }
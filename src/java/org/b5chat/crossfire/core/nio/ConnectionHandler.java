@@ -20,22 +20,17 @@
 package org.b5chat.crossfire.core.nio;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 
 import org.apache.mina.common.IdleStatus;
 import org.apache.mina.common.IoHandlerAdapter;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderException;
-import org.b5chat.crossfire.core.net.MXParser;
 import org.b5chat.crossfire.core.net.StanzaHandler;
+import org.b5chat.crossfire.core.property.Globals;
 import org.b5chat.crossfire.xmpp.IConnection;
-import org.dom4j.io.XMPPPacketReader;
+import org.dom4j.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmpp.packet.StreamError;
 
 /**
@@ -57,31 +52,34 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     protected static final String CONNECTION = "CONNECTION";
 
     protected String serverName;
-    private static Map<Integer, XMPPPacketReader> parsers = new ConcurrentHashMap<Integer, XMPPPacketReader>();
     /**
-     * Reuse the same factory for all the connections.
+     * Tracks idle sessions or <tt>null</tt> when MINA checks the idle time of sessions.
      */
-    private static XmlPullParserFactory factory = null;
+    private IdleSessionTracker idleTracker;
 
-    static {
-        try {
-            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
-            factory.setNamespaceAware(true);
-        }
-        catch (XmlPullParserException e) {
-            Log.error("Error creating a parser factory", e);
-        }
+    protected ConnectionHandler(String serverName) {
+        this.serverName = serverName;
     }
 
-    protected ConnectionHandler(String serverName) {
+    protected ConnectionHandler(String serverName, IdleSessionTracker idleTracker) {
         this.serverName = serverName;
+        this.idleTracker = idleTracker;
     }
 
     @Override
 	public void sessionOpened(IoSession session) throws Exception {
         // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
-        final XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
-        session.setAttribute(XML_PARSER, parser);
+        // The byte level framer, which lets the decoder parse stanzas straight from the received
+        // bytes, may be used instead of the char based parser.
+        ParserPool pool = Globals.getBooleanProperty("xmpp.parser.framer.bytes", false) ?
+                ParserPool.FRAMERS : ParserPool.PARSERS;
+        if (ParserPool.isReleaseIdle()) {
+            // The session will take a parser from the pool when data arrives
+            session.setAttribute(ParserPool.POOL, pool);
+        }
+        else {
+            session.setAttribute(XML_PARSER, pool.create());
+        }
         // Create a new NIOConnection for the new session
         final NIOConnection connection = createNIOConnection(session);
         session.setAttribute(CONNECTION, connection);
@@ -90,14 +88,22 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         // is divided in two, as crossfire will ping idle clients first (at 50% of the max idle time)
         // before disconnecting them (at 100% of the max idle time). This prevents crossfire from
         // removing connections without warning.
-        final int idleTime = getMaxIdleTime() / 2;
-        if (idleTime > 0) {
-            session.setIdleTime(IdleStatus.READER_IDLE, idleTime);
+        if (idleTracker != null) {
+            idleTracker.add(session, this, System.currentTimeMillis());
+        }
+        else {
+            final int idleTime = getMaxIdleTime() / 2;
+            if (idleTime > 0) {
+                session.setIdleTime(IdleStatus.READER_IDLE, idleTime);
+            }
         }
     }
 
     @Override
 	public void sessionClosed(IoSession session) throws Exception {
+        if (idleTracker != null) {
+            idleTracker.remove(session);
+        }
         // Get the connection for this session
         IConnection connection = (IConnection) session.getAttribute(CONNECTION);
         // Inform the connection that it was closed
@@ -122,14 +128,35 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     @Override
 	public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
         if (session.getIdleCount(status) > 1) {
-            // Get the connection for this session
-            final IConnection connection = (IConnection) session.getAttribute(CONNECTION);
-	        // Close idle connection
-	        if (Log.isDebugEnabled()) {
-	            Log.debug("ConnectionHandler: Closing connection that has been idle: " + connection);
-	        }
-	        connection.close();
+            closeIdleSession(session);
+        }
+    }
+
+    /**
+     * Closes a session that has been idle for the allowed idle time.
+     *
+     * @param session the idle session.
+     */
+    void closeIdleSession(IoSession session) {
+        // Get the connection for this session
+        final IConnection connection = (IConnection) session.getAttribute(CONNECTION);
+        // Close idle connection
+        if (Log.isDebugEnabled()) {
+            Log.debug("ConnectionHandler: Closing connection that has been idle: " + connection);
         }
+        connection.close();
+    }
+
+    /**
+     * Returns the bytes of the stanza to send to a session that has been idle for half of
+     * the allowed idle time or <tt>null</tt> if the session should not be pinged. Used when
+     * idle sessions are detected by an {@link IdleSessionTracker}.
+     *
+     * @param session the idle session.
+     * @return the bytes of the ping or null if the session should not be pinged.
+     */
+    byte[] getIdlePing(IoSession session) {
+        return null;
     }
 
     @Override
@@ -162,28 +189,36 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 	public void messageReceived(IoSession session, Object message) throws Exception {
         // Get the stanza handler for this session
         StanzaHandler handler = (StanzaHandler) session.getAttribute(HANDLER);
-        // Get the parser to use to process stanza. For optimization there is going
-        // to be a parser for each running thread. Each Filter will be executed
-        // by the Executor placed as the first Filter. So we can have a parser associated
-        // to each Thread
-        int hashCode = Thread.currentThread().hashCode();
-        XMPPPacketReader parser = parsers.get(hashCode);
-        if (parser == null) {
-            parser = new XMPPPacketReader();
-            parser.setXPPFactory(factory);
-            parsers.put(hashCode, parser);
-        }
         // Update counter of read btyes
         updateReadBytesCounter(session);
         //System.out.println("RCVD: " + message);
-        // Let the stanza handler process the received stanza
+        // Let the stanza handler process the received stanza. Stanzas sent while processing
+        // it may be coalesced into fewer writes
+        WriteCoalescer.begin();
         try {
-            handler.process((String) message, parser);
+            if (message instanceof Element) {
+                // Stanza already parsed by the decoder
+                handler.process((Element) message);
+            }
+            else if (message instanceof StanzaHeader) {
+                // Message whose element tree will be built if needed
+                handler.process((StanzaHeader) message);
+            }
+            else {
+                // Get the parser to use to process stanza. For optimization there is going
+                // to be a parser for each running thread. Each Filter will be executed
+                // by the Executor placed as the first Filter. So we can have a parser associated
+                // to each Thread
+                handler.process((String) message, StanzaParser.getInstance().getReader());
+            }
         } catch (Exception e) {
             Log.error("Closing connection due to error while processing message: " + message, e);
             IConnection connection = (IConnection) session.getAttribute(CONNECTION);
             connection.close();
         }
+        finally {
+            WriteCoalescer.end();
+        }
     }
 
     @Override
@@ -191,6 +226,11 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         super.messageSent(session, message);
         // Update counter of written btyes
         updateWrittenBytesCounter(session);
+        // Deliver stanzas that were held while the outgoing queue was congested
+        NIOConnection connection = (NIOConnection) session.getAttribute(CONNECTION);
+        if (connection != null) {
+            connection.deliverHeldPackets();
+        }
         //System.out.println("SENT: " + Charset.forName("UTF-8").decode(((ByteBuffer)message).buf()));
     }
 
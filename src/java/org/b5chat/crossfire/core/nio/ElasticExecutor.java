@@ -0,0 +1,120 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pool that starts a new thread whenever a task is submitted and all the threads
+ * are busy, up to a maximum number of threads. Tasks are queued only when the maximum
+ * was reached. Threads that have been idle for the keep alive time are stopped.<p>
+ *
+ * A <tt>ThreadPoolExecutor</tt> with an unbounded queue never grows over its core size, so
+ * tasks that block (e.g. waiting for the database while loading a roster) cap the throughput
+ * of the pool. With this executor blocked tasks just make the pool grow.<p>
+ *
+ * When used by MINA's {@link org.apache.mina.common.ExecutorThreadModel} the events of a
+ * session are still processed one at a time and in order since the executor filter never
+ * submits more than one task per session.
+ */
+public class ElasticExecutor extends ThreadPoolExecutor {
+
+    /**
+     * Number of tasks that were submitted but did not finish yet.
+     */
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param name prefix of the names of the threads.
+     * @param coreThreads number of threads to keep even if idle.
+     * @param maxThreads maximum number of threads.
+     * @param keepAliveSeconds seconds that a thread over the core size may be idle before stopping.
+     */
+    public ElasticExecutor(final String name, int coreThreads, int maxThreads, long keepAliveSeconds) {
+        super(coreThreads, maxThreads, keepAliveSeconds, TimeUnit.SECONDS, new TaskQueue(),
+                new ThreadFactory() {
+
+                    final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, name + "-" + threadNumber.getAndIncrement());
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        // The pool reached the max number of threads so queue the task
+                        if (executor.isShutdown() || !((TaskQueue) executor.getQueue()).force(task)) {
+                            throw new RejectedExecutionException();
+                        }
+                    }
+                });
+        ((TaskQueue) getQueue()).executor = this;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submitted.incrementAndGet();
+        try {
+            super.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            submitted.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable t) {
+        submitted.decrementAndGet();
+    }
+
+    /**
+     * Queue that refuses tasks when there are no idle threads so that the pool starts a new
+     * thread. Refused tasks are queued anyway when the pool cannot grow anymore.
+     */
+    private static class TaskQueue extends LinkedBlockingQueue<Runnable> {
+
+        private static final long serialVersionUID = 1L;
+
+        private ElasticExecutor executor;
+
+        @Override
+        public boolean offer(Runnable task) {
+            int threads = executor.getPoolSize();
+            if (executor.submitted.get() > threads && threads < executor.getMaximumPoolSize()) {
+                // All threads are busy so start a new one
+                return false;
+            }
+            return super.offer(task);
+        }
+
+        boolean force(Runnable task) {
+            return super.offer(task);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.b5chat.crossfire.core.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects idle sessions using a hashed timing wheel instead of letting MINA check the idle
+ * time of every session. Each tracked session sits in the slot of the wheel where its next
+ * deadline falls, so a tick of the wheel only looks at the sessions whose deadline expired.
+ * Reads do not move sessions around the wheel: when a deadline expires the last read time of
+ * the session is checked and the session is just placed at its new deadline if it was not
+ * idle.<p>
+ *
+ * A session that has been idle for half of the max idle time of its handler is pinged (see
+ * {@link ConnectionHandler#getIdlePing(IoSession)}) and closed if it is still idle when
+ * the other half has passed. The ping bytes are built by the handler and written as is.
+ * Sessions are pinged as their deadlines expire, which are spread over the interval, instead
+ * of pinging every idle session at once. Sessions found dead during a tick are closed together
+ * by a single task. Closed sessions must be {@link #remove(IoSession) removed} so that the
+ * wheel does not keep them until their deadline.
+ */
+public class IdleSessionTracker {
+
+    private static final Logger Log = LoggerFactory.getLogger(IdleSessionTracker.class);
+
+    /**
+     * Session attribute that holds the entry of a tracked session.
+     */
+    private static final String ENTRY = "IDLE-ENTRY";
+
+    private final long tickMillis;
+    private final List<Set<Entry>> wheel;
+    private final Executor reaper;
+    private final long startTime;
+    /**
+     * Number of ticks processed since the wheel was created.
+     */
+    private volatile long currentTick = 0;
+    private TimerTask task;
+
+    private final AtomicInteger trackedSessions = new AtomicInteger();
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong reapedSessions = new AtomicLong();
+
+    /**
+     * Creates a new wheel whose ticks are executed by the task engine and that closes
+     * dead sessions using the task engine too.
+     *
+     * @param tickMillis milliseconds between ticks of the wheel.
+     * @param slots number of slots of the wheel.
+     */
+    public IdleSessionTracker(long tickMillis, int slots) {
+        this(tickMillis, slots, System.currentTimeMillis(), new Executor() {
+            public void execute(Runnable command) {
+                TaskEngine.getInstance().submit(command);
+            }
+        });
+    }
+
+    IdleSessionTracker(long tickMillis, int slots, long startTime, Executor reaper) {
+        this.tickMillis = tickMillis;
+        this.startTime = startTime;
+        this.reaper = reaper;
+        wheel = new ArrayList<Set<Entry>>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(new HashSet<Entry>());
+        }
+    }
+
+    /**
+     * Starts ticking the wheel.
+     */
+    public synchronized void start() {
+        if (task != null) {
+            return;
+        }
+        task = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    advance(System.currentTimeMillis());
+                }
+                catch (Exception e) {
+                    Log.error("Error checking idle sessions", e);
+                }
+            }
+        };
+        TaskEngine.getInstance().scheduleAtFixedRate(task, tickMillis, tickMillis);
+    }
+
+    /**
+     * Stops ticking the wheel. Sessions are still tracked.
+     */
+    public synchronized void stop() {
+        if (task != null) {
+            TaskEngine.getInstance().cancelScheduledTask(task);
+            task = null;
+        }
+    }
+
+    /**
+     * Starts tracking a new session. The session will be checked when half of the max idle
+     * time of its handler has passed.
+     *
+     * @param session the new session.
+     * @param handler the handler of the session.
+     * @param now the current time in milliseconds.
+     */
+    public void add(IoSession session, ConnectionHandler handler, long now) {
+        long halfIdle = handler.getMaxIdleTime() * 1000L / 2;
+        if (halfIdle <= 0) {
+            return;
+        }
+        trackedSessions.incrementAndGet();
+        // Sessions opened at the same time (e.g. after a restart) should not be pinged at once
+        long jitter = (System.identityHashCode(session) & 0x7fffffff) % (halfIdle / 4 + 1);
+        Entry entry = new Entry(session, handler, halfIdle);
+        session.setAttribute(ENTRY, entry);
+        schedule(entry, now + halfIdle + jitter);
+    }
+
+    /**
+     * Stops tracking a session that was closed.
+     *
+     * @param session the closed session.
+     */
+    public void remove(IoSession session) {
+        Entry entry = (Entry) session.removeAttribute(ENTRY);
+        if (entry == null) {
+            return;
+        }
+        trackedSessions.decrementAndGet();
+        // A tick that already took the entry from its slot will drop it
+        entry.removed = true;
+        Set<Entry> slot = wheel.get((int) (entry.tick % wheel.size()));
+        synchronized (slot) {
+            slot.remove(entry);
+        }
+    }
+
+    /**
+     * Processes the ticks of the wheel up to the specified time.
+     *
+     * @param now the current time in milliseconds.
+     */
+    synchronized void advance(long now) {
+        List<IoSession> dead = null;
+        while (startTime + (currentTick + 1) * tickMillis <= now) {
+            currentTick++;
+            Set<Entry> slot = wheel.get((int) (currentTick % wheel.size()));
+            List<Entry> expired;
+            synchronized (slot) {
+                expired = new ArrayList<Entry>(slot);
+                slot.clear();
+            }
+            for (Entry entry : expired) {
+                if (entry.removed) {
+                    continue;
+                }
+                if (entry.tick > currentTick) {
+                    // The deadline is in a later turn of the wheel
+                    add(slot, entry);
+                }
+                else if (!expire(entry, now)) {
+                    if (dead == null) {
+                        dead = new ArrayList<IoSession>();
+                    }
+                    dead.add(entry.session);
+                }
+            }
+        }
+        if (dead != null) {
+            reap(dead);
+        }
+    }
+
+    /**
+     * Checks a session whose deadline expired. Returns false if the session is dead.
+     */
+    private boolean expire(Entry entry, long now) {
+        IoSession session = entry.session;
+        if (!session.isConnected() || session.isClosing()) {
+            // Stop tracking closed sessions
+            forget(session);
+            return true;
+        }
+        long lastRead = session.getLastReadTime();
+        if (now - lastRead < entry.halfIdle) {
+            // The session was not idle
+            entry.pinged = false;
+            schedule(entry, lastRead + entry.halfIdle);
+        }
+        else if (!entry.pinged) {
+            // Ping the session to see if it is alive
+            entry.pinged = true;
+            byte[] ping = entry.handler.getIdlePing(session);
+            if (ping != null) {
+                session.write(ByteBuffer.wrap(ping));
+                pings.incrementAndGet();
+            }
+            schedule(entry, now + entry.halfIdle);
+        }
+        else {
+            forget(session);
+            return false;
+        }
+        return true;
+    }
+
+    private void forget(IoSession session) {
+        if (session.removeAttribute(ENTRY) != null) {
+            trackedSessions.decrementAndGet();
+        }
+    }
+
+    private void reap(final List<IoSession> dead) {
+        reapedSessions.addAndGet(dead.size());
+        reaper.execute(new Runnable() {
+            public void run() {
+                for (IoSession session : dead) {
+                    try {
+                        ((ConnectionHandler) session.getHandler()).closeIdleSession(session);
+                    }
+                    catch (Exception e) {
+                        Log.error("Error closing idle session: " + session, e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void schedule(Entry entry, long deadline) {
+        long tick = Math.max(currentTick + 1, (deadline - startTime + tickMillis - 1) / tickMillis);
+        entry.tick = tick;
+        add(wheel.get((int) (tick % wheel.size())), entry);
+    }
+
+    private static void add(Set<Entry> slot, Entry entry) {
+        synchronized (slot) {
+            slot.add(entry);
+        }
+    }
+
+    /**
+     * Returns the number of sessions being tracked.
+     *
+     * @return the number of sessions being tracked.
+     */
+    public int getTrackedSessions() {
+        return trackedSessions.get();
+    }
+
+    /**
+     * Returns the number of pings sent to idle sessions.
+     *
+     * @return the number of pings sent to idle sessions.
+     */
+    public long getPings() {
+        return pings.get();
+    }
+
+    /**
+     * Returns the number of sessions that were closed for being idle.
+     *
+     * @return the number of sessions that were closed for being idle.
+     */
+    public long getReapedSessions() {
+        return reapedSessions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "tracked sessions: " + getTrackedSessions() + ", pings: " + getPings() +
+                ", reaped sessions: " + getReapedSessions();
+    }
+
+    private static class Entry {
+
+        final IoSession session;
+        final ConnectionHandler handler;
+        final long halfIdle;
+        boolean pinged;
+        volatile long tick;
+        volatile boolean removed;
+
+        Entry(IoSession session, ConnectionHandler handler, long halfIdle) {
+            this.session = session;
+            this.handler = handler;
+            this.halfIdle = halfIdle;
+        }
+    }
+}
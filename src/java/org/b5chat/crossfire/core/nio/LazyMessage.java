@@ -0,0 +1,235 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.PacketError;
+import org.xmpp.packet.PacketExtension;
+
+/**
+ * Message whose element tree is built only when needed. The message starts with the root
+ * element of the received stanza and its attributes (see {@link StanzaHeader}), which is all
+ * that routing needs: the <tt>to</tt>, <tt>from</tt>, <tt>type</tt> and <tt>id</tt> attributes
+ * can be read and modified as in any other message. The received bytes are parsed into the
+ * full element the first time that the content of the message is used, for instance when an
+ * interceptor or a privacy list asks for the element, the body is read or the message is
+ * serialized to be delivered. Attributes modified before that (e.g. the <tt>from</tt> stamped
+ * by the server) are kept.<p>
+ *
+ * A message whose element tree was never built is delivered by writing the received bytes
+ * of its content after a start tag created from the current attributes (see
+ * {@link #write(XMPPPacketWriter)}). Any access to the content of the message builds the tree
+ * so modified messages are always serialized from their element.
+ */
+public class LazyMessage extends Message {
+
+    /**
+     * Received bytes of the stanza or <tt>null</tt> once the element tree was built.
+     */
+    private byte[] stanza;
+    /**
+     * Offset in the received bytes of the content of the stanza.
+     */
+    private final int contentStart;
+
+    /**
+     * Creates a message from the header of a received stanza.
+     *
+     * @param header the header of the received stanza.
+     * @param skipValidation true if stringprep should not be applied to the to and from JIDs.
+     */
+    public LazyMessage(StanzaHeader header, boolean skipValidation) {
+        super(header.getElement(), skipValidation);
+        stanza = header.getBytes();
+        contentStart = header.getContentStart();
+    }
+
+    /**
+     * Returns true if the element tree of the message was built.
+     *
+     * @return true if the element tree of the message was built.
+     */
+    public synchronized boolean isMaterialized() {
+        return stanza == null;
+    }
+
+    /**
+     * Serializes the message reusing the received bytes of its content. Returns false if
+     * the element tree of the message was built, in which case the element has to be
+     * serialized instead.
+     *
+     * @param writer the writer where the message is serialized.
+     * @return true if the message was serialized.
+     * @throws IOException if an attribute contains text that cannot be encoded.
+     */
+    synchronized boolean write(XMPPPacketWriter writer) throws IOException {
+        if (stanza == null) {
+            return false;
+        }
+        writer.write(element, stanza, contentStart);
+        return true;
+    }
+
+    /**
+     * Builds the element tree of the message from the received bytes. Attributes of the
+     * received root element are replaced with the current ones.
+     */
+    private synchronized void materialize() {
+        if (stanza == null) {
+            return;
+        }
+        Element full;
+        try {
+            full = StanzaParser.getInstance().parse(ByteBuffer.wrap(stanza), 0, stanza.length);
+        }
+        catch (XMLNotWellFormedException e) {
+            // Never happens since the stanza was checked when it was received
+            throw new IllegalStateException("Received stanza is not well-formed", e);
+        }
+        for (Attribute attribute : new ArrayList<Attribute>(attributes(full))) {
+            full.remove(attribute);
+        }
+        for (Attribute attribute : attributes(element)) {
+            full.addAttribute(attribute.getQName(), attribute.getValue());
+        }
+        element = full;
+        stanza = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Attribute> attributes(Element element) {
+        return element.attributes();
+    }
+
+    @Override
+    public Element getElement() {
+        materialize();
+        return super.getElement();
+    }
+
+    @Override
+    public String toXML() {
+        materialize();
+        return super.toXML();
+    }
+
+    @Override
+    public String toString() {
+        materialize();
+        return super.toString();
+    }
+
+    @Override
+    public Message createCopy() {
+        materialize();
+        return super.createCopy();
+    }
+
+    @Override
+    public String getSubject() {
+        materialize();
+        return super.getSubject();
+    }
+
+    @Override
+    public void setSubject(String subject) {
+        materialize();
+        super.setSubject(subject);
+    }
+
+    @Override
+    public String getBody() {
+        materialize();
+        return super.getBody();
+    }
+
+    @Override
+    public void setBody(String body) {
+        materialize();
+        super.setBody(body);
+    }
+
+    @Override
+    public String getThread() {
+        materialize();
+        return super.getThread();
+    }
+
+    @Override
+    public void setThread(String thread) {
+        materialize();
+        super.setThread(thread);
+    }
+
+    @Override
+    public Element getChildElement(String name, String namespace) {
+        materialize();
+        return super.getChildElement(name, namespace);
+    }
+
+    @Override
+    public Element addChildElement(String name, String namespace) {
+        materialize();
+        return super.addChildElement(name, namespace);
+    }
+
+    @Override
+    public void addExtension(PacketExtension extension) {
+        materialize();
+        super.addExtension(extension);
+    }
+
+    @Override
+    public PacketExtension getExtension(String name, String namespace) {
+        materialize();
+        return super.getExtension(name, namespace);
+    }
+
+    @Override
+    public boolean deleteExtension(String name, String namespace) {
+        materialize();
+        return super.deleteExtension(name, namespace);
+    }
+
+    @Override
+    public PacketError getError() {
+        materialize();
+        return super.getError();
+    }
+
+    @Override
+    public void setError(PacketError error) {
+        materialize();
+        super.setError(error);
+    }
+
+    @Override
+    public void setError(PacketError.Condition condition) {
+        materialize();
+        super.setError(condition);
+    }
+}
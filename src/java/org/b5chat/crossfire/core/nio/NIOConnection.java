@@ -21,10 +21,8 @@ package org.b5chat.crossfire.core.nio;
 
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
 import java.security.cert.Certificate;
+import java.util.List;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
@@ -33,15 +31,14 @@ import javax.net.ssl.SSLSession;
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.SSLFilter;
+import org.b5chat.crossfire.core.net.TrafficShapingFilter;
 import org.b5chat.crossfire.core.property.Globals;
-import org.b5chat.crossfire.core.util.XMLWriter;
 import org.b5chat.crossfire.xmpp.IConnection;
 import org.b5chat.crossfire.xmpp.IConnectionCloseListener;
 import org.b5chat.crossfire.xmpp.auth.UnauthorizedException;
 import org.b5chat.crossfire.xmpp.route.IPacketDeliverer;
 import org.b5chat.crossfire.xmpp.session.ISession;
 import org.b5chat.crossfire.xmpp.session.LocalSession;
-import org.dom4j.io.OutputFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.Packet;
@@ -77,7 +74,6 @@ public class NIOConnection implements IConnection {
     private int minorVersion = 0;
     private String language = null;
 
-    private static ThreadLocal<CharsetEncoder> encoder = new ThreadLocalEncoder();
     /**
      * Flag that specifies if the connection should be considered closed. Closing a NIO connection
      * is an asynch operation so instead of waiting for the connection to be actually closed just
@@ -86,6 +82,10 @@ public class NIOConnection implements IConnection {
      */
     private boolean closed;
 
+    /**
+     * Drops or holds low value stanzas while the outgoing queue is congested.
+     */
+    private final OutboundQueue outboundQueue = new OutboundQueue();
 
     public NIOConnection(IoSession session, IPacketDeliverer packetDeliverer) {
         this.ioSession = session;
@@ -212,22 +212,91 @@ public class NIOConnection implements IConnection {
         return ioSession.getFilterChain().contains("tls");
     }
 
+    public boolean isCompressed() {
+        return ioSession.getFilterChain().contains(ZlibCompressionFilter.NAME);
+    }
+
+    public void addCompression() {
+        // Inflate incoming bytes before they are decoded by the XMPP codec
+        ioSession.getFilterChain().addBefore("xmpp", ZlibCompressionFilter.NAME, new ZlibCompressionFilter());
+    }
+
+    public void startCompression() {
+        ZlibCompressionFilter filter = getCompressionFilter();
+        if (filter != null) {
+            filter.setCompressOutbound(true);
+        }
+    }
+
+    public void setTrafficClass(String userClass) {
+        TrafficShapingFilter filter = (TrafficShapingFilter) ioSession.getFilterChain().get(TrafficShapingFilter.NAME);
+        if (filter != null) {
+            filter.setUserClass(ioSession, userClass);
+        }
+    }
+
+    /**
+     * Returns the filter that compresses the traffic of this connection or <tt>null</tt> if
+     * the connection is not compressed. The filter keeps the compression statistics of
+     * the connection.
+     *
+     * @return the filter that compresses the traffic of this connection or null.
+     */
+    public ZlibCompressionFilter getCompressionFilter() {
+        return (ZlibCompressionFilter) ioSession.getFilterChain().get(ZlibCompressionFilter.NAME);
+    }
+
     public void deliver(Packet packet) throws UnauthorizedException {
         if (isClosed()) {
             backupDeliverer.deliver(packet);
         }
         else {
-            ByteBuffer buffer = ByteBuffer.allocate(4096);
-            buffer.setAutoExpand(true);
+            // Send first the stanzas that were held while the queue was congested
+            List<Packet> held = outboundQueue.drain(ioSession.getScheduledWriteBytes());
+            if (held != null) {
+                for (Packet heldPacket : held) {
+                    write(heldPacket);
+                }
+            }
+            if (outboundQueue.offer(packet, ioSession.getScheduledWriteBytes())) {
+                write(packet);
+            }
+        }
+    }
+
+    /**
+     * Delivers the stanzas that were held while the outgoing queue was congested if the
+     * queue is no longer congested.
+     */
+    void deliverHeldPackets() throws UnauthorizedException {
+        if (outboundQueue.hasHeldPackets() && !isClosed()) {
+            List<Packet> held = outboundQueue.drain(ioSession.getScheduledWriteBytes());
+            if (held != null) {
+                for (Packet packet : held) {
+                    write(packet);
+                }
+            }
+        }
+    }
 
+    private void write(Packet packet) throws UnauthorizedException {
+        if (isClosed()) {
+            backupDeliverer.deliver(packet);
+        }
+        else {
             boolean errorDelivering = false;
             try {
-                XMLWriter xmlSerializer =
-                        new XMLWriter(new ByteBufferWriter(buffer, encoder.get()), new OutputFormat());
-                xmlSerializer.write(packet.getElement());
-                xmlSerializer.flush();
-                buffer.flip();
-                ioSession.write(buffer);
+                XMPPPacketWriter xmlSerializer = XMPPPacketWriter.getInstance();
+                PacketBroadcast broadcast = PacketBroadcast.get(packet);
+                if (broadcast != null) {
+                    // Reuse the bytes of the packet that were serialized for other recipients
+                    broadcast.write(xmlSerializer);
+                }
+                else if (!(packet instanceof LazyMessage) || !((LazyMessage) packet).write(xmlSerializer)) {
+                    // Messages that were not modified are written using the received bytes
+                    xmlSerializer.write(packet.getElement());
+                }
+                WriteCoalescer.write(ioSession, xmlSerializer);
             }
             catch (Exception e) {
                 Log.debug("NIOConnection: Error delivering packet" + "\n" + this.toString(), e);
@@ -252,6 +321,9 @@ public class NIOConnection implements IConnection {
 
     private void deliverRawText(String text, boolean asynchronous) {
         if (!isClosed()) {
+            // Send first any stanza that is waiting to be coalesced
+            WriteCoalescer.flush(ioSession);
+
             ByteBuffer buffer = ByteBuffer.allocate(text.length());
             buffer.setAutoExpand(true);
 
@@ -310,14 +382,4 @@ public class NIOConnection implements IConnection {
 	public String toString() {
         return super.toString() + " MINA ISession: " + ioSession;
     }
-
-    private static class ThreadLocalEncoder extends ThreadLocal<CharsetEncoder> {
-
-        @Override
-		protected CharsetEncoder initialValue() {
-            return Charset.forName(CHARSET).newEncoder()
-				.onMalformedInput(CodingErrorAction.REPORT)
-				.onUnmappableCharacter(CodingErrorAction.REPORT);
-        }
-    }
 }
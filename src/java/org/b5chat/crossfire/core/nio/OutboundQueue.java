@@ -0,0 +1,210 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.IoSession;
+import org.b5chat.crossfire.core.property.Globals;
+import org.dom4j.Element;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Policy applied to the stanzas delivered to a connection whose outgoing queue is congested.
+ * A connection is congested when the bytes scheduled to be written to its socket exceed
+ * <tt>xmpp.session.queue.congested</tt> (256K by default). While congested, low value stanzas
+ * are not queued so that messages and IQs get through first:
+ * <ul>
+ *      <li>Chat state notifications (without a body) are dropped.</li>
+ *      <li>Available and unavailable presences are held, one for each sender. A presence
+ *      held for a sender is superseded by the next presence of the same full JID.</li>
+ * </ul>
+ * Held presences are copied, since the delivered packet may be reused for other recipients,
+ * and are delivered once the queue is no longer congested. Sessions are still
+ * closed as a last resort when the queue reaches <tt>session.stalled.cap</tt>
+ * (see {@link org.b5chat.crossfire.core.net.StalledSessionsFilter}).<p>
+ *
+ * The distribution of the queue depths of a group of sessions can be obtained with
+ * {@link #getDepthDistribution(Collection)}.
+ */
+public class OutboundQueue {
+
+    private static final String CHATSTATES_NAMESPACE = "http://jabber.org/protocol/chatstates";
+
+    /**
+     * Upper bounds (inclusive) of the ranges of queue depths used by
+     * {@link #getDepthDistribution(Collection)}. The last range has no upper bound.
+     */
+    public static final int[] DEPTH_LIMITS = {0, 1024, 16384, 262144, 1048576, 4194304};
+
+    private static final AtomicLong droppedChatStates = new AtomicLong();
+    private static final AtomicLong heldPresences = new AtomicLong();
+    private static final AtomicLong supersededPresences = new AtomicLong();
+
+    private final int congestedBytes;
+    /**
+     * Presences held while congested keyed by the full JID of the sender. Created when needed.
+     */
+    private Map<String, Packet> held;
+
+    OutboundQueue() {
+        this(Globals.getIntProperty("xmpp.session.queue.congested", 262144));
+    }
+
+    OutboundQueue(int congestedBytes) {
+        this.congestedBytes = congestedBytes;
+    }
+
+    /**
+     * Returns true if the packet should be written now. Otherwise the packet was dropped
+     * or held because the queue is congested.
+     *
+     * @param packet the packet being delivered.
+     * @param scheduledBytes the number of bytes waiting to be written to the socket.
+     * @return true if the packet should be written now.
+     */
+    synchronized boolean offer(Packet packet, int scheduledBytes) {
+        if (scheduledBytes <= congestedBytes && held == null) {
+            return true;
+        }
+        if (packet instanceof Presence) {
+            String from = packet.getElement().attributeValue("from");
+            Presence.Type type = ((Presence) packet).getType();
+            if (from != null && (type == null || type == Presence.Type.unavailable) &&
+                    (held != null || scheduledBytes > congestedBytes)) {
+                if (held == null) {
+                    held = new LinkedHashMap<String, Packet>();
+                }
+                // Keep the order of senders but only the last presence of each one
+                if (held.remove(from) != null) {
+                    supersededPresences.incrementAndGet();
+                }
+                // Broadcasts reuse the same packet for every recipient so keep a copy
+                held.put(from, packet.createCopy());
+                heldPresences.incrementAndGet();
+                return false;
+            }
+        }
+        else if (packet instanceof Message && scheduledBytes > congestedBytes && isChatState(packet)) {
+            droppedChatStates.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the held packets once the queue is no longer congested. The returned packets
+     * should be written before any other packet.
+     *
+     * @param scheduledBytes the number of bytes waiting to be written to the socket.
+     * @return the held packets or null if none are held or the queue is still congested.
+     */
+    synchronized List<Packet> drain(int scheduledBytes) {
+        if (held == null || scheduledBytes > congestedBytes) {
+            return null;
+        }
+        List<Packet> packets = new ArrayList<Packet>(held.values());
+        held = null;
+        return packets;
+    }
+
+    /**
+     * Returns true if there are held packets.
+     *
+     * @return true if there are held packets.
+     */
+    synchronized boolean hasHeldPackets() {
+        return held != null;
+    }
+
+    private static boolean isChatState(Packet packet) {
+        Element element = packet.getElement();
+        if (element.element("body") != null) {
+            return false;
+        }
+        for (Object child : element.elements()) {
+            if (CHATSTATES_NAMESPACE.equals(((Element) child).getNamespaceURI())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of chat state notifications dropped because of congested queues.
+     *
+     * @return the number of dropped chat state notifications.
+     */
+    public static long getDroppedChatStates() {
+        return droppedChatStates.get();
+    }
+
+    /**
+     * Returns the number of presences that were held because of congested queues.
+     *
+     * @return the number of held presences.
+     */
+    public static long getHeldPresences() {
+        return heldPresences.get();
+    }
+
+    /**
+     * Returns the number of held presences that were never sent because a newer presence
+     * of the same sender was delivered.
+     *
+     * @return the number of superseded presences.
+     */
+    public static long getSupersededPresences() {
+        return supersededPresences.get();
+    }
+
+    /**
+     * Returns the number of sessions whose queue depth falls in each of the ranges defined
+     * by {@link #DEPTH_LIMITS}. The last element of the returned array is the number of sessions
+     * with more queued bytes than the last limit.
+     *
+     * @param sessions the sessions whose queues are measured.
+     * @return the number of sessions in each range of queue depths.
+     */
+    public static int[] getDepthDistribution(Collection<IoSession> sessions) {
+        int[] distribution = new int[DEPTH_LIMITS.length + 1];
+        for (IoSession session : sessions) {
+            int depth = session.getScheduledWriteBytes();
+            int range = 0;
+            while (range < DEPTH_LIMITS.length && depth > DEPTH_LIMITS[range]) {
+                range++;
+            }
+            distribution[range]++;
+        }
+        return distribution;
+    }
+
+    public static String getStatistics() {
+        return "dropped chat states: " + getDroppedChatStates() + ", held presences: " +
+                getHeldPresences() + ", superseded presences: " + getSupersededPresences();
+    }
+}
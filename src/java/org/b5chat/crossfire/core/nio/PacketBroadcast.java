@@ -0,0 +1,162 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.io.IOException;
+
+import org.dom4j.Element;
+import org.xmpp.packet.Packet;
+
+/**
+ * Keeps the serialized form of a packet that is being sent to many recipients so that the
+ * packet is serialized only once. Broadcasting code usually changes the TO attribute of the
+ * same packet instance for each recipient and routes it; while a broadcast is in progress
+ * the connections of the recipients copy the serialized bytes and only encode the new value
+ * of the TO attribute.<p>
+ *
+ * Broadcasts are bound to the current thread since packets are delivered to local
+ * connections by the thread that routes them. Code that broadcasts a packet must end
+ * the broadcast once done:
+ *
+ * <pre>
+ * PacketBroadcast.begin(packet);
+ * try {
+ *     for (JID address : addresses) {
+ *         packet.setTo(address);
+ *         routingTable.routePacket(address, packet, false);
+ *     }
+ * }
+ * finally {
+ *     PacketBroadcast.end();
+ * }
+ * </pre>
+ *
+ * Any change to the packet other than its TO attribute must be reported with
+ * {@link #packetModified(Packet)}, after which the packet is serialized again for each
+ * recipient.
+ */
+public class PacketBroadcast {
+
+    private static final ThreadLocal<PacketBroadcast> broadcasts = new ThreadLocal<PacketBroadcast>();
+
+    private final Packet packet;
+    private final PacketBroadcast previous;
+    private int nesting = 1;
+    private boolean modified = false;
+
+    private byte[] bytes;
+    private int toStart;
+    private int toEnd;
+
+    /**
+     * Starts broadcasting the specified packet from the current thread. Broadcasts may
+     * be nested.
+     *
+     * @param packet the packet that is going to be sent to many recipients.
+     */
+    public static void begin(Packet packet) {
+        PacketBroadcast current = broadcasts.get();
+        if (current != null && current.packet == packet) {
+            current.nesting++;
+        }
+        else {
+            broadcasts.set(new PacketBroadcast(packet, current));
+        }
+    }
+
+    /**
+     * Ends the last broadcast started by the current thread.
+     */
+    public static void end() {
+        PacketBroadcast current = broadcasts.get();
+        if (current != null && --current.nesting == 0) {
+            if (current.previous == null) {
+                broadcasts.remove();
+            }
+            else {
+                broadcasts.set(current.previous);
+            }
+        }
+    }
+
+    /**
+     * Notification that the packet may have been modified (other than its TO attribute).
+     * If the packet is being broadcasted then the serialized form is discarded and it will
+     * be serialized again for each recipient.
+     *
+     * @param packet the packet that may have been modified.
+     */
+    public static void packetModified(Packet packet) {
+        for (PacketBroadcast broadcast = broadcasts.get(); broadcast != null; broadcast = broadcast.previous) {
+            if (broadcast.packet == packet) {
+                broadcast.modified = true;
+                broadcast.bytes = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the broadcast in progress of the specified packet or <tt>null</tt> if the
+     * packet is not being broadcasted by the current thread.
+     *
+     * @param packet the packet to deliver.
+     * @return the broadcast in progress of the specified packet or null if none.
+     */
+    static PacketBroadcast get(Packet packet) {
+        PacketBroadcast broadcast = broadcasts.get();
+        if (broadcast != null && broadcast.packet == packet && !broadcast.modified) {
+            return broadcast;
+        }
+        return null;
+    }
+
+    private PacketBroadcast(Packet packet, PacketBroadcast previous) {
+        this.packet = packet;
+        this.previous = previous;
+    }
+
+    /**
+     * Serializes the packet for its current recipient. The bytes serialized for the first
+     * recipient are reused and only the value of the TO attribute is encoded again.
+     *
+     * @param writer the writer, with no serialized bytes, where the packet will be serialized.
+     * @throws IOException if the packet contains text that cannot be encoded.
+     */
+    void write(XMPPPacketWriter writer) throws IOException {
+        Element element = packet.getElement();
+        String to = element.attributeValue("to");
+        if (bytes != null && (to == null) == (toStart < 0)) {
+            if (to == null) {
+                writer.write(bytes, 0, bytes.length);
+            }
+            else {
+                writer.write(bytes, 0, toStart);
+                writer.writeAttributeValue(to);
+                writer.write(bytes, toEnd, bytes.length - toEnd);
+            }
+        }
+        else {
+            writer.write(element);
+            bytes = writer.toByteArray();
+            toStart = writer.getToStart();
+            toEnd = writer.getToEnd();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.b5chat.crossfire.core.property.Globals;
+
+/**
+ * Pool of the parsers used by {@link XMPPDecoder} to find stanzas in the received data.
+ * When <tt>xmpp.parser.release.idle</tt> is true (the default) connections do not own a
+ * parser. A parser is taken from the pool when data arrives and given back once the data
+ * was decoded, as long as no stanza was left incomplete. So a connection that is quiet
+ * between stanzas does not keep any parser state and the number of parsers in use is bounded
+ * by the number of threads decoding data. Pooled parsers keep no buffered data.<p>
+ *
+ * The memory kept by the parsing and compression state of a group of sessions can be
+ * measured with {@link #getRetainedSizes(Collection)}.
+ */
+public abstract class ParserPool {
+
+    /**
+     * Name of the session attribute with the pool used by the session.
+     */
+    static final String POOL = "XML-PARSER-POOL";
+
+    /**
+     * Key used by MINA to keep the bytes of an incomplete stanza in the session.
+     */
+    private static final String DECODER_BUFFER = CumulativeProtocolDecoder.class.getName() + ".Buffer";
+
+    /**
+     * Pool of byte level framers.
+     */
+    static final ParserPool FRAMERS = new ParserPool() {
+        @Override
+        Object create() {
+            return new XMLStanzaFramer();
+        }
+
+        @Override
+        boolean recycle(Object parser) {
+            return ((XMLStanzaFramer) parser).recycle();
+        }
+    };
+
+    /**
+     * Pool of char based parsers.
+     */
+    static final ParserPool PARSERS = new ParserPool() {
+        @Override
+        Object create() {
+            return new XMLLightweightParser(ConnectionHandler.CHARSET);
+        }
+
+        @Override
+        boolean recycle(Object parser) {
+            return ((XMLLightweightParser) parser).recycle();
+        }
+    };
+
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+
+    private final ConcurrentLinkedQueue<Object> idle = new ConcurrentLinkedQueue<Object>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+
+    ParserPool() {
+        this(Globals.getIntProperty("xmpp.parser.pool.size", 256));
+    }
+
+    ParserPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns true if connections should give back their parsers when they are quiet.
+     *
+     * @return true if connections should give back their parsers when they are quiet.
+     */
+    static boolean isReleaseIdle() {
+        return Globals.getBooleanProperty("xmpp.parser.release.idle", true);
+    }
+
+    /**
+     * Returns a new parser.
+     */
+    abstract Object create();
+
+    /**
+     * Clears the state of the parser. Returns false if the parser was in the middle of
+     * a stanza and cannot be cleared.
+     */
+    abstract boolean recycle(Object parser);
+
+    /**
+     * Returns a parser from the pool or a new one if the pool is empty.
+     *
+     * @return a parser with no state.
+     */
+    Object acquire() {
+        Object parser = idle.poll();
+        if (parser == null) {
+            created.incrementAndGet();
+            return create();
+        }
+        idleCount.decrementAndGet();
+        reused.incrementAndGet();
+        return parser;
+    }
+
+    /**
+     * Gives back a parser that is no longer used by a session. Returns false if the parser
+     * is in the middle of a stanza, in which case the session has to keep it.
+     *
+     * @param parser the parser used by the session.
+     * @return true if the session may forget the parser.
+     */
+    boolean release(Object parser) {
+        if (!recycle(parser)) {
+            return false;
+        }
+        released.incrementAndGet();
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(parser);
+        }
+        else {
+            // The pool is full so let the parser be garbage collected
+            idleCount.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of parsers kept in the pool.
+     *
+     * @return the number of parsers kept in the pool.
+     */
+    int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Returns the number of parsers that were created.
+     *
+     * @return the number of parsers that were created.
+     */
+    public static long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * Returns the number of times that a parser was taken from a pool instead of creating one.
+     *
+     * @return the number of times that a parser was taken from a pool.
+     */
+    public static long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Returns the number of times that a quiet session gave back its parser.
+     *
+     * @return the number of times that a quiet session gave back its parser.
+     */
+    public static long getReleased() {
+        return released.get();
+    }
+
+    /**
+     * Returns an estimate of the bytes kept by a session for parsing its traffic. That is
+     * the parser (if the session holds one), the bytes of an incomplete stanza and the state
+     * of the compression filter (if any).
+     *
+     * @param session the session to measure.
+     * @return an estimate of the bytes kept by the session for parsing its traffic.
+     */
+    static int getRetainedSize(IoSession session) {
+        int size = 0;
+        Object parser = session.getAttribute(ConnectionHandler.XML_PARSER);
+        if (parser instanceof XMLStanzaFramer) {
+            size += ((XMLStanzaFramer) parser).getRetainedSize();
+        }
+        else if (parser instanceof XMLLightweightParser) {
+            size += ((XMLLightweightParser) parser).getRetainedSize();
+        }
+        ByteBuffer pending = (ByteBuffer) session.getAttribute(DECODER_BUFFER);
+        if (pending != null) {
+            size += pending.capacity();
+        }
+        ZlibCompressionFilter compression =
+                (ZlibCompressionFilter) session.getFilterChain().get(ZlibCompressionFilter.NAME);
+        if (compression != null) {
+            size += compression.getRetainedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Measures the bytes kept by a group of sessions for parsing their traffic. The returned
+     * array holds the number of sessions, the estimated total of retained bytes and the number
+     * of sessions that hold a parser.
+     *
+     * @param sessions the sessions to measure.
+     * @return number of sessions, retained bytes and number of sessions holding a parser.
+     */
+    public static long[] getRetainedSizes(Collection<IoSession> sessions) {
+        long[] sizes = new long[3];
+        for (IoSession session : sessions) {
+            sizes[0]++;
+            sizes[1] += getRetainedSize(session);
+            if (session.getAttribute(ConnectionHandler.XML_PARSER) != null) {
+                sizes[2]++;
+            }
+        }
+        return sizes;
+    }
+
+    public static String getStatistics() {
+        return "created parsers: " + getCreated() + ", reused parsers: " + getReused() +
+                ", released parsers: " + getReleased();
+    }
+}
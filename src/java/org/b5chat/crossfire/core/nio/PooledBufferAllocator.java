@@ -0,0 +1,444 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.ByteBufferAllocator;
+import org.apache.mina.common.support.BaseByteBuffer;
+import org.b5chat.crossfire.core.property.Globals;
+
+/**
+ * A {@link ByteBufferAllocator} that recycles the memory of released buffers. Requested
+ * capacities are rounded up to a power of two (size class) and every size class keeps
+ * a bounded pool shared by all threads, plus a small cache per thread for the threads that
+ * {@link #enableThreadCache() enabled} one. Only the I/O processor threads, whose number is
+ * fixed, should have a cache. Buffers bigger than the largest size class are not pooled.<p>
+ *
+ * MINA releases buffers once they were read by the decoder or written to the socket. Released
+ * buffers go to the cache of the releasing thread, if any, and overflow to the shared pool, so
+ * buffers allocated by one thread and released by another one are still reused.<p>
+ *
+ * Duplicates and slices of a buffer share its memory, so they hold a reference to the buffer
+ * until they are released themselves. The memory of a buffer that was expanded while it had
+ * views is not recycled.<p>
+ *
+ * The allocator counts pool hits and misses and the number of buffers that were handed out
+ * and not yet released. The following system properties configure the allocator:
+ * <ul>
+ *      <li><tt>xmpp.socket.buffer.pool.maxCapacity</tt> - largest pooled capacity. Default is 65536.</li>
+ *      <li><tt>xmpp.socket.buffer.pool.threadBytes</tt> - max bytes cached per size class and thread.
+ *      Default is 262144.</li>
+ *      <li><tt>xmpp.socket.buffer.pool.sharedBytes</tt> - max bytes kept per size class in the shared
+ *      pool. Default is 4194304.</li>
+ * </ul>
+ */
+public class PooledBufferAllocator implements ByteBufferAllocator {
+
+    private static final int MIN_SHIFT = 8;
+
+    private final int maxShift;
+    private final int[] threadCacheSize;
+    private final int[] sharedPoolSize;
+
+    /**
+     * Shared pools indexed by [direct ? 1 : 0][size class].
+     */
+    private final SharedPool[][] sharedPools;
+
+    /**
+     * Caches of the threads that enabled one, or null for the other threads.
+     */
+    private final ThreadLocal<java.nio.ByteBuffer[][][]> threadCaches = new ThreadLocal<java.nio.ByteBuffer[][][]>();
+    private final ThreadLocal<int[][]> threadCacheCounts = new ThreadLocal<int[][]>();
+
+    private final AtomicLong threadCacheHits = new AtomicLong();
+    private final AtomicLong sharedPoolHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+
+    private volatile boolean disposed = false;
+
+    public PooledBufferAllocator() {
+        this(Globals.getIntProperty("xmpp.socket.buffer.pool.maxCapacity", 65536),
+                Globals.getIntProperty("xmpp.socket.buffer.pool.threadBytes", 262144),
+                Globals.getIntProperty("xmpp.socket.buffer.pool.sharedBytes", 4194304));
+    }
+
+    public PooledBufferAllocator(int maxCapacity, int threadBytes, int sharedBytes) {
+        maxShift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, maxCapacity) - 1));
+        int classes = maxShift - MIN_SHIFT + 1;
+        threadCacheSize = new int[classes];
+        sharedPoolSize = new int[classes];
+        sharedPools = new SharedPool[2][classes];
+        for (int i = 0; i < classes; i++) {
+            int size = 1 << (i + MIN_SHIFT);
+            threadCacheSize[i] = Math.max(1, threadBytes / size);
+            sharedPoolSize[i] = Math.max(1, sharedBytes / size);
+            for (int direct = 0; direct < 2; direct++) {
+                sharedPools[direct][i] = new SharedPool();
+            }
+        }
+    }
+
+    public ByteBuffer allocate(int capacity, boolean direct) {
+        java.nio.ByteBuffer buf = allocate0(capacity, direct);
+        buf.limit(capacity);
+        return new PooledBuffer(buf);
+    }
+
+    public ByteBuffer wrap(java.nio.ByteBuffer nioBuffer) {
+        PooledBuffer buffer = new PooledBuffer(nioBuffer);
+        // Wrapped buffers are not owned by the allocator
+        buffer.setPooled(false);
+        return buffer;
+    }
+
+    /**
+     * Lets the calling thread keep a small cache of released buffers per size class. The
+     * caches are never shrunk, so only threads that live as long as the allocator and whose
+     * number is bounded, like the I/O processor threads, should enable one.
+     */
+    public void enableThreadCache() {
+        if (threadCaches.get() != null) {
+            return;
+        }
+        java.nio.ByteBuffer[][][] cache = new java.nio.ByteBuffer[2][threadCacheSize.length][];
+        for (int i = 0; i < threadCacheSize.length; i++) {
+            cache[0][i] = new java.nio.ByteBuffer[threadCacheSize[i]];
+            cache[1][i] = new java.nio.ByteBuffer[threadCacheSize[i]];
+        }
+        threadCaches.set(cache);
+        threadCacheCounts.set(new int[2][threadCacheSize.length]);
+    }
+
+    public void dispose() {
+        disposed = true;
+        for (SharedPool[] pools : sharedPools) {
+            for (SharedPool pool : pools) {
+                pool.buffers.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of allocations that reused a pooled buffer.
+     *
+     * @return the number of allocations that reused a pooled buffer.
+     */
+    public long getHits() {
+        return threadCacheHits.get() + sharedPoolHits.get();
+    }
+
+    /**
+     * Returns the number of allocations that were served from the cache of the allocating thread.
+     *
+     * @return the number of allocations served from a thread cache.
+     */
+    public long getThreadCacheHits() {
+        return threadCacheHits.get();
+    }
+
+    /**
+     * Returns the number of allocations that had to create a new buffer. Allocations
+     * bigger than the largest size class are included.
+     *
+     * @return the number of allocations that created a new buffer.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of allocations that were too big to be pooled.
+     *
+     * @return the number of allocations that were too big to be pooled.
+     */
+    public long getUnpooledAllocations() {
+        return unpooled.get();
+    }
+
+    /**
+     * Returns the percentage of allocations that reused a pooled buffer.
+     *
+     * @return the percentage of allocations that reused a pooled buffer.
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : 100d * hits / total;
+    }
+
+    /**
+     * Returns the number of pooled buffers that were allocated and not yet released. A number
+     * that keeps growing while the number of connections is stable indicates a buffer leak.
+     *
+     * @return the number of pooled buffers not yet released.
+     */
+    public long getOutstandingBuffers() {
+        return outstanding.get();
+    }
+
+    /**
+     * Returns the capacity in bytes of the pooled buffers that were allocated and not yet released.
+     *
+     * @return the capacity in bytes of the pooled buffers not yet released.
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    /**
+     * Returns the number of buffers available in the shared pool.
+     *
+     * @return the number of buffers available in the shared pool.
+     */
+    public int getSharedPoolSize() {
+        int size = 0;
+        for (SharedPool[] pools : sharedPools) {
+            for (SharedPool pool : pools) {
+                size += pool.count.get();
+            }
+        }
+        return size;
+    }
+
+    @Override
+	public String toString() {
+        return "PooledBufferAllocator hitRate: " + Math.round(getHitRate()) + "% hits: " + getHits() +
+                " misses: " + getMisses() + " unpooled: " + getUnpooledAllocations() +
+                " outstanding: " + getOutstandingBuffers() + " (" + getOutstandingBytes() + " bytes)" +
+                " shared: " + getSharedPoolSize();
+    }
+
+    private int sizeClass(int capacity) {
+        if (capacity <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    private java.nio.ByteBuffer allocate0(int capacity, boolean direct) {
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass + MIN_SHIFT > maxShift) {
+            // Too big to be pooled
+            unpooled.incrementAndGet();
+            misses.incrementAndGet();
+            return direct ? java.nio.ByteBuffer.allocateDirect(capacity) : java.nio.ByteBuffer.allocate(capacity);
+        }
+        int type = direct ? 1 : 0;
+        java.nio.ByteBuffer buf;
+        // Try the cache of this thread first
+        int[][] threadCounts = threadCacheCounts.get();
+        int[] counts = threadCounts == null ? null : threadCounts[type];
+        if (counts != null && counts[sizeClass] > 0) {
+            java.nio.ByteBuffer[] stack = threadCaches.get()[type][sizeClass];
+            buf = stack[--counts[sizeClass]];
+            stack[counts[sizeClass]] = null;
+            threadCacheHits.incrementAndGet();
+        }
+        else {
+            SharedPool pool = sharedPools[type][sizeClass];
+            buf = pool.buffers.poll();
+            if (buf != null) {
+                pool.count.decrementAndGet();
+                sharedPoolHits.incrementAndGet();
+            }
+            else {
+                int size = 1 << (sizeClass + MIN_SHIFT);
+                buf = direct ? java.nio.ByteBuffer.allocateDirect(size) : java.nio.ByteBuffer.allocate(size);
+                misses.incrementAndGet();
+            }
+        }
+        outstanding.incrementAndGet();
+        outstandingBytes.addAndGet(buf.capacity());
+        return buf;
+    }
+
+    private void recycle(java.nio.ByteBuffer buf, boolean reuse) {
+        int capacity = buf.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass + MIN_SHIFT > maxShift || capacity != 1 << (sizeClass + MIN_SHIFT)) {
+            // Not a pooled buffer
+            return;
+        }
+        outstanding.decrementAndGet();
+        outstandingBytes.addAndGet(-capacity);
+        if (disposed || !reuse) {
+            return;
+        }
+        buf.clear();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        int type = buf.isDirect() ? 1 : 0;
+        int[][] threadCounts = threadCacheCounts.get();
+        int[] counts = threadCounts == null ? null : threadCounts[type];
+        if (counts != null && counts[sizeClass] < threadCacheSize[sizeClass]) {
+            threadCaches.get()[type][sizeClass][counts[sizeClass]++] = buf;
+        }
+        else {
+            SharedPool pool = sharedPools[type][sizeClass];
+            if (pool.count.incrementAndGet() <= sharedPoolSize[sizeClass]) {
+                pool.buffers.offer(buf);
+            }
+            else {
+                // Shared pool is full so let the GC collect the buffer
+                pool.count.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Buffers of a size class shared by all threads, and their number.
+     */
+    private static class SharedPool {
+
+        final Queue<java.nio.ByteBuffer> buffers = new ConcurrentLinkedQueue<java.nio.ByteBuffer>();
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    /**
+     * MINA buffer whose memory is returned to the allocator once all references were released.
+     */
+    private class PooledBuffer extends BaseByteBuffer {
+
+        private java.nio.ByteBuffer buf;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        private boolean pooled = true;
+
+        /**
+         * Buffer whose memory is shared by this view, or null if this is not a view.
+         */
+        private final PooledBuffer parent;
+
+        /**
+         * Number of views of this buffer that were not released yet.
+         */
+        private final AtomicInteger views = new AtomicInteger();
+
+        PooledBuffer(java.nio.ByteBuffer buf) {
+            this(buf, null);
+        }
+
+        PooledBuffer(java.nio.ByteBuffer buf, PooledBuffer parent) {
+            this.buf = buf;
+            this.parent = parent;
+            buf.order(ByteOrder.BIG_ENDIAN);
+        }
+
+        @Override
+		public void acquire() {
+            if (refCount.get() <= 0) {
+                throw new IllegalStateException("Already released buffer.");
+            }
+            refCount.incrementAndGet();
+        }
+
+        @Override
+		public void release() {
+            int count = refCount.decrementAndGet();
+            if (count < 0) {
+                refCount.set(0);
+                throw new IllegalStateException("Already released buffer.  You released the buffer too many times.");
+            }
+            if (count == 0) {
+                if (parent != null) {
+                    parent.views.decrementAndGet();
+                    parent.release();
+                }
+                else if (pooled) {
+                    recycle(buf, true);
+                }
+            }
+        }
+
+        @Override
+		public java.nio.ByteBuffer buf() {
+            return buf;
+        }
+
+        @Override
+		public boolean isPooled() {
+            return pooled;
+        }
+
+        @Override
+		public void setPooled(boolean pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+		protected void capacity0(int requestedCapacity) {
+            java.nio.ByteBuffer oldBuf = buf;
+            java.nio.ByteBuffer newBuf = allocate0(requestedCapacity, oldBuf.isDirect());
+            newBuf.clear();
+            oldBuf.clear();
+            newBuf.put(oldBuf);
+            buf = newBuf;
+            if (pooled) {
+                // Views still use the old memory
+                recycle(oldBuf, views.get() == 0);
+            }
+        }
+
+        @Override
+		public ByteBuffer duplicate() {
+            return view(buf.duplicate());
+        }
+
+        @Override
+		public ByteBuffer slice() {
+            return view(buf.slice());
+        }
+
+        @Override
+		public ByteBuffer asReadOnlyBuffer() {
+            return view(buf.asReadOnlyBuffer());
+        }
+
+        /**
+         * Returns a buffer that shares the memory of this buffer and keeps it from being
+         * recycled until it is released.
+         */
+        private ByteBuffer view(java.nio.ByteBuffer nioBuffer) {
+            acquire();
+            views.incrementAndGet();
+            PooledBuffer view = new PooledBuffer(nioBuffer, this);
+            view.setPooled(false);
+            return view;
+        }
+
+        @Override
+		public byte[] array() {
+            return buf.array();
+        }
+
+        @Override
+		public int arrayOffset() {
+            return buf.arrayOffset();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import org.dom4j.Element;
+
+/**
+ * A received stanza that was checked to be well-formed but whose element tree was
+ * not built. Holds the root element with its attributes (but no children) and the
+ * received bytes of the whole stanza. {@link XMPPDecoder} passes message stanzas as
+ * headers so that they can be routed as a {@link LazyMessage}.<p>
+ *
+ * The received bytes can be written again with a new start tag for the root element,
+ * since the content of the stanza (everything after the start tag) was not modified.
+ */
+public class StanzaHeader {
+
+    private final Element element;
+    private final byte[] stanza;
+    private final int contentStart;
+
+    StanzaHeader(Element element, byte[] stanza, int contentStart) {
+        this.element = element;
+        this.stanza = stanza;
+        this.contentStart = contentStart;
+    }
+
+    /**
+     * Returns the root element of the stanza with its attributes but no children.
+     *
+     * @return the root element of the stanza without children.
+     */
+    public Element getElement() {
+        return element;
+    }
+
+    /**
+     * Returns the received UTF-8 bytes of the whole stanza.
+     *
+     * @return the received bytes of the stanza.
+     */
+    byte[] getBytes() {
+        return stanza;
+    }
+
+    /**
+     * Returns the offset in the received bytes of the content of the stanza, which starts
+     * after the start tag of the root element and includes its end tag. The offset is the
+     * length of the stanza if the root element is empty.
+     *
+     * @return the offset of the content of the stanza.
+     */
+    int getContentStart() {
+        return contentStart;
+    }
+}
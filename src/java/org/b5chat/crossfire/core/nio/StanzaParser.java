@@ -0,0 +1,313 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+
+import org.b5chat.crossfire.core.net.MXParser;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Parses stanzas found by {@link XMLStanzaFramer} into dom4j elements directly from the
+ * received bytes. The pull parser reads the UTF-8 bytes of the network buffer through a
+ * reusable reader, so the stanza is never copied into a <tt>String</tt> and is only scanned
+ * once by the parser.<p>
+ *
+ * A parser (and its buffers) takes about 16K so instead of keeping one for each connection
+ * there is one parser for each thread that decodes or processes stanzas. The number of
+ * those threads is bounded by the executor placed as the first filter of the chain.
+ *
+ * @see #getInstance()
+ */
+class StanzaParser {
+
+    private static final Logger Log = LoggerFactory.getLogger(StanzaParser.class);
+
+    private static final Charset UTF8 = Charset.forName(ConnectionHandler.CHARSET);
+
+    /**
+     * Reuse the same factory for all the parsers.
+     */
+    private static XmlPullParserFactory factory = null;
+
+    static {
+        try {
+            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
+            factory.setNamespaceAware(true);
+        }
+        catch (XmlPullParserException e) {
+            Log.error("Error creating a parser factory", e);
+        }
+    }
+
+    private static final ThreadLocal<StanzaParser> instance = new ThreadLocal<StanzaParser>() {
+        @Override
+        protected StanzaParser initialValue() {
+            return new StanzaParser();
+        }
+    };
+
+    private final XMPPPacketReader reader;
+    private final ByteBufferReader input = new ByteBufferReader();
+
+    private StanzaParser() {
+        reader = new XMPPPacketReader();
+        reader.setXPPFactory(factory);
+    }
+
+    /**
+     * Returns the parser of the current thread.
+     *
+     * @return the parser of the current thread.
+     */
+    static StanzaParser getInstance() {
+        return instance.get();
+    }
+
+    /**
+     * Returns the packet reader of this parser. The reader is used for stanzas that
+     * were received as text.
+     *
+     * @return the packet reader of this parser.
+     */
+    XMPPPacketReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Parses the UTF-8 bytes between <tt>start</tt> (inclusive) and <tt>end</tt> (exclusive)
+     * of the buffer. The position and limit of the buffer are not modified.
+     *
+     * @param buf the buffer that holds the stanza.
+     * @param start position of the first byte of the stanza.
+     * @param end position after the last byte of the stanza.
+     * @return the root element of the stanza or null if none was found.
+     * @throws XMLNotWellFormedException if the stanza is not well-formed XML.
+     */
+    Element parse(java.nio.ByteBuffer buf, int start, int end) throws XMLNotWellFormedException {
+        java.nio.ByteBuffer stanza = buf.duplicate();
+        stanza.limit(end);
+        stanza.position(start);
+        input.setInput(stanza);
+        try {
+            Document document = reader.read(input);
+            return document.getRootElement();
+        }
+        catch (XmlPullParserException e) {
+            throw new XMLNotWellFormedException(e.getMessage(), e);
+        }
+        catch (DocumentException e) {
+            throw new XMLNotWellFormedException(e.getMessage(), e);
+        }
+        catch (IOException e) {
+            throw new XMLNotWellFormedException(e.getMessage(), e);
+        }
+        finally {
+            input.setInput(null);
+        }
+    }
+
+    /**
+     * Checks that the stanza between <tt>start</tt> (inclusive) and <tt>end</tt> (exclusive)
+     * of the buffer is well-formed XML and returns its header, without building the element
+     * tree of the stanza. The pull parser still reads the whole stanza but no element, attribute
+     * or text node is created other than the root element and its attributes. Returns null if
+     * the root element is qualified by a namespace other than the stream namespace, declares
+     * namespaces other than the stream namespace or has prefixed attributes, in which case the stanza has to be parsed with
+     * {@link #parse(java.nio.ByteBuffer, int, int)}.
+     *
+     * @param buf the buffer that holds the stanza.
+     * @param start position of the first byte of the stanza.
+     * @param end position after the last byte of the stanza.
+     * @return the header of the stanza or null if it has to be fully parsed.
+     * @throws XMLNotWellFormedException if the stanza is not well-formed XML.
+     */
+    StanzaHeader scan(java.nio.ByteBuffer buf, int start, int end) throws XMLNotWellFormedException {
+        java.nio.ByteBuffer stanza = buf.duplicate();
+        stanza.limit(end);
+        stanza.position(start);
+        input.setInput(stanza);
+        try {
+            XmlPullParser pp = reader.getXPPParser();
+            pp.setInput(input);
+            Element header = null;
+            int depth = 0;
+            while (true) {
+                int type = pp.nextToken();
+                if (type == XmlPullParser.START_TAG) {
+                    if (depth++ == 0) {
+                        header = createHeader(pp);
+                        if (header == null) {
+                            return null;
+                        }
+                    }
+                }
+                else if (type == XmlPullParser.END_TAG) {
+                    if (--depth == 0) {
+                        break;
+                    }
+                }
+                else if (type == XmlPullParser.END_DOCUMENT) {
+                    break;
+                }
+            }
+            if (header == null) {
+                return null;
+            }
+            byte[] bytes = new byte[end - start];
+            stanza.limit(end);
+            stanza.position(start);
+            stanza.get(bytes);
+            return new StanzaHeader(header, bytes, getContentStart(bytes));
+        }
+        catch (XmlPullParserException e) {
+            throw new XMLNotWellFormedException(e.getMessage(), e);
+        }
+        catch (IOException e) {
+            throw new XMLNotWellFormedException(e.getMessage(), e);
+        }
+        finally {
+            input.setInput(null);
+        }
+    }
+
+    /**
+     * Returns the offset of the content of a well-formed stanza (i.e. the offset after the
+     * start tag of the root element) or the length of the stanza if the root element is empty.
+     */
+    private static int getContentStart(byte[] stanza) {
+        byte quote = 0;
+        for (int i = 1; i < stanza.length; i++) {
+            byte b = stanza[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            }
+            else if (b == '"' || b == '\'') {
+                quote = b;
+            }
+            else if (b == '>') {
+                return stanza[i - 1] == '/' ? stanza.length : i + 1;
+            }
+        }
+        return stanza.length;
+    }
+
+    /**
+     * Creates the root element of a stanza with its attributes the same way that
+     * {@link XMPPPacketReader} does.
+     */
+    private Element createHeader(XmlPullParser pp) throws XmlPullParserException {
+        String namespace = pp.getNamespace();
+        if (pp.getPrefix() != null || (namespace.length() > 0 && !"jabber:client".equals(namespace))) {
+            return null;
+        }
+        // Namespace declarations are not reported as attributes, so the start tag written
+        // from the header would lose them while the content may still use their prefixes
+        int declarations = pp.getNamespaceCount(pp.getDepth());
+        int first = pp.getNamespaceCount(pp.getDepth() - 1);
+        if (declarations - first > 1 || (declarations - first == 1 &&
+                (pp.getNamespacePrefix(first) != null || !"jabber:client".equals(pp.getNamespaceUri(first))))) {
+            return null;
+        }
+        Element header = reader.getDocumentFactory().createElement(pp.getName());
+        for (int i = 0; i < pp.getAttributeCount(); i++) {
+            if (pp.getAttributePrefix(i) != null) {
+                return null;
+            }
+            header.addAttribute(pp.getAttributeName(i), pp.getAttributeValue(i));
+        }
+        return header;
+    }
+
+    /**
+     * Reader that decodes UTF-8 bytes of a buffer straight into the chars buffer of the
+     * pull parser. Malformed input is replaced the same way <tt>new String(bytes, "UTF-8")</tt>
+     * does.
+     */
+    private static class ByteBufferReader extends Reader {
+
+        private final CharsetDecoder decoder = UTF8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        /**
+         * Used when the parser asks for a single char and the next one is a surrogate pair.
+         */
+        private final CharBuffer pair = CharBuffer.allocate(2);
+        private java.nio.ByteBuffer in;
+        private boolean flushed;
+
+        void setInput(java.nio.ByteBuffer in) {
+            this.in = in;
+            decoder.reset();
+            pair.clear().flip();
+            flushed = false;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pair.hasRemaining()) {
+                cbuf[off] = pair.get();
+                return 1;
+            }
+            if (in == null || flushed) {
+                return -1;
+            }
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            CoderResult result = decoder.decode(in, out, true);
+            if (result.isUnderflow()) {
+                decoder.flush(out);
+                flushed = true;
+            }
+            else if (result.isOverflow() && out.position() == off) {
+                // Not enough room for a surrogate pair
+                pair.clear();
+                decoder.decode(in, pair, true);
+                pair.flip();
+                out.put(pair.get());
+            }
+            int count = out.position() - off;
+            return count == 0 && flushed ? -1 : count;
+        }
+
+        @Override
+        public void close() {
+            in = null;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.b5chat.crossfire.core.property.Globals;
+
+/**
+ * Writes serialized stanzas to MINA sessions. When write coalescing is enabled (i.e. the
+ * <tt>xmpp.socket.write.coalesce</tt> property is <tt>true</tt>) the stanzas delivered by a
+ * thread while it processes a received stanza are kept per session and flushed in a single
+ * write once the processing is done. A login, for instance, produces the roster, the presences
+ * of the contacts and pending subscriptions that are then sent with one write instead of
+ * dozens of small ones.<p>
+ *
+ * Stanzas delivered by threads that are not processing a received stanza are written
+ * immediately. The stanzas kept for a session are also flushed when they exceed
+ * <tt>xmpp.socket.write.coalesce.max</tt> bytes (64K by default) or before raw text is
+ * sent to the session so that the order of the written data is preserved.<p>
+ *
+ * The number of writes, stanzas and bytes written are collected whether coalescing is
+ * enabled or not so that the average number of stanzas and bytes per write can be compared.
+ */
+public class WriteCoalescer {
+
+    private static final ThreadLocal<WriteCoalescer> coalescers = new ThreadLocal<WriteCoalescer>();
+
+    private static final AtomicLong writes = new AtomicLong();
+    private static final AtomicLong stanzas = new AtomicLong();
+    private static final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Sessions with pending stanzas in the order in which the first stanza was delivered.
+     */
+    private final Map<IoSession, PendingWrite> pending = new LinkedHashMap<IoSession, PendingWrite>();
+    private final int maxPendingBytes;
+    private int nesting = 0;
+
+    private WriteCoalescer(int maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Starts a processing cycle of the current thread. Stanzas delivered from now on are
+     * not written until {@link #end()} is invoked. Nothing happens if write coalescing
+     * is disabled.
+     */
+    public static void begin() {
+        if (coalescers.get() != null || Globals.getBooleanProperty("xmpp.socket.write.coalesce", false)) {
+            begin(Globals.getIntProperty("xmpp.socket.write.coalesce.max", 65536));
+        }
+    }
+
+    /**
+     * Starts a processing cycle of the current thread.
+     *
+     * @param maxPendingBytes the max number of bytes to keep per session before writing them.
+     */
+    static void begin(int maxPendingBytes) {
+        WriteCoalescer coalescer = coalescers.get();
+        if (coalescer == null) {
+            coalescer = new WriteCoalescer(maxPendingBytes);
+            coalescers.set(coalescer);
+        }
+        coalescer.nesting++;
+    }
+
+    /**
+     * Ends the processing cycle of the current thread and writes the pending stanzas.
+     */
+    public static void end() {
+        WriteCoalescer coalescer = coalescers.get();
+        if (coalescer != null && --coalescer.nesting == 0) {
+            coalescers.remove();
+            coalescer.flushAll();
+        }
+    }
+
+    /**
+     * Writes the stanza serialized by the writer to the session. If the current thread is
+     * in a processing cycle then the stanza will be written when the cycle ends.
+     *
+     * @param session the session where the stanza will be written.
+     * @param writer the writer that contains the serialized stanza.
+     */
+    static void write(IoSession session, XMPPPacketWriter writer) {
+        WriteCoalescer coalescer = coalescers.get();
+        if (coalescer == null) {
+            written(session, writer.toByteBuffer(), 1);
+            return;
+        }
+        PendingWrite pendingWrite = coalescer.pending.get(session);
+        if (pendingWrite == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(writer.size(), 1024));
+            buffer.setAutoExpand(true);
+            pendingWrite = new PendingWrite(buffer);
+            coalescer.pending.put(session, pendingWrite);
+        }
+        writer.writeTo(pendingWrite.buffer);
+        pendingWrite.stanzas++;
+        if (pendingWrite.buffer.position() >= coalescer.maxPendingBytes) {
+            coalescer.pending.remove(session);
+            pendingWrite.flush(session);
+        }
+    }
+
+    /**
+     * Writes the pending stanzas of the current thread for the specified session. This
+     * method must be invoked before writing anything else to the session.
+     *
+     * @param session the session whose pending stanzas will be written.
+     */
+    static void flush(IoSession session) {
+        WriteCoalescer coalescer = coalescers.get();
+        if (coalescer != null) {
+            PendingWrite pendingWrite = coalescer.pending.remove(session);
+            if (pendingWrite != null) {
+                pendingWrite.flush(session);
+            }
+        }
+    }
+
+    private void flushAll() {
+        for (Iterator<Map.Entry<IoSession, PendingWrite>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<IoSession, PendingWrite> entry = it.next();
+            it.remove();
+            entry.getValue().flush(entry.getKey());
+        }
+    }
+
+    private static void written(IoSession session, ByteBuffer buffer, int stanzaCount) {
+        writes.incrementAndGet();
+        stanzas.addAndGet(stanzaCount);
+        bytes.addAndGet(buffer.remaining());
+        session.write(buffer);
+    }
+
+    /**
+     * Returns the number of writes of stanzas that were requested to MINA sessions.
+     *
+     * @return the number of writes of stanzas.
+     */
+    public static long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Returns the number of stanzas that were written.
+     *
+     * @return the number of stanzas that were written.
+     */
+    public static long getStanzas() {
+        return stanzas.get();
+    }
+
+    /**
+     * Returns the number of bytes of the stanzas that were written.
+     *
+     * @return the number of bytes of the stanzas that were written.
+     */
+    public static long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the average number of stanzas sent with each write.
+     *
+     * @return the average number of stanzas sent with each write.
+     */
+    public static double getStanzasPerWrite() {
+        long count = writes.get();
+        return count == 0 ? 0 : (double) stanzas.get() / count;
+    }
+
+    /**
+     * Returns the average number of bytes sent with each write. Each write is usually sent
+     * to the socket with one system call.
+     *
+     * @return the average number of bytes sent with each write.
+     */
+    public static double getBytesPerWrite() {
+        long count = writes.get();
+        return count == 0 ? 0 : (double) bytes.get() / count;
+    }
+
+    /**
+     * Returns a description of the collected statistics.
+     *
+     * @return a description of the collected statistics.
+     */
+    public static String getStatistics() {
+        return "writes: " + getWrites() + " stanzas: " + getStanzas() + " bytes: " + getBytes() +
+                " stanzas/write: " + Math.round(getStanzasPerWrite() * 100) / 100.0 +
+                " bytes/write: " + Math.round(getBytesPerWrite());
+    }
+
+    /**
+     * Stanzas of a session that were not written yet.
+     */
+    private static class PendingWrite {
+
+        private final ByteBuffer buffer;
+        private int stanzas = 0;
+
+        PendingWrite(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void flush(IoSession session) {
+            buffer.flip();
+            written(session, buffer, stanzas);
+        }
+    }
+}
@@ -119,6 +119,16 @@ class XMLLightweightParser {
 			.onUnmappableCharacter(CodingErrorAction.REPLACE);
     }
 
+    /**
+     * Returns the max number of bytes or chars of a stanza that is being received before
+     * considering it a never ending stanza.
+     *
+     * @return the max size of a stanza.
+     */
+    static int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
     /*
     * true if the parser has found some complete xml message.
     */
@@ -153,6 +163,32 @@ class XMLLightweightParser {
     }
 
 
+    /**
+     * Clears the state kept between reads if no stanza is being received, so that the
+     * parser may be used by another connection (see {@link ParserPool}).
+     *
+     * @return false if the parser is in the middle of a stanza and was not cleared.
+     */
+    boolean recycle() {
+        if (status != XMLLightweightParser.INIT || startLastMsg != buffer.length() || !msgs.isEmpty()) {
+            return false;
+        }
+        // Only whitespace between stanzas may be left in the buffer
+        buffer.setLength(0);
+        buffer.trimToSize();
+        startLastMsg = 0;
+        return true;
+    }
+
+    /**
+     * Returns an estimate of the bytes used by this parser.
+     *
+     * @return an estimate of the bytes used by this parser.
+     */
+    int getRetainedSize() {
+        return 160 + (buffer.capacity() + head.capacity()) * 2;
+    }
+
     /*
     * Method that add a message to the list and reinit parser.
     */
@@ -0,0 +1,431 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * Byte level version of {@link XMLLightweightParser}. The same state machine is run
+ * directly over the UTF-8 bytes of the MINA buffer, so no chars are decoded and no
+ * intermediate buffer is kept while looking for stanza boundaries. All the markup
+ * that the state machine cares about is ASCII and bytes of multi-byte UTF-8 sequences
+ * are always greater than 0x7F, so matching bytes is equivalent to matching chars.<p>
+ *
+ * Complete stanzas are reported as offsets into the scanned buffer. Bytes of an incomplete
+ * stanza are left unconsumed in the buffer so that {@link XMPPDecoder} (being a
+ * {@link org.apache.mina.filter.codec.CumulativeProtocolDecoder}) keeps them for the next read.
+ * The framer remembers how many of those bytes were already scanned and resumes from there.<p>
+ *
+ * Numeric character references are validated inline while scanning instead of running a
+ * regular expression over each completed stanza.
+ */
+class XMLStanzaFramer {
+
+    private static final byte[] STREAM_HEAD = "stream:stream>".getBytes();
+    private static final byte[] XML_HEAD = "?xml>".getBytes();
+    private static final byte[] FLASH_HEAD = "flash:stream>".getBytes();
+    private static final byte[] STREAM_CLOSE = "/stream:stream>".getBytes();
+    private static final byte[] FLASH_CLOSE = "/flash:stream>".getBytes();
+
+    // ---- CHARACTER REFERENCE STATUS -------
+    // Not inside a character reference
+    private static final int CHARREF_NONE = 0;
+    // Found '&'
+    private static final int CHARREF_AMP = 1;
+    // Found '&#'
+    private static final int CHARREF_HASH = 2;
+    // Found '&#' followed by decimal digits
+    private static final int CHARREF_DEC = 3;
+    // Found '&#x'
+    private static final int CHARREF_X = 4;
+    // Found '&#x' followed by hexadecimal digits
+    private static final int CHARREF_HEX = 5;
+
+    // Current robot status
+    private int status = XMLLightweightParser.INIT;
+    // Index to looking for a CDATA section start or end.
+    private int cdataOffset = 0;
+    // Number of bytes that machs with the head tag.
+    private int tailCount = 0;
+    // Flag used to discover tag in the form <tag />.
+    private boolean insideRootTag = false;
+    // Bytes of the head tag
+    private byte[] head = new byte[16];
+    private int headLength = 0;
+    private int depth = 0;
+
+    // Status of the numeric character reference being checked
+    private int charRefStatus = CHARREF_NONE;
+    private int charRefValue = 0;
+
+    // Number of unconsumed bytes that were already scanned in previous reads.
+    private int scanned = 0;
+
+    // Boundaries of the stanzas found in the last read (absolute positions in the buffer).
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int stanzaCount = 0;
+    private boolean streamClosed = false;
+
+    /**
+     * Scans the remaining bytes of the buffer looking for complete stanzas. The position of
+     * the buffer is moved to the end of the last complete stanza. Boundaries of the found
+     * stanzas are valid until the buffer is modified.
+     *
+     * @param in the buffer with the received data.
+     * @return the number of complete stanzas found.
+     * @throws Exception if the data is not valid or the pending stanza is too big.
+     */
+    public int read(ByteBuffer in) throws Exception {
+        stanzaCount = 0;
+        streamClosed = false;
+        // Check that the pending data is not bigger than 1 Megabyte. For security reasons
+        // we will abort parsing when 1 Mega of queued bytes was found.
+        if (scanned > XMLLightweightParser.getMaxBufferSize()) {
+            throw new Exception("Stopped parsing never ending stanza");
+        }
+        final java.nio.ByteBuffer buf = in.buf();
+        final int limit = buf.limit();
+        int startLastMsg = buf.position();
+
+        // Robot.
+        int ch;
+        for (int i = startLastMsg + scanned; i < limit; i++) {
+            ch = buf.get(i) & 0xFF;
+            if (ch < 0x20 && ch != 0x9 && ch != 0xA && ch != 0xD && ch != 0x0) {
+                 //Unicode characters in the range 0x0000-0x001F other than 9, A, and D are not allowed in XML
+                 //We need to allow the NULL character, however, for Flash XMLSocket clients to work.
+                throw new XMLNotWellFormedException("Character is invalid in: " + ch);
+            }
+            checkCharacterReference(ch);
+            if (status == XMLLightweightParser.TAIL) {
+                // Looking for the close tag
+                if (depth < 1 && ch == head[tailCount]) {
+                    tailCount++;
+                    if (tailCount == headLength) {
+                        // Close stanza found!
+                        foundStanza(startLastMsg, i + 1);
+                        startLastMsg = i + 1;
+                    }
+                } else {
+                    tailCount = 0;
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.PRETAIL) {
+                if (ch == XMLLightweightParser.CDATA_START[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == XMLLightweightParser.CDATA_START.length) {
+                        status = XMLLightweightParser.INSIDE_CDATA;
+                        cdataOffset = 0;
+                        continue;
+                    }
+                } else {
+                    cdataOffset = 0;
+                    status = XMLLightweightParser.INSIDE;
+                }
+                if (ch == '/') {
+                    status = XMLLightweightParser.TAIL;
+                    depth--;
+                }
+                else if (ch == '!') {
+                    // This is a <! (comment) so ignore it
+                    status = XMLLightweightParser.INSIDE;
+                }
+                else {
+                    depth++;
+                }
+            } else if (status == XMLLightweightParser.VERIFY_CLOSE_TAG) {
+                if (ch == '>') {
+                    depth--;
+                    status = XMLLightweightParser.OUTSIDE;
+                    if (depth < 1) {
+                        // Found a tag in the form <tag />
+                        foundStanza(startLastMsg, i + 1);
+                        startLastMsg = i + 1;
+                    }
+                } else if (ch == '<') {
+                    status = XMLLightweightParser.PRETAIL;
+                } else {
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.INSIDE_PARAM_VALUE) {
+                if (ch == '"') {
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.INSIDE_CDATA) {
+                if (ch == XMLLightweightParser.CDATA_END[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == XMLLightweightParser.CDATA_END.length) {
+                        status = XMLLightweightParser.OUTSIDE;
+                        cdataOffset = 0;
+                    }
+                } else {
+                    cdataOffset = 0;
+                }
+            } else if (status == XMLLightweightParser.INSIDE) {
+                if (ch == XMLLightweightParser.CDATA_START[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == XMLLightweightParser.CDATA_START.length) {
+                        status = XMLLightweightParser.INSIDE_CDATA;
+                        cdataOffset = 0;
+                        continue;
+                    }
+                } else {
+                    cdataOffset = 0;
+                    status = XMLLightweightParser.INSIDE;
+                }
+                if (ch == '"') {
+                    status = XMLLightweightParser.INSIDE_PARAM_VALUE;
+                } else if (ch == '>') {
+                    status = XMLLightweightParser.OUTSIDE;
+                    if (insideRootTag && (headEquals(STREAM_HEAD) || headEquals(XML_HEAD) ||
+                            headEquals(FLASH_HEAD))) {
+                        // Found opening stream:stream
+                        // Skip LF, CR and other "weird" characters that could appear
+                        while (startLastMsg < i && '<' != buf.get(startLastMsg)) {
+                            startLastMsg++;
+                        }
+                        foundStanza(startLastMsg, i + 1);
+                        startLastMsg = i + 1;
+                    }
+                    insideRootTag = false;
+                } else if (ch == '/') {
+                    status = XMLLightweightParser.VERIFY_CLOSE_TAG;
+                }
+            } else if (status == XMLLightweightParser.HEAD) {
+                if (ch == ' ' || ch == '>') {
+                    // Append > to head to allow searching </tag>
+                    appendHead('>');
+                    if (ch == '>')
+                        status = XMLLightweightParser.OUTSIDE;
+                    else
+                        status = XMLLightweightParser.INSIDE;
+                    insideRootTag = true;
+                    continue;
+                }
+                else if (ch == '/' && headLength > 0) {
+                    status = XMLLightweightParser.VERIFY_CLOSE_TAG;
+                    depth--;
+                }
+                appendHead(ch);
+
+            } else if (status == XMLLightweightParser.INIT) {
+                if (ch == '<') {
+                    status = XMLLightweightParser.HEAD;
+                    depth = 1;
+                }
+                else {
+                    startLastMsg++;
+                }
+            } else if (status == XMLLightweightParser.OUTSIDE) {
+                if (ch == '<') {
+                    status = XMLLightweightParser.PRETAIL;
+                    cdataOffset = 1;
+                }
+            }
+        }
+        if (headLength > 0 && (headEquals(STREAM_CLOSE) || headEquals(FLASH_CLOSE))) {
+            // Found closing stream:stream
+            streamClosed = true;
+            reset();
+            startLastMsg = limit;
+        }
+        // Leave the incomplete stanza in the buffer and remember what was already scanned
+        buf.position(startLastMsg);
+        scanned = limit - startLastMsg;
+        return stanzaCount;
+    }
+
+    /**
+     * Returns the position in the buffer of the first byte of a stanza found in the last read.
+     *
+     * @param index the index of the stanza.
+     * @return the position of the first byte of the stanza.
+     */
+    public int getStanzaStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Returns the position in the buffer following the last byte of a stanza found in the last read.
+     *
+     * @param index the index of the stanza.
+     * @return the position following the last byte of the stanza.
+     */
+    public int getStanzaEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Returns true if a closing stream tag was found in the last read. The closing tag
+     * is not reported as a stanza.
+     *
+     * @return true if a closing stream tag was found in the last read.
+     */
+    public boolean isStreamClosed() {
+        return streamClosed;
+    }
+
+    /**
+     * Clears the state kept between reads if no stanza is being received, so that the
+     * framer may be used by another connection (see {@link ParserPool}).
+     *
+     * @return false if the framer is in the middle of a stanza and was not cleared.
+     */
+    boolean recycle() {
+        if (status != XMLLightweightParser.INIT || scanned > 0 || charRefStatus != CHARREF_NONE) {
+            return false;
+        }
+        if (starts.length > 8) {
+            // Do not keep the boundaries of a burst of stanzas
+            starts = new int[8];
+            ends = new int[8];
+        }
+        stanzaCount = 0;
+        streamClosed = false;
+        return true;
+    }
+
+    /**
+     * Returns an estimate of the bytes used by this framer.
+     *
+     * @return an estimate of the bytes used by this framer.
+     */
+    int getRetainedSize() {
+        return 64 + head.length + (starts.length + ends.length) * 4;
+    }
+
+    private void foundStanza(int start, int end) {
+        if (stanzaCount == starts.length) {
+            int[] newStarts = new int[stanzaCount * 2];
+            int[] newEnds = new int[stanzaCount * 2];
+            System.arraycopy(starts, 0, newStarts, 0, stanzaCount);
+            System.arraycopy(ends, 0, newEnds, 0, stanzaCount);
+            starts = newStarts;
+            ends = newEnds;
+        }
+        starts[stanzaCount] = start;
+        ends[stanzaCount] = end;
+        stanzaCount++;
+        reset();
+    }
+
+    private void reset() {
+        status = XMLLightweightParser.INIT;
+        tailCount = 0;
+        cdataOffset = 0;
+        headLength = 0;
+        insideRootTag = false;
+        depth = 0;
+    }
+
+    private void appendHead(int ch) {
+        if (headLength == head.length) {
+            byte[] newHead = new byte[headLength * 2];
+            System.arraycopy(head, 0, newHead, 0, headLength);
+            head = newHead;
+        }
+        head[headLength++] = (byte) ch;
+    }
+
+    private boolean headEquals(byte[] tag) {
+        if (headLength != tag.length) {
+            return false;
+        }
+        for (int i = 0; i < headLength; i++) {
+            if (head[i] != tag[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifies numeric character references (<code>'&#' [0-9]+ ';' | '&#x' [0-9a-fA-F]+ ';'</code>)
+     * as the bytes go by. Values that do not refer to a legal XML 1.0 character are rejected.
+     *
+     * @param ch the byte being scanned.
+     * @throws XMLNotWellFormedException if an illegal character reference was completed.
+     */
+    private void checkCharacterReference(int ch) throws XMLNotWellFormedException {
+        switch (charRefStatus) {
+            case CHARREF_AMP:
+                charRefStatus = ch == '#' ? CHARREF_HASH : CHARREF_NONE;
+                break;
+            case CHARREF_HASH:
+                charRefValue = 0;
+                if (ch == 'x' || ch == 'X') {
+                    charRefStatus = CHARREF_X;
+                }
+                else if (ch >= '0' && ch <= '9') {
+                    charRefValue = ch - '0';
+                    charRefStatus = CHARREF_DEC;
+                }
+                else {
+                    charRefStatus = CHARREF_NONE;
+                }
+                break;
+            case CHARREF_DEC:
+                if (ch >= '0' && ch <= '9') {
+                    addCharacterReferenceDigit(10, ch - '0');
+                }
+                else if (ch == ';') {
+                    completeCharacterReference();
+                }
+                else {
+                    charRefStatus = CHARREF_NONE;
+                }
+                break;
+            case CHARREF_X:
+            case CHARREF_HEX:
+                int digit = Character.digit(ch, 16);
+                if (digit >= 0 && ch < 0x80) {
+                    addCharacterReferenceDigit(16, digit);
+                    charRefStatus = CHARREF_HEX;
+                }
+                else if (ch == ';' && charRefStatus == CHARREF_HEX) {
+                    completeCharacterReference();
+                }
+                else {
+                    charRefStatus = CHARREF_NONE;
+                }
+                break;
+            default:
+                charRefStatus = CHARREF_NONE;
+        }
+        if (charRefStatus == CHARREF_NONE && ch == '&') {
+            charRefStatus = CHARREF_AMP;
+        }
+    }
+
+    private void addCharacterReferenceDigit(int radix, int digit) {
+        // Stop accumulating once the value is out of the unicode range (it is illegal anyway)
+        if (charRefValue <= 0x10FFFF) {
+            charRefValue = charRefValue * radix + digit;
+        }
+    }
+
+    private void completeCharacterReference() throws XMLNotWellFormedException {
+        charRefStatus = CHARREF_NONE;
+        if (!XMLLightweightParser.isLegalXmlCharacter(charRefValue)) {
+            throw new XMLNotWellFormedException("Illegal character reference found: &#" + charRefValue + ";");
+        }
+    }
+}
@@ -19,32 +19,151 @@
 
 package org.b5chat.crossfire.core.nio;
 
+import java.nio.charset.Charset;
+
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.b5chat.crossfire.core.property.Globals;
 
 /**
  * Decoder class that parses ByteBuffers and generates XML stanzas. Generated
- * stanzas are then passed to the next filters.
+ * stanzas are then passed to the next filters.<p>
+ *
+ * When the session uses a {@link XMLStanzaFramer} stanzas are parsed into dom4j
+ * elements right from the received bytes. Only the stream headers and the end of the
+ * stream are passed as text. Message stanzas are only checked to be well-formed and passed
+ * as a {@link StanzaHeader} so that the element tree is built only if needed (see
+ * {@link LazyMessage}) unless <tt>xmpp.parser.lazy.messages</tt> is false.<p>
+ *
+ * Sessions that use a {@link ParserPool} only hold a parser while data is being decoded
+ * or a stanza is incomplete. The parser is given back to the pool once all the received
+ * data was decoded.
  *
  * @author Gaston Dombiak
  */
 public class XMPPDecoder extends CumulativeProtocolDecoder {
 
+    private static final Charset UTF8 = Charset.forName(ConnectionHandler.CHARSET);
+
+    private static final byte[] XML_DECLARATION = "<?xml".getBytes();
+    private static final byte[] STREAM_HEADER = "<stream:stream".getBytes();
+    private static final byte[] FLASH_HEADER = "<flash:stream".getBytes();
+    private static final byte[] MESSAGE = "<message".getBytes();
+
+    private final boolean lazyMessages;
+
+    public XMPPDecoder() {
+        lazyMessages = Globals.getBooleanProperty("xmpp.parser.lazy.messages", true);
+    }
+
     @Override
 	protected boolean doDecode(IoSession session, ByteBuffer in, ProtocolDecoderOutput out)
             throws Exception {
         // Get the XML light parser from the IoSession
-        XMLLightweightParser parser = (XMLLightweightParser) session.getAttribute(ConnectionHandler.XML_PARSER);
-        // Parse as many stanzas as possible from the received data
-        parser.read(in);
+        Object xmlParser = session.getAttribute(ConnectionHandler.XML_PARSER);
+        ParserPool pool = (ParserPool) session.getAttribute(ParserPool.POOL);
+        if (xmlParser == null) {
+            // The parser was given back while the session was quiet
+            xmlParser = pool.acquire();
+            session.setAttribute(ConnectionHandler.XML_PARSER, xmlParser);
+        }
+        boolean decoded;
+        if (xmlParser instanceof XMLStanzaFramer) {
+            decoded = doDecode((XMLStanzaFramer) xmlParser, in, out);
+        }
+        else {
+            XMLLightweightParser parser = (XMLLightweightParser) xmlParser;
+            // Parse as many stanzas as possible from the received data
+            parser.read(in);
+
+            if (parser.areThereMsgs()) {
+                for (String stanza : parser.getMsgs()) {
+                    out.write(stanza);
+                }
+            }
+            decoded = !in.hasRemaining();
+        }
+        if (pool != null && !in.hasRemaining() && pool.release(xmlParser)) {
+            // No stanza is incomplete so do not keep the parser until more data arrives
+            session.removeAttribute(ConnectionHandler.XML_PARSER);
+        }
+        return decoded;
+    }
 
-        if (parser.areThereMsgs()) {
-            for (String stanza : parser.getMsgs()) {
-                out.write(stanza);
+    private boolean doDecode(XMLStanzaFramer framer, ByteBuffer in, ProtocolDecoderOutput out)
+            throws Exception {
+        // Find as many stanzas as possible. Bytes of an incomplete stanza remain in the buffer
+        int count = framer.read(in);
+        java.nio.ByteBuffer buf = in.buf();
+        for (int i = 0; i < count; i++) {
+            int start = framer.getStanzaStart(i);
+            int end = framer.getStanzaEnd(i);
+            if (startsWith(buf, start, end, XML_DECLARATION)) {
+                // Ignore <?xml version="1.0"?> stanzas sent by clients
+                continue;
             }
+            if (startsWith(buf, start, end, STREAM_HEADER) || startsWith(buf, start, end, FLASH_HEADER)) {
+                // Stream headers are not closed so they are passed as text
+                out.write(decode(buf, start, end));
+            }
+            else {
+                // The buffer is released once this method returns so the stanza is parsed now
+                Object stanza = null;
+                if (lazyMessages && startsWithTag(buf, start, end, MESSAGE)) {
+                    stanza = StanzaParser.getInstance().scan(buf, start, end);
+                }
+                if (stanza == null) {
+                    stanza = StanzaParser.getInstance().parse(buf, start, end);
+                }
+                if (stanza != null) {
+                    out.write(stanza);
+                }
+            }
+        }
+        if (framer.isStreamClosed()) {
+            out.write("</stream:stream>");
+        }
+        // Remaining bytes (if any) will be kept by the cumulative decoder until more data arrives
+        return false;
+    }
+
+    private static boolean startsWith(java.nio.ByteBuffer buf, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the stanza starts with the specified tag name (e.g. <tt>&lt;message</tt>)
+     * followed by whitespace, <tt>/</tt> or <tt>&gt;</tt>.
+     */
+    private static boolean startsWithTag(java.nio.ByteBuffer buf, int start, int end, byte[] tag) {
+        if (end - start <= tag.length || !startsWith(buf, start, end, tag)) {
+            return false;
+        }
+        byte next = buf.get(start + tag.length);
+        return next == ' ' || next == '>' || next == '/' || next == '\t' || next == '\r' || next == '\n';
+    }
+
+    /**
+     * Decodes a slice of the received bytes. Heap buffers are decoded in place.
+     */
+    private static String decode(java.nio.ByteBuffer buf, int start, int end) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + start, end - start, UTF8);
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
         }
-        return !in.hasRemaining();
+        return new String(bytes, UTF8);
     }
 }
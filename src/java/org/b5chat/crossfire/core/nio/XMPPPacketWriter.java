@@ -0,0 +1,555 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.io.IOException;
+import java.nio.charset.MalformedInputException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.Entity;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.ProcessingInstruction;
+
+/**
+ * Serializes XMPP stanzas straight to UTF-8 bytes. The produced bytes are the same ones that
+ * {@link org.b5chat.crossfire.core.util.XMLWriter} produces with the default output format
+ * (no indentation, no new lines, empty elements collapsed and double quoted attributes) but
+ * no intermediate strings or chars are created.<p>
+ *
+ * Escaping of ASCII chars is done with precomputed tables and the names and namespace
+ * declarations of the common jabber:client elements are kept as precomputed bytes.<p>
+ *
+ * Instances are not thread safe. Use {@link #getInstance()} to get the writer of the
+ * current thread. Serialized bytes are kept in an internal buffer until the writer is reset.
+ */
+public class XMPPPacketWriter {
+
+    /**
+     * Internal buffers bigger than this are discarded when reset so that a big stanza
+     * does not keep memory in use.
+     */
+    private static final int MAX_RETAINED_SIZE = 65536;
+
+    private static final byte[][] TEXT_ESCAPES = new byte[128][];
+    private static final byte[][] ATTRIBUTE_ESCAPES = new byte[128][];
+    private static final Map<String, byte[]> NAMES = new HashMap<String, byte[]>();
+    private static final Map<String, byte[]> DEFAULT_NAMESPACES = new HashMap<String, byte[]>();
+
+    private static final byte[] NAMESPACE_START = ascii(" xmlns=\"");
+    private static final byte[] PREFIXED_NAMESPACE_START = ascii(" xmlns:");
+    private static final byte[] ATTRIBUTE_VALUE_START = ascii("=\"");
+    private static final byte[] EMPTY_ELEMENT_CLOSE = ascii("/>");
+    private static final byte[] ELEMENT_CLOSE = ascii("</");
+    private static final byte[] CDATA_START = ascii("<![CDATA[");
+    private static final byte[] CDATA_END = ascii("]]>");
+    private static final byte[] COMMENT_START = ascii("<!--");
+    private static final byte[] COMMENT_END = ascii("-->");
+    private static final byte[] PI_START = ascii("<?");
+    private static final byte[] PI_END = ascii("?>");
+
+    static {
+        for (int c = 0; c < 32; c++) {
+            if (c != '\t' && c != '\n' && c != '\r') {
+                TEXT_ESCAPES[c] = ascii("&#" + c + ";");
+            }
+        }
+        TEXT_ESCAPES['<'] = ascii("&lt;");
+        TEXT_ESCAPES['>'] = ascii("&gt;");
+        TEXT_ESCAPES['&'] = ascii("&amp;");
+        System.arraycopy(TEXT_ESCAPES, 0, ATTRIBUTE_ESCAPES, 0, TEXT_ESCAPES.length);
+        ATTRIBUTE_ESCAPES['"'] = ascii("&quot;");
+
+        String[] names = {"message", "presence", "iq", "body", "subject", "thread", "error", "show",
+                "status", "priority", "query", "item", "group", "x", "c", "delay", "ping", "bind",
+                "session", "active", "composing", "paused", "inactive", "gone", "to", "from", "id",
+                "type", "xml:lang", "jid", "name", "subscription", "ask", "code", "node", "ver",
+                "hash", "stamp", "resource"};
+        for (String name : names) {
+            NAMES.put(name, ascii(name));
+        }
+        String[] namespaces = {"jabber:client", "jabber:iq:roster", "jabber:iq:private", "jabber:iq:version",
+                "jabber:iq:last", "jabber:iq:privacy", "jabber:iq:register", "jabber:x:data", "jabber:x:delay",
+                "urn:xmpp:ping", "urn:xmpp:time", "urn:xmpp:delay", "urn:ietf:params:xml:ns:xmpp-stanzas",
+                "urn:ietf:params:xml:ns:xmpp-bind", "urn:ietf:params:xml:ns:xmpp-session",
+                "http://jabber.org/protocol/caps", "http://jabber.org/protocol/chatstates",
+                "http://jabber.org/protocol/disco#info", "http://jabber.org/protocol/disco#items",
+                "vcard-temp", "vcard-temp:x:update"};
+        for (String namespace : namespaces) {
+            DEFAULT_NAMESPACES.put(namespace, ascii(" xmlns=\"" + namespace + "\""));
+        }
+    }
+
+    private static final ThreadLocal<XMPPPacketWriter> instances = new ThreadLocalWriter();
+
+    /**
+     * Returns the writer to use by the current thread. The returned writer has been reset.
+     *
+     * @return the writer to use by the current thread.
+     */
+    public static XMPPPacketWriter getInstance() {
+        XMPPPacketWriter writer = instances.get();
+        writer.reset();
+        return writer;
+    }
+
+    private byte[] buf = new byte[1024];
+    private int count = 0;
+
+    // Stack of declared namespaces. The bottom of the stack is the empty namespace.
+    private String[] prefixes = new String[8];
+    private String[] uris = new String[8];
+    private int namespaces = 0;
+
+    // Depth of the element being serialized and location of the value of the TO attribute
+    // of the top level element
+    private int depth = 0;
+    private int toStart = -1;
+    private int toEnd = -1;
+
+    public XMPPPacketWriter() {
+        pushNamespace("", "");
+    }
+
+    /**
+     * Serializes the element and its content. The bytes are appended to the bytes
+     * serialized since the writer was reset.
+     *
+     * @param element the element to serialize.
+     * @throws IOException if the element contains text that cannot be encoded (e.g. unpaired
+     *         surrogates) or contains an invalid node.
+     */
+    public void write(Element element) throws IOException {
+        writeElement(element);
+    }
+
+    /**
+     * Returns the number of bytes serialized since the writer was reset.
+     *
+     * @return the number of bytes serialized since the writer was reset.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns a copy of the bytes serialized since the writer was reset.
+     *
+     * @return a copy of the serialized bytes.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[count];
+        System.arraycopy(buf, 0, bytes, 0, count);
+        return bytes;
+    }
+
+    /**
+     * Puts the bytes serialized since the writer was reset into the specified buffer.
+     *
+     * @param buffer the buffer where the bytes will be put.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(buf, 0, count);
+    }
+
+    /**
+     * Returns a new flipped buffer, allocated with the MINA allocator, that contains the
+     * bytes serialized since the writer was reset.
+     *
+     * @return a new flipped buffer with the serialized bytes.
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        buffer.put(buf, 0, count);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Discards the serialized bytes.
+     */
+    public void reset() {
+        count = 0;
+        if (buf.length > MAX_RETAINED_SIZE) {
+            buf = new byte[1024];
+        }
+        namespaces = 1;
+        depth = 0;
+        toStart = -1;
+        toEnd = -1;
+    }
+
+    /**
+     * Returns the offset of the first byte of the value of the TO attribute of the last
+     * serialized top level element or -1 if the element has no TO attribute.
+     *
+     * @return the offset of the value of the TO attribute or -1 if none.
+     */
+    int getToStart() {
+        return toStart;
+    }
+
+    /**
+     * Returns the offset after the last byte of the value of the TO attribute of the last
+     * serialized top level element or -1 if the element has no TO attribute.
+     *
+     * @return the offset after the value of the TO attribute or -1 if none.
+     */
+    int getToEnd() {
+        return toEnd;
+    }
+
+    /**
+     * Appends already serialized bytes.
+     *
+     * @param bytes the bytes to append.
+     * @param offset the offset of the first byte to append.
+     * @param length the number of bytes to append.
+     */
+    void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(bytes, offset, buf, count, length);
+        count += length;
+    }
+
+    /**
+     * Serializes an element whose content is already serialized. The start tag is created
+     * from the name and attributes of the element, which must not have any namespace, and
+     * is followed by the serialized content. The content includes the end tag of the element
+     * and the element is written as an empty element if there is no content.
+     *
+     * @param element the element whose start tag is serialized.
+     * @param content the serialized content and end tag of the element.
+     * @param offset the offset of the first byte of the content.
+     * @throws IOException if an attribute contains text that cannot be encoded.
+     */
+    void write(Element element, byte[] content, int offset) throws IOException {
+        write('<');
+        writeName(element.getQualifiedName());
+        writeAttributes(element);
+        if (offset >= content.length) {
+            write(EMPTY_ELEMENT_CLOSE);
+        }
+        else {
+            write('>');
+            write(content, offset, content.length - offset);
+        }
+    }
+
+    /**
+     * Appends the escaped value of an attribute.
+     *
+     * @param value the value of the attribute.
+     * @throws IOException if the value contains text that cannot be encoded.
+     */
+    void writeAttributeValue(String value) throws IOException {
+        writeEscaped(value, ATTRIBUTE_ESCAPES);
+    }
+
+    private void writeElement(Element element) throws IOException {
+        int size = element.nodeCount();
+        String qualifiedName = element.getQualifiedName();
+
+        write('<');
+        writeName(qualifiedName);
+
+        int previouslyDeclaredNamespaces = namespaces;
+        Namespace ns = element.getNamespace();
+        if (isNamespaceDeclaration(ns)) {
+            pushNamespace(ns.getPrefix(), ns.getURI());
+            writeNamespace(ns.getPrefix(), ns.getURI());
+        }
+
+        // Print out additional namespace declarations
+        for (int i = 0; i < size; i++) {
+            Node node = element.node(i);
+            if (node instanceof Namespace) {
+                Namespace additional = (Namespace) node;
+                if (isNamespaceDeclaration(additional)) {
+                    pushNamespace(additional.getPrefix(), additional.getURI());
+                    writeNamespace(additional.getPrefix(), additional.getURI());
+                }
+            }
+        }
+
+        writeAttributes(element);
+
+        if (size <= 0) {
+            write(EMPTY_ELEMENT_CLOSE);
+        }
+        else {
+            write('>');
+            depth++;
+            for (int i = 0; i < size; i++) {
+                writeNode(element.node(i));
+            }
+            depth--;
+            write(ELEMENT_CLOSE);
+            writeName(qualifiedName);
+            write('>');
+        }
+
+        // remove declared namespaces from stack
+        namespaces = previouslyDeclaredNamespaces;
+    }
+
+    private void writeAttributes(Element element) throws IOException {
+        for (int i = 0, size = element.attributeCount(); i < size; i++) {
+            Attribute attribute = element.attribute(i);
+            Namespace ns = attribute.getNamespace();
+            if (ns != null && ns != Namespace.NO_NAMESPACE && ns != Namespace.XML_NAMESPACE) {
+                String prefix = ns.getPrefix();
+                int index = findNamespace(prefix);
+                if (index < 0 || !ns.getURI().equals(uris[index])) {
+                    // output a new namespace declaration
+                    writeNamespace(prefix, ns.getURI());
+                    pushNamespace(prefix, ns.getURI());
+                }
+            }
+
+            // If the attribute is a namespace declaration, check if we have already
+            // written that declaration elsewhere
+            String attName = attribute.getName();
+            if (attName.startsWith("xmlns:")) {
+                String prefix = attName.substring(6);
+                if (findNamespace(prefix) < 0) {
+                    String uri = attribute.getValue();
+                    pushNamespace(prefix, uri);
+                    writeNamespace(prefix, uri);
+                }
+            }
+            else if (!attName.equals("xmlns")) {
+                // Note: xmlns attributes are never written since there is always a default namespace
+                write(' ');
+                writeName(attribute.getQualifiedName());
+                write(ATTRIBUTE_VALUE_START);
+                String value = attribute.getValue();
+                boolean to = depth == 0 && "to".equals(attName) && attribute.getNamespacePrefix().length() == 0;
+                if (to) {
+                    toStart = count;
+                }
+                if (value != null) {
+                    writeEscaped(value, ATTRIBUTE_ESCAPES);
+                }
+                if (to) {
+                    toEnd = count;
+                }
+                write('"');
+            }
+        }
+    }
+
+    private void writeNode(Node node) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement((Element) node);
+                break;
+            case Node.TEXT_NODE:
+                String text = node.getText();
+                if (text != null) {
+                    writeEscaped(text, TEXT_ESCAPES);
+                }
+                break;
+            case Node.CDATA_SECTION_NODE:
+                write(CDATA_START);
+                if (node.getText() != null) {
+                    writeRaw(node.getText());
+                }
+                write(CDATA_END);
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                writeRaw(((Entity) node).getText());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                ProcessingInstruction pi = (ProcessingInstruction) node;
+                write(PI_START);
+                writeRaw(pi.getName());
+                write(' ');
+                writeRaw(pi.getText());
+                write(PI_END);
+                break;
+            case Node.COMMENT_NODE:
+                write(COMMENT_START);
+                writeRaw(node.getText());
+                write(COMMENT_END);
+                break;
+            case Node.NAMESPACE_NODE:
+                // Will be output with attributes
+                break;
+            default:
+                throw new IOException("Invalid node type: " + node);
+        }
+    }
+
+    private boolean isNamespaceDeclaration(Namespace ns) {
+        if (ns != null && ns != Namespace.XML_NAMESPACE && ns.getURI() != null) {
+            int index = findNamespace(ns.getPrefix());
+            return index < 0 || !ns.getURI().equals(uris[index]);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index in the stack of the most recently declared namespace for the
+     * prefix or -1 if none was found.
+     */
+    private int findNamespace(String prefix) {
+        if (prefix == null) {
+            prefix = "";
+        }
+        for (int i = namespaces - 1; i >= 0; i--) {
+            if (prefix.equals(prefixes[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void pushNamespace(String prefix, String uri) {
+        if (namespaces == prefixes.length) {
+            String[] newPrefixes = new String[namespaces * 2];
+            String[] newUris = new String[namespaces * 2];
+            System.arraycopy(prefixes, 0, newPrefixes, 0, namespaces);
+            System.arraycopy(uris, 0, newUris, 0, namespaces);
+            prefixes = newPrefixes;
+            uris = newUris;
+        }
+        prefixes[namespaces] = prefix == null ? "" : prefix;
+        uris[namespaces] = uri;
+        namespaces++;
+    }
+
+    private void writeNamespace(String prefix, String uri) throws IOException {
+        if (prefix != null && prefix.length() > 0) {
+            write(PREFIXED_NAMESPACE_START);
+            writeRaw(prefix);
+            write(ATTRIBUTE_VALUE_START);
+        }
+        else {
+            byte[] declaration = DEFAULT_NAMESPACES.get(uri);
+            if (declaration != null) {
+                write(declaration);
+                return;
+            }
+            write(NAMESPACE_START);
+        }
+        writeRaw(uri);
+        write('"');
+    }
+
+    private void writeName(String name) throws IOException {
+        byte[] bytes = NAMES.get(name);
+        if (bytes != null) {
+            write(bytes);
+        }
+        else {
+            writeRaw(name);
+        }
+    }
+
+    private void writeRaw(String text) throws IOException {
+        writeEscaped(text, null);
+    }
+
+    /**
+     * Encodes the text to UTF-8 escaping ASCII chars that have an entry in the escapes table.
+     */
+    private void writeEscaped(String text, byte[][] escapes) throws IOException {
+        int length = text.length();
+        // Worst case is 3 bytes per char or 6 bytes per escaped char (e.g. &quot;)
+        ensureCapacity(count + length * (escapes == null ? 3 : 6));
+        byte[] buf = this.buf;
+        int count = this.count;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = escapes == null ? null : escapes[c];
+                if (escape == null) {
+                    buf[count++] = (byte) c;
+                }
+                else {
+                    for (byte b : escape) {
+                        buf[count++] = b;
+                    }
+                }
+            }
+            else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c)) {
+                if (i + 1 == length || !Character.isLowSurrogate(text.charAt(i + 1))) {
+                    throw new MalformedInputException(1);
+                }
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else if (Character.isLowSurrogate(c)) {
+                throw new MalformedInputException(1);
+            }
+            else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.count = count;
+    }
+
+    private void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length * 2, capacity)];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static class ThreadLocalWriter extends ThreadLocal<XMPPPacketWriter> {
+
+        @Override
+		protected XMPPPacketWriter initialValue() {
+            return new XMPPPacketWriter();
+        }
+    }
+}
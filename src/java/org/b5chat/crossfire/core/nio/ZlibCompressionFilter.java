@@ -0,0 +1,376 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.nio;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.b5chat.crossfire.core.property.Globals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+/**
+ * MINA filter that implements zlib stream compression as defined in XEP-0138. The filter
+ * is added per connection just before the <tt>xmpp</tt> codec so incoming bytes are
+ * inflated before being decoded and outgoing stanzas are deflated once they were encoded.
+ * Incoming traffic is inflated as soon as the filter is added while outgoing traffic is
+ * only deflated after {@link #setCompressOutbound(boolean)} was used, since the
+ * <tt>compressed</tt> answer has to be sent uncompressed.<p>
+ *
+ * Each compressed connection keeps a deflater whose memory is about
+ * <tt>(1 &lt;&lt; (windowBits + 2)) + (1 &lt;&lt; (memLevel + 9))</tt> bytes (i.e. 256K with
+ * the zlib defaults) and an inflater with a 32K window. The window and memory level of the
+ * deflater can be reduced with the <tt>xmpp.client.compression.windowBits</tt> (9-15) and
+ * <tt>xmpp.client.compression.memLevel</tt> (1-9) properties to bound the memory used by
+ * many connections. The compression level is set with <tt>xmpp.client.compression.level</tt>.
+ * The inflater always uses the biggest window since the window used by the other side
+ * is unknown.<p>
+ *
+ * Each filter keeps the number of bytes before and after compression in both
+ * directions so the compression ratio of the connection can be monitored.
+ */
+public class ZlibCompressionFilter extends IoFilterAdapter {
+
+	private static final Logger Log = LoggerFactory.getLogger(ZlibCompressionFilter.class);
+
+    /**
+     * Name of the filter in the filter chain of the MINA session.
+     */
+    public static final String NAME = "compression";
+
+    private static final int MAX_WINDOW_BITS = 15;
+    private static final int DEFAULT_MEM_LEVEL = 8;
+
+    /**
+     * Chunks of compressed or decompressed bytes are produced in a per thread array so
+     * that no extra memory is kept per connection.
+     */
+    private static final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>() {
+        @Override
+		protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    /**
+     * jzlib 1.0.7 does not expose the memory level of the deflater so the initialization method
+     * of the deflater state is used to set it. If not available the default memory level
+     * is used. The jzlib version is pinned in <tt>build/lib/versions.txt</tt> and
+     * ZlibCompressionFilterTest fails if an update removes these members.
+     */
+    private static Field deflateState;
+    private static Method deflateInit2;
+
+    static {
+        try {
+            deflateState = ZStream.class.getDeclaredField("dstate");
+            deflateState.setAccessible(true);
+            deflateInit2 = deflateState.getType().getDeclaredMethod("deflateInit2", ZStream.class,
+                    int.class, int.class, int.class, int.class, int.class);
+            deflateInit2.setAccessible(true);
+        }
+        catch (Exception e) {
+            Log.warn("zlib memory level cannot be configured. Using default memory level.", e);
+            deflateState = null;
+            deflateInit2 = null;
+        }
+    }
+
+    private final ZStream deflater = new ZStream();
+    private final ZStream inflater = new ZStream();
+    private volatile boolean compressOutbound = false;
+    private boolean ended = false;
+    private final int windowBits;
+    private final int memLevel;
+
+    /**
+     * Creates a new filter using the compression settings defined by system properties.
+     */
+    public ZlibCompressionFilter() {
+        this(Globals.getIntProperty("xmpp.client.compression.level", JZlib.Z_DEFAULT_COMPRESSION),
+                Globals.getIntProperty("xmpp.client.compression.windowBits", MAX_WINDOW_BITS),
+                Globals.getIntProperty("xmpp.client.compression.memLevel", DEFAULT_MEM_LEVEL));
+    }
+
+    /**
+     * Creates a new filter.
+     *
+     * @param level the compression level (0-9 or -1 for the default level).
+     * @param windowBits the base two logarithm of the window size of the deflater (9-15).
+     * @param memLevel how much memory the deflater may use for its internal state (1-9).
+     * @throws IllegalArgumentException if the compression level is not valid.
+     */
+    public ZlibCompressionFilter(int level, int windowBits, int memLevel) {
+        windowBits = Math.max(9, Math.min(MAX_WINDOW_BITS, windowBits));
+        memLevel = Math.max(1, Math.min(9, memLevel));
+        this.windowBits = windowBits;
+        this.memLevel = memLevel;
+        if (deflater.deflateInit(level, windowBits) != JZlib.Z_OK) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        if (memLevel != DEFAULT_MEM_LEVEL && deflateInit2 != null) {
+            try {
+                // Initialize again the deflater state using the requested memory level
+                Object state = deflateState.get(deflater);
+                deflateInit2.invoke(state, deflater, level, 8, windowBits, memLevel, JZlib.Z_DEFAULT_STRATEGY);
+            }
+            catch (Exception e) {
+                Log.warn("Error setting zlib memory level. Using default memory level.", e);
+            }
+        }
+        inflater.inflateInit(MAX_WINDOW_BITS);
+    }
+
+    /**
+     * Returns true if the memory level of the deflater can be configured with the
+     * jzlib version in use.
+     *
+     * @return true if the memory level of the deflater can be configured.
+     */
+    static boolean isMemLevelConfigurable() {
+        return deflateInit2 != null;
+    }
+
+    /**
+     * Returns true if outgoing traffic is being compressed.
+     *
+     * @return true if outgoing traffic is being compressed.
+     */
+    public boolean isCompressOutbound() {
+        return compressOutbound;
+    }
+
+    /**
+     * Sets if outgoing traffic has to be compressed.
+     *
+     * @param compressOutbound true if outgoing traffic has to be compressed.
+     */
+    public void setCompressOutbound(boolean compressOutbound) {
+        this.compressOutbound = compressOutbound;
+    }
+
+    @Override
+	public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws Exception {
+        if (!(message instanceof ByteBuffer)) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        ByteBuffer in = (ByteBuffer) message;
+        ByteBuffer out;
+        synchronized (inflater) {
+            if (ended) {
+                // Session is closed so discard the message
+                return;
+            }
+            out = process(inflater, in, false);
+        }
+        in.release();
+        nextFilter.messageReceived(session, out);
+    }
+
+    @Override
+	public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest)
+            throws Exception {
+        ByteBuffer in = (ByteBuffer) writeRequest.getMessage();
+        if (!compressOutbound || !in.hasRemaining()) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        // Compressed data has to be written in the same order in which it was produced
+        synchronized (deflater) {
+            if (ended) {
+                nextFilter.filterWrite(session, writeRequest);
+                return;
+            }
+            ByteBuffer out = process(deflater, in, true);
+            in.release();
+            nextFilter.filterWrite(session, new WriteRequest(out, writeRequest.getFuture()));
+        }
+    }
+
+    @Override
+	public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        end();
+        nextFilter.sessionClosed(session);
+    }
+
+    @Override
+	public void onPostRemove(IoFilterChain parent, String name, NextFilter nextFilter) throws Exception {
+        end();
+    }
+
+    /**
+     * Returns an estimate of the bytes used by the zlib streams of this filter.
+     *
+     * @return an estimate of the bytes used by the zlib streams of this filter.
+     */
+    public int getRetainedSize() {
+        // Deflater: window, hash chains and pending buffer. Inflater: window and huffman tables
+        return (1 << (windowBits + 2)) + (1 << (memLevel + 9)) + (1 << MAX_WINDOW_BITS) + 7168;
+    }
+
+    /**
+     * Returns the number of bytes that were compressed.
+     *
+     * @return the number of bytes that were compressed.
+     */
+    public long getUncompressedBytesSent() {
+        synchronized (deflater) {
+            return deflater.total_in;
+        }
+    }
+
+    /**
+     * Returns the number of compressed bytes that were sent.
+     *
+     * @return the number of compressed bytes that were sent.
+     */
+    public long getCompressedBytesSent() {
+        synchronized (deflater) {
+            return deflater.total_out;
+        }
+    }
+
+    /**
+     * Returns the number of compressed bytes that were received.
+     *
+     * @return the number of compressed bytes that were received.
+     */
+    public long getCompressedBytesReceived() {
+        synchronized (inflater) {
+            return inflater.total_in;
+        }
+    }
+
+    /**
+     * Returns the number of bytes that were received once decompressed.
+     *
+     * @return the number of bytes that were received once decompressed.
+     */
+    public long getUncompressedBytesReceived() {
+        synchronized (inflater) {
+            return inflater.total_out;
+        }
+    }
+
+    /**
+     * Returns the ratio between the uncompressed and compressed bytes sent to the other
+     * side or 0 if nothing was compressed yet.
+     *
+     * @return the ratio between the uncompressed and compressed bytes sent.
+     */
+    public double getSentCompressionRatio() {
+        long compressed = getCompressedBytesSent();
+        return compressed == 0 ? 0 : (double) getUncompressedBytesSent() / compressed;
+    }
+
+    /**
+     * Returns the ratio between the uncompressed and compressed bytes received from
+     * the other side or 0 if nothing was received yet.
+     *
+     * @return the ratio between the uncompressed and compressed bytes received.
+     */
+    public double getReceivedCompressionRatio() {
+        long compressed = getCompressedBytesReceived();
+        return compressed == 0 ? 0 : (double) getUncompressedBytesReceived() / compressed;
+    }
+
+    /**
+     * Releases the memory used by the deflater and inflater.
+     */
+    private void end() {
+        synchronized (deflater) {
+            synchronized (inflater) {
+                if (!ended) {
+                    ended = true;
+                    deflater.deflateEnd();
+                    inflater.inflateEnd();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deflates or inflates the remaining bytes of the specified buffer. Deflated bytes are
+     * flushed so that the other side can read full stanzas.
+     */
+    private static ByteBuffer process(ZStream stream, ByteBuffer in, boolean deflate) throws IOException {
+        int length = in.remaining();
+        boolean hasArray = in.buf().hasArray();
+        if (hasArray) {
+            stream.next_in = in.array();
+            stream.next_in_index = in.arrayOffset() + in.position();
+        }
+        else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            stream.next_in = bytes;
+            stream.next_in_index = 0;
+        }
+        stream.avail_in = length;
+
+        ByteBuffer out = ByteBuffer.allocate(deflate ? length / 2 + 64 : length * 2 + 64);
+        out.setAutoExpand(true);
+        byte[] chunk = chunks.get();
+        try {
+            do {
+                stream.next_out = chunk;
+                stream.next_out_index = 0;
+                stream.avail_out = chunk.length;
+                int err = deflate ? stream.deflate(JZlib.Z_SYNC_FLUSH) : stream.inflate(JZlib.Z_SYNC_FLUSH);
+                if (err == JZlib.Z_BUF_ERROR) {
+                    // No progress was possible (i.e. all input was consumed and flushed)
+                    break;
+                }
+                check(err, stream);
+                out.put(chunk, 0, chunk.length - stream.avail_out);
+                if (err == JZlib.Z_STREAM_END) {
+                    // The other side finished the compressed stream
+                    break;
+                }
+            }
+            while (stream.avail_in > 0 || stream.avail_out == 0);
+        }
+        finally {
+            // Do not keep references to the buffers
+            stream.next_in = null;
+            stream.next_out = null;
+        }
+        if (hasArray) {
+            in.position(in.position() + length);
+        }
+        out.flip();
+        return out;
+    }
+
+    private static void check(int err, ZStream stream) throws IOException {
+        if (err != JZlib.Z_OK && err != JZlib.Z_STREAM_END) {
+            throw new IOException("zlib error " + err + (stream.msg != null ? ": " + stream.msg : ""));
+        }
+    }
+}
@@ -27,7 +27,9 @@ package org.b5chat.crossfire.core.util;
  *
  * @author Iain Shigeoka
  */
-public class Enum {
+public class Enum implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
     private String name;
 
     protected Enum(String name) {
@@ -35,6 +35,7 @@ import java.util.*;
  * @author Iain Shigeoka
  */
 public class IntEnum extends Enum {
+    private static final long serialVersionUID = 1L;
 
     private int value;
     protected static Hashtable enumTypes = new Hashtable();
@@ -95,6 +96,17 @@ public class IntEnum extends Enum {
         return null;
     }
 
+    /**
+     * Returns the registered enum that has the value of a deserialized enum, so that
+     * deserialized enums can still be compared by identity.
+     *
+     * @return the registered enum with the same value.
+     */
+    protected Object readResolve() {
+        IntEnum enumeration = getEnumFromInt(getClass(), value);
+        return enumeration == null ? this : enumeration;
+    }
+
     @Override
 	public int hashCode() {
         return value;
@@ -0,0 +1,218 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.util;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.b5chat.crossfire.core.property.Globals;
+import org.xmpp.packet.JID;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+/**
+ * Bounded cache of parsed JIDs. Creating a JID parses the address and applies stringprep
+ * to each part, and its string forms are built again each time that <tt>toString()</tt> or
+ * <tt>toBareJID()</tt> is called. JIDs returned by this cache were parsed and prepared once
+ * and keep their full and bare string forms, their hash code and their bare JID, so code that
+ * keeps creating JIDs for the same addresses (e.g. routing, rosters and groups) can get them
+ * from here instead.<p>
+ *
+ * JIDs are cached by the address they were requested with. The least recently used JIDs
+ * are evicted once the cache holds <tt>xmpp.jid.cache.size</tt> JIDs (50,000 by default).
+ * Cached JIDs are equal to (and interchangeable with) JIDs created with the constructors
+ * of {@link JID}.
+ */
+public class JIDCache {
+
+    private static final ConcurrentMap<String, JID> cache = new ConcurrentLinkedHashMap.Builder<String, JID>()
+            .maximumWeightedCapacity(Globals.getIntProperty("xmpp.jid.cache.size", 50000))
+            .build();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private JIDCache() {
+    }
+
+    /**
+     * Returns the JID of the specified address.
+     *
+     * @param jid the address.
+     * @return the JID of the address.
+     * @throws IllegalArgumentException if the address is not a valid JID.
+     */
+    public static JID get(String jid) {
+        JID cached = cache.get(jid);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        cached = new CachedJID(jid);
+        cache.put(jid, cached);
+        return cached;
+    }
+
+    /**
+     * Returns the JID made of the specified parts.
+     *
+     * @param node the node or <tt>null</tt> if none.
+     * @param domain the domain.
+     * @param resource the resource or <tt>null</tt> if none.
+     * @return the JID made of the specified parts.
+     * @throws IllegalArgumentException if the parts do not make a valid JID.
+     */
+    public static JID get(String node, String domain, String resource) {
+        String key = toString(node, domain, resource);
+        JID cached = cache.get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        cached = new CachedJID(node, domain, resource);
+        cache.put(key, cached);
+        return cached;
+    }
+
+    /**
+     * Returns the bare JID of the specified JID. The JID itself is returned if it has no
+     * resource.
+     *
+     * @param jid the JID.
+     * @return the bare JID of the JID.
+     */
+    public static JID getBare(JID jid) {
+        if (jid instanceof CachedJID) {
+            return ((CachedJID) jid).bare;
+        }
+        if (jid.getResource() == null) {
+            return jid;
+        }
+        return get(jid.getNode(), jid.getDomain(), null);
+    }
+
+    private static String toString(String node, String domain, String resource) {
+        StringBuilder sb = new StringBuilder(domain.length() + 32);
+        if (node != null) {
+            sb.append(node).append('@');
+        }
+        sb.append(domain);
+        if (resource != null) {
+            sb.append('/').append(resource);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number of cached JIDs.
+     *
+     * @return the number of cached JIDs.
+     */
+    public static int size() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all the cached JIDs.
+     */
+    public static void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Returns the number of times that a requested JID was cached.
+     *
+     * @return the number of times that a requested JID was cached.
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times that a requested JID had to be created.
+     *
+     * @return the number of times that a requested JID had to be created.
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the percentage of requested JIDs that were cached.
+     *
+     * @return the percentage of requested JIDs that were cached.
+     */
+    public static double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : hits * 100.0 / total;
+    }
+
+    public static String getStatistics() {
+        return "cached JIDs: " + size() + ", hits: " + getHits() + ", misses: " + getMisses() +
+                ", hit rate: " + Math.round(getHitRate()) + "%";
+    }
+
+    /**
+     * JID that keeps its string forms, hash code and bare JID.
+     */
+    private static class CachedJID extends JID {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String full;
+        private final String bareString;
+        private final int hash;
+        private final JID bare;
+
+        CachedJID(String jid) {
+            super(jid);
+            full = super.toString();
+            bareString = super.toBareJID();
+            hash = super.hashCode();
+            bare = getResource() == null ? this : JIDCache.get(getNode(), getDomain(), null);
+        }
+
+        CachedJID(String node, String domain, String resource) {
+            super(node, domain, resource);
+            full = super.toString();
+            bareString = super.toBareJID();
+            hash = super.hashCode();
+            bare = getResource() == null ? this : JIDCache.get(getNode(), getDomain(), null);
+        }
+
+        @Override
+        public String toString() {
+            return full;
+        }
+
+        @Override
+        public String toBareJID() {
+            return bareString;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
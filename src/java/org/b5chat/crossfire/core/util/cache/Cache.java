@@ -77,6 +77,28 @@ public interface Cache<K,V> extends java.util.Map<K,V> {
      */
     void setMaxCacheSize(int maxSize);
 
+    /**
+     * Sets the weigher that computes the size in bytes of the objects added to the
+     * cache. By default the size is computed by {@link CacheSizes#sizeOfAnything(Object)}.
+     * Objects added while the cache has no size limit are not weighed and count as one
+     * byte.
+     *
+     * @param weigher the weigher of the objects added to the cache.
+     */
+    void setWeigher(CacheWeigher<? super V> weigher);
+
+    /**
+     * Sets the percent of the lifetime of the objects after which objects that are read
+     * by {@link #get(Object, CacheLoader)} are loaded again in the background, so that
+     * objects that are often read do not expire. Objects are not refreshed by default
+     * since the refreshed object replaces the cached one, which should only be enabled
+     * for caches whose objects are not modified once cached.
+     *
+     * @param percent the percent of the lifetime after which objects are refreshed, or
+     *      0 to not refresh objects.
+     */
+    void setRefreshAhead(int percent);
+
     /**
      * Returns the maximum number of milliseconds that any object can live
      * in cache. Once the specified number of milliseconds passes, the object
@@ -131,4 +153,53 @@ public interface Cache<K,V> extends java.util.Map<K,V> {
      */
     long getCacheMisses();
 
+    /**
+     * Returns the object associated with the specified key, loading it with the loader
+     * if it is not in the cache. The loaded object is added to the cache unless it is
+     * null. Threads that miss the same key at the same time wait for a single load of
+     * the object instead of loading it once each, and get the exception thrown by the
+     * loader if the load failed.<p>
+     *
+     * Objects that are read when most of their lifetime has passed are loaded again in
+     * the background, so that frequently used objects are replaced before they expire.
+     *
+     * @param key the key of the object.
+     * @param loader the loader of the object if it is not in the cache.
+     * @return the object associated with the key or null if none.
+     * @throws E if the object was not in the cache and could not be loaded.
+     */
+    <E extends Exception> V get(K key, CacheLoader<? super K, ? extends V, E> loader) throws E;
+
+    /**
+     * Returns the number of objects loaded by {@link #get(Object, CacheLoader)},
+     * including the loads that failed.
+     *
+     * @return the number of objects loaded into the cache.
+     */
+    long getLoadCount();
+
+    /**
+     * Returns the average time in milliseconds that loading an object by
+     * {@link #get(Object, CacheLoader)} took.
+     *
+     * @return the average load time in milliseconds.
+     */
+    double getAverageLoadTime();
+
+    /**
+     * Returns the size in bytes of the objects that were evicted from the heap and are
+     * kept serialized in direct memory, or -1 if the cache does not keep evicted objects.
+     *
+     * @return the size of the objects kept off heap or -1 if the cache has no off heap tier.
+     */
+    long getOffHeapSize();
+
+    /**
+     * Returns the number of objects that were found off heap and moved back to the heap.
+     * Those reads are also counted as cache hits.
+     *
+     * @return the number of objects moved back to the heap.
+     */
+    long getOffHeapPromotions();
+
 }
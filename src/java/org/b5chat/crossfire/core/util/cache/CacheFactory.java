@@ -95,9 +95,6 @@ public class CacheFactory {
         cacheNames.put("LDAP Authentication", "ldap");
         cacheNames.put("Routing Servers Cache", "routeServer");
         cacheNames.put("Routing Components Cache", "routeComponent");
-        cacheNames.put("Routing Users Cache", "routeUser");
-        cacheNames.put("Routing AnonymousUsers Cache", "routeAnonymousUser");
-        cacheNames.put("Routing User Sessions", "routeUserSessions");
         cacheNames.put("Components Sessions", "componentsSessions");
         cacheNames.put("IConnection Managers Sessions", "connManagerSessions");
         cacheNames.put("Incoming Server Sessions", "incServerSessions");
@@ -147,12 +144,6 @@ public class CacheFactory {
         cacheProps.put("cache.routeServer.maxLifetime", -1l);
         cacheProps.put("cache.routeComponent.size", -1l);
         cacheProps.put("cache.routeComponent.maxLifetime", -1l);
-        cacheProps.put("cache.routeUser.size", -1l);
-        cacheProps.put("cache.routeUser.maxLifetime", -1l);
-        cacheProps.put("cache.routeAnonymousUser.size", -1l);
-        cacheProps.put("cache.routeAnonymousUser.maxLifetime", -1l);
-        cacheProps.put("cache.routeUserSessions.size", -1l);
-        cacheProps.put("cache.routeUserSessions.maxLifetime", -1l);
         cacheProps.put("cache.componentsSessions.size", -1l);
         cacheProps.put("cache.componentsSessions.maxLifetime", -1l);
         cacheProps.put("cache.connManagerSessions.size", -1l);
@@ -240,6 +231,31 @@ public class CacheFactory {
         return hasCacheProperty(cacheName, ".maxLifetime");
     }
 
+    /**
+     * Returns the maximum size in bytes of the objects evicted from the heap that a local
+     * cache keeps serialized in direct memory. Caches keep no evicted objects unless the
+     * <tt>cache.[name].offHeapSize</tt> property is set.
+     *
+     * @param cacheName the name of the cache to look up a corresponding property for.
+     * @return either the property value or 0.
+     */
+    public static long getMaxOffHeapSize(String cacheName) {
+        return getCacheProperty(cacheName, ".offHeapSize", 0);
+    }
+
+    /**
+     * Returns the percent of the lifetime of the objects of a local cache after which
+     * objects that are read are loaded again in the background (see
+     * {@link Cache#setRefreshAhead(int)}). Objects are not refreshed unless the
+     * <tt>cache.[name].refreshAhead</tt> property is set.
+     *
+     * @param cacheName the name of the cache to look up a corresponding property for.
+     * @return either the property value or 0.
+     */
+    public static int getRefreshAhead(String cacheName) {
+        return (int) getCacheProperty(cacheName, ".refreshAhead", 0);
+    }
+
     public static void setCacheTypeProperty(String cacheName, String type) {
         cacheName = cacheName.replaceAll(" ", "");
         Globals.setProperty("cache." + cacheName + ".type", type);
@@ -362,6 +378,20 @@ public class CacheFactory {
         return cacheFactoryStrategy.getLock(key, cache);
     }
 
+    /**
+     * Returns the local locks of the keys of the specified cache, which keep statistics
+     * of their contention. Returns null if locks are not handled by this JVM.
+     *
+     * @param name the name of the cache.
+     * @return the locks of the keys of the cache or null if locks are not local.
+     */
+    public static StripedLocks getLocks(String name) {
+        if (cacheFactoryStrategy instanceof DefaultLocalCacheStrategy) {
+            return ((DefaultLocalCacheStrategy) cacheFactoryStrategy).getLocks(name);
+        }
+        return null;
+    }
+
     @SuppressWarnings("unchecked")
     private static <T extends Cache> T wrapCache(T cache, String name) {
         cache = (T) new CacheWrapper(cache);
@@ -0,0 +1,45 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.util.cache;
+
+/**
+ * Loads the objects of a cache that were not found in the cache. See
+ * {@link Cache#get(Object, CacheLoader)}.<p>
+ *
+ * Loaders usually read the object from the database or a provider. Only one thread
+ * loads the object of a key at a time, so loaders do not need to synchronize.
+ *
+ * @param <K> the type of the keys of the cache.
+ * @param <V> the type of the objects of the cache.
+ * @param <E> the type of the exception thrown when the object cannot be loaded.
+ */
+public interface CacheLoader<K, V, E extends Exception> {
+
+    /**
+     * Returns the object associated with the specified key. The returned object
+     * will be added to the cache unless it is null.
+     *
+     * @param key the key of the object to load.
+     * @return the object associated with the key or null if none.
+     * @throws E if the object cannot be loaded.
+     */
+    V load(K key) throws E;
+}
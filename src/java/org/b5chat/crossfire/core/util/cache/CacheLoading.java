@@ -0,0 +1,345 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.util.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.b5chat.crossfire.core.property.Globals;
+import org.b5chat.crossfire.core.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the objects that were not found in a local cache (see
+ * {@link Cache#get(Object, CacheLoader)}). The loads in progress are kept by key, so
+ * threads that miss a key that is already being loaded wait for that load instead of
+ * loading the object again. Threads that wait more than <tt>cache.loadTimeout</tt>
+ * milliseconds (30 seconds by default) stop waiting and load the object themselves.<p>
+ *
+ * Caches can refresh their objects ahead of expiration (see {@link Cache#setRefreshAhead(int)}):
+ * objects that are read when the set percent of their lifetime has passed are loaded
+ * again by the task engine and replace the cached object, so that objects that are often
+ * read do not expire and make the next reader wait for the load. Refreshing is off by
+ * default since readers that modify a cached object lose their changes when it is
+ * replaced.
+ */
+class CacheLoading<K, V> {
+
+    private static final Logger Log = LoggerFactory.getLogger(CacheLoading.class);
+
+    private static final long LOAD_TIMEOUT = Globals.getLongProperty("cache.loadTimeout", 30000);
+
+    /**
+     * Access to the objects of the cache that does not update the statistics of the cache.
+     */
+    interface Store<K, V> {
+
+        String getName();
+
+        long getMaxLifetime();
+
+        /**
+         * Returns the cached object or null if the object is not cached or expired.
+         */
+        V peek(K key);
+
+        /**
+         * Returns the time when the object was added to the cache or -1 if not cached.
+         */
+        long getCreationTime(K key);
+
+        void put(K key, V value);
+
+        /**
+         * Replaces the cached object if it was added at the specified time.
+         */
+        boolean replace(K key, long creationTime, V value);
+    }
+
+    private final Store<K, V> store;
+    private final ConcurrentHashMap<K, Load<V>> loads = new ConcurrentHashMap<K, Load<V>>();
+
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+    private final AtomicLong sharedLoads = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private volatile int refreshAhead;
+
+    CacheLoading(Store<K, V> store) {
+        this.store = store;
+    }
+
+    /**
+     * Returns the cached object or loads it if it was not cached.
+     *
+     * @param key the key of the object.
+     * @param cached the object found in the cache or null if none.
+     * @param loader the loader of the object.
+     * @return the object associated with the key or null if none.
+     * @throws E if the object cannot be loaded.
+     */
+    <E extends Exception> V get(K key, V cached, CacheLoader<? super K, ? extends V, E> loader) throws E {
+        if (cached != null) {
+            refreshIfNeeded(key, loader);
+            return cached;
+        }
+        Load<V> load = new Load<V>(loader);
+        Load<V> current = loads.putIfAbsent(key, load);
+        if (current != null) {
+            // Another thread is loading the object
+            try {
+                if (!current.await(LOAD_TIMEOUT)) {
+                    Log.warn("Cache " + store.getName() + " -- load of key " + key + " is taking more than " +
+                            LOAD_TIMEOUT + " ms");
+                }
+                else if (current.isSharedWith(loader)) {
+                    sharedLoads.incrementAndGet();
+                    return current.<E>get();
+                }
+                // Otherwise another loader failed with an exception that this caller does not expect
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return load(key, loader);
+        }
+        try {
+            // The object may have been loaded since it was read from the cache
+            V value = store.peek(key);
+            if (value == null) {
+                value = load(key, loader);
+            }
+            load.set(value);
+            return value;
+        }
+        catch (RuntimeException e) {
+            load.fail(e);
+            throw e;
+        }
+        catch (Error e) {
+            load.fail(e);
+            throw e;
+        }
+        catch (Exception e) {
+            load.fail(e);
+            throw Load.<E>cast(e);
+        }
+        finally {
+            loads.remove(key, load);
+        }
+    }
+
+    private <E extends Exception> V load(K key, CacheLoader<? super K, ? extends V, E> loader) throws E {
+        long start = System.nanoTime();
+        boolean loaded = false;
+        try {
+            V value = loader.load(key);
+            if (value != null) {
+                store.put(key, value);
+            }
+            loaded = true;
+            return value;
+        }
+        finally {
+            loadTime.addAndGet(System.nanoTime() - start);
+            loadCount.incrementAndGet();
+            if (!loaded) {
+                loadFailures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Loads the object again in the background if most of its lifetime has passed.
+     */
+    private void refreshIfNeeded(final K key, final CacheLoader<? super K, ? extends V, ?> loader) {
+        long lifetime = store.getMaxLifetime();
+        int refreshAhead = this.refreshAhead;
+        if (refreshAhead <= 0 || lifetime <= 0) {
+            return;
+        }
+        final long creationTime = store.getCreationTime(key);
+        if (creationTime < 0 || System.currentTimeMillis() - creationTime < lifetime * refreshAhead / 100) {
+            return;
+        }
+        final Load<V> load = new Load<V>(loader);
+        if (loads.putIfAbsent(key, load) != null) {
+            // The object is already being loaded
+            return;
+        }
+        Runnable refresh = new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    V value = loader.load(key);
+                    if (value != null && store.replace(key, creationTime, value)) {
+                        refreshes.incrementAndGet();
+                    }
+                    load.set(value);
+                }
+                catch (Throwable e) {
+                    loadFailures.incrementAndGet();
+                    load.fail(e);
+                    Log.debug("Cache " + store.getName() + " -- error refreshing key " + key, e);
+                }
+                finally {
+                    loadTime.addAndGet(System.nanoTime() - start);
+                    loadCount.incrementAndGet();
+                    loads.remove(key, load);
+                }
+            }
+        };
+        try {
+            TaskEngine.getInstance().submit(refresh);
+        }
+        catch (RuntimeException e) {
+            loads.remove(key, load);
+            load.set(null);
+            Log.warn("Cache " + store.getName() + " -- cannot refresh key " + key, e);
+        }
+    }
+
+    /**
+     * Sets the percent of the lifetime of the objects after which objects that are read
+     * are loaded again in the background, or 0 to not refresh objects.
+     *
+     * @param percent the percent of the lifetime after which objects are refreshed.
+     */
+    void setRefreshAhead(int percent) {
+        refreshAhead = percent;
+    }
+
+    /**
+     * Returns the number of objects loaded into the cache, including the ones that were
+     * refreshed and the loads that failed.
+     *
+     * @return the number of objects loaded into the cache.
+     */
+    long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * Returns the number of loads that failed.
+     *
+     * @return the number of loads that failed.
+     */
+    long getLoadFailures() {
+        return loadFailures.get();
+    }
+
+    /**
+     * Returns the number of times that a thread got an object loaded by another thread.
+     *
+     * @return the number of times that a thread got an object loaded by another thread.
+     */
+    long getSharedLoads() {
+        return sharedLoads.get();
+    }
+
+    /**
+     * Returns the number of objects that were replaced by a refresh ahead of expiration.
+     *
+     * @return the number of objects that were refreshed.
+     */
+    long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Returns the average time that loading an object took in milliseconds.
+     *
+     * @return the average time that loading an object took in milliseconds.
+     */
+    double getAverageLoadTime() {
+        long count = loadCount.get();
+        return count == 0 ? 0 : loadTime.get() / (count * 1000000.0);
+    }
+
+    @Override
+    public String toString() {
+        return "loads: " + getLoadCount() + ", failed: " + getLoadFailures() + ", shared: " + getSharedLoads() +
+                ", refreshed: " + getRefreshes() + ", average load time: " + getAverageLoadTime() + " ms";
+    }
+
+    /**
+     * A load in progress.
+     */
+    private static class Load<V> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final CacheLoader<?, ?, ?> loader;
+        private V value;
+        private Throwable failure;
+
+        Load(CacheLoader<?, ?, ?> loader) {
+            this.loader = loader;
+        }
+
+        void set(V value) {
+            this.value = value;
+            done.countDown();
+        }
+
+        void fail(Throwable failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        boolean await(long timeout) throws InterruptedException {
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Returns true if a thread using the specified loader can get the result of this
+         * load, that is, unless the load failed with a checked exception of another loader.
+         */
+        boolean isSharedWith(CacheLoader<?, ?, ?> loader) {
+            return !(failure instanceof Exception) || failure instanceof RuntimeException || this.loader == loader;
+        }
+
+        /**
+         * Returns the loaded object or throws the exception thrown by the loader.
+         */
+        <E extends Exception> V get() throws E {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                // Only thrown to threads using the loader that threw it
+                throw Load.<E>cast(failure);
+            }
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <E extends Exception> E cast(Throwable e) {
+            return (E) e;
+        }
+    }
+}
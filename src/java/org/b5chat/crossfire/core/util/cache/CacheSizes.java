@@ -21,24 +21,47 @@
 package org.b5chat.crossfire.core.util.cache;
 
 
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.b5chat.crossfire.core.util.cache.Cacheable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Utility class for determining the sizes in bytes of commonly used objects.
  * Classes implementing the Cacheable interface should use this class to
- * determine their size.
+ * determine their size.<p>
+ *
+ * Objects are never serialized to find their size. The size of large collections and
+ * maps is estimated from a sample of their elements, and the size of other objects is
+ * estimated from the fields of their class.
  *
  * @author Matt Tucker
  */
 public class CacheSizes {
 
+    private static final Logger Log = LoggerFactory.getLogger(CacheSizes.class);
+
+    /**
+     * Number of elements of a collection or map whose size is computed. The size of
+     * larger collections is extrapolated from the size of these elements.
+     */
+    static final int SAMPLE_SIZE = 16;
+
+    /**
+     * Size of the instances of the classes whose size was estimated from their fields.
+     * Classes are weakly referenced so that plugin classes can be unloaded.
+     */
+    private static final Map<Class<?>, Integer> instanceSizes =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, Integer>());
+
     /**
      * Returns the size in bytes of a basic Object. This method should only
      * be used for actual Object objects and not classes that extend Object.
@@ -117,53 +140,149 @@ public class CacheSizes {
     }
 
     /**
-     * Returns the size in bytes of a Map object. 
+     * Returns the size in bytes of an object added to a cache. Objects are not weighed
+     * when the cache has no size limit and count as one byte. Objects that cannot be
+     * weighed count as one byte too.
+     *
+     * @param object the object added to the cache.
+     * @param weigher the weigher of the cache or null to use {@link #sizeOfAnything(Object)}.
+     * @param maxCacheSize the max size of the cache in bytes (-1 indicates unlimited max size).
+     * @return the size of the object in bytes.
+     */
+    static <V> int sizeOf(V object, CacheWeigher<? super V> weigher, long maxCacheSize) {
+        if (maxCacheSize < 0) {
+            return 1;
+        }
+        try {
+            return weigher == null ? sizeOfAnything(object) : weigher.sizeOf(object);
+        }
+        catch (CannotCalculateSizeException e) {
+            Log.warn(e.getMessage(), e);
+            return 1;
+        }
+    }
+
+    /**
+     * Returns the size in bytes of a Map object. The size of maps with more than
+     * {@link #SAMPLE_SIZE} entries is extrapolated from the size of the first entries.
      *
      * @param map the Map object to determine the size of.
      * @return the size of the Map object.
      */
-    public static int sizeOfMap(Map map)
+    public static int sizeOfMap(Map<?, ?> map)
 	    throws CannotCalculateSizeException {
         if (map == null) {
             return 0;
         }
         // Base map object -- should be something around this size.
         int size = 36;
-		Set<? extends Map.Entry> set = map.entrySet();
-        
-        // Add in size of each value
-        for (Map.Entry<Object, Object> entry : set) {
-			size += sizeOfAnything(entry.getKey());
-            size += sizeOfAnything(entry.getValue());
+        int count = map.size();
+        long sampleSize = 0;
+        int sampled = 0;
+        for (Iterator<? extends Map.Entry<?, ?>> it = map.entrySet().iterator();
+                it.hasNext() && sampled < SAMPLE_SIZE; sampled++) {
+            Map.Entry<?, ?> entry = it.next();
+            sampleSize += sizeOfAnything(entry.getKey());
+            sampleSize += sizeOfAnything(entry.getValue());
         }
-        return size;
+        return size + extrapolate(sampleSize, sampled, count);
     }
 
     /**
-     * Returns the size in bytes of a Collection object. Elements are assumed to be
-     * <tt>String</tt>s, <tt>Long</tt>s or <tt>Cacheable</tt> objects.
+     * Returns the size in bytes of a Collection object. The size of collections with
+     * more than {@link #SAMPLE_SIZE} elements is extrapolated from the size of the
+     * first elements.
      *
      * @param list the Collection object to determine the size of.
      * @return the size of the Collection object.
      */
-    public static int sizeOfCollection(Collection list) 
+    public static int sizeOfCollection(Collection<?> list) 
             throws CannotCalculateSizeException {
         if (list == null) {
             return 0;
         }
         // Base list object (approximate)
         int size = 36;
-        // Add in size of each value
-        Object[] values = list.toArray();
-        for (int i = 0; i < values.length; i++) {
-            size += sizeOfAnything(values[i]);
+        int count = list.size();
+        long sampleSize = 0;
+        int sampled = 0;
+        for (Iterator<?> it = list.iterator(); it.hasNext() && sampled < SAMPLE_SIZE; sampled++) {
+            sampleSize += sizeOfAnything(it.next());
+        }
+        return size + extrapolate(sampleSize, sampled, count);
+    }
+
+    private static int extrapolate(long sampleSize, int sampled, int count) {
+        if (sampled == 0) {
+            return 0;
+        }
+        if (sampled < count) {
+            // The collection is bigger than the sample (or changed while it was read)
+            sampleSize = sampleSize * count / sampled;
+        }
+        return (int) Math.min(sampleSize, Integer.MAX_VALUE - 36);
+    }
+
+    /**
+     * Returns the size in bytes of an object estimated from the fields of its class,
+     * without following references to other objects. The size of the instances of a
+     * class is computed once, the size of arrays depends on their length.
+     *
+     * @param object the object to determine the size of.
+     * @return the size of the object.
+     * @throws CannotCalculateSizeException if the fields of the class cannot be read.
+     */
+    public static int sizeOfInstance(Object object) throws CannotCalculateSizeException {
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            return sizeOfObject() + sizeOfInt() + Array.getLength(object) * sizeOfField(type.getComponentType());
+        }
+        Integer size = instanceSizes.get(type);
+        if (size == null) {
+            try {
+                size = computeInstanceSize(type);
+            }
+            catch (SecurityException e) {
+                throw new CannotCalculateSizeException(object);
+            }
+            instanceSizes.put(type, size);
         }
         return size;
     }
 
+    private static int computeInstanceSize(Class<?> type) {
+        int size = sizeOfObject();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += sizeOfField(field.getType());
+                }
+            }
+        }
+        // Objects are aligned to 8 bytes
+        return (size + 7) & ~7;
+    }
+
+    private static int sizeOfField(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == char.class || type == short.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        // Reference to another object
+        return 4;
+    }
+
     /**
-     * Returns the size of an object in bytes. Determining size by serialization
-     * is only used as a last resort.
+     * Returns the size of an object in bytes. Objects of classes that are not known
+     * by this method are sized by {@link #sizeOfInstance(Object)}.
      *
      * @return the size of an object in bytes.
      */
@@ -193,62 +312,22 @@ public class CacheSizes {
             return sizeOfObject() + sizeOfBoolean();
         }
         else if (object instanceof Map) {
-            return sizeOfMap((Map)object);
+            return sizeOfMap((Map<?, ?>)object);
         }
         else if (object instanceof long[]) {
             long[] array = (long[])object;
             return sizeOfObject() + array.length * sizeOfLong();
         }
         else if (object instanceof Collection) {
-            return sizeOfCollection((Collection)object);
+            return sizeOfCollection((Collection<?>)object);
         }
         else if (object instanceof byte[]) {
             byte [] array = (byte[])object;
             return sizeOfObject() + array.length;
         }
-        // Default behavior -- serialize the object to determine its size.
+        // Default behavior -- estimate the size from the fields of the class.
         else {
-            int size = 1;
-            try {
-                // Default to serializing the object out to determine size.
-                CacheSizes.NullOutputStream out = new NullOutputStream();
-                ObjectOutputStream outObj = new ObjectOutputStream(out);
-                outObj.writeObject(object);
-                size = out.size();
-            }
-            catch (IOException ioe) {
-                throw new CannotCalculateSizeException(object);
-            }
-            return size;
-        }
-    }
-
-    private static class NullOutputStream extends OutputStream {
-
-        int size = 0;
-
-        @Override
-        public void write(int b) throws IOException {
-            size++;
-        }
-
-        @Override
-        public void write(byte[] b) throws IOException {
-            size += b.length;
-        }
-
-        @Override
-        public void write(byte[] b, int off, int len) {
-            size += len;
-        }
-
-        /**
-         * Returns the number of bytes written out through the stream.
-         *
-         * @return the number of bytes written to the stream.
-         */
-        public int size() {
-            return size;
+            return sizeOfInstance(object);
         }
     }
 }
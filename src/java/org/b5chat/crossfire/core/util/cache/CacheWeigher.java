@@ -0,0 +1,44 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.util.cache;
+
+/**
+ * Computes the size in bytes of the objects added to a cache. Caches use
+ * {@link CacheSizes#sizeOfAnything(Object)} unless a weigher was set with
+ * {@link Cache#setWeigher(CacheWeigher)}, which is useful for objects that are
+ * not {@link Cacheable} and whose size is known by the code using the cache.<p>
+ *
+ * Weighers are called every time an object is added to a cache, so they should
+ * be fast.
+ *
+ * @see Cache
+ */
+public interface CacheWeigher<V> {
+
+    /**
+     * Returns the approximate size of the object in bytes.
+     *
+     * @param object the object added to the cache.
+     * @return the size of the object in bytes.
+     * @throws CannotCalculateSizeException if the size of the object cannot be computed.
+     */
+    int sizeOf(V object) throws CannotCalculateSizeException;
+}
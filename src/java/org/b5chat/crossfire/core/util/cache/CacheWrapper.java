@@ -61,6 +61,14 @@ public class CacheWrapper<K, V> implements Cache<K, V> {
         cache.setMaxCacheSize(maxSize);
     }
 
+    public void setWeigher(CacheWeigher<? super V> weigher) {
+        cache.setWeigher(weigher);
+    }
+
+    public void setRefreshAhead(int percent) {
+        cache.setRefreshAhead(percent);
+    }
+
     public long getMaxLifetime() {
         return cache.getMaxLifetime();
     }
@@ -121,6 +129,26 @@ public class CacheWrapper<K, V> implements Cache<K, V> {
         return cache.get(key);
     }
 
+    public <E extends Exception> V get(K key, CacheLoader<? super K, ? extends V, E> loader) throws E {
+        return cache.get(key, loader);
+    }
+
+    public long getLoadCount() {
+        return cache.getLoadCount();
+    }
+
+    public double getAverageLoadTime() {
+        return cache.getAverageLoadTime();
+    }
+
+    public long getOffHeapSize() {
+        return cache.getOffHeapSize();
+    }
+
+    public long getOffHeapPromotions() {
+        return cache.getOffHeapPromotions();
+    }
+
     public V remove(Object key) {
         return cache.remove(key);
     }
@@ -0,0 +1,472 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+/**
+ * Non-distributed implementation of the Cache interface that can be used by many threads
+ * at the same time. Unlike {@link DefaultCache}, which synchronizes every operation on the
+ * cache, the objects are kept in a {@link ConcurrentLinkedHashMap}:<ul>
+ *
+ * <li> Reads do not lock. The map is split in segments and the change in the access order
+ * caused by a read is buffered and applied later by the thread that gets the segment lock.
+ * <li> The map is bounded by the size of its objects in bytes, which is computed once when
+ * the object is added. The least recently used objects are evicted when the cache is full.
+ * <li> Objects are also kept in a queue in the order they were added, which is used to
+ * expire the objects older than the max lifetime. Expiring only looks at the head of the
+ * queue and is skipped by threads that find another thread doing it, so its cost is spread
+ * over the operations that add objects to the cache.</ul>
+ *
+ * Cache hits and misses are counted as in {@link DefaultCache}.
+ *
+ * @see ConcurrentLocalCacheStrategy
+ */
+public class ConcurrentCache<K, V> implements Cache<K, V> {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConcurrentCache.class);
+
+    /**
+     * Max capacity and weight supported by {@link ConcurrentLinkedHashMap}.
+     */
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final int MAXIMUM_WEIGHT = 1 << 29;
+
+    /**
+     * The map the keys and values are stored in.
+     */
+    private final ConcurrentLinkedHashMap<K, CacheObject<K, V>> map;
+
+    /**
+     * Objects in the order they were added to the cache, oldest first. Objects that were
+     * removed from the map are left in the queue until they reach the head or the queue
+     * is purged.
+     */
+    private final ConcurrentLinkedQueue<CacheObject<K, V>> ageQueue = new ConcurrentLinkedQueue<CacheObject<K, V>>();
+    private final AtomicInteger ageQueueSize = new AtomicInteger();
+    private final ReentrantLock expirationLock = new ReentrantLock();
+
+    private volatile long maxCacheSize;
+    private volatile long maxLifetime;
+    private volatile CacheWeigher<? super V> weigher;
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private String name;
+
+    private final CacheLoading<K, V> loading = new CacheLoading<K, V>(new CacheLoading.Store<K, V>() {
+        public String getName() {
+            return name;
+        }
+
+        public long getMaxLifetime() {
+            return maxLifetime;
+        }
+
+        public V peek(K key) {
+            CacheObject<K, V> cacheObject = map.get(key);
+            return cacheObject == null || isExpired(cacheObject, System.currentTimeMillis()) ?
+                    null : cacheObject.object;
+        }
+
+        public long getCreationTime(K key) {
+            CacheObject<K, V> cacheObject = map.get(key);
+            return cacheObject == null ? -1 : cacheObject.timestamp;
+        }
+
+        public void put(K key, V value) {
+            ConcurrentCache.this.put(key, value);
+        }
+
+        public boolean replace(K key, long creationTime, V value) {
+            CacheObject<K, V> current = map.get(key);
+            if (current == null || current.timestamp != creationTime) {
+                return false;
+            }
+            CacheObject<K, V> cacheObject = createCacheObject(key, value);
+            if (cacheObject == null || !map.replace(key, current, cacheObject)) {
+                return false;
+            }
+            current.removed = true;
+            added(cacheObject);
+            return true;
+        }
+    });
+
+    /**
+     * Create a new concurrent cache and specify the maximum size of for the cache in
+     * bytes, and the maximum lifetime of objects.
+     *
+     * @param name a name for the cache.
+     * @param maxSize the maximum size of the cache in bytes. -1 means the cache
+     *      has no max size.
+     * @param maxLifetime the maximum amount of time objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     */
+    public ConcurrentCache(String name, long maxSize, long maxLifetime) {
+        this.name = name;
+        this.maxCacheSize = maxSize;
+        this.maxLifetime = maxLifetime;
+        map = new ConcurrentLinkedHashMap.Builder<K, CacheObject<K, V>>()
+                .maximumWeightedCapacity(getCapacity(maxSize))
+                .weigher(new Weigher<CacheObject<K, V>>() {
+                    public int weightOf(CacheObject<K, V> cacheObject) {
+                        return cacheObject.size;
+                    }
+                })
+                .listener(new EvictionListener<K, CacheObject<K, V>>() {
+                    public void onEviction(K key, CacheObject<K, V> cacheObject) {
+                        cacheObject.removed = true;
+                        evictions.incrementAndGet();
+                    }
+                })
+                .build();
+    }
+
+    public V put(K key, V value) {
+        CacheObject<K, V> cacheObject = createCacheObject(key, value);
+        if (cacheObject == null) {
+            remove(key);
+            return value;
+        }
+        CacheObject<K, V> previous = map.put(key, cacheObject);
+        if (previous != null) {
+            previous.removed = true;
+        }
+        added(cacheObject);
+        return previous == null ? null : previous.object;
+    }
+
+    /**
+     * Returns a new wrapper of the object or null if the object is too large for the cache.
+     */
+    private CacheObject<K, V> createCacheObject(K key, V value) {
+        int objectSize = CacheSizes.sizeOf(value, weigher, maxCacheSize);
+
+        // If the object is bigger than the entire cache, simply don't add it.
+        if (maxCacheSize > 0 && objectSize > maxCacheSize * .90) {
+            Log.warn("Cache: " + name + " -- object with key " + key +
+                    " is too large to fit in cache. Size is " + objectSize);
+            return null;
+        }
+        return new CacheObject<K, V>(key, value, Math.max(1, Math.min(objectSize, MAXIMUM_WEIGHT)),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Adds an object that was added to the map to the age queue.
+     */
+    private void added(CacheObject<K, V> cacheObject) {
+        if (maxLifetime > 0) {
+            ageQueue.add(cacheObject);
+            if (ageQueueSize.incrementAndGet() > 2 * map.size() + 1024) {
+                // Most objects in the queue are no longer cached
+                purgeAgeQueue();
+            }
+        }
+        deleteExpiredEntries(cacheObject.timestamp);
+    }
+
+    public V get(Object key) {
+        CacheObject<K, V> cacheObject = map.get(key);
+        if (maxLifetime > 0) {
+            long now = System.currentTimeMillis();
+            if (cacheObject != null && isExpired(cacheObject, now)) {
+                remove(cacheObject);
+                cacheObject = null;
+            }
+            deleteExpiredEntries(now);
+        }
+        if (cacheObject == null) {
+            // The object didn't exist in cache, so increment cache misses.
+            cacheMisses.incrementAndGet();
+            return null;
+        }
+        cacheHits.incrementAndGet();
+        return cacheObject.object;
+    }
+
+    public <E extends Exception> V get(K key, CacheLoader<? super K, ? extends V, E> loader) throws E {
+        return loading.get(key, get(key), loader);
+    }
+
+    public V remove(Object key) {
+        CacheObject<K, V> cacheObject = map.remove(key);
+        if (cacheObject == null) {
+            return null;
+        }
+        cacheObject.removed = true;
+        return cacheObject.object;
+    }
+
+    public void clear() {
+        ageQueue.clear();
+        ageQueueSize.set(0);
+        map.clear();
+        cacheHits.set(0);
+        cacheMisses.set(0);
+    }
+
+    public int size() {
+        deleteExpiredEntries(System.currentTimeMillis());
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        deleteExpiredEntries(System.currentTimeMillis());
+        return map.isEmpty();
+    }
+
+    public boolean containsKey(Object key) {
+        CacheObject<K, V> cacheObject = map.get(key);
+        return cacheObject != null && !isExpired(cacheObject, System.currentTimeMillis());
+    }
+
+    public boolean containsValue(Object value) {
+        for (V object : values()) {
+            if (value == null ? object == null : value.equals(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Collection<V> values() {
+        List<V> values = new ArrayList<V>();
+        for (CacheObject<K, V> cacheObject : getCacheObjects()) {
+            values.add(cacheObject.object);
+        }
+        return Collections.unmodifiableCollection(values);
+    }
+
+    public Set<K> keySet() {
+        Set<K> keys = new HashSet<K>();
+        for (CacheObject<K, V> cacheObject : getCacheObjects()) {
+            keys.add(cacheObject.key);
+        }
+        return keys;
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        Map<K, V> result = new HashMap<K, V>();
+        for (CacheObject<K, V> cacheObject : getCacheObjects()) {
+            result.put(cacheObject.key, cacheObject.object);
+        }
+        return result.entrySet();
+    }
+
+    /**
+     * Returns a snapshot of the objects in the cache that did not expire.
+     */
+    private List<CacheObject<K, V>> getCacheObjects() {
+        long now = System.currentTimeMillis();
+        deleteExpiredEntries(now);
+        List<CacheObject<K, V>> cacheObjects = new ArrayList<CacheObject<K, V>>(map.size());
+        for (CacheObject<K, V> cacheObject : map.values()) {
+            if (!isExpired(cacheObject, now)) {
+                cacheObjects.add(cacheObject);
+            }
+        }
+        return cacheObjects;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Returns the number of objects that were removed from the cache to make room for
+     * new objects.
+     *
+     * @return the number of objects that were evicted from the cache.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getLoadCount() {
+        return loading.getLoadCount();
+    }
+
+    public double getAverageLoadTime() {
+        return loading.getAverageLoadTime();
+    }
+
+    public long getOffHeapSize() {
+        return -1;
+    }
+
+    public long getOffHeapPromotions() {
+        return 0;
+    }
+
+    public int getCacheSize() {
+        return map.weightedSize();
+    }
+
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+        CacheFactory.setMaxSizeProperty(name, maxCacheSize);
+        // Objects are evicted if the new max size is smaller than the current size
+        map.setCapacity(getCapacity(maxCacheSize));
+    }
+
+    public void setWeigher(CacheWeigher<? super V> weigher) {
+        this.weigher = weigher;
+    }
+
+    public void setRefreshAhead(int percent) {
+        loading.setRefreshAhead(percent);
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+        CacheFactory.setMaxLifetimeProperty(name, maxLifetime);
+    }
+
+    private boolean isExpired(CacheObject<K, V> cacheObject, long now) {
+        long lifetime = maxLifetime;
+        return lifetime > 0 && now - lifetime > cacheObject.timestamp;
+    }
+
+    private void remove(CacheObject<K, V> cacheObject) {
+        if (map.remove(cacheObject.key, cacheObject)) {
+            cacheObject.removed = true;
+        }
+    }
+
+    /**
+     * Removes the objects at the head of the age queue that expired or are no longer cached.
+     * Nothing is done if another thread is already doing it.
+     */
+    private void deleteExpiredEntries(long now) {
+        CacheObject<K, V> head = ageQueue.peek();
+        if (head == null || (!head.removed && !isExpired(head, now)) || !expirationLock.tryLock()) {
+            return;
+        }
+        try {
+            while ((head = ageQueue.peek()) != null && (head.removed || isExpired(head, now))) {
+                ageQueue.poll();
+                ageQueueSize.decrementAndGet();
+                remove(head);
+            }
+        }
+        finally {
+            expirationLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the objects that are no longer cached from the age queue.
+     */
+    private void purgeAgeQueue() {
+        if (!expirationLock.tryLock()) {
+            return;
+        }
+        try {
+            for (Iterator<CacheObject<K, V>> it = ageQueue.iterator(); it.hasNext();) {
+                if (it.next().removed) {
+                    it.remove();
+                    ageQueueSize.decrementAndGet();
+                }
+            }
+        }
+        finally {
+            expirationLock.unlock();
+        }
+    }
+
+    private static int getCapacity(long maxSize) {
+        return maxSize < 0 ? MAXIMUM_CAPACITY : (int) Math.min(maxSize, MAXIMUM_CAPACITY);
+    }
+
+    /**
+     * Wrapper for all objects put into cache. It keeps the size of the object and the
+     * time it was added to the cache.
+     */
+    private static class CacheObject<K, V> {
+
+        final K key;
+        final V object;
+        final int size;
+        final long timestamp;
+
+        /**
+         * True once the object was removed from the map, so that the age queue can
+         * forget it.
+         */
+        volatile boolean removed;
+
+        CacheObject(K key, V object, int size, long timestamp) {
+            this.key = key;
+            this.object = object;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.util.cache;
+
+/**
+ * CacheFactoryStrategy that creates local caches that do not serialize the threads that
+ * use them (see {@link ConcurrentCache}). Locks are handled as in the default strategy.
+ * To use it set the <tt>cache.clustering.local.class</tt> property to
+ * <tt>org.b5chat.crossfire.core.util.cache.ConcurrentLocalCacheStrategy</tt>.
+ *
+ * @see CacheFactory
+ */
+public class ConcurrentLocalCacheStrategy extends DefaultLocalCacheStrategy {
+
+    public ConcurrentLocalCacheStrategy() {
+    }
+
+    @Override
+    public Cache<String,Object> createCache(String name) {
+        // Get cache configuration from system properties or default (hardcoded) values
+        long maxSize = CacheFactory.getMaxCacheSize(name);
+        long lifetime = CacheFactory.getMaxCacheLifetime(name);
+        return new ConcurrentCache<String, Object>(name, maxSize, lifetime);
+    }
+}
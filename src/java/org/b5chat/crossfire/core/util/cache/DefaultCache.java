@@ -24,6 +24,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -54,7 +55,16 @@ import org.slf4j.LoggerFactory;
  * to the CacheObject that wraps the real object we are looking for.
  * The object is subsequently moved to the front of the accessed linked list
  * and any necessary cache cleanups are performed. Cache deletion and expiration
- * is performed as needed.
+ * is performed as needed.<p>
+ *
+ * Caches created with a maximum off heap size keep the objects that are removed to make
+ * room for new ones serialized in direct memory (see {@link OffHeapStore}). Reading one of
+ * those objects moves it back to the heap and counts as a cache hit. The objects kept off
+ * heap are not included by {@link #size()}, {@link #keySet()}, {@link #values()} or
+ * {@link #entrySet()}. As with clustered caches, objects must be put again after they
+ * are modified or the off heap copy may be stale. Objects are serialized and deserialized
+ * without holding the lock of the cache, so reading an object that is being moved to or
+ * from direct memory counts as a cache miss.
  *
  * @author Matt Tucker
  */
@@ -104,6 +114,78 @@ public class DefaultCache<K, V> implements Cache<K, V> {
      */
     protected long cacheHits, cacheMisses = 0L;
 
+    /**
+     * Computes the size of the objects added to the cache, or null to use
+     * {@link CacheSizes#sizeOfAnything(Object)}.
+     */
+    private CacheWeigher<? super V> weigher;
+
+    /**
+     * Keeps the objects evicted from the heap, or null if evicted objects are discarded.
+     */
+    private final OffHeapStore offHeap;
+
+    /**
+     * The objects being moved to or from the off heap store, by key. There is at most one
+     * transfer per key.
+     */
+    private final Map<Object, Transfer> transfers = new HashMap<Object, Transfer>();
+
+    /**
+     * The objects evicted from the heap that must be stored off heap once the lock of the
+     * cache is released.
+     */
+    private List<Transfer> evicted = new ArrayList<Transfer>();
+
+    /**
+     * Loads the objects that are not found by {@link #get(Object, CacheLoader)}.
+     */
+    private final CacheLoading<K, V> loading = new CacheLoading<K, V>(new CacheLoading.Store<K, V>() {
+        public String getName() {
+            return name;
+        }
+
+        public long getMaxLifetime() {
+            return maxLifetime;
+        }
+
+        public V peek(K key) {
+            synchronized (DefaultCache.this) {
+                DefaultCache.CacheObject<V> cacheObject = map.get(key);
+                if (cacheObject == null) {
+                    return null;
+                }
+                if (maxLifetime > 0 && cacheObject.ageListNode.timestamp < System.currentTimeMillis() - maxLifetime) {
+                    // The object expired
+                    return null;
+                }
+                return cacheObject.object;
+            }
+        }
+
+        public long getCreationTime(K key) {
+            synchronized (DefaultCache.this) {
+                DefaultCache.CacheObject<V> cacheObject = map.get(key);
+                return cacheObject == null ? -1 : cacheObject.ageListNode.timestamp;
+            }
+        }
+
+        public void put(K key, V value) {
+            DefaultCache.this.put(key, value);
+        }
+
+        public boolean replace(K key, long creationTime, V value) {
+            synchronized (DefaultCache.this) {
+                if (getCreationTime(key) != creationTime) {
+                    return false;
+                }
+                insert(key, value, System.currentTimeMillis());
+            }
+            storeEvicted();
+            return true;
+        }
+    });
+
     /**
      * The name of the cache.
      */
@@ -120,6 +202,22 @@ public class DefaultCache<K, V> implements Cache<K, V> {
      *      cache before being deleted. -1 means objects never expire.
      */
     public DefaultCache(String name, long maxSize, long maxLifetime) {
+        this(name, maxSize, maxLifetime, 0);
+    }
+
+    /**
+     * Create a new default cache that keeps the objects evicted from the heap in direct
+     * memory.
+     *
+     * @param name a name for the cache.
+     * @param maxSize the maximum size of the cache in bytes. -1 means the cache
+     *      has no max size.
+     * @param maxLifetime the maximum amount of time objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     * @param maxOffHeapSize the maximum size in bytes of the evicted objects kept in
+     *      direct memory. 0 means evicted objects are discarded.
+     */
+    public DefaultCache(String name, long maxSize, long maxLifetime, long maxOffHeapSize) {
         this.name = name;
         this.maxCacheSize = maxSize;
         this.maxLifetime = maxLifetime;
@@ -130,19 +228,31 @@ public class DefaultCache<K, V> implements Cache<K, V> {
 
         lastAccessedList = new org.b5chat.crossfire.core.util.LinkedList();
         ageList = new org.b5chat.crossfire.core.util.LinkedList();
+
+        offHeap = maxOffHeapSize > 0 && maxSize > 0 ? new OffHeapStore(name, maxOffHeapSize) : null;
     }
 
-    public synchronized V put(K key, V value) {
+    public V put(K key, V value) {
+        V answer;
+        synchronized (this) {
+            // We make an explicit call to currentTimeMillis() so that total accuracy
+            // of lifetime calculations is better than one second.
+            answer = insert(key, value, System.currentTimeMillis());
+        }
+        storeEvicted();
+        return answer;
+    }
+
+    /**
+     * Adds the object to the heap, evicting the least used objects if the cache is too
+     * full. Must be called holding the lock of the cache, and followed by
+     * {@link #storeEvicted()} once the lock is released.
+     */
+    private V insert(K key, V value, long timestamp) {
         // Delete an old entry if it exists.
         V answer = remove(key);
 
-        int objectSize = 1;
-        try {
-             objectSize = CacheSizes.sizeOfAnything(value);
-        }
-        catch (CannotCalculateSizeException e) {
-             Log.warn(e.getMessage(), e);
-        }
+        int objectSize = CacheSizes.sizeOf(value, weigher, maxCacheSize);
 
         // If the object is bigger than the entire cache, simply don't add it.
         if (maxCacheSize > 0 && objectSize > maxCacheSize * .90) {
@@ -160,9 +270,7 @@ public class DefaultCache<K, V> implements Cache<K, V> {
         cacheObject.lastAccessedListNode = lastAccessedNode;
         // Add the object to the age list
         LinkedListNode ageNode = ageList.addFirst(key);
-        // We make an explicit call to currentTimeMillis() so that total accuracy
-        // of lifetime calculations is better than one second.
-        ageNode.timestamp = System.currentTimeMillis();
+        ageNode.timestamp = timestamp;
         cacheObject.ageListNode = ageNode;
 
         // If cache is too full, remove least used cache entries until it is
@@ -172,32 +280,54 @@ public class DefaultCache<K, V> implements Cache<K, V> {
         return answer;
     }
 
-    public synchronized V get(Object key) {
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
+    public V get(Object key) {
+        Transfer promotion;
+        synchronized (this) {
+            // First, clear all entries that have been in cache longer than the
+            // maximum defined age.
+            deleteExpiredEntries();
 
-        DefaultCache.CacheObject<V> cacheObject = map.get(key);
-        if (cacheObject == null) {
-            // The object didn't exist in cache, so increment cache misses.
-            cacheMisses++;
-            return null;
+            DefaultCache.CacheObject<V> cacheObject = map.get(key);
+            if (cacheObject == null) {
+                if (offHeap == null || transfers.containsKey(key) || !offHeap.containsKey(key)) {
+                    // The object didn't exist in cache, so increment cache misses.
+                    cacheMisses++;
+                    return null;
+                }
+                // The object was evicted, move it back to the heap without holding the lock
+                promotion = new Transfer(key, null, 0);
+                transfers.put(key, promotion);
+            }
+            else {
+                // The object exists in cache, so increment cache hits. Also, increment
+                // the object's read count.
+                cacheHits++;
+                cacheObject.readCount++;
+
+                // Remove the object from it's current place in the cache order list,
+                // and re-insert it at the front of the list.
+                cacheObject.lastAccessedListNode.remove();
+                lastAccessedList.addFirst(cacheObject.lastAccessedListNode);
+
+                return cacheObject.object;
+            }
         }
+        return promote(promotion);
+    }
 
-        // The object exists in cache, so increment cache hits. Also, increment
-        // the object's read count.
-        cacheHits++;
-        cacheObject.readCount++;
-
-        // Remove the object from it's current place in the cache order list,
-        // and re-insert it at the front of the list.
-        cacheObject.lastAccessedListNode.remove();
-        lastAccessedList.addFirst(cacheObject.lastAccessedListNode);
-
-        return cacheObject.object;
+    public <E extends Exception> V get(K key, CacheLoader<? super K, ? extends V, E> loader) throws E {
+        return loading.get(key, get(key), loader);
     }
 
     public synchronized V remove(Object key) {
+        if (offHeap != null) {
+            offHeap.remove(key);
+            Transfer transfer = transfers.get(key);
+            if (transfer != null) {
+                // Keep the object being moved from being stored again
+                transfer.cancelled = true;
+            }
+        }
         DefaultCache.CacheObject<V> cacheObject = map.get(key);
         // If the object is not in cache, stop trying to remove it.
         if (cacheObject == null) {
@@ -232,6 +362,13 @@ public class DefaultCache<K, V> implements Cache<K, V> {
         cacheSize = 0;
         cacheHits = 0;
         cacheMisses = 0;
+
+        if (offHeap != null) {
+            offHeap.clear();
+            for (Transfer transfer : transfers.values()) {
+                transfer.cancelled = true;
+            }
+        }
     }
 
     public int size() {
@@ -372,7 +509,7 @@ public class DefaultCache<K, V> implements Cache<K, V> {
         // maximum defined age.
         deleteExpiredEntries();
 
-        return map.containsKey(key);
+        return map.containsKey(key) || (offHeap != null && offHeap.containsKey(key));
     }
 
     public void putAll(Map<? extends K, ? extends V> map) {
@@ -482,6 +619,22 @@ public class DefaultCache<K, V> implements Cache<K, V> {
         return cacheMisses;
     }
 
+    public long getLoadCount() {
+        return loading.getLoadCount();
+    }
+
+    public double getAverageLoadTime() {
+        return loading.getAverageLoadTime();
+    }
+
+    public long getOffHeapSize() {
+        return offHeap == null ? -1 : offHeap.getSize();
+    }
+
+    public long getOffHeapPromotions() {
+        return offHeap == null ? 0 : offHeap.getPromotions();
+    }
+
     /**
      * Returns the size of the cache contents in bytes. This value is only a
      * rough approximation, so cache users should expect that actual VM
@@ -517,7 +670,30 @@ public class DefaultCache<K, V> implements Cache<K, V> {
         CacheFactory.setMaxSizeProperty(name, maxCacheSize);
         // It's possible that the new max size is smaller than our current cache
         // size. If so, we need to delete infrequently used items.
-        cullCache();
+        synchronized (this) {
+            cullCache();
+        }
+        storeEvicted();
+    }
+
+    /**
+     * Sets the weigher that computes the size of the objects added to the cache.
+     *
+     * @param weigher the weigher of the objects added to the cache.
+     */
+    public void setWeigher(CacheWeigher<? super V> weigher) {
+        this.weigher = weigher;
+    }
+
+    /**
+     * Sets the percent of the lifetime of the objects after which objects that are read
+     * are loaded again in the background.
+     *
+     * @param percent the percent of the lifetime after which objects are refreshed, or
+     *      0 to not refresh objects.
+     */
+    public void setRefreshAhead(int percent) {
+        loading.setRefreshAhead(percent);
     }
 
     /**
@@ -606,7 +782,7 @@ public class DefaultCache<K, V> implements Cache<K, V> {
                 long t = System.currentTimeMillis();
                 do {
                     // Get the key and invoke the remove method on it.
-                    remove(lastAccessedList.getLast().object);
+                    evict(lastAccessedList.getLast().object);
                 } while (cacheSize > desiredSize);
                 t = System.currentTimeMillis() - t;
                 Log.warn("Cache " + name + " was full, shrinked to 90% in " + t + "ms.");
@@ -614,6 +790,104 @@ public class DefaultCache<K, V> implements Cache<K, V> {
         }
     }
 
+    /**
+     * Removes the object from the heap to make room for new objects. If the cache has an
+     * off heap tier the object is queued to be stored off heap by {@link #storeEvicted()}.
+     */
+    private void evict(Object key) {
+        if (offHeap == null || transfers.containsKey(key)) {
+            remove(key);
+            return;
+        }
+        long timestamp = map.get(key).ageListNode.timestamp;
+        Transfer eviction = new Transfer(key, remove(key), timestamp);
+        transfers.put(key, eviction);
+        evicted.add(eviction);
+    }
+
+    /**
+     * Serializes the objects evicted from the heap into the off heap store. Must be called
+     * without holding the lock of the cache. Objects whose key was removed or put again
+     * while they were serialized are discarded.
+     */
+    private void storeEvicted() {
+        if (offHeap == null) {
+            return;
+        }
+        List<Transfer> pending;
+        synchronized (this) {
+            if (evicted.isEmpty()) {
+                return;
+            }
+            pending = evicted;
+            evicted = new ArrayList<Transfer>();
+        }
+        for (Transfer eviction : pending) {
+            offHeap.put(eviction.key, eviction.value, eviction.timestamp);
+        }
+        synchronized (this) {
+            for (Transfer eviction : pending) {
+                transfers.remove(eviction.key);
+                if (eviction.cancelled) {
+                    offHeap.remove(eviction.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deserializes an evicted object from the off heap store without holding the lock of
+     * the cache, and adds it to the heap again unless its key was removed or put meanwhile.
+     */
+    private V promote(Transfer promotion) {
+        OffHeapStore.Value value = offHeap.take(promotion.key,
+                maxLifetime > 0 ? System.currentTimeMillis() - maxLifetime : -1);
+        // Only keys and values put in this cache are stored off heap
+        @SuppressWarnings("unchecked")
+        K key = (K) promotion.key;
+        @SuppressWarnings("unchecked")
+        V object = value == null ? null : (V) value.object;
+        synchronized (this) {
+            transfers.remove(key);
+            if (value == null) {
+                cacheMisses++;
+                return null;
+            }
+            cacheHits++;
+            if (!promotion.cancelled) {
+                insert(key, object, value.timestamp);
+            }
+        }
+        storeEvicted();
+        return object;
+    }
+
+    /**
+     * An object being moved to or from the off heap store.
+     */
+    private static class Transfer {
+
+        final Object key;
+
+        /**
+         * The evicted object, or null if the object is being moved back to the heap.
+         */
+        final Object value;
+
+        final long timestamp;
+
+        /**
+         * True if the key was removed or put while the object was moved.
+         */
+        boolean cancelled;
+
+        Transfer(Object key, Object value, long timestamp) {
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
     /**
      * Wrapper for all objects put into cache. It's primary purpose is to maintain
      * references to the linked lists that maintain the creation time of the object
@@ -20,18 +20,24 @@
 
 package org.b5chat.crossfire.core.util.cache;
 
-import java.util.Collection;
-import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+
+import org.b5chat.crossfire.core.property.Globals;
 
 /**
  * CacheFactoryStrategy for use in crossfire. It creates and manages local caches, and it's cluster
- * related method implementations do nothing.
+ * related method implementations do nothing.<p>
+ *
+ * Locks are taken from a fixed set of <tt>cache.lockStripes</tt> locks per cache (64 by
+ * default) that is shared by the keys of the cache (see {@link StripedLocks}).<p>
+ *
+ * Caches keep the objects evicted from the heap in direct memory when the
+ * <tt>cache.[name].offHeapSize</tt> property sets the size in bytes of the memory to use
+ * (see {@link CacheFactory#getMaxOffHeapSize(String)}), and refresh their objects ahead of
+ * expiration when the <tt>cache.[name].refreshAhead</tt> property is set (see
+ * {@link CacheFactory#getRefreshAhead(String)}).
  *
  * @see Cache
  * @see CacheFactory
@@ -39,9 +45,10 @@ import java.util.concurrent.locks.ReentrantLock;
 public class DefaultLocalCacheStrategy implements CacheFactoryStrategy {
 
     /**
-     * Keep track of the locks that are currently being used.
+     * Locks of the keys of each cache by cache name.
      */
-    private Map<Object, LockAndCount> locks = new ConcurrentHashMap<Object, LockAndCount>();
+    private final Map<String, StripedLocks> locks = new ConcurrentHashMap<String, StripedLocks>();
+    private final int lockStripes = Globals.getIntProperty("cache.lockStripes", 64);
 
     public DefaultLocalCacheStrategy() {
     }
@@ -50,8 +57,11 @@ public class DefaultLocalCacheStrategy implements CacheFactoryStrategy {
         // Get cache configuration from system properties or default (hardcoded) values
         long maxSize = CacheFactory.getMaxCacheSize(name);
         long lifetime = CacheFactory.getMaxCacheLifetime(name);
+        long offHeapSize = CacheFactory.getMaxOffHeapSize(name);
         // Create cache with located properties
-        return new DefaultCache<String, Object>(name, maxSize, lifetime);
+        DefaultCache<String, Object> cache = new DefaultCache<String, Object>(name, maxSize, lifetime, offHeapSize);
+        cache.setRefreshAhead(CacheFactory.getRefreshAhead(name));
+        return cache;
     }
 
     public void destroyCache(Cache<String,Object> cache) {
@@ -62,98 +72,26 @@ public class DefaultLocalCacheStrategy implements CacheFactoryStrategy {
     }
 
     public Lock getLock(Object key, Cache<String,Object> cache) {
-        Object lockKey = key;
-        if (key instanceof String) {
-            lockKey = ((String) key).intern();
-        }
-
-		return new LocalLock(lockKey);
+        return getLocks(cache == null ? "" : cache.getName()).getLock(key);
     }
 
-	private void acquireLock(Object key) {
-		ReentrantLock lock = lookupLockForAcquire(key);
-		lock.lock();
-	}
-
-	private void releaseLock(Object key) {
-		ReentrantLock lock = lookupLockForRelease(key);
-		lock.unlock();
-	}
-
-	private ReentrantLock lookupLockForAcquire(Object key) {
-        synchronized(key) {
-            LockAndCount lac = locks.get(key);
-            if (lac == null) {
-                lac = new LockAndCount(new ReentrantLock());
-                lac.count = 1;
-                locks.put(key, lac);
-            }
-            else {
-                lac.count++;
-            }
-
-            return lac.lock;
-        }
-    }
-
-	private ReentrantLock lookupLockForRelease(Object key) {
-        synchronized(key) {
-            LockAndCount lac = locks.get(key);
-            if (lac == null) {
-                throw new IllegalStateException("No lock found for object " + key);
-            }
-
-            if (lac.count <= 1) {
-                locks.remove(key);
-            }
-            else {
-                lac.count--;
+    /**
+     * Returns the locks of the keys of the specified cache.
+     *
+     * @param name the name of the cache.
+     * @return the locks of the keys of the cache.
+     */
+    public StripedLocks getLocks(String name) {
+        StripedLocks cacheLocks = locks.get(name);
+        if (cacheLocks == null) {
+            synchronized (locks) {
+                cacheLocks = locks.get(name);
+                if (cacheLocks == null) {
+                    cacheLocks = new StripedLocks(name, lockStripes);
+                    locks.put(name, cacheLocks);
+                }
             }
-
-            return lac.lock;
-        }
-    }
-
-
-    private class LocalLock implements Lock {
-		private final Object key;
-
-		LocalLock(Object key) {
-			this.key = key;
-		}
-
-		public void lock(){
-			acquireLock(key);
-		}
-
-		public void	unlock() {
-			releaseLock(key);
-		}
-
-        public void	lockInterruptibly(){
-			throw new UnsupportedOperationException();
-		}
-
-		public Condition newCondition(){
-			throw new UnsupportedOperationException();
-		}
-
-		public boolean 	tryLock() {
-			throw new UnsupportedOperationException();
-		}
-
-		public boolean 	tryLock(long time, TimeUnit unit) {
-			throw new UnsupportedOperationException();
-		}
-
-	}
-
-    private static class LockAndCount {
-        final ReentrantLock lock;
-        int count;
-
-        LockAndCount(ReentrantLock lock) {
-            this.lock = lock;
         }
+        return cacheLocks;
     }
 }
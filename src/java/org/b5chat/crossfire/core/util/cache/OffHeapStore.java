@@ -0,0 +1,425 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.util.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second tier of a cache that keeps the objects evicted from the heap serialized in direct
+ * memory, so that they can be moved back to the heap on the next read instead of being
+ * loaded again. Only the keys and a few fields per object remain on the heap, which lets
+ * a cache keep far more objects without adding to the work of the garbage collector.<p>
+ *
+ * Memory is allocated in pages of direct buffers of 1 MB as it is needed, up to the capacity
+ * of the store, and divided in blocks of {@link #BLOCK_SIZE} bytes. An object takes as many
+ * blocks as its serialized form needs, and each block starts with the index of the next
+ * block of the object, which also links the free blocks together. When there are not
+ * enough free blocks for a new object the least recently stored objects are discarded.<p>
+ *
+ * Objects are stored using Java serialization. Objects that cannot be serialized are
+ * simply not stored. Direct memory is limited by the <tt>-XX:MaxDirectMemorySize</tt>
+ * option of the JVM; when it runs out the store stops growing.
+ */
+class OffHeapStore {
+
+    private static final Logger Log = LoggerFactory.getLogger(OffHeapStore.class);
+
+    /**
+     * Size in bytes of the blocks that objects are stored in.
+     */
+    static final int BLOCK_SIZE = 256;
+
+    /**
+     * Bytes of a block used by the index of the next block.
+     */
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * Number of blocks in each page of direct memory (1 MB).
+     */
+    private static final int PAGE_BLOCKS = 4096;
+
+    private final String name;
+
+    /**
+     * Stored objects in the order they were stored, least recent first.
+     */
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>();
+
+    private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+
+    /**
+     * Maximum number of blocks of the store.
+     */
+    private int maxBlocks;
+
+    /**
+     * Number of blocks that were ever used. Blocks with a bigger index are not allocated yet.
+     */
+    private int allocatedBlocks = 0;
+
+    /**
+     * First block of the list of free blocks or -1 if none.
+     */
+    private int freeBlock = -1;
+
+    private int usedBlocks = 0;
+
+    private long stores, promotions, evictions, failures;
+
+    /**
+     * Creates a new store.
+     *
+     * @param name the name of the cache that the store belongs to.
+     * @param capacity the maximum size of the store in bytes.
+     */
+    OffHeapStore(String name, long capacity) {
+        this.name = name;
+        this.maxBlocks = (int) Math.min(capacity / BLOCK_SIZE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stores an object, replacing the object stored with the same key. Objects that cannot
+     * be serialized or that are bigger than the store are not stored.
+     *
+     * @param key the key of the object.
+     * @param value the object to store.
+     * @param timestamp the time when the object was added to the cache.
+     * @return true if the object was stored.
+     */
+    boolean put(Object key, Object value, long timestamp) {
+        byte[] bytes;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(BLOCK_SIZE);
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(value);
+            oos.close();
+            bytes = out.toByteArray();
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                failures++;
+            }
+            Log.debug("Cache " + name + " -- object with key " + key + " could not be stored off heap", e);
+            return false;
+        }
+        int blocks = (bytes.length + BLOCK_SIZE - HEADER_SIZE - 1) / (BLOCK_SIZE - HEADER_SIZE);
+        synchronized (this) {
+            remove(key);
+            if (!reserve(blocks)) {
+                return false;
+            }
+            int first = -1;
+            int previous = -1;
+            for (int offset = 0; offset < bytes.length; offset += BLOCK_SIZE - HEADER_SIZE) {
+                int block = allocate();
+                if (previous == -1) {
+                    first = block;
+                }
+                else {
+                    setNext(previous, block);
+                }
+                ByteBuffer page = getPage(block);
+                page.position(getOffset(block) + HEADER_SIZE);
+                page.put(bytes, offset, Math.min(BLOCK_SIZE - HEADER_SIZE, bytes.length - offset));
+                previous = block;
+            }
+            setNext(previous, -1);
+            entries.put(key, new Entry(first, bytes.length, timestamp));
+            stores++;
+            return true;
+        }
+    }
+
+    /**
+     * Removes the object associated with the specified key from the store and returns it,
+     * unless it was stored before the specified time.
+     *
+     * @param key the key of the object.
+     * @param expireTime the time before which objects are expired, or -1 if objects
+     *      do not expire.
+     * @return the object and the time when it was added to the cache, or null if none.
+     */
+    Value take(Object key, long expireTime) {
+        byte[] bytes;
+        long timestamp;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.timestamp < expireTime) {
+                remove(key);
+                return null;
+            }
+            bytes = read(entry);
+            timestamp = entry.timestamp;
+            remove(key);
+        }
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            Value value = new Value(ois.readObject(), timestamp);
+            synchronized (this) {
+                promotions++;
+            }
+            return value;
+        }
+        catch (Exception e) {
+            synchronized (this) {
+                failures++;
+            }
+            Log.warn("Cache " + name + " -- object with key " + key + " could not be read from off heap", e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes the object associated with the specified key from the store.
+     *
+     * @param key the key of the object.
+     * @return true if the store contained the object.
+     */
+    synchronized boolean remove(Object key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        int block = entry.block;
+        while (block != -1) {
+            int next = getNext(block);
+            setNext(block, freeBlock);
+            freeBlock = block;
+            usedBlocks--;
+            block = next;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the store contains an object for the specified key.
+     *
+     * @param key the key of the object.
+     * @return true if the store contains an object for the key.
+     */
+    synchronized boolean containsKey(Object key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Removes all the objects from the store. The allocated memory is kept for new objects.
+     */
+    synchronized void clear() {
+        entries.clear();
+        freeBlock = -1;
+        allocatedBlocks = 0;
+        usedBlocks = 0;
+    }
+
+    /**
+     * Returns the number of objects in the store.
+     *
+     * @return the number of objects in the store.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of bytes of the blocks used by the stored objects.
+     *
+     * @return the number of bytes used by the stored objects.
+     */
+    synchronized long getSize() {
+        return (long) usedBlocks * BLOCK_SIZE;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory allocated by the store.
+     *
+     * @return the number of bytes of direct memory allocated by the store.
+     */
+    synchronized long getAllocatedSize() {
+        return (long) pages.size() * PAGE_BLOCKS * BLOCK_SIZE;
+    }
+
+    /**
+     * Returns the maximum size of the store in bytes.
+     *
+     * @return the maximum size of the store in bytes.
+     */
+    synchronized long getCapacity() {
+        return (long) maxBlocks * BLOCK_SIZE;
+    }
+
+    /**
+     * Returns the number of objects that were stored.
+     *
+     * @return the number of objects that were stored.
+     */
+    synchronized long getStores() {
+        return stores;
+    }
+
+    /**
+     * Returns the number of objects that were taken from the store.
+     *
+     * @return the number of objects that were taken from the store.
+     */
+    synchronized long getPromotions() {
+        return promotions;
+    }
+
+    /**
+     * Returns the number of objects that were discarded to make room for new objects.
+     *
+     * @return the number of objects that were discarded.
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of objects that could not be serialized or deserialized.
+     *
+     * @return the number of objects that could not be serialized or deserialized.
+     */
+    synchronized long getFailures() {
+        return failures;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " off heap: " + entries.size() + " objects, " + getSize() + " bytes, promotions: "
+                + promotions + ", evictions: " + evictions + ", failures: " + failures;
+    }
+
+    /**
+     * Discards the least recently stored objects until the specified number of blocks
+     * can be allocated.
+     */
+    private boolean reserve(int blocks) {
+        while (true) {
+            while (usedBlocks + blocks > maxBlocks && !entries.isEmpty()) {
+                remove(entries.keySet().iterator().next());
+                evictions++;
+            }
+            if (usedBlocks + blocks > maxBlocks) {
+                return false;
+            }
+            // Free blocks are always below the allocated ones, so the new blocks fit
+            // if the pages cover the used blocks plus the requested ones
+            try {
+                while ((long) pages.size() * PAGE_BLOCKS < usedBlocks + blocks) {
+                    pages.add(ByteBuffer.allocateDirect(PAGE_BLOCKS * BLOCK_SIZE));
+                }
+                return true;
+            }
+            catch (OutOfMemoryError e) {
+                // Keep the memory allocated so far and discard objects instead
+                maxBlocks = pages.size() * PAGE_BLOCKS;
+                Log.error("Cache " + name + " -- no direct memory left, off heap size limited to "
+                        + getCapacity() + " bytes", e);
+            }
+        }
+    }
+
+    private int allocate() {
+        int block;
+        if (freeBlock != -1) {
+            block = freeBlock;
+            freeBlock = getNext(block);
+        }
+        else {
+            block = allocatedBlocks++;
+        }
+        usedBlocks++;
+        return block;
+    }
+
+    private byte[] read(Entry entry) {
+        byte[] bytes = new byte[entry.length];
+        int block = entry.block;
+        for (int offset = 0; offset < bytes.length; offset += BLOCK_SIZE - HEADER_SIZE) {
+            ByteBuffer page = getPage(block);
+            page.position(getOffset(block) + HEADER_SIZE);
+            page.get(bytes, offset, Math.min(BLOCK_SIZE - HEADER_SIZE, bytes.length - offset));
+            block = getNext(block);
+        }
+        return bytes;
+    }
+
+    private int getNext(int block) {
+        return getPage(block).getInt(getOffset(block));
+    }
+
+    private void setNext(int block, int next) {
+        getPage(block).putInt(getOffset(block), next);
+    }
+
+    private static int getOffset(int block) {
+        return (block % PAGE_BLOCKS) * BLOCK_SIZE;
+    }
+
+    private ByteBuffer getPage(int block) {
+        return pages.get(block / PAGE_BLOCKS);
+    }
+
+    /**
+     * Location of a stored object.
+     */
+    private static class Entry {
+
+        final int block;
+        final int length;
+        final long timestamp;
+
+        Entry(int block, int length, long timestamp) {
+            this.block = block;
+            this.length = length;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Object taken from the store and the time when it was added to the cache.
+     */
+    static class Value {
+
+        final Object object;
+        final long timestamp;
+
+        Value(Object object, long timestamp) {
+            this.object = object;
+            this.timestamp = timestamp;
+        }
+    }
+}
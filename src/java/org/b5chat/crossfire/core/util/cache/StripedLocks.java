@@ -0,0 +1,219 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.core.util.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks shared by the keys of a cache. The lock of a key is chosen by hashing
+ * the key, so getting a lock does not allocate objects or synchronize, and equal keys always
+ * get the same lock. Different keys may get the same lock, which is harmless as long as a
+ * thread does not hold the locks of two keys of the same cache while waiting for another
+ * thread that may do the same.<p>
+ *
+ * Locks count how many times they were acquired and how often and how long threads had to
+ * wait for them, which shows whether the cache needs more stripes (see the
+ * <tt>cache.lockStripes</tt> property).
+ *
+ * @see DefaultLocalCacheStrategy#getLock(Object, Cache)
+ */
+public class StripedLocks {
+
+    private final String name;
+    private final StripeLock[] stripes;
+    private final int mask;
+
+    /**
+     * Creates the locks of a cache.
+     *
+     * @param name the name of the cache.
+     * @param stripes the number of locks. It is rounded up to a power of two.
+     */
+    public StripedLocks(String name, int stripes) {
+        this.name = name;
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new StripeLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new StripeLock();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the lock of the specified key.
+     *
+     * @param key the key to lock.
+     * @return the lock of the key.
+     */
+    public ReentrantLock getLock(Object key) {
+        int h = key.hashCode();
+        // Spread the bits of the hash code since only the lowest ones are used
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & mask];
+    }
+
+    /**
+     * Returns the name of the cache whose keys are locked.
+     *
+     * @return the name of the cache.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of locks.
+     *
+     * @return the number of locks.
+     */
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Returns the number of times that a lock was acquired.
+     *
+     * @return the number of times that a lock was acquired.
+     */
+    public long getAcquisitions() {
+        long total = 0;
+        for (StripeLock stripe : stripes) {
+            total += stripe.acquisitions;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of times that a thread had to wait for a lock held by another thread.
+     *
+     * @return the number of times that a thread had to wait for a lock.
+     */
+    public long getContentions() {
+        long total = 0;
+        for (StripeLock stripe : stripes) {
+            total += stripe.contentions;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the total time in milliseconds that threads waited for the locks.
+     *
+     * @return the total time in milliseconds that threads waited for the locks.
+     */
+    public long getWaitTime() {
+        long total = 0;
+        for (StripeLock stripe : stripes) {
+            total += stripe.waitTime;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+
+    /**
+     * Returns the highest number of threads that waited for a single lock. A lock with
+     * many waiting threads while the others are free means that some keys are locked
+     * much more often than others.
+     *
+     * @return the highest number of threads waiting for a single lock.
+     */
+    public int getMaxQueueLength() {
+        int max = 0;
+        for (StripeLock stripe : stripes) {
+            max = Math.max(max, stripe.getQueueLength());
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return name + " locks: " + getStripes() + " stripes, acquired: " + getAcquisitions() +
+                ", contended: " + getContentions() + ", waited: " + getWaitTime() + " ms";
+    }
+
+    /**
+     * Lock that keeps the statistics of its use. The statistics are only updated by the
+     * thread that holds the lock.
+     */
+    private static class StripeLock extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        volatile long acquisitions;
+        volatile long contentions;
+        volatile long waitTime;
+
+        @Override
+        public void lock() {
+            if (super.tryLock()) {
+                acquisitions++;
+                return;
+            }
+            long start = System.nanoTime();
+            super.lock();
+            acquired(start);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            if (super.tryLock()) {
+                acquisitions++;
+                return;
+            }
+            long start = System.nanoTime();
+            super.lockInterruptibly();
+            acquired(start);
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (super.tryLock()) {
+                acquisitions++;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            if (super.tryLock()) {
+                acquisitions++;
+                return true;
+            }
+            long start = System.nanoTime();
+            if (super.tryLock(timeout, unit)) {
+                acquired(start);
+                return true;
+            }
+            return false;
+        }
+
+        private void acquired(long start) {
+            acquisitions++;
+            contentions++;
+            waitTime += System.nanoTime() - start;
+        }
+    }
+}
@@ -22,17 +22,21 @@ package org.b5chat.crossfire.xmpp;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.ExecutorThreadModel;
+import org.apache.mina.common.IoSession;
 import org.apache.mina.common.SimpleByteBufferAllocator;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.transport.socket.nio.SocketAcceptor;
@@ -41,7 +45,14 @@ import org.apache.mina.transport.socket.nio.SocketSessionConfig;
 import org.b5chat.crossfire.core.container.BasicModule;
 import org.b5chat.crossfire.core.net.SocketSendingTracker;
 import org.b5chat.crossfire.core.net.StalledSessionsFilter;
+import org.b5chat.crossfire.core.net.TrafficShapingFilter;
 import org.b5chat.crossfire.core.nio.ClientConnectionHandler;
+import org.b5chat.crossfire.core.nio.ElasticExecutor;
+import org.b5chat.crossfire.core.nio.IdleSessionTracker;
+import org.b5chat.crossfire.core.nio.OutboundQueue;
+import org.b5chat.crossfire.core.nio.ParserPool;
+import org.b5chat.crossfire.core.nio.PooledBufferAllocator;
+import org.b5chat.crossfire.core.nio.WriteCoalescer;
 import org.b5chat.crossfire.core.nio.XMPPCodecFactory;
 import org.b5chat.crossfire.core.plugin.IPluginManagerListener;
 import org.b5chat.crossfire.core.plugin.PluginManager;
@@ -68,6 +79,10 @@ public class ConnectionManager extends BasicModule implements IConnectionManager
     private String serverName;
     private String localIPAddress = null;
 
+    private PooledBufferAllocator bufferAllocator;
+    private TrafficShapingFilter clientShapingFilter;
+    private IdleSessionTracker idleTracker;
+
     // Used to know if the sockets have been started
     private boolean isSocketStarted = false;
 
@@ -127,14 +142,26 @@ public class ConnectionManager extends BasicModule implements IConnectionManager
             // Customize Executor that will be used by processors to process incoming stanzas
             ExecutorThreadModel threadModel = ExecutorThreadModel.getInstance("client");
             int eventThreads = Globals.getIntProperty("xmpp.client.processing.threads", 16);
+            int maxThreads = eventThreads;
+            if ("elastic".equals(Globals.getProperty("xmpp.client.processing.model", "fixed"))) {
+                // Start more threads when all of them are blocked (e.g. waiting for the database)
+                maxThreads = Math.max(eventThreads,
+                        Globals.getIntProperty("xmpp.client.processing.threads.max", 1000));
+                if (!(threadModel.getExecutor() instanceof ElasticExecutor)) {
+                    threadModel.setExecutor(new ElasticExecutor("client", eventThreads + 1, maxThreads + 1, 60));
+                }
+            }
             ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)threadModel.getExecutor();
             eventExecutor.setCorePoolSize(eventThreads + 1);
-            eventExecutor.setMaximumPoolSize(eventThreads + 1);
+            eventExecutor.setMaximumPoolSize(maxThreads + 1);
             eventExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
 
             socketAcceptor.getDefaultConfig().setThreadModel(threadModel);
             // Add the XMPP codec filter
             socketAcceptor.getFilterChain().addFirst("xmpp", new ProtocolCodecFilter(new XMPPCodecFactory()));
+            // Suspend reading from sessions that flood the server instead of processing all their traffic
+            clientShapingFilter = new TrafficShapingFilter("client");
+            socketAcceptor.getFilterChain().addBefore("xmpp", TrafficShapingFilter.NAME, clientShapingFilter);
             // Kill sessions whose outgoing queues keep growing and fail to send traffic
             socketAcceptor.getFilterChain().addAfter("xmpp", "outCap", new StalledSessionsFilter());
         }
@@ -153,9 +180,16 @@ public class ConnectionManager extends BasicModule implements IConnectionManager
                         bindInterface = InetAddress.getByName(interfaceName);
                     }
                 }
+                // Detect idle sessions with a timing wheel instead of letting MINA check every session
+                if (Globals.getBooleanProperty("xmpp.client.idle.wheel", false)) {
+                    if (idleTracker == null) {
+                        idleTracker = new IdleSessionTracker(1000, 512);
+                    }
+                    idleTracker.start();
+                }
                 // Start accepting connections
-                socketAcceptor
-                        .bind(new InetSocketAddress(bindInterface, port), new ClientConnectionHandler(serverName));
+                socketAcceptor.bind(new InetSocketAddress(bindInterface, port),
+                        new ClientConnectionHandler(serverName, idleTracker));
 
                 ports.add(new ServerPort(port, serverName, localIPAddress, false, null, ServerPort.Type.client));
 
@@ -174,6 +208,11 @@ public class ConnectionManager extends BasicModule implements IConnectionManager
     private void stopClientListeners() {
         if (socketAcceptor != null) {
             socketAcceptor.unbindAll();
+            if (idleTracker != null) {
+                logger.info("Idle sessions: " + idleTracker);
+                idleTracker.stop();
+                idleTracker = null;
+            }
             for (ServerPort port : ports) {
                 if (port.isClientPort() && !port.isSecure()) {
                     ports.remove(port);
@@ -197,9 +236,17 @@ public class ConnectionManager extends BasicModule implements IConnectionManager
         sessionManager = server.getSessionManager();
         // Check if we need to configure MINA to use Direct or Heap Buffers
         // Note: It has been reported that heap buffers are 50% faster than direct buffers
+        bufferAllocator = null;
         if (Globals.getBooleanProperty("xmpp.socket.heapBuffer", true)) {
             ByteBuffer.setUseDirectBuffers(false);
-            ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+            // Recycle the buffers used for reading and writing traffic unless pooling was disabled
+            if (Globals.getBooleanProperty("xmpp.socket.buffer.pool", true)) {
+                bufferAllocator = new PooledBufferAllocator();
+                ByteBuffer.setAllocator(bufferAllocator);
+            }
+            else {
+                ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+            }
         }
     }
 
@@ -240,6 +287,70 @@ public class ConnectionManager extends BasicModule implements IConnectionManager
         }
     }
 
+    /**
+     * Returns the allocator that recycles the buffers used for network traffic or <tt>null</tt>
+     * if buffer pooling is disabled. The allocator reports pool hit rates and the number of
+     * buffers that were not released yet.
+     *
+     * @return the pooled buffer allocator or null if buffer pooling is disabled.
+     */
+    public PooledBufferAllocator getBufferAllocator() {
+        return bufferAllocator;
+    }
+
+    /**
+     * Returns the filter that shapes the incoming traffic of client connections or <tt>null</tt>
+     * if the client listener was not created. The filter reports the number of throttled
+     * sessions and bytes.
+     *
+     * @return the filter that shapes the incoming traffic of client connections.
+     */
+    public TrafficShapingFilter getClientShapingFilter() {
+        return clientShapingFilter;
+    }
+
+    /**
+     * Returns the number of client sessions whose outgoing queue depth falls in each of the
+     * ranges defined by {@link OutboundQueue#DEPTH_LIMITS}.
+     *
+     * @return the number of client sessions in each range of queue depths.
+     */
+    public int[] getOutboundQueueDepths() {
+        return OutboundQueue.getDepthDistribution(getClientSessions());
+    }
+
+    /**
+     * Returns the number of client connections, the estimated bytes that they keep for
+     * parsing their traffic and the number of them that are holding a parser. Quiet
+     * connections give back their parsers unless <tt>xmpp.parser.release.idle</tt> is false.
+     *
+     * @return number of connections, retained bytes and number of connections holding a parser.
+     * @see ParserPool#getRetainedSizes(Collection)
+     */
+    public long[] getClientRetainedSizes() {
+        return ParserPool.getRetainedSizes(getClientSessions());
+    }
+
+    private List<IoSession> getClientSessions() {
+        List<IoSession> sessions = new ArrayList<IoSession>();
+        if (socketAcceptor != null) {
+            for (SocketAddress address : socketAcceptor.getManagedServiceAddresses()) {
+                sessions.addAll(socketAcceptor.getManagedSessions(address));
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Returns the tracker of idle client sessions or <tt>null</tt> if MINA checks the idle
+     * time of client sessions.
+     *
+     * @return the tracker of idle client sessions or null.
+     */
+    public IdleSessionTracker getIdleTracker() {
+        return idleTracker;
+    }
+
     public SocketAcceptor getSocketAcceptor() {
         return socketAcceptor;
     }
@@ -254,8 +365,24 @@ public class ConnectionManager extends BasicModule implements IConnectionManager
         int ioThreads = Globals.getIntProperty("xmpp.processor.count", Runtime.getRuntime().availableProcessors());
         // Set the executor that processors will use. Note that processors will use another executor
         // for processing events (i.e. incoming traffic)
+        // Only the processor threads keep a cache of released network buffers since their number is fixed
+        ThreadFactory ioThreadFactory = new ThreadFactory() {
+            private final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+
+            public Thread newThread(final Runnable runnable) {
+                return threadFactory.newThread(new Runnable() {
+                    public void run() {
+                        PooledBufferAllocator allocator = bufferAllocator;
+                        if (allocator != null) {
+                            allocator.enableThreadCache();
+                        }
+                        runnable.run();
+                    }
+                });
+            }
+        };
         Executor ioExecutor = new ThreadPoolExecutor(
-            ioThreads + 1, ioThreads + 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>() );
+            ioThreads + 1, ioThreads + 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), ioThreadFactory);
         socketAcceptor = new SocketAcceptor(ioThreads, ioExecutor);
         // Set that it will be possible to bind a socket if there is a connection in the timeout state
         SocketAcceptorConfig socketAcceptorConfig = socketAcceptor.getDefaultConfig();
@@ -300,6 +427,15 @@ public class ConnectionManager extends BasicModule implements IConnectionManager
         super.stop();
         stopClientListeners();
         SocketSendingTracker.getInstance().shutdown();
+        if (bufferAllocator != null) {
+            logger.info("Network buffers: " + bufferAllocator);
+        }
+        logger.info("Stanza writes: " + WriteCoalescer.getStatistics());
+        logger.info("Congested queues: " + OutboundQueue.getStatistics());
+        logger.info("Parser pools: " + ParserPool.getStatistics());
+        if (clientShapingFilter != null) {
+            logger.info("Traffic shaping: " + clientShapingFilter);
+        }
         serverName = null;
     }
 }
@@ -222,6 +222,34 @@ public interface IConnection {
      */
     IPacketDeliverer getPacketDeliverer();
 
+    /**
+     * Returns true if the connection is using compression.
+     *
+     * @return true if the connection is using compression.
+     */
+    boolean isCompressed();
+
+    /**
+     * Adds the compression filter to the connection but only filter incoming traffic. Do not filter
+     * outgoing traffic since we still need to send an uncompressed stanza to the client indicating
+     * that it can start compressing the traffic. After we sent the uncompressed stanza we can
+     * start compressing outgoing traffic as well.
+     */
+    void addCompression();
+
+    /**
+     * Start compressing outgoing traffic for this connection.
+     */
+    void startCompression();
+
+    /**
+     * Sets the user class of the entity on the other side of the connection (e.g. <tt>user</tt>
+     * or <tt>anonymous</tt>). Incoming traffic is shaped using the limits of the class.
+     *
+     * @param userClass the user class of the connected entity.
+     */
+    void setTrafficClass(String userClass);
+
     /**
      * Enumeration that specifies if clients should be authenticated (and how) while
      * negotiating TLS.
@@ -249,4 +277,21 @@ public interface IConnection {
          */
         needed
     }
+
+    /**
+     * Enumeration of possible compression policies required to interact with the server.
+     */
+    enum CompressionPolicy {
+
+        /**
+         * compression is optional to interact with the server.
+         */
+        optional,
+
+        /**
+         * compression is not available. Entities that request a compression negotiation
+         * will get a stream error and their connections will be closed.
+         */
+        disabled
+    }
 }
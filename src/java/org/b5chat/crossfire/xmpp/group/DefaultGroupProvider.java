@@ -30,6 +30,7 @@ import java.util.Collections;
 import java.util.List;
 
 
+import org.b5chat.crossfire.core.util.JIDCache;
 import org.b5chat.crossfire.database.DbConnectionManager;
 import org.b5chat.crossfire.xmpp.server.XmppServer;
 import org.slf4j.Logger;
@@ -455,7 +456,7 @@ public class DefaultGroupProvider implements IGroupProvider {
                     userJID = server.createJID(user, null);
                 }
                 else {
-                    userJID = new JID(user);
+                    userJID = JIDCache.get(user);
                 }
                 members.add(userJID);
             }
@@ -20,6 +20,8 @@
 
 package org.b5chat.crossfire.xmpp.group;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -35,6 +37,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.b5chat.crossfire.core.util.JIDCache;
 import org.b5chat.crossfire.core.util.cache.CacheSizes;
 import org.b5chat.crossfire.core.util.cache.Cacheable;
 import org.b5chat.crossfire.core.util.cache.CannotCalculateSizeException;
@@ -55,11 +58,12 @@ import org.xmpp.packet.JID;
  *
  * @author Matt Tucker
  */
-@SuppressWarnings("serial")
 public class Group implements Cacheable {
 
 	private static final Logger Log = LoggerFactory.getLogger(Group.class);
 
+    private static final long serialVersionUID = 1L;
+
     private static final String LOAD_PROPERTIES =
         "SELECT name, propValue FROM ofGroupProp WHERE groupName=?";
     private static final String DELETE_PROPERTY =
@@ -323,7 +327,7 @@ public class Group implements Cacheable {
     public boolean isUser(JID user) {
         // Make sure that we are always checking bare JIDs 
         if (user != null && user.getResource() != null) {
-            user = new JID(user.toBareJID());
+            user = JIDCache.getBare(user);
         }
         return user != null && (members.contains(user) || administrators.contains(user));
     }
@@ -343,6 +347,15 @@ public class Group implements Cacheable {
         }
     }
 
+    /**
+     * Restores the services used by a group that was read from an off heap cache.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        groupManager = GroupManager.getInstance();
+        provider = groupManager.getProvider();
+    }
+
     public int getCachedSize() 
 	    throws CannotCalculateSizeException {
         // Approximate the size of the object in bytes by calculating the size
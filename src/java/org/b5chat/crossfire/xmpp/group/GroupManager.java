@@ -31,6 +31,7 @@ import org.b5chat.crossfire.core.util.ClassUtils;
 import org.b5chat.crossfire.core.util.TaskEngine;
 import org.b5chat.crossfire.core.util.cache.Cache;
 import org.b5chat.crossfire.core.util.cache.CacheFactory;
+import org.b5chat.crossfire.core.util.cache.CacheLoader;
 import org.b5chat.crossfire.xmpp.server.XmppServer;
 import org.b5chat.crossfire.xmpp.user.IUserEventListener;
 import org.b5chat.crossfire.xmpp.user.User;
@@ -70,6 +71,12 @@ public class GroupManager {
 
     Cache<String, Group> groupCache;
     Cache<String, Object> groupMetaCache;
+    private final CacheLoader<String, Group, GroupNotFoundException> groupLoader =
+            new CacheLoader<String, Group, GroupNotFoundException>() {
+        public Group load(String name) throws GroupNotFoundException {
+            return provider.getGroup(name);
+        }
+    };
     private IGroupProvider provider;
 
     private GroupManager() {
@@ -279,22 +286,11 @@ public class GroupManager {
      * @throws GroupNotFoundException if the group does not exist.
      */
     public Group getGroup(String name, boolean forceLookup) throws GroupNotFoundException {
-        Group group = null;
-        if (!forceLookup) {
-            group = groupCache.get(name);
+        if (forceLookup) {
+            groupCache.remove(name);
         }
-        // If ID wan't found in cache, load it up and put it there.
-        if (group == null) {
-            synchronized (name.intern()) {
-                group = groupCache.get(name);
-                // If group wan't found in cache, load it up and put it there.
-                if (group == null) {
-                    group = provider.getGroup(name);
-                    groupCache.put(name, group);
-                }
-            }
-        }
-        return group;
+        // If group wan't found in cache, load it up and put it there.
+        return groupCache.get(name, groupLoader);
     }
 
     /**
@@ -346,17 +342,11 @@ public class GroupManager {
      * @return the total number of groups.
      */
     public int getGroupCount() {
-        Integer count = (Integer)groupMetaCache.get(GROUP_COUNT_KEY);
-        if (count == null) {
-            synchronized(GROUP_COUNT_KEY.intern()) {
-                count = (Integer)groupMetaCache.get(GROUP_COUNT_KEY);
-                if (count == null) {
-                    count = provider.getGroupCount();
-                    groupMetaCache.put(GROUP_COUNT_KEY, count);
-                }
+        return (Integer) groupMetaCache.get(GROUP_COUNT_KEY, new CacheLoader<String, Object, RuntimeException>() {
+            public Object load(String key) {
+                return provider.getGroupCount();
             }
-        }
-        return count;
+        });
     }
 
     /**
@@ -366,16 +356,12 @@ public class GroupManager {
      */
     @SuppressWarnings("unchecked")
 	public Collection<Group> getGroups() {
-        Collection<String> groupNames = (Collection<String>)groupMetaCache.get(GROUP_NAMES_KEY);
-        if (groupNames == null) {
-            synchronized(GROUP_NAMES_KEY.intern()) {
-                groupNames = (Collection<String>)groupMetaCache.get(GROUP_NAMES_KEY);
-                if (groupNames == null) {
-                    groupNames = provider.getGroupNames();
-                    groupMetaCache.put(GROUP_NAMES_KEY, groupNames);
-                }
+        Collection<String> groupNames = (Collection<String>) groupMetaCache.get(GROUP_NAMES_KEY,
+                new CacheLoader<String, Object, RuntimeException>() {
+            public Object load(String key) {
+                return provider.getGroupNames();
             }
-        }
+        });
         return new GroupCollection(groupNames);
     }
 
@@ -386,16 +372,12 @@ public class GroupManager {
      */
     @SuppressWarnings("unchecked")
 	public Collection<Group> getSharedGroups() {
-        Collection<String> groupNames = (Collection<String>)groupMetaCache.get(SHARED_GROUPS_KEY);
-        if (groupNames == null) {
-            synchronized(SHARED_GROUPS_KEY.intern()) {
-                groupNames = (Collection<String>)groupMetaCache.get(SHARED_GROUPS_KEY);
-                if (groupNames == null) {
-                    groupNames = provider.getSharedGroupsNames();
-                    groupMetaCache.put(SHARED_GROUPS_KEY, groupNames);
-                }
+        Collection<String> groupNames = (Collection<String>) groupMetaCache.get(SHARED_GROUPS_KEY,
+                new CacheLoader<String, Object, RuntimeException>() {
+            public Object load(String key) {
+                return provider.getSharedGroupsNames();
             }
-        }
+        });
         return new GroupCollection(groupNames);
     }
 
@@ -411,19 +393,15 @@ public class GroupManager {
      * @return an Iterator for all groups in the specified range.
      */
     @SuppressWarnings("unchecked")
-	public Collection<Group> getGroups(int startIndex, int numResults) {
+	public Collection<Group> getGroups(final int startIndex, final int numResults) {
         String key = GROUP_NAMES_KEY + startIndex + "," + numResults;
 
-        Collection<String> groupNames = (Collection<String>)groupMetaCache.get(key);
-        if (groupNames == null) {
-            synchronized(key.intern()) {
-                groupNames = (Collection<String>)groupMetaCache.get(key);
-                if (groupNames == null) {
-                    groupNames = provider.getGroupNames(startIndex, numResults);
-                    groupMetaCache.put(key, groupNames);
-                }
+        Collection<String> groupNames = (Collection<String>) groupMetaCache.get(key,
+                new CacheLoader<String, Object, RuntimeException>() {
+            public Object load(String key) {
+                return provider.getGroupNames(startIndex, numResults);
             }
-        }
+        });
         return new GroupCollection(groupNames);
     }
 
@@ -444,19 +422,15 @@ public class GroupManager {
      * @return all groups that an entity belongs to.
      */
     @SuppressWarnings("unchecked")
-	public Collection<Group> getGroups(JID user) {
+	public Collection<Group> getGroups(final JID user) {
         String key = user.toBareJID();
 
-		Collection<String> groupNames = (Collection<String>)groupMetaCache.get(key);
-        if (groupNames == null) {
-            synchronized(key.intern()) {
-                groupNames = (Collection<String>)groupMetaCache.get(key);
-                if (groupNames == null) {
-                    groupNames = provider.getGroupNames(user);
-                    groupMetaCache.put(key, groupNames);
-                }
+		Collection<String> groupNames = (Collection<String>) groupMetaCache.get(key,
+                new CacheLoader<String, Object, RuntimeException>() {
+            public Object load(String key) {
+                return provider.getGroupNames(user);
             }
-        }
+        });
         return new GroupCollection(groupNames);
     }
 
@@ -28,6 +28,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 
+import org.b5chat.crossfire.core.nio.PacketBroadcast;
 import org.b5chat.crossfire.xmpp.server.XmppServer;
 import org.b5chat.crossfire.xmpp.session.ISession;
 import org.slf4j.Logger;
@@ -235,6 +236,8 @@ public class InterceptorManager {
         // Checking if collection is empty to prevent creating an iterator of
         // a CopyOnWriteArrayList that is an expensive operation
         if (!globalInterceptors.isEmpty()) {
+            // Interceptors may alter the packet so a broadcasted packet needs to be serialized again
+            PacketBroadcast.packetModified(packet);
             for (IPacketInterceptor interceptor : globalInterceptors) {
                 try {
                     interceptor.interceptPacket(packet, session, read, processed);
@@ -262,6 +265,7 @@ public class InterceptorManager {
         if (username != null && server.isLocal(session.getAddress())) {
             Collection<IPacketInterceptor> userInterceptors = usersInterceptors.get(username);
             if (userInterceptors != null && !userInterceptors.isEmpty()) {
+                PacketBroadcast.packetModified(packet);
                 for (IPacketInterceptor interceptor : userInterceptors) {
                     try {
                         interceptor.interceptPacket(packet, session, read, processed);
@@ -282,4 +286,4 @@ public class InterceptorManager {
             }
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -19,6 +19,7 @@ package org.b5chat.crossfire.xmpp.privacy;
 
 import org.b5chat.crossfire.core.util.cache.Cache;
 import org.b5chat.crossfire.core.util.cache.CacheFactory;
+import org.b5chat.crossfire.core.util.cache.CacheLoader;
 import org.dom4j.Element;
 
 import java.util.List;
@@ -146,23 +147,14 @@ public class PrivacyListManager {
      * @return the default privacy list of the specified user or <tt>null</tt> if
      *         none was found.
      */
-    public PrivacyList getDefaultPrivacyList(String username) {
+    public PrivacyList getDefaultPrivacyList(final String username) {
         // Check if we have the default list in the cache
-        String cacheKey = getDefaultCacheKey(username);
-        PrivacyList list = listsCache.get(cacheKey);
-        if (list == null) {
-            synchronized (username.intern()) {
-                list = listsCache.get(cacheKey);
-                if (list == null) {
-                    // Load default list from the database
-                    list = provider.loadDefaultPrivacyList(username);
-                    if (list != null) {
-                        listsCache.put(cacheKey, list);
-                    }
-                }
+        return listsCache.get(getDefaultCacheKey(username), new CacheLoader<String, PrivacyList, RuntimeException>() {
+            public PrivacyList load(String cacheKey) {
+                // Load default list from the database
+                return provider.loadDefaultPrivacyList(username);
             }
-        }
-        return list;
+        });
     }
 
     /**
@@ -20,6 +20,8 @@
 
 package org.b5chat.crossfire.xmpp.roster;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -30,7 +32,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.b5chat.crossfire.core.nio.PacketBroadcast;
 import org.b5chat.crossfire.core.util.GlobalConstants;
+import org.b5chat.crossfire.core.util.JIDCache;
 import org.b5chat.crossfire.core.util.cache.CacheSizes;
 import org.b5chat.crossfire.core.util.cache.Cacheable;
 import org.b5chat.crossfire.core.util.cache.CannotCalculateSizeException;
@@ -65,12 +69,13 @@ import org.xmpp.packet.Presence;
  *
  * @author Gaston Dombiak
  */
-@SuppressWarnings("serial")
 @GlobalID(GlobalConstants.ROSTER)
 public class Roster implements Cacheable {
 
 	private static final Logger Log = LoggerFactory.getLogger(Roster.class);
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * Roster item cache - table: key jabberid string; value roster item.
      */
@@ -81,16 +86,16 @@ public class Roster implements Cacheable {
      */
     protected ConcurrentHashMap<String, Set<String>> implicitFrom = new ConcurrentHashMap<String, Set<String>>();
 
-    private RosterItemProvider rosterItemProvider;
+    private transient RosterItemProvider rosterItemProvider;
     private String username;
-    private SessionManager sessionManager;
-    private XmppServer server = XmppServer.getInstance();
-    private IRoutingTable routingTable;
-    private IPresenceManager presenceManager;
+    private transient SessionManager sessionManager;
+    private transient XmppServer server = XmppServer.getInstance();
+    private transient IRoutingTable routingTable;
+    private transient IPresenceManager presenceManager;
     /**
      * Note: Used only for shared groups logic.
      */
-    private RosterManager rosterManager;
+    private transient RosterManager rosterManager;
 
 
     /**
@@ -595,16 +600,44 @@ public class Roster implements Cacheable {
             // No privacy list was found (based on the session) so check if there is a default list
             list = PrivacyListManager.getInstance().getDefaultPrivacyList(username);
         }
-        // Broadcast presence to subscribed entities
-        for (RosterItem item : rosterItems.values()) {
-            if (item.getSubStatus() == RosterItem.SUB_BOTH || item.getSubStatus() == RosterItem.SUB_FROM) {
-                packet.setTo(item.getJid());
+        // Serialize the presence only once for all the recipients
+        PacketBroadcast.begin(packet);
+        try {
+            // Broadcast presence to subscribed entities
+            for (RosterItem item : rosterItems.values()) {
+                if (item.getSubStatus() == RosterItem.SUB_BOTH || item.getSubStatus() == RosterItem.SUB_FROM) {
+                    packet.setTo(item.getJid());
+                    if (list != null && list.shouldBlockPacket(packet)) {
+                        // Outgoing presence notifications are blocked for this contact
+                        continue;
+                    }
+                    JID searchNode = JIDCache.getBare(item.getJid());
+                    for (JID jid : routingTable.getRoutes(searchNode, null)) {
+                        try {
+                            routingTable.routePacket(jid, packet, false);
+                        }
+                        catch (Exception e) {
+                            // Theoretically only happens if session has been closed.
+                            Log.debug(e.getMessage(), e);
+                        }
+                    }
+                }
+            }
+            // Broadcast presence to shared contacts whose subscription status is FROM
+            for (String contact : implicitFrom.keySet()) {
+                if (contact.contains("@")) {
+                    String node = contact.substring(0, contact.lastIndexOf("@"));
+                    String domain = contact.substring(contact.lastIndexOf("@")+1);
+                    node = JID.escapeNode(node);
+                    contact = JIDCache.get(node, domain, null).toBareJID();
+                }
+
+                packet.setTo(contact);
                 if (list != null && list.shouldBlockPacket(packet)) {
                     // Outgoing presence notifications are blocked for this contact
                     continue;
                 }
-                JID searchNode = new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true);
-                for (JID jid : routingTable.getRoutes(searchNode, null)) {
+                for (JID jid: routingTable.getRoutes(JIDCache.get(contact), null)) {
                     try {
                         routingTable.routePacket(jid, packet, false);
                     }
@@ -614,34 +647,13 @@ public class Roster implements Cacheable {
                     }
                 }
             }
-        }
-        // Broadcast presence to shared contacts whose subscription status is FROM
-        for (String contact : implicitFrom.keySet()) {
-            if (contact.contains("@")) {
-                String node = contact.substring(0, contact.lastIndexOf("@"));
-                String domain = contact.substring(contact.lastIndexOf("@")+1);
-                node = JID.escapeNode(node);
-                contact = new JID(node, domain, null).toBareJID();
-            }
-
-            packet.setTo(contact);
-            if (list != null && list.shouldBlockPacket(packet)) {
-                // Outgoing presence notifications are blocked for this contact
-                continue;
-            }
-            for (JID jid: routingTable.getRoutes(new JID(contact), null)) {
-                try {
-                    routingTable.routePacket(jid, packet, false);
-                }
-                catch (Exception e) {
-                    // Theoretically only happens if session has been closed.
-                    Log.debug(e.getMessage(), e);
-                }
+            if (from != null) {
+                // Broadcast presence to other user's resources
+                sessionManager.broadcastPresenceToOtherResources(from, packet);
             }
         }
-        if (from != null) {
-            // Broadcast presence to other user's resources
-            sessionManager.broadcastPresenceToOtherResources(from, packet);
+        finally {
+            PacketBroadcast.end();
         }
     }
 
@@ -729,6 +741,19 @@ public class Roster implements Cacheable {
         }
     }
 
+    /**
+     * Restores the services used by a roster that was read from an off heap cache.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        server = XmppServer.getInstance();
+        presenceManager = server.getPresenceManager();
+        rosterManager = server.getRosterManager();
+        sessionManager = SessionManager.getInstance();
+        routingTable = server.getRoutingTable();
+        rosterItemProvider = RosterItemProvider.getInstance();
+    }
+
     public int getCachedSize() throws CannotCalculateSizeException {
         // Approximate the size of the object in bytes by calculating the size
         // of the content of each field, if that content is likely to be eligable for
@@ -33,6 +33,7 @@ import java.util.Map;
 
 
 import org.b5chat.crossfire.core.util.GlobalConstants;
+import org.b5chat.crossfire.core.util.JIDCache;
 import org.b5chat.crossfire.core.util.LocaleUtils;
 import org.b5chat.crossfire.database.DbConnectionManager;
 import org.b5chat.crossfire.database.SequenceManager;
@@ -293,7 +294,7 @@ public class RosterItemProvider {
             while (rs.next()) {
                 // Create a new RosterItem (ie. user contact) from the stored information
                 RosterItem item = new RosterItem(rs.getLong(2),
-                        new JID(rs.getString(1)),
+                        JIDCache.get(rs.getString(1)),
                         RosterItem.SubType.getTypeFromInt(rs.getInt(3)),
                         RosterItem.AskType.getTypeFromInt(rs.getInt(4)),
                         RosterItem.RecvType.getTypeFromInt(rs.getInt(5)),
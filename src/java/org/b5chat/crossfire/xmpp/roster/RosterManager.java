@@ -23,8 +23,10 @@ package org.b5chat.crossfire.xmpp.roster;
 
 import org.b5chat.crossfire.core.container.BasicModule;
 import org.b5chat.crossfire.core.property.Globals;
+import org.b5chat.crossfire.core.util.JIDCache;
 import org.b5chat.crossfire.core.util.cache.Cache;
 import org.b5chat.crossfire.core.util.cache.CacheFactory;
+import org.b5chat.crossfire.core.util.cache.CacheLoader;
 import org.b5chat.crossfire.xmpp.group.Group;
 import org.b5chat.crossfire.xmpp.group.GroupEventDispatcher;
 import org.b5chat.crossfire.xmpp.group.GroupManager;
@@ -57,6 +59,12 @@ import java.util.*;
 public class RosterManager extends BasicModule implements IGroupEventListener, IUserEventListener {
 
     private Cache<String, Roster> rosterCache = null;
+    private final CacheLoader<String, Roster, RuntimeException> rosterLoader =
+            new CacheLoader<String, Roster, RuntimeException>() {
+        public Roster load(String username) {
+            return new Roster(username);
+        }
+    };
     private XmppServer server;
     private IRoutingTable routingTable;
 
@@ -84,20 +92,8 @@ public class RosterManager extends BasicModule implements IGroupEventListener, I
      *         to a known entity on the server.
      */
     public Roster getRoster(String username) throws UserNotFoundException {
-        Roster roster = rosterCache.get(username);
-        if (roster == null) {
-            // Synchronize using a unique key so that other threads loading the User
-            // and not the Roster cannot produce a deadlock
-            synchronized ((username + " ro").intern()) {
-                roster = rosterCache.get(username);
-                if (roster == null) {
-                    // Not in cache so load a new one:
-                    roster = new Roster(username);
-                    rosterCache.put(username, roster);
-                }
-            }
-        }
-        return roster;
+        // Not in cache so load a new one
+        return rosterCache.get(username, rosterLoader);
     }
 
     /**
@@ -416,7 +412,7 @@ public class RosterManager extends BasicModule implements IGroupEventListener, I
     }
 
     public void memberAdded(Group group, Map<String,Object> params) {
-        JID addedUser = new JID((String) params.get("member"));
+        JID addedUser = JIDCache.get((String) params.get("member"));
         // Do nothing if the user was an admin that became a member
         if (group.getAdmins().contains(addedUser)) {
             return;
@@ -439,7 +435,7 @@ public class RosterManager extends BasicModule implements IGroupEventListener, I
         if (member == null) {
             return;
         }
-        JID deletedUser = new JID(member);
+        JID deletedUser = JIDCache.get(member);
         // Do nothing if the user is still an admin
         if (group.getAdmins().contains(deletedUser)) {
             return;
@@ -458,7 +454,7 @@ public class RosterManager extends BasicModule implements IGroupEventListener, I
     }
 
     public void adminAdded(Group group, Map<String,Object> params) {
-        JID addedUser = new JID((String) params.get("admin"));
+        JID addedUser = JIDCache.get((String) params.get("admin"));
         // Do nothing if the user was a member that became an admin
         if (group.getMembers().contains(addedUser)) {
             return;
@@ -477,7 +473,7 @@ public class RosterManager extends BasicModule implements IGroupEventListener, I
     }
 
     public void adminRemoved(Group group, Map<String,Object> params) {
-        JID deletedUser = new JID((String) params.get("admin"));
+        JID deletedUser = JIDCache.get((String) params.get("admin"));
         // Do nothing if the user is still a member
         if (group.getMembers().contains(deletedUser)) {
             return;
@@ -0,0 +1,303 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.xmpp.route;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.b5chat.crossfire.core.nio.PacketBroadcast;
+import org.b5chat.crossfire.core.property.Globals;
+import org.b5chat.crossfire.core.util.TaskEngine;
+import org.b5chat.crossfire.xmpp.session.IClientSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+
+/**
+ * Background job that sends a message to many client sessions (e.g. an announcement sent
+ * from the admin console to all online users). The sessions are split in chunks of
+ * <tt>xmpp.broadcast.chunk</tt> sessions (500 by default) that are delivered by up to
+ * <tt>xmpp.broadcast.threads</tt> threads at the same time (the number of processors by
+ * default). Each chunk delivers its own copy of the message as a {@link PacketBroadcast},
+ * so the message is serialized once per chunk and chunks never share a packet that
+ * interceptors or privacy lists may be reading.<p>
+ *
+ * Chunks are started at a pace of at most <tt>xmpp.broadcast.rate</tt> messages per second
+ * (10,000 by default, 0 for no limit) so that a large broadcast does not fill the socket
+ * buffers of every connection and the heap at the same time. The progress of recent jobs is
+ * shown in the admin console (see {@link #getJobs()}).
+ */
+public class BroadcastJob implements Runnable {
+
+    private static final Logger Log = LoggerFactory.getLogger(BroadcastJob.class);
+
+    /**
+     * Number of finished jobs that are kept to report their outcome.
+     */
+    private static final int HISTORY_SIZE = 10;
+
+    private static final AtomicLong nextId = new AtomicLong();
+    private static final LinkedList<BroadcastJob> jobs = new LinkedList<BroadcastJob>();
+
+    private final long id;
+    private final Message packet;
+    private final List<? extends IClientSession> sessions;
+    private final int chunkSize;
+    private final int rate;
+    private final Semaphore threads;
+    private final int maxThreads;
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger pendingChunks = new AtomicInteger();
+    private final long creationTime;
+    private volatile long startTime;
+    private volatile long endTime;
+
+    /**
+     * Creates a job that will send the message to the specified sessions. The message must
+     * not be modified once the job is created.
+     *
+     * @param packet the message to send.
+     * @param sessions the sessions that will get the message.
+     */
+    public BroadcastJob(Message packet, Collection<? extends IClientSession> sessions) {
+        this(packet, sessions, Globals.getIntProperty("xmpp.broadcast.chunk", 500),
+                Globals.getIntProperty("xmpp.broadcast.rate", 10000),
+                Globals.getIntProperty("xmpp.broadcast.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    BroadcastJob(Message packet, Collection<? extends IClientSession> sessions, int chunkSize, int rate,
+            int threads) {
+        this.id = nextId.incrementAndGet();
+        this.packet = packet;
+        this.sessions = new ArrayList<IClientSession>(sessions);
+        this.chunkSize = Math.max(1, chunkSize);
+        this.rate = Math.max(0, rate);
+        this.maxThreads = Math.max(1, threads);
+        this.threads = new Semaphore(maxThreads);
+        this.creationTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts the job in the background.
+     */
+    public void start() {
+        synchronized (jobs) {
+            jobs.addFirst(this);
+            if (jobs.size() > HISTORY_SIZE) {
+                // Forget the oldest finished job
+                for (int i = jobs.size() - 1; i >= 0; i--) {
+                    if (jobs.get(i).isDone()) {
+                        jobs.remove(i);
+                        break;
+                    }
+                }
+            }
+        }
+        TaskEngine.getInstance().submit(this);
+    }
+
+    /**
+     * Splits the sessions in chunks and delivers each chunk from a pool thread, waiting
+     * between chunks if needed to keep the rate of the broadcast.
+     */
+    public void run() {
+        startTime = System.currentTimeMillis();
+        int total = sessions.size();
+        pendingChunks.set((total + chunkSize - 1) / chunkSize);
+        if (total == 0) {
+            finish();
+            return;
+        }
+        int started = 0;
+        try {
+            for (int from = 0; from < total; from += chunkSize) {
+                if (rate > 0) {
+                    // Do not start the chunk before the previous messages were sent at the expected rate
+                    long due = startTime + (from * 1000L) / rate;
+                    long wait = due - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                threads.acquire();
+                final List<? extends IClientSession> chunk = sessions.subList(from, Math.min(from + chunkSize, total));
+                TaskEngine.getInstance().submit(new Runnable() {
+                    public void run() {
+                        try {
+                            deliver(chunk);
+                        }
+                        finally {
+                            threads.release();
+                            if (pendingChunks.decrementAndGet() == 0) {
+                                finish();
+                            }
+                        }
+                    }
+                });
+                started++;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.warn("Broadcast " + id + " was interrupted after delivering " + delivered + " messages");
+            // The job finishes when the chunks that were started are done
+            if (pendingChunks.addAndGet(started - (total + chunkSize - 1) / chunkSize) == 0) {
+                finish();
+            }
+        }
+    }
+
+    private void deliver(List<? extends IClientSession> chunk) {
+        Message copy = packet.createCopy();
+        PacketBroadcast.begin(copy);
+        try {
+            for (IClientSession session : chunk) {
+                try {
+                    session.process(copy);
+                    delivered.incrementAndGet();
+                }
+                catch (Exception e) {
+                    failed.incrementAndGet();
+                    Log.debug("Broadcast " + id + " failed to deliver to " + session.getAddress(), e);
+                }
+            }
+        }
+        finally {
+            PacketBroadcast.end();
+        }
+    }
+
+    private void finish() {
+        endTime = System.currentTimeMillis();
+        if (Log.isDebugEnabled()) {
+            Log.debug("Broadcast " + id + " finished: " + this);
+        }
+    }
+
+    /**
+     * Returns the id of the job. Jobs are numbered in the order they are created.
+     *
+     * @return the id of the job.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the number of sessions that will get the message.
+     *
+     * @return the number of sessions that will get the message.
+     */
+    public int getTotal() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the number of sessions that got the message so far.
+     *
+     * @return the number of sessions that got the message so far.
+     */
+    public int getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Returns the number of sessions that failed to get the message.
+     *
+     * @return the number of sessions that failed to get the message.
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the percentage of sessions that were processed so far.
+     *
+     * @return the percentage of sessions that were processed.
+     */
+    public int getProgress() {
+        int total = getTotal();
+        return total == 0 ? 100 : (int) ((getDelivered() + getFailed()) * 100L / total);
+    }
+
+    /**
+     * Returns true if the job has finished.
+     *
+     * @return true if the job has finished.
+     */
+    public boolean isDone() {
+        return endTime != 0;
+    }
+
+    /**
+     * Returns the time when the job was created.
+     *
+     * @return the time when the job was created in milliseconds.
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Returns the number of milliseconds that the job has been running or took to finish.
+     *
+     * @return the number of milliseconds that the job has been running.
+     */
+    public long getElapsedTime() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    /**
+     * Returns the message that is being sent.
+     *
+     * @return the message that is being sent.
+     */
+    public Message getPacket() {
+        return packet;
+    }
+
+    /**
+     * Returns the running and most recent jobs, newest first.
+     *
+     * @return the running and most recent jobs.
+     */
+    public static List<BroadcastJob> getJobs() {
+        synchronized (jobs) {
+            return Collections.unmodifiableList(new ArrayList<BroadcastJob>(jobs));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "delivered: " + getDelivered() + "/" + getTotal() + ", failed: " + getFailed() +
+                ", elapsed: " + getElapsedTime() + " ms, chunks of " + chunkSize + " on up to " +
+                maxThreads + " threads" + (rate > 0 ? " at " + rate + " messages/s" : "");
+    }
+}
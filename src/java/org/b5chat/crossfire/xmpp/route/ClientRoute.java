@@ -24,10 +24,14 @@ package org.b5chat.crossfire.xmpp.route;
 import org.b5chat.crossfire.core.server.NodeID;
 import org.b5chat.crossfire.core.util.cache.CacheSizes;
 import org.b5chat.crossfire.core.util.cache.Cacheable;
+import org.b5chat.crossfire.xmpp.session.IClientSession;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
 
 /**
  * Internal object used by RoutingTableImpl to keep track of the node that own a IClientSession
- * and whether the session is available or not.
+ * and whether the session is available or not. Routes are immutable, a new route is created
+ * whenever the availability, the presence priority or the show value of the session changes.
  *
  * @author Gaston Dombiak
  */
@@ -36,6 +40,11 @@ public class ClientRoute implements Cacheable {
 
     private NodeID nodeID;
     private boolean available;
+    private JID address;
+    private boolean anonymous;
+    private int priority;
+    private int showValue;
+    private IClientSession session;
 
     public ClientRoute() {
     }
@@ -50,11 +59,91 @@ public class ClientRoute implements Cacheable {
         return available;
     }
 
+    /**
+     * Returns the full JID of the session or <tt>null</tt> if the route was created
+     * without an address.
+     *
+     * @return the full JID of the session.
+     */
+    public JID getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns true if the session belongs to an anonymous user.
+     *
+     * @return true if the session belongs to an anonymous user.
+     */
+    public boolean isAnonymous() {
+        return anonymous;
+    }
+
+    /**
+     * Returns the priority of the presence of the session when the route was created.
+     *
+     * @return the presence priority of the session.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the rank of the show value of the presence of the session when the route was
+     * created. Lower values are preferred: chat, available, away, xa, dnd.
+     *
+     * @return the rank of the show value of the session.
+     */
+    public int getShowValue() {
+        return showValue;
+    }
+
+    /**
+     * Returns the session of the route or <tt>null</tt> if the route was created without
+     * a session.
+     *
+     * @return the session of the route.
+     */
+    public IClientSession getSession() {
+        return session;
+    }
+
     public ClientRoute(NodeID nodeID, boolean available) {
         this.nodeID = nodeID;
         this.available = available;
     }
 
+    public ClientRoute(NodeID nodeID, JID address, IClientSession session, boolean anonymous) {
+        Presence presence = session.getPresence();
+        this.nodeID = nodeID;
+        this.address = address;
+        this.session = session;
+        this.anonymous = anonymous;
+        this.available = presence.isAvailable();
+        this.priority = presence.getPriority();
+        this.showValue = getShowValue(presence.getShow());
+    }
+
+    /**
+     * Priorities are: chat, available, away, xa, dnd.
+     */
+    private static int getShowValue(Presence.Show show) {
+        if (show == Presence.Show.chat) {
+            return 1;
+        }
+        else if (show == null) {
+            return 2;
+        }
+        else if (show == Presence.Show.away) {
+            return 3;
+        }
+        else if (show == Presence.Show.xa) {
+            return 4;
+        }
+        else {
+            return 5;
+        }
+    }
+
     public int getCachedSize() {
         // Approximate the size of the object in bytes by calculating the size
         // of each field.
@@ -62,6 +151,11 @@ public class ClientRoute implements Cacheable {
         size += CacheSizes.sizeOfObject();      // overhead of object
         size += nodeID.toByteArray().length;                  // Node ID
         size += CacheSizes.sizeOfBoolean();     // available
+        size += address == null ? 0 : CacheSizes.sizeOfString(address.toString()); // address
+        size += CacheSizes.sizeOfBoolean();     // anonymous
+        size += CacheSizes.sizeOfInt();         // priority
+        size += CacheSizes.sizeOfInt();         // show value
+        size += CacheSizes.sizeOfObject();      // session reference
         return size;
     }
 
@@ -0,0 +1,196 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.xmpp.route;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.component.IQResultListener;
+
+/**
+ * Keeps the {@link IQResultListener listeners} that are waiting for the answer of IQ packets
+ * sent by the server, and times them out using a set sorted by deadline. Expiring listeners
+ * only looks at the first deadlines of the set, so the cost of a check depends on the number
+ * of listeners that timed out and not on the number of listeners that are waiting.<p>
+ *
+ * Listeners that are answered or replaced are removed from the set right away, so that they
+ * and the packets they reference are not kept until their deadline.
+ */
+class IQResultTracker {
+
+    private static final Logger Log = LoggerFactory.getLogger(IQResultTracker.class);
+
+    private final ConcurrentHashMap<String, Entry> listeners = new ConcurrentHashMap<String, Entry>();
+    private final TreeSet<Entry> deadlines = new TreeSet<Entry>();
+    /**
+     * Orders the entries that have the same deadline.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * Adds a listener that will time out at the specified time. A listener that was waiting
+     * for the same packet id is replaced.
+     *
+     * @param id the id of the IQ packet that was sent.
+     * @param listener the listener waiting for the answer.
+     * @param deadline the time in milliseconds when the listener times out.
+     */
+    void add(String id, IQResultListener listener, long deadline) {
+        Entry entry = new Entry(id, listener, deadline, sequence.incrementAndGet());
+        synchronized (deadlines) {
+            // Added under the lock so that an answer cannot remove the entry before it is added
+            Entry replaced = listeners.put(id, entry);
+            deadlines.add(entry);
+            if (replaced != null) {
+                deadlines.remove(replaced);
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the listener waiting for the answer of the specified packet.
+     *
+     * @param id the id of the IQ packet that was answered.
+     * @return the listener waiting for the answer or null if none.
+     */
+    IQResultListener remove(String id) {
+        Entry entry = listeners.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (deadlines) {
+            deadlines.remove(entry);
+        }
+        answered.incrementAndGet();
+        return entry.listener;
+    }
+
+    /**
+     * Removes the listeners whose deadline is not after the specified time and lets them
+     * know that they timed out.
+     *
+     * @param now the current time in milliseconds.
+     * @return the number of listeners that timed out.
+     */
+    int expire(long now) {
+        List<Entry> timedOut = null;
+        synchronized (deadlines) {
+            while (!deadlines.isEmpty() && deadlines.first().deadline <= now) {
+                Entry head = deadlines.first();
+                deadlines.remove(head);
+                // Skip listeners that are being answered or replaced
+                if (listeners.remove(head.id, head)) {
+                    if (timedOut == null) {
+                        timedOut = new ArrayList<Entry>();
+                    }
+                    timedOut.add(head);
+                }
+            }
+        }
+        if (timedOut == null) {
+            return 0;
+        }
+        expired.addAndGet(timedOut.size());
+        // Listeners are invoked without holding the lock since they may add new listeners
+        for (Entry entry : timedOut) {
+            try {
+                entry.listener.answerTimeout(entry.id);
+            }
+            catch (Exception e) {
+                Log.error("Error notifying timeout of IQ packet " + entry.id, e);
+            }
+        }
+        return timedOut.size();
+    }
+
+    /**
+     * Returns the number of listeners waiting for an answer.
+     *
+     * @return the number of listeners waiting for an answer.
+     */
+    int getPending() {
+        return listeners.size();
+    }
+
+    /**
+     * Returns the number of deadlines being tracked, which is the number of listeners
+     * waiting for an answer unless listeners are being answered or expired.
+     *
+     * @return the number of deadlines being tracked.
+     */
+    int getDeadlines() {
+        synchronized (deadlines) {
+            return deadlines.size();
+        }
+    }
+
+    /**
+     * Returns the number of listeners that got an answer.
+     *
+     * @return the number of listeners that got an answer.
+     */
+    long getAnswered() {
+        return answered.get();
+    }
+
+    /**
+     * Returns the number of listeners that timed out.
+     *
+     * @return the number of listeners that timed out.
+     */
+    long getExpired() {
+        return expired.get();
+    }
+
+    @Override
+    public String toString() {
+        return "pending: " + getPending() + ", answered: " + getAnswered() + ", timed out: " + getExpired();
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        final String id;
+        final IQResultListener listener;
+        final long deadline;
+        final long sequence;
+
+        Entry(String id, IQResultListener listener, long deadline, long sequence) {
+            this.id = id;
+            this.listener = listener;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Entry other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
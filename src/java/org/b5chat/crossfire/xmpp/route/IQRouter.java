@@ -21,7 +21,6 @@
 package org.b5chat.crossfire.xmpp.route;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TimerTask;
@@ -69,8 +68,8 @@ public class IQRouter extends BasicModule {
     private String serverName;
     private List<IQHandler> iqHandlers = new ArrayList<IQHandler>();
     private Map<String, IQHandler> namespace2Handlers = new ConcurrentHashMap<String, IQHandler>();
-    private Map<String, IQResultListener> resultListeners = new ConcurrentHashMap<String, IQResultListener>();
-    private Map<String, Long> resultTimeout = new ConcurrentHashMap<String, Long>();
+    private final IQResultTracker resultListeners = new IQResultTracker();
+    private TimerTask timeoutTask;
     private SessionManager sessionManager;
     private UserManager userManager;
 
@@ -236,7 +235,7 @@ public class IQRouter extends BasicModule {
 	 * Note that the listener will remain active for <em>at least</em> the
 	 * specified timeout value. The listener will not be removed at the exact
 	 * moment it times out. Instead, purging of timed out listeners is a
-	 * periodic scheduled job.
+	 * periodic scheduled job that runs every second.
 	 * 
 	 * @param id
 	 *            the id of the IQ packet being sent from the server to an XMPP
@@ -249,14 +248,43 @@ public class IQRouter extends BasicModule {
 	 *            should be stopped.
 	 */    
     public void addIQResultListener(String id, IQResultListener listener, long timeoutmillis) {
-        resultListeners.put(id, listener);
-        resultTimeout.put(id, System.currentTimeMillis() + timeoutmillis);
+        resultListeners.add(id, listener, System.currentTimeMillis() + timeoutmillis);
+    }
+
+    /**
+     * Returns the number of {@link IQResultListener listeners} waiting for an answer.
+     *
+     * @return the number of listeners waiting for an answer.
+     */
+    public int getPendingResultListeners() {
+        return resultListeners.getPending();
+    }
+
+    /**
+     * Returns the number of {@link IQResultListener listeners} that got an answer since
+     * the server started.
+     *
+     * @return the number of listeners that got an answer.
+     */
+    public long getAnsweredResultListeners() {
+        return resultListeners.getAnswered();
+    }
+
+    /**
+     * Returns the number of {@link IQResultListener listeners} that timed out since
+     * the server started.
+     *
+     * @return the number of listeners that timed out.
+     */
+    public long getTimedOutResultListeners() {
+        return resultListeners.getExpired();
     }
 
     @Override
 	public void initialize(XmppServer server) {
         super.initialize(server);
-        TaskEngine.getInstance().scheduleAtFixedRate(new TimeoutTask(), 5000, 5000);
+        timeoutTask = new TimeoutTask();
+        TaskEngine.getInstance().scheduleAtFixedRate(timeoutTask, 1000, 1000);
         serverName = server.getServerInfo().getXMPPDomain();
         routingTable = server.getRoutingTable();
         multicastRouter = server.getMulticastRouter();
@@ -265,6 +293,16 @@ public class IQRouter extends BasicModule {
         userManager = server.getUserManager();
     }
 
+    @Override
+    public void stop() {
+        super.stop();
+        if (timeoutTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(timeoutTask);
+            timeoutTask = null;
+        }
+        Log.info("IQ result listeners: " + resultListeners);
+    }
+
     /**
      * A JID is considered local if:
      * 1) is null or
@@ -308,16 +346,13 @@ public class IQRouter extends BasicModule {
             // The server got an answer to an IQ packet that was sent from the server
             IQResultListener iqResultListener = resultListeners.remove(packet.getID());
             if (iqResultListener != null) {
-                resultTimeout.remove(packet.getID());
-                if (iqResultListener != null) {
-                    try {
-                        iqResultListener.receivedAnswer(packet);
-                    }
-                    catch (Exception e) {
-                        Log.error("Error processing answer of remote entity", e);
-                    }
-                    return;
+                try {
+                    iqResultListener.receivedAnswer(packet);
+                }
+                catch (Exception e) {
+                    Log.error("Error processing answer of remote entity", e);
                 }
+                return;
             }
         }
         try {
@@ -451,38 +486,19 @@ public class IQRouter extends BasicModule {
     private class TimeoutTask extends TimerTask {
 
         /**
-         * Iterates over and removes all timed out results.<p>
+         * Removes all timed out results.<p>
          * 
-         * The map that keeps track of timeout values is ordered by timeout
-         * date. This way, iteration can be stopped as soon as the first value
-         * has been found that didn't timeout yet.
+         * Listeners are kept in a queue ordered by timeout date. This way,
+         * the queue is only read until the first listener that didn't timeout
+         * yet is found.
          */
         @Override
         public void run() {
-            // Use an Iterator to allow changes to the Map that is backing
-            // the Iterator.
-            final Iterator<Map.Entry<String, Long>> it = resultTimeout.entrySet().iterator();
-
-            while (it.hasNext()) {
-                final Map.Entry<String, Long> pointer = it.next();
-
-                if (System.currentTimeMillis() < pointer.getValue()) {
-                    // This entry has not expired yet. Ignore it.
-                    continue;
-                }
-
-                final String packetId = pointer.getKey();
-
-                // remove this listener from the list
-                final IQResultListener listener = resultListeners.remove(packetId);
-                if (listener != null) {
-                    // notify listener of the timeout.
-                    listener.answerTimeout(packetId);
-                }
-
-                // remove the packet from the list that's used to track
-                // timeouts
-                it.remove();
+            try {
+                resultListeners.expire(System.currentTimeMillis());
+            }
+            catch (Exception e) {
+                Log.error("Error expiring IQ result listeners", e);
             }
         }
 	}
@@ -238,6 +238,8 @@ public interface IRoutingTable {
     /**
      * Broadcasts the specified message to connected client sessions to the local node or
      * across the cluster. Both available and unavailable client sessions will receive the message.
+     * The message is delivered by a {@link BroadcastJob} in the background, so it must not be
+     * modified once broadcasted.
      *
      * @param packet the message to broadcast.
      * @param onlyLocal true if only client sessions connecte to the local JVM will get the message.
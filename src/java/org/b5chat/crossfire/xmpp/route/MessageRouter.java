@@ -25,6 +25,7 @@ import java.util.StringTokenizer;
 
 import org.b5chat.crossfire.core.container.BasicModule;
 import org.b5chat.crossfire.core.property.Globals;
+import org.b5chat.crossfire.core.util.JIDCache;
 import org.b5chat.crossfire.xmpp.interceptor.InterceptorManager;
 import org.b5chat.crossfire.xmpp.interceptor.PacketRejectedException;
 import org.b5chat.crossfire.xmpp.server.XmppServer;
@@ -193,7 +194,7 @@ public class MessageRouter extends BasicModule {
         // If message was sent to an unavailable full JID of a user then retry using the bare JID
         if (serverName.equals(receipient.getDomain()) && receipient.getResource() != null &&
                 userManager.isRegisteredUser(receipient.getNode())) {
-            routingTable.routePacket(new JID(receipient.toBareJID()), packet, false);
+            routingTable.routePacket(JIDCache.getBare(receipient), packet, false);
         }
     }
 }
@@ -0,0 +1,295 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.xmpp.route;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.b5chat.crossfire.core.container.BasicModule;
+import org.b5chat.crossfire.core.nio.PacketBroadcast;
+import org.b5chat.crossfire.core.property.Globals;
+import org.b5chat.crossfire.core.util.JIDCache;
+import org.b5chat.crossfire.xmpp.disco.IServerFeaturesProvider;
+import org.b5chat.crossfire.xmpp.server.XmppServer;
+import org.dom4j.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError;
+import org.xmpp.packet.Presence;
+
+/**
+ * Router of packets with multicast processing instructions as defined by XEP-0033
+ * (Extended Stanza Addressing). Clients send one message or presence to the server
+ * with an <tt>addresses</tt> element that lists the recipients, and the server expands
+ * the list and delivers a copy to each recipient. This saves the client from sending
+ * (and the server from parsing) the same stanza once per recipient.<p>
+ *
+ * The delivered copies keep the <tt>to</tt>, <tt>cc</tt> and informational addresses,
+ * all marked as <tt>delivered</tt>, but never the <tt>bcc</tt> addresses. Duplicate
+ * recipients get a single copy, and so does a local session that is reached through
+ * more than one address (e.g. the bare and full JID of a user). For that, bare JIDs of
+ * local users are replaced by the sessions of the user that may receive the packet, and
+ * messages to a user without such sessions are routed to the bare JID to be stored
+ * offline. Since all
+ * copies only differ in their TO attribute they are delivered as a {@link PacketBroadcast}
+ * and serialized once.<p>
+ *
+ * Packets listing more than <tt>xmpp.multicast.max-addresses</tt> recipients (100 by
+ * default) are bounced with a <tt>not-acceptable</tt> error. IQ packets cannot be multicast
+ * and are answered with a <tt>bad-request</tt> error.
+ *
+ * @see <a href="http://www.xmpp.org/extensions/xep-0033.html">XEP-0033: Extended Stanza Addressing</a>
+ */
+public class MulticastRouter extends BasicModule implements IServerFeaturesProvider {
+
+    private static final Logger Log = LoggerFactory.getLogger(MulticastRouter.class);
+
+    public static final String NAMESPACE = "http://jabber.org/protocol/address";
+
+    private IRoutingTable routingTable;
+    private String serverName;
+
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+
+    public MulticastRouter() {
+        super("Multicast Packet Router");
+    }
+
+    MulticastRouter(IRoutingTable routingTable, String serverName) {
+        this();
+        this.routingTable = routingTable;
+        this.serverName = serverName;
+    }
+
+    /**
+     * Delivers a packet that was sent to the server with multicast processing instructions
+     * to each of the recipients listed in its <tt>addresses</tt> element.
+     *
+     * @param packet the packet to route.
+     */
+    public void route(Packet packet) {
+        if (packet instanceof IQ) {
+            // Extended stanza addressing is not allowed in IQ packets
+            bounce(packet, PacketError.Condition.bad_request);
+            return;
+        }
+        Element addresses = packet.getElement().element("addresses");
+        if (addresses == null || !NAMESPACE.equals(addresses.getNamespaceURI())) {
+            bounce(packet, PacketError.Condition.bad_request);
+            return;
+        }
+        List<JID> recipients;
+        try {
+            recipients = getRecipients(addresses);
+        }
+        catch (IllegalArgumentException e) {
+            // One of the addresses is not a valid JID
+            bounce(packet, PacketError.Condition.jid_malformed);
+            return;
+        }
+        if (recipients.isEmpty()) {
+            bounce(packet, PacketError.Condition.bad_request);
+            return;
+        }
+        if (recipients.size() > Globals.getIntProperty("xmpp.multicast.max-addresses", 100)) {
+            bounce(packet, PacketError.Condition.not_acceptable);
+            return;
+        }
+        packets.incrementAndGet();
+
+        Packet copy = createCopy(packet);
+        recipients = getRoutes(recipients, copy);
+        PacketBroadcast.begin(copy);
+        try {
+            for (JID recipient : recipients) {
+                copy.setTo(recipient);
+                try {
+                    routingTable.routePacket(recipient, copy, false);
+                    deliveries.incrementAndGet();
+                }
+                catch (Exception e) {
+                    Log.debug("Failed to deliver multicast packet to " + recipient, e);
+                }
+            }
+        }
+        finally {
+            PacketBroadcast.end();
+        }
+    }
+
+    /**
+     * Returns the recipients of the packet in the order they were listed, without duplicates.
+     * Recipients are the JIDs of the <tt>to</tt>, <tt>cc</tt> and <tt>bcc</tt> addresses that
+     * were not delivered yet. Addresses that use a URI instead of a JID are ignored.
+     *
+     * @param addresses the <tt>addresses</tt> element of the packet.
+     * @return the recipients of the packet.
+     * @throws IllegalArgumentException if an address is not a valid JID.
+     */
+    static List<JID> getRecipients(Element addresses) {
+        Set<JID> recipients = new LinkedHashSet<JID>();
+        for (Iterator<?> it = addresses.elementIterator("address"); it.hasNext();) {
+            Element address = (Element) it.next();
+            String type = address.attributeValue("type");
+            String jid = address.attributeValue("jid");
+            if (jid == null || "true".equals(address.attributeValue("delivered"))) {
+                continue;
+            }
+            if ("to".equals(type) || "cc".equals(type) || "bcc".equals(type)) {
+                recipients.add(JIDCache.get(jid));
+            }
+        }
+        return new ArrayList<JID>(recipients);
+    }
+
+    /**
+     * Returns the copy of the packet that is delivered to the recipients. The <tt>bcc</tt>
+     * addresses are removed and the other addresses are marked as delivered.
+     *
+     * @param packet the packet to deliver.
+     * @return the copy of the packet that is delivered to the recipients.
+     */
+    static Packet createCopy(Packet packet) {
+        Packet copy = packet.createCopy();
+        Element addresses = copy.getElement().element("addresses");
+        for (Object element : addresses.elements("address")) {
+            Element address = (Element) element;
+            if ("bcc".equals(address.attributeValue("type"))) {
+                addresses.remove(address);
+            }
+            else {
+                address.addAttribute("delivered", "true");
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the addresses to route the packet to. Bare JIDs of local users are replaced
+     * by the sessions of the user that may receive the packet, so that sessions reached
+     * through more than one address are only included once. A message to a user without
+     * such sessions keeps the bare JID so that it is stored offline, while presences cannot
+     * be routed to bare JIDs.
+     *
+     * @param recipients the recipients listed by the packet.
+     * @param packet the packet to route.
+     * @return the addresses to route the packet to.
+     */
+    List<JID> getRoutes(List<JID> recipients, Packet packet) {
+        Set<JID> routes = new LinkedHashSet<JID>();
+        for (JID recipient : recipients) {
+            if (recipient.getResource() == null && serverName.equals(recipient.getDomain())) {
+                List<JID> sessions = routingTable.getRoutes(recipient, packet.getFrom());
+                if (sessions.isEmpty() && packet instanceof Message) {
+                    routes.add(recipient);
+                }
+                else {
+                    routes.addAll(sessions);
+                }
+            }
+            else {
+                routes.add(recipient);
+            }
+        }
+        return new ArrayList<JID>(routes);
+    }
+
+    /**
+     * Returns the packet to its sender with the specified error.
+     */
+    private void bounce(Packet packet, PacketError.Condition condition) {
+        JID sender = packet.getFrom();
+        if (sender == null || isError(packet)) {
+            return;
+        }
+        Packet reply;
+        if (packet instanceof IQ) {
+            IQ iq = (IQ) packet;
+            IQ result = IQ.createResultIQ(iq);
+            if (iq.getChildElement() != null) {
+                result.setChildElement(iq.getChildElement().createCopy());
+            }
+            reply = result;
+        }
+        else {
+            reply = packet.createCopy();
+            reply.setTo(sender);
+            reply.setFrom(packet.getTo());
+        }
+        reply.setError(condition);
+        routingTable.routePacket(sender, reply, true);
+    }
+
+    private static boolean isError(Packet packet) {
+        if (packet instanceof Message) {
+            return ((Message) packet).getType() == Message.Type.error;
+        }
+        if (packet instanceof Presence) {
+            return ((Presence) packet).getType() == Presence.Type.error;
+        }
+        IQ.Type type = ((IQ) packet).getType();
+        return type == IQ.Type.error || type == IQ.Type.result;
+    }
+
+    /**
+     * Returns the number of packets that were multicast.
+     *
+     * @return the number of packets that were multicast.
+     */
+    public long getPacketCount() {
+        return packets.get();
+    }
+
+    /**
+     * Returns the number of copies of multicast packets that were delivered.
+     *
+     * @return the number of copies of multicast packets that were delivered.
+     */
+    public long getDeliveryCount() {
+        return deliveries.get();
+    }
+
+    public Iterator<String> getFeatures() {
+        return Collections.singleton(NAMESPACE).iterator();
+    }
+
+    @Override
+    public void initialize(XmppServer server) {
+        super.initialize(server);
+        routingTable = server.getRoutingTable();
+        serverName = server.getServerInfo().getXMPPDomain();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        Log.info("Multicast packets: " + getPacketCount() + ", copies delivered: " + getDeliveryCount());
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 B5Chat Community. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.b5chat.crossfire.xmpp.route;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.xmpp.packet.JID;
+
+/**
+ * Internal component used by the {@link RoutingTableImpl} to keep the routes to client sessions
+ * (anonymous or not) of each user. Routes are indexed by the bare JID of the user and the routes
+ * of a user are kept in an immutable array, one {@link ClientRoute} per resource.<p>
+ *
+ * Reads never lock: they get the array of the user and scan it (users have a few resources).
+ * Adding, updating or removing a route copies the array of the user and replaces the old array
+ * only if no other thread replaced it in the meantime, otherwise the update is tried again.
+ * Updates of different users never contend.<p>
+ *
+ * Along with its routes each user keeps the routes that should get the messages sent to the bare
+ * JID of the user (see {@link UserRoutes#getTargets(boolean)}). The targets are selected when the
+ * routes of the user change, i.e. when a session is added or removed or changes its availability,
+ * presence priority or show value, instead of every time that a message is delivered.
+ */
+class RouteIndex {
+
+    private static final ClientRoute[] NO_ROUTES = new ClientRoute[0];
+
+    private static final UserRoutes NO_USER_ROUTES = new UserRoutes(NO_ROUTES);
+
+    private final ConcurrentMap<String, UserRoutes> routes = new ConcurrentHashMap<String, UserRoutes>();
+
+    /**
+     * Adds the route to a session or replaces the route of the session if it already
+     * had one.
+     *
+     * @param route the route to the session.
+     * @return true if the session did not have a route.
+     */
+    boolean put(ClientRoute route) {
+        JID address = route.getAddress();
+        String user = address.toBareJID();
+        while (true) {
+            UserRoutes entry = routes.get(user);
+            if (entry == null) {
+                if (routes.putIfAbsent(user, new UserRoutes(new ClientRoute[] {route})) == null) {
+                    return true;
+                }
+                continue;
+            }
+            ClientRoute[] current = entry.routes;
+            int index = indexOf(current, address);
+            ClientRoute[] updated;
+            if (index < 0) {
+                updated = new ClientRoute[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, current.length);
+                updated[current.length] = route;
+            }
+            else {
+                updated = current.clone();
+                updated[index] = route;
+            }
+            if (routes.replace(user, entry, new UserRoutes(updated))) {
+                return index < 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the route to the session of the specified full JID or <tt>null</tt> if
+     * the session has no route.
+     *
+     * @param address the full JID of the session.
+     * @return the route to the session or null if none.
+     */
+    ClientRoute get(JID address) {
+        UserRoutes entry = routes.get(address.toBareJID());
+        if (entry == null) {
+            return null;
+        }
+        int index = indexOf(entry.routes, address);
+        return index < 0 ? null : entry.routes[index];
+    }
+
+    /**
+     * Returns the routes to the sessions of a user. The returned array must not be modified.
+     *
+     * @param user the bare JID of the user.
+     * @return the routes to the sessions of the user or an empty array if none.
+     */
+    ClientRoute[] getRoutes(JID user) {
+        return getUserRoutes(user).getRoutes();
+    }
+
+    /**
+     * Returns the routes to the sessions of a user along with the targets of the messages sent
+     * to the bare JID of the user.
+     *
+     * @param user the bare JID of the user.
+     * @return the routes of the user (with no routes if the user has no sessions).
+     */
+    UserRoutes getUserRoutes(JID user) {
+        UserRoutes entry = routes.get(user.toBareJID());
+        return entry == null ? NO_USER_ROUTES : entry;
+    }
+
+    /**
+     * Removes the route to the session of the specified full JID.
+     *
+     * @param address the full JID of the session.
+     * @return the removed route or <tt>null</tt> if the session had no route.
+     */
+    ClientRoute remove(JID address) {
+        String user = address.toBareJID();
+        while (true) {
+            UserRoutes entry = routes.get(user);
+            if (entry == null) {
+                return null;
+            }
+            ClientRoute[] current = entry.routes;
+            int index = indexOf(current, address);
+            if (index < 0) {
+                return null;
+            }
+            boolean removed;
+            if (current.length == 1) {
+                removed = routes.remove(user, entry);
+            }
+            else {
+                ClientRoute[] updated = new ClientRoute[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, updated.length - index);
+                removed = routes.replace(user, entry, new UserRoutes(updated));
+            }
+            if (removed) {
+                return current[index];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of users that have at least one route.
+     *
+     * @return the number of users with routes.
+     */
+    int size() {
+        return routes.size();
+    }
+
+    private static int indexOf(ClientRoute[] routes, JID address) {
+        String resource = address.getResource();
+        for (int i = 0; i < routes.length; i++) {
+            String other = routes[i].getAddress().getResource();
+            if (resource == null ? other == null : resource.equals(other)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the routes that should get a message sent to the bare JID of a user. Only
+     * routes whose presence priority is the highest and not negative are considered. Unless
+     * all of them should get the message, only the ones with the highest show value (chat,
+     * available, away, xa, dnd) are returned.
+     *
+     * @param candidates the routes to the sessions that can get the message.
+     * @param allResources true if all the routes with the highest priority should get the message.
+     * @return the routes that should get the message or an empty array if none.
+     */
+    static ClientRoute[] selectTargets(ClientRoute[] candidates, boolean allResources) {
+        int highest = Integer.MIN_VALUE;
+        int show = Integer.MAX_VALUE;
+        for (ClientRoute route : candidates) {
+            int priority = route.getPriority();
+            if (priority < 0 || priority < highest) {
+                continue;
+            }
+            if (priority > highest) {
+                highest = priority;
+                show = route.getShowValue();
+            }
+            else if (route.getShowValue() < show) {
+                show = route.getShowValue();
+            }
+        }
+        if (highest == Integer.MIN_VALUE) {
+            return NO_ROUTES;
+        }
+        int count = 0;
+        ClientRoute[] targets = new ClientRoute[candidates.length];
+        for (ClientRoute route : candidates) {
+            if (route.getPriority() == highest && (allResources || route.getShowValue() == show)) {
+                targets[count++] = route;
+            }
+        }
+        if (count < targets.length) {
+            ClientRoute[] answer = new ClientRoute[count];
+            System.arraycopy(targets, 0, answer, 0, count);
+            return answer;
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the target whose session had the most recent activity.
+     *
+     * @param targets the routes that could get a message (at least one).
+     * @return the route whose session had the most recent activity.
+     */
+    static ClientRoute selectMostRecent(ClientRoute[] targets) {
+        ClientRoute answer = targets[0];
+        if (targets.length > 1) {
+            long lastActive = answer.getSession().getLastActiveTime();
+            for (int i = 1; i < targets.length; i++) {
+                long time = targets[i].getSession().getLastActiveTime();
+                if (time > lastActive) {
+                    answer = targets[i];
+                    lastActive = time;
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Immutable routes to the sessions of a user.
+     */
+    static final class UserRoutes {
+
+        private final ClientRoute[] routes;
+        private final ClientRoute[] targets;
+        private final ClientRoute[] allTargets;
+        private final boolean unavailable;
+
+        UserRoutes(ClientRoute[] routes) {
+            this.routes = routes;
+            int available = 0;
+            for (ClientRoute route : routes) {
+                if (isCandidate(route)) {
+                    available++;
+                }
+            }
+            ClientRoute[] candidates = routes;
+            if (available < routes.length) {
+                candidates = new ClientRoute[available];
+                int i = 0;
+                for (ClientRoute route : routes) {
+                    if (isCandidate(route)) {
+                        candidates[i++] = route;
+                    }
+                }
+            }
+            this.unavailable = available < routes.length;
+            this.targets = selectTargets(candidates, false);
+            this.allTargets = selectTargets(candidates, true);
+        }
+
+        /**
+         * Returns the routes to the sessions of the user. The returned array must not be modified.
+         *
+         * @return the routes to the sessions of the user.
+         */
+        ClientRoute[] getRoutes() {
+            return routes;
+        }
+
+        /**
+         * Returns the available routes that should get a message sent to the bare JID of
+         * the user, as selected by {@link RouteIndex#selectTargets(ClientRoute[], boolean)}.
+         * The returned array must not be modified.
+         *
+         * @param allResources true if all the routes with the highest priority should get
+         *        the message.
+         * @return the available routes that should get the message or an empty array if none.
+         */
+        ClientRoute[] getTargets(boolean allResources) {
+            return allResources ? allTargets : targets;
+        }
+
+        /**
+         * Returns true if the user has sessions that are not available. Unavailable sessions
+         * that sent a directed presence to the sender of a message may also get the message.
+         *
+         * @return true if the user has unavailable sessions.
+         */
+        boolean hasUnavailableRoutes() {
+            return unavailable;
+        }
+
+        private static boolean isCandidate(ClientRoute route) {
+            return route.isAvailable() && route.getAddress().getResource() != null;
+        }
+    }
+}
@@ -21,18 +21,11 @@
 package org.b5chat.crossfire.xmpp.route;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
 
 import org.b5chat.crossfire.core.container.BasicModule;
 import org.b5chat.crossfire.core.property.Globals;
-import org.b5chat.crossfire.core.util.ConcurrentHashSet;
-import org.b5chat.crossfire.core.util.cache.Cache;
-import org.b5chat.crossfire.core.util.cache.CacheFactory;
 import org.b5chat.crossfire.xmpp.PacketException;
 import org.b5chat.crossfire.xmpp.auth.UnauthorizedException;
 import org.b5chat.crossfire.xmpp.presence.PresenceRouter;
@@ -68,26 +61,14 @@ public class RoutingTableImpl extends BasicModule implements IRoutingTable {
 
 	private static final Logger Log = LoggerFactory.getLogger(RoutingTableImpl.class);
 	
-    public static final String C2S_CACHE_NAME = "Routing Users Cache";
-    public static final String ANONYMOUS_C2S_CACHE_NAME = "Routing AnonymousUsers Cache";
     public static final String COMPONENT_CACHE_NAME = "Routing Components Cache";
 
     /**
-     * Cache (unlimited, never expire) that holds sessions of user that have authenticated with the server.
-     * Key: full JID, Value: {nodeID, available/unavailable}
+     * Routes to the sessions of users (anonymous or not) that have authenticated with the server.
+     * Key: bare JID, Value: {full JID, nodeID, anonymous, available/unavailable, priority} of
+     * each session of the user
      */
-    private Cache<String, ClientRoute> usersCache;
-    /**
-     * Cache (unlimited, never expire) that holds sessions of anonymous user that have authenticated with the server.
-     * Key: full JID, Value: {nodeID, available/unavailable}
-     */
-    private Cache<String, ClientRoute> anonymousUsersCache;
-    /**
-     * Cache (unlimited, never expire) that holds list of connected resources of authenticated users
-     * (includes anonymous).
-     * Key: bare JID, Value: list of full JIDs of the user
-     */
-    private Cache<String, Collection<String>> usersSessions;
+    private RouteIndex userRoutes;
 
     private String serverName;
     private XmppServer server;
@@ -99,73 +80,20 @@ public class RoutingTableImpl extends BasicModule implements IRoutingTable {
 
     public RoutingTableImpl() {
         super("Routing table");
-        usersCache = CacheFactory.createCache(C2S_CACHE_NAME);
-        anonymousUsersCache = CacheFactory.createCache(ANONYMOUS_C2S_CACHE_NAME);
-        usersSessions = CacheFactory.createCache("Routing User Sessions");
+        userRoutes = new RouteIndex();
         localRoutingTable = new LocalRoutingTable();
     }
 
     public boolean addClientRoute(JID route, LocalClientSession destination) {
-        boolean added;
-        boolean available = destination.getPresence().isAvailable();
         localRoutingTable.addRoute(route.toString(), destination);
-        if (destination.getAuthToken().isAnonymous()) {
-            Lock lockAn = CacheFactory.getLock(route.toString(), anonymousUsersCache);
-            try {
-                lockAn.lock();
-                added = anonymousUsersCache.put(route.toString(), new ClientRoute(server.getNodeID(), available)) ==
-                        null;
-            }
-            finally {
-                lockAn.unlock();
-            }
-            // Add the session to the list of user sessions
-            if (route.getResource() != null && (!available || added)) {
-                Lock lock = CacheFactory.getLock(route.toBareJID(), usersSessions);
-                try {
-                    lock.lock();
-                    usersSessions.put(route.toBareJID(), Arrays.asList(route.toString()));
-                }
-                finally {
-                    lock.unlock();
-                }
-            }
-        }
-        else {
-            Lock lockU = CacheFactory.getLock(route.toString(), usersCache);
-            try {
-                lockU.lock();
-                added = usersCache.put(route.toString(), new ClientRoute(server.getNodeID(), available)) == null;
-            }
-            finally {
-                lockU.unlock();
-            }
-            // Add the session to the list of user sessions
-            if (route.getResource() != null && (!available || added)) {
-                Lock lock = CacheFactory.getLock(route.toBareJID(), usersSessions);
-                try {
-                    lock.lock();
-                    Collection<String> jids = usersSessions.get(route.toBareJID());
-                    if (jids == null) {
-                        jids = new ConcurrentHashSet<String>();
-                    }
-                    jids.add(route.toString());
-                    usersSessions.put(route.toBareJID(), jids);
-                }
-                finally {
-                    lock.unlock();
-                }
-            }
-        }
-        return added;
+        return userRoutes.put(new ClientRoute(server.getNodeID(), route, destination,
+                destination.getAuthToken().isAnonymous()));
     }
 
     public void broadcastPacket(Message packet, boolean onlyLocal) {
-        // Send the message to client sessions connected to this JVM
-        for(IClientSession session : localRoutingTable.getClientRoutes()) {
-            session.process(packet);
-        }
-   }
+        // Send the message to client sessions connected to this JVM from a background job
+        new BroadcastJob(packet, localRoutingTable.getClientRoutes()).start();
+    }
 
     /*
      * (non-Javadoc)
@@ -232,10 +160,7 @@ public class RoutingTableImpl extends BasicModule implements IRoutingTable {
 		}
 		else {
 		    // Packet sent to local user (full JID)
-		    ClientRoute clientRoute = usersCache.get(jid.toString());
-		    if (clientRoute == null) {
-		        clientRoute = anonymousUsersCache.get(jid.toString());
-		    }
+		    ClientRoute clientRoute = userRoutes.get(jid);
 		    if (clientRoute != null) {
 		        if (!clientRoute.isAvailable() && routeOnlyAvailable(packet, fromServer) &&
 		                !presenceUpdateHandler.hasDirectPresence(packet.getTo(), packet.getFrom())) {
@@ -298,127 +223,52 @@ public class RoutingTableImpl extends BasicModule implements IRoutingTable {
      *
      * Admins can override the above logic and just send the message to all connected resources
      * with highest priority by setting the system property <tt>route.all-resources</tt> to
-     * <tt>true</tt>.
+     * <tt>true</tt>.<p>
+     *
+     * The sessions with highest priority and show value are selected whenever the routes of the
+     * user change (see {@link RouteIndex.UserRoutes}), so only the most recent activity of those
+     * sessions is checked here. The sessions are selected again only if the user has unavailable
+     * sessions, since those may have sent a directed presence to the sender of the message.
      *
      * @param recipientJID the bare JID of the target local user.
      * @param packet the message to send.
      * @return true if at least one target session was found
      */
     private boolean routeToBareJID(JID recipientJID, Message packet) {
-        List<IClientSession> sessions = new ArrayList<IClientSession>();
-        // Get existing AVAILABLE sessions of this user or AVAILABLE to the sender of the packet
-        for (JID address : getRoutes(recipientJID, packet.getFrom())) {
-            IClientSession session = getClientRoute(address);
-            if (session != null) {
-                sessions.add(session);
+        boolean allResources = Globals.getBooleanProperty("route.all-resources", false);
+        RouteIndex.UserRoutes routes = userRoutes.getUserRoutes(recipientJID);
+        ClientRoute[] targets = routes.getTargets(allResources);
+        if (routes.hasUnavailableRoutes() && packet.getFrom() != null) {
+            // Get existing AVAILABLE sessions of this user or AVAILABLE to the sender of the packet
+            List<ClientRoute> candidates = new ArrayList<ClientRoute>();
+            for (ClientRoute route : routes.getRoutes()) {
+                JID address = route.getAddress();
+                if (address.getResource() != null && (route.isAvailable() ||
+                        presenceUpdateHandler.hasDirectPresence(address, packet.getFrom()))) {
+                    candidates.add(route);
+                }
             }
+            targets = RouteIndex.selectTargets(candidates.toArray(new ClientRoute[candidates.size()]),
+                    allResources);
         }
-        sessions = getHighestPrioritySessions(sessions);
-        if (sessions.isEmpty()) {
+        if (targets.length == 0) {
             // No session is available so store offline
         	Log.debug("Unable to route packet. No session is available so store offline. {} ", packet.toXML());
             return false;
         }
-        else if (sessions.size() == 1) {
-            // Found only one session so deliver message
-            sessions.get(0).process(packet);
+        else if (!allResources) {
+            // Deliver stanza to session with highest priority, highest show value and most recent activity
+            RouteIndex.selectMostRecent(targets).getSession().process(packet);
         }
         else {
-            // Many sessions have the highest priority (be smart now) :)
-            if (!Globals.getBooleanProperty("route.all-resources", false)) {
-                // Sort sessions by show value (e.g. away, xa)
-                Collections.sort(sessions, new Comparator<IClientSession>() {
-
-                    public int compare(IClientSession o1, IClientSession o2) {
-                        int thisVal = getShowValue(o1);
-                        int anotherVal = getShowValue(o2);
-                        return (thisVal<anotherVal ? -1 : (thisVal==anotherVal ? 0 : 1));
-                    }
-
-                    /**
-                     * Priorities are: chat, available, away, xa, dnd.
-                     */
-                    private int getShowValue(IClientSession session) {
-                        Presence.Show show = session.getPresence().getShow();
-                        if (show == Presence.Show.chat) {
-                            return 1;
-                        }
-                        else if (show == null) {
-                            return 2;
-                        }
-                        else if (show == Presence.Show.away) {
-                            return 3;
-                        }
-                        else if (show == Presence.Show.xa) {
-                            return 4;
-                        }
-                        else {
-                            return 5;
-                        }
-                    }
-                });
-
-                // Get same sessions with same max show value
-                List<IClientSession> targets = new ArrayList<IClientSession>();
-                Presence.Show showFilter = sessions.get(0).getPresence().getShow();
-                for (IClientSession session : sessions) {
-                    if (session.getPresence().getShow() == showFilter) {
-                        targets.add(session);
-                    }
-                    else {
-                        break;
-                    }
-                }
-
-                // Get session with most recent activity (and highest show value)
-                Collections.sort(targets, new Comparator<IClientSession>() {
-                    public int compare(IClientSession o1, IClientSession o2) {
-                        return o2.getLastActiveDate().compareTo(o1.getLastActiveDate());
-                    }
-                });
-                // Deliver stanza to session with highest priority, highest show value and most recent activity
-                targets.get(0).process(packet);
-            }
-            else {
-                // Deliver stanza to all connected resources with highest priority
-                for (IClientSession session : sessions) {
-                    session.process(packet);
-                }
+            // Deliver stanza to all connected resources with highest priority
+            for (ClientRoute target : targets) {
+                target.getSession().process(packet);
             }
         }
         return true;
     }
 
-    /**
-     * Returns the sessions that had the highest presence priority greater than zero.
-     *
-     * @param sessions the list of user sessions that filter and get the ones with highest priority.
-     * @return the sessions that had the highest presence priority greater than zero or empty collection
-     *         if all were negative.
-     */
-    private List<IClientSession> getHighestPrioritySessions(List<IClientSession> sessions) {
-        int highest = Integer.MIN_VALUE;
-        // Get the highest priority amongst the sessions
-        for (IClientSession session : sessions) {
-            int priority = session.getPresence().getPriority();
-            if (priority >= 0 && priority > highest) {
-                highest = priority;
-            }
-        }
-        // Answer an empty collection if all have negative priority
-        if (highest == Integer.MIN_VALUE) {
-            return Collections.emptyList();
-        }
-        // Get sessions that have the highest priority
-        List<IClientSession> answer = new ArrayList<IClientSession>(sessions.size());
-        for (IClientSession session : sessions) {
-            if (session.getPresence().getPriority() == highest) {
-                answer.add(session);
-            }
-        }
-        return answer;
-    }
-
     public IClientSession getClientRoute(JID jid) {
         // Check if this session is hosted by this cluster node
         IClientSession session = (IClientSession) localRoutingTable.getRoute(jid.toString());
@@ -432,11 +282,12 @@ public class RoutingTableImpl extends BasicModule implements IRoutingTable {
     }
 
     public boolean hasClientRoute(JID jid) {
-        return usersCache.containsKey(jid.toString()) || isAnonymousRoute(jid);
+        return userRoutes.get(jid) != null;
     }
 
     public boolean isAnonymousRoute(JID jid) {
-        return anonymousUsersCache.containsKey(jid.toString());
+        ClientRoute clientRoute = userRoutes.get(jid);
+        return clientRoute != null && clientRoute.isAnonymous();
     }
 
     public boolean isLocalRoute(JID jid) {
@@ -449,10 +300,7 @@ public class RoutingTableImpl extends BasicModule implements IRoutingTable {
             // Address belongs to local user
             if (route.getResource() != null) {
                 // Address is a full JID of a user
-                ClientRoute clientRoute = usersCache.get(route.toString());
-                if (clientRoute == null) {
-                    clientRoute = anonymousUsersCache.get(route.toString());
-                }
+                ClientRoute clientRoute = userRoutes.get(route);
                 if (clientRoute != null &&
                         (clientRoute.isAvailable() || presenceUpdateHandler.hasDirectPresence(route, requester))) {
                     jids.add(route);
@@ -460,18 +308,12 @@ public class RoutingTableImpl extends BasicModule implements IRoutingTable {
             }
             else {
                 // Address is a bare JID so return all AVAILABLE resources of user
-                Collection<String> sessions = usersSessions.get(route.toBareJID());
-                if (sessions != null) {
-                    // Select only available sessions
-                    for (String jid : sessions) {
-                        ClientRoute clientRoute = usersCache.get(jid);
-                        if (clientRoute == null) {
-                            clientRoute = anonymousUsersCache.get(jid);
-                        }
-                        if (clientRoute != null && (clientRoute.isAvailable() ||
-                                presenceUpdateHandler.hasDirectPresence(new JID(jid), requester))) {
-                            jids.add(new JID(jid));
-                        }
+                // Select only available sessions
+                for (ClientRoute clientRoute : userRoutes.getRoutes(route)) {
+                    JID resource = clientRoute.getAddress();
+                    if (resource.getResource() != null && (clientRoute.isAvailable() ||
+                            presenceUpdateHandler.hasDirectPresence(resource, requester))) {
+                        jids.add(resource);
                     }
                 }
             }
@@ -484,53 +326,8 @@ public class RoutingTableImpl extends BasicModule implements IRoutingTable {
     }
 
     public boolean removeClientRoute(JID route) {
-        boolean anonymous = false;
-        String address = route.toString();
-        ClientRoute clientRoute = null;
-        Lock lockU = CacheFactory.getLock(address, usersCache);
-        try {
-            lockU.lock();
-            clientRoute = usersCache.remove(address);
-        }
-        finally {
-            lockU.unlock();
-        }
-        if (clientRoute == null) {
-            Lock lockA = CacheFactory.getLock(address, anonymousUsersCache);
-            try {
-                lockA.lock();
-                clientRoute = anonymousUsersCache.remove(address);
-                anonymous = true;
-            }
-            finally {
-                lockA.unlock();
-            }
-        }
-        if (clientRoute != null && route.getResource() != null) {
-            Lock lock = CacheFactory.getLock(route.toBareJID(), usersSessions);
-            try {
-                lock.lock();
-                if (anonymous) {
-                    usersSessions.remove(route.toBareJID());
-                }
-                else {
-                    Collection<String> jids = usersSessions.get(route.toBareJID());
-                    if (jids != null) {
-                        jids.remove(route.toString());
-                        if (!jids.isEmpty()) {
-                            usersSessions.put(route.toBareJID(), jids);
-                        }
-                        else {
-                            usersSessions.remove(route.toBareJID());
-                        }
-                    }
-                }
-            }
-            finally {
-                lock.unlock();
-            }
-        }
-        localRoutingTable.removeRoute(address);
+        ClientRoute clientRoute = userRoutes.remove(route);
+        localRoutingTable.removeRoute(route.toString());
         return clientRoute != null;
     }
 
@@ -29,6 +29,7 @@ import java.util.List;
 import org.b5chat.crossfire.core.container.IModule;
 import org.b5chat.crossfire.core.lockout.LockOutManager;
 import org.b5chat.crossfire.core.server.Server;
+import org.b5chat.crossfire.core.util.JIDCache;
 import org.b5chat.crossfire.database.DbConnectionManager;
 import org.b5chat.crossfire.xmpp.auth.IQAuthHandler;
 import org.b5chat.crossfire.xmpp.disco.IQDiscoInfoHandler;
@@ -161,7 +162,7 @@ public class XmppServer extends Server {
      * @return an XMPPAddress for the server.
      */
     public JID createJID(String username, String resource) {
-        return new JID(username, getName(), resource);
+        return JIDCache.get(username, getName(), resource);
     }
 
     /**
@@ -97,6 +97,14 @@ public interface ISession extends IRoutableChannelHandler {
      */
     public Date getLastActiveDate();
 
+    /**
+     * Obtain the time the session last had activity in milliseconds. Unlike
+     * {@link #getLastActiveDate()} no object is created.
+     *
+     * @return The last time the session received activity.
+     */
+    public long getLastActiveTime();
+
     /**
      * Obtain the number of packets sent from the client to the server.
      *
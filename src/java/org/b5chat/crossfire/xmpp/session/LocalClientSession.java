@@ -362,6 +362,32 @@ public class LocalClientSession extends LocalSession implements IClientSession {
         }
     }
 
+    /**
+     * Returns whether stream compression (XEP-0138) is offered to clients.
+     *
+     * @return whether stream compression is offered to clients.
+     */
+    public static IConnection.CompressionPolicy getCompressionPolicy() {
+        String policyName = Globals.getProperty("xmpp.client.compression.policy",
+                IConnection.CompressionPolicy.optional.toString());
+        try {
+            return IConnection.CompressionPolicy.valueOf(policyName);
+        }
+        catch (IllegalArgumentException e) {
+            Log.error("Error parsing xmpp.client.compression.policy: " + policyName, e);
+            return IConnection.CompressionPolicy.optional;
+        }
+    }
+
+    /**
+     * Sets whether stream compression (XEP-0138) is offered to clients.
+     *
+     * @param compressionPolicy whether stream compression is offered to clients.
+     */
+    public static void setCompressionPolicy(IConnection.CompressionPolicy compressionPolicy) {
+        Globals.setProperty("xmpp.client.compression.policy", compressionPolicy.toString());
+    }
+
     /**
      * Returns the Privacy list that overrides the default privacy list. This list affects
      * only this session and only for the duration of the session.
@@ -475,6 +501,8 @@ public class LocalClientSession extends LocalSession implements IClientSession {
         setAddress(new JID(auth.getUsername(), getServerName(), resource));
         authToken = auth;
         setStatus(ISession.STATUS_AUTHENTICATED);
+        // Shape incoming traffic using the limits of authenticated users
+        conn.setTrafficClass("user");
 
         // Set default privacy list for this session
         setDefaultList(PrivacyListManager.getInstance().getDefaultPrivacyList(auth.getUsername()));
@@ -495,6 +523,8 @@ public class LocalClientSession extends LocalSession implements IClientSession {
         if (authToken == null) {
             authToken = new AuthToken(resource, true);
         }
+        // Shape incoming traffic using the limits of anonymous users
+        conn.setTrafficClass("anonymous");
         // Add session to the session manager. The session will be added to the routing table as well
         sessionManager.addSession(this);
     }
@@ -638,6 +668,10 @@ public class LocalClientSession extends LocalSession implements IClientSession {
             PresenceEventDispatcher.presenceChanged(this, presence);
         }
         else if (this.presence.isAvailable()) {
+            if (oldPresence.getShow() != this.presence.getShow()) {
+                // The client has changed the show value of his presence
+                sessionManager.changeShow(this);
+            }
             // Notify listeners that the show or status value of the presence has changed
             PresenceEventDispatcher.presenceChanged(this, presence);
         }
@@ -647,6 +681,11 @@ public class LocalClientSession extends LocalSession implements IClientSession {
 	public String getAvailableStreamFeatures() {
         StringBuilder sb = new StringBuilder(200);
 
+        // Offer stream compression unless it is disabled or the stream is already compressed
+        if (!conn.isCompressed() && getCompressionPolicy() == IConnection.CompressionPolicy.optional) {
+            sb.append("<compression xmlns=\"http://jabber.org/features/compress\"><method>zlib</method></compression>");
+        }
+
         if (getAuthToken() == null) {
             // Advertise that the server supports Non-SASL Authentication
             sb.append("<auth xmlns=\"http://jabber.org/features/iq-auth\"/>");
@@ -194,6 +194,10 @@ public abstract class LocalSession implements ISession {
         return new Date(lastActiveDate);
     }
 
+    public long getLastActiveTime() {
+        return lastActiveDate;
+    }
+
     /**
      * Increments the number of packets sent from the client to the server.
      */
@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.b5chat.crossfire.core.container.BasicModule;
+import org.b5chat.crossfire.core.nio.PacketBroadcast;
 import org.b5chat.crossfire.core.property.Globals;
 import org.b5chat.crossfire.core.util.LocaleUtils;
 import org.b5chat.crossfire.core.util.cache.Cache;
@@ -239,14 +240,20 @@ public class SessionManager extends BasicModule {
         // Get list of sessions of the same user
         JID searchJID = new JID(originatingResource.getNode(), originatingResource.getDomain(), null);
         List<JID> addresses = routingTable.getRoutes(searchJID, null);
-        for (JID address : addresses) {
-            if (address.equals(originatingResource)) {
-                continue;
+        PacketBroadcast.begin(presence);
+        try {
+            for (JID address : addresses) {
+                if (address.equals(originatingResource)) {
+                    continue;
+                }
+                // Send the presence of the session whose presence has changed to
+                // this other user's session
+                presence.setTo(address);
+                routingTable.routePacket(address, presence, false);
             }
-            // Send the presence of the session whose presence has changed to
-            // this other user's session
-            presence.setTo(address);
-            routingTable.routePacket(address, presence, false);
+        }
+        finally {
+            PacketBroadcast.end();
         }
     }
 
@@ -265,6 +272,16 @@ public class SessionManager extends BasicModule {
         }
     }
 
+    /**
+     * Change the show value of a session, that was already available, associated with the sender.
+     *
+     * @param session The session whose presence show value has been modified
+     */
+    public void changeShow(LocalClientSession session) {
+        // Update the show value kept by the route to the session
+        routingTable.addClientRoute(session.getAddress(), session);
+    }
+
     /**
      * Change the priority of a session, that was already available, associated with the sender.
      *
@@ -272,6 +289,8 @@ public class SessionManager extends BasicModule {
      * @param oldPriority The old priority for the session
      */
     public void changePriority(LocalClientSession session, int oldPriority) {
+        // Update the priority kept by the route to the session
+        routingTable.addClientRoute(session.getAddress(), session);
         if (session.getAuthToken().isAnonymous()) {
             // Do nothing if the session belongs to an anonymous user
             return;
@@ -451,7 +470,8 @@ public class SessionManager extends BasicModule {
 
     /**
      * Broadcasts the given data to all connected sessions. Excellent
-     * for server administration messages.
+     * for server administration messages. The message is delivered in the
+     * background, see {@link org.b5chat.crossfire.xmpp.route.BroadcastJob}.
      *
      * @param packet the packet to be broadcast.
      */
@@ -37,6 +37,7 @@ import org.b5chat.crossfire.core.util.ClassUtils;
 import org.b5chat.crossfire.core.util.StringUtils;
 import org.b5chat.crossfire.core.util.cache.Cache;
 import org.b5chat.crossfire.core.util.cache.CacheFactory;
+import org.b5chat.crossfire.core.util.cache.CacheLoader;
 import org.b5chat.crossfire.xmpp.server.XmppServer;
 import org.dom4j.Element;
 import org.slf4j.Logger;
@@ -83,6 +84,12 @@ public class UserManager implements IQResultListener {
 
     /** Cache of local users. */
     private Cache<String, User> userCache;
+    private final CacheLoader<String, User, UserNotFoundException> userLoader =
+            new CacheLoader<String, User, UserNotFoundException>() {
+        public User load(String username) throws UserNotFoundException {
+            return provider.loadUser(username);
+        }
+    };
     /** Cache if a local or remote user exists. */
     private Cache<String, Boolean> remoteUsersCache;
     private IUserProvider provider;
@@ -225,17 +232,7 @@ public class UserManager implements IQResultListener {
         }
         // Make sure that the username is valid.
         username = username.trim().toLowerCase();
-        User user = userCache.get(username);
-        if (user == null) {
-            synchronized (username.intern()) {
-                user = userCache.get(username);
-                if (user == null) {
-                    user = provider.loadUser(username);
-                    userCache.put(username, user);
-                }
-            }
-        }
-        return user;
+        return userCache.get(username, userLoader);
     }
 
     /**
@@ -0,0 +1,124 @@
+package org.b5chat.crossfire.core.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.common.IoSession;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link TrafficShapingFilter}.
+ */
+public class TrafficShapingFilterTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testBucket() {
+        TrafficShapingFilter.Bucket bucket = new TrafficShapingFilter.Bucket(
+                new TrafficShapingFilter.Rate(1000, 2000), 0);
+        // The bucket starts full
+        assertEquals(0, bucket.take(2000, 0));
+        // 500 bytes over the limit take half a second to be refilled
+        assertEquals(500, bucket.take(500, 0));
+        assertEquals(250, bucket.take(0, SECOND / 4));
+        assertEquals(0, bucket.take(0, SECOND / 2));
+        // The bucket never holds more than the burst
+        assertEquals(0, bucket.take(2000, 10 * SECOND));
+        assertEquals(1, bucket.take(1, 10 * SECOND));
+    }
+
+    @Test
+    public void testBucketAfterLongIdleTime() {
+        TrafficShapingFilter.Bucket bucket = new TrafficShapingFilter.Bucket(
+                new TrafficShapingFilter.Rate(1048576, 65536), 0);
+        assertEquals(1000, bucket.take(65536 + 1048576, 0));
+        // Long enough for elapsed nanoseconds times the rate to overflow
+        long now = 3 * 3600 * SECOND;
+        assertEquals(0, bucket.take(65536, now));
+        assertEquals(1, bucket.take(1, now));
+        assertEquals(0, bucket.take(0, now + SECOND));
+    }
+
+    @Test
+    public void testSuspendAndResume() {
+        List<String> calls = new ArrayList<String>();
+        TestFilter filter = new TestFilter();
+        IoSession session = createSession(calls);
+        TrafficShapingFilter.Bucket bucket = new TrafficShapingFilter.Bucket(
+                new TrafficShapingFilter.Rate(1000, 1000), 0);
+
+        filter.shape(session, bucket, 800, 0);
+        assertTrue(calls.isEmpty());
+        filter.shape(session, bucket, 700, 0);
+        assertEquals("[suspendRead]", calls.toString());
+        assertEquals(1, filter.getThrottledSessions());
+        assertEquals(500, filter.getThrottledBytes());
+        assertEquals(500, filter.delay);
+
+        // Bytes that were read while suspending reads are accounted too
+        filter.shape(session, bucket, 100, 0);
+        assertEquals(1, filter.getThrottles());
+        assertEquals(600, filter.getThrottledBytes());
+
+        // Not refilled yet so keep waiting
+        filter.resume(session, bucket, SECOND / 2);
+        assertEquals("[suspendRead]", calls.toString());
+        assertEquals(100, filter.delay);
+
+        filter.resume(session, bucket, SECOND * 6 / 10);
+        assertEquals("[suspendRead, resumeRead]", calls.toString());
+        assertEquals(0, filter.getThrottledSessions());
+        assertFalse(bucket.suspended);
+    }
+
+    @Test
+    public void testRateChange() {
+        TrafficShapingFilter.Bucket bucket = new TrafficShapingFilter.Bucket(null, 0);
+        assertEquals(0, bucket.take(100000, 0));
+        bucket.setRate(new TrafficShapingFilter.Rate(1000, 1000), 0);
+        assertEquals(0, bucket.take(1000, 0));
+        bucket.setRate(new TrafficShapingFilter.Rate(100, 100), 0);
+        assertEquals(10, bucket.take(1, 0));
+    }
+
+    private static class TestFilter extends TrafficShapingFilter {
+
+        private long delay;
+
+        TestFilter() {
+            super("test");
+        }
+
+        @Override
+        void scheduleResume(IoSession session, Bucket bucket, long delay) {
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * Creates a session that keeps the name of the invoked methods.
+     */
+    private static IoSession createSession(final List<String> calls) {
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class[] {IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("suspendRead") || method.getName().equals("resumeRead")) {
+                            calls.add(method.getName());
+                            return null;
+                        }
+                        if (method.getName().equals("toString")) {
+                            return "session";
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,81 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link ElasticExecutor}.
+ */
+public class ElasticExecutorTest {
+
+    @Test
+    public void testGrowsWhenThreadsAreBusy() throws Exception {
+        ElasticExecutor executor = new ElasticExecutor("test", 1, 3, 60);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(3);
+            CountDownLatch finished = new CountDownLatch(4);
+            for (int i = 0; i < 4; i++) {
+                executor.execute(new BlockingTask(started, release, finished));
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // The fourth task is queued once the max number of threads was reached
+            assertEquals(3, executor.getPoolSize());
+            assertEquals(1, executor.getQueue().size());
+            release.countDown();
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleThreadsAreReused() throws Exception {
+        ElasticExecutor executor = new ElasticExecutor("test", 1, 3, 60);
+        try {
+            for (int i = 0; i < 10; i++) {
+                CountDownLatch finished = new CountDownLatch(1);
+                executor.execute(new BlockingTask(new CountDownLatch(1), new CountDownLatch(0), finished));
+                assertTrue(finished.await(5, TimeUnit.SECONDS));
+                // Wait for the thread to be idle again
+                while (executor.getActiveCount() > 0) {
+                    Thread.sleep(1);
+                }
+            }
+            assertEquals(1, executor.getPoolSize());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private static class BlockingTask implements Runnable {
+
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+        private final CountDownLatch finished;
+
+        BlockingTask(CountDownLatch started, CountDownLatch release, CountDownLatch finished) {
+            this.started = started;
+            this.release = release;
+            this.finished = finished;
+        }
+
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                // Ignore
+            }
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.apache.mina.common.IoSession;
+import org.b5chat.crossfire.core.net.StanzaHandler;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link IdleSessionTracker}.
+ */
+public class IdleSessionTrackerTest {
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testIdleSessionIsPingedAndClosed() {
+        TestHandler handler = new TestHandler();
+        IdleSessionTracker tracker = new IdleSessionTracker(100, 8, 0, DIRECT);
+        TestSession session = new TestSession(handler);
+        tracker.add(session.proxy, handler, 0);
+        assertEquals(1, tracker.getTrackedSessions());
+
+        // Half of the idle time (5 seconds) plus the jitter (up to 1.25 seconds)
+        tracker.advance(4900);
+        assertEquals(0, session.writes);
+        tracker.advance(6300);
+        assertEquals(1, session.writes);
+        assertEquals(1, tracker.getPings());
+        assertTrue(handler.closed.isEmpty());
+
+        tracker.advance(11300);
+        assertEquals(1, handler.closed.size());
+        assertEquals(1, tracker.getReapedSessions());
+        assertEquals(0, tracker.getTrackedSessions());
+    }
+
+    @Test
+    public void testActiveSessionIsNotPinged() {
+        TestHandler handler = new TestHandler();
+        IdleSessionTracker tracker = new IdleSessionTracker(100, 8, 0, DIRECT);
+        TestSession session = new TestSession(handler);
+        tracker.add(session.proxy, handler, 0);
+        for (long now = 1000; now <= 60000; now += 1000) {
+            session.lastRead = now;
+            tracker.advance(now);
+        }
+        assertEquals(0, session.writes);
+        assertTrue(handler.closed.isEmpty());
+
+        // Pinged once idle and the client answers the ping
+        tracker.advance(66300);
+        assertEquals(1, session.writes);
+        session.lastRead = 66400;
+        tracker.advance(71350);
+        assertEquals(1, session.writes);
+        // Idle again so pinged again instead of closed
+        tracker.advance(76000);
+        assertEquals(2, session.writes);
+        assertTrue(handler.closed.isEmpty());
+        assertEquals(1, tracker.getTrackedSessions());
+    }
+
+    @Test
+    public void testClosedSessionsAreForgotten() {
+        TestHandler handler = new TestHandler();
+        IdleSessionTracker tracker = new IdleSessionTracker(100, 8, 0, DIRECT);
+        List<TestSession> sessions = new ArrayList<TestSession>();
+        for (int i = 0; i < 100; i++) {
+            TestSession session = new TestSession(handler);
+            sessions.add(session);
+            tracker.add(session.proxy, handler, 0);
+        }
+        for (TestSession session : sessions) {
+            session.connected = false;
+        }
+        tracker.advance(20000);
+        assertEquals(0, tracker.getTrackedSessions());
+        assertEquals(0, tracker.getPings());
+        assertTrue(handler.closed.isEmpty());
+    }
+
+    @Test
+    public void testRemovedSessionsAreNotChecked() {
+        TestHandler handler = new TestHandler();
+        IdleSessionTracker tracker = new IdleSessionTracker(100, 8, 0, DIRECT);
+        TestSession session = new TestSession(handler);
+        tracker.add(session.proxy, handler, 0);
+        tracker.remove(session.proxy);
+        assertEquals(0, tracker.getTrackedSessions());
+        assertTrue(session.attributes.isEmpty());
+        // Removing twice or removing an untracked session does nothing
+        tracker.remove(session.proxy);
+        tracker.remove(new TestSession(handler).proxy);
+        assertEquals(0, tracker.getTrackedSessions());
+
+        // The session is still connected but no longer pinged nor closed
+        tracker.advance(20000);
+        assertEquals(0, session.writes);
+        assertEquals(0, tracker.getPings());
+        assertTrue(handler.closed.isEmpty());
+    }
+
+    private static class TestHandler extends ConnectionHandler {
+
+        private final List<IoSession> closed = new ArrayList<IoSession>();
+
+        TestHandler() {
+            super("example.com");
+        }
+
+        @Override
+        NIOConnection createNIOConnection(IoSession session) {
+            return null;
+        }
+
+        @Override
+        StanzaHandler createStanzaHandler(NIOConnection connection) {
+            return null;
+        }
+
+        @Override
+        int getMaxIdleTime() {
+            return 10;
+        }
+
+        @Override
+        byte[] getIdlePing(IoSession session) {
+            return new byte[] {' '};
+        }
+
+        @Override
+        void closeIdleSession(IoSession session) {
+            closed.add(session);
+        }
+    }
+
+    private static class TestSession implements InvocationHandler {
+
+        private final TestHandler handler;
+        private final IoSession proxy;
+        private boolean connected = true;
+        private long lastRead = 0;
+        private int writes = 0;
+        private final Map<Object, Object> attributes = new HashMap<Object, Object>();
+
+        TestSession(TestHandler handler) {
+            this.handler = handler;
+            proxy = (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                    new Class[] {IoSession.class}, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("isConnected")) {
+                return connected;
+            }
+            if (name.equals("isClosing")) {
+                return !connected;
+            }
+            if (name.equals("getLastReadTime")) {
+                return lastRead;
+            }
+            if (name.equals("getHandler")) {
+                return handler;
+            }
+            if (name.equals("setAttribute")) {
+                return attributes.put(args[0], args.length > 1 ? args[1] : Boolean.TRUE);
+            }
+            if (name.equals("getAttribute")) {
+                return attributes.get(args[0]);
+            }
+            if (name.equals("removeAttribute")) {
+                return attributes.remove(args[0]);
+            }
+            if (name.equals("write")) {
+                writes++;
+                return null;
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
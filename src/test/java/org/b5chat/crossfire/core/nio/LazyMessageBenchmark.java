@@ -0,0 +1,73 @@
+package org.b5chat.crossfire.core.nio;
+
+import java.nio.ByteBuffer;
+
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Compares the number of messages per core that can be prepared for routing when the
+ * received stanza is parsed into an element tree and when only its header is scanned
+ * (see {@link LazyMessage}). For each received message the work done by the client stanza
+ * handler and the routing path is repeated: the message is created, the sender is stamped
+ * and the recipient, type and id are read. The element tree of lazy messages is never built
+ * since no interceptor or privacy list asks for it. Relaying also serializes the message as
+ * it is done when delivering it to the recipient, which for lazy messages reuses the received
+ * bytes. This is not a unit test, run it with
+ * <tt>java org.b5chat.crossfire.core.nio.LazyMessageBenchmark [iterations]</tt>.
+ */
+public class LazyMessageBenchmark {
+
+    private static final String[] STANZAS = {
+            "<message to=\"juliet@example.com/balcony\" type=\"chat\" id=\"purple1a2b3c4d\">" +
+                    "<body>Wherefore art thou, Romeo? Deny thy father and refuse thy name.</body>" +
+                    "<active xmlns=\"http://jabber.org/protocol/chatstates\"/></message>",
+            "<message to=\"juliet@example.com/balcony\" type=\"chat\" id=\"purple1a2b3c4e\">" +
+                    "<composing xmlns=\"http://jabber.org/protocol/chatstates\"/></message>",
+            "<message to=\"juliet@example.com/balcony\" type=\"chat\" id=\"purple1a2b3c4f\">" +
+                    "<body>Or, if thou wilt not, be but sworn my love, and I'll no longer be a Capulet.</body>" +
+                    "<html xmlns=\"http://jabber.org/protocol/xhtml-im\"><body xmlns=\"http://www.w3.org/1999/xhtml\">" +
+                    "<p>Or, if thou wilt not, be but <em>sworn my love</em>.</p></body></html></message>"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        ByteBuffer[] buffers = new ByteBuffer[STANZAS.length];
+        for (int i = 0; i < STANZAS.length; i++) {
+            buffers[i] = ByteBuffer.wrap(STANZAS[i].getBytes("UTF-8"));
+        }
+        JID sender = new JID("romeo@example.net/orchard");
+        for (int round = 0; round < 3; round++) {
+            run("Routing element tree", buffers, sender, iterations, false, false);
+            run("Routing lazy message", buffers, sender, iterations, true, false);
+            run("Relaying element tree", buffers, sender, iterations, false, true);
+            run("Relaying lazy message", buffers, sender, iterations, true, true);
+        }
+    }
+
+    private static void run(String name, ByteBuffer[] buffers, JID sender, int iterations, boolean lazy,
+            boolean deliver) throws Exception {
+        StanzaParser parser = StanzaParser.getInstance();
+        int local = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ByteBuffer buf = buffers[i % buffers.length];
+            Message message = lazy ? new LazyMessage(parser.scan(buf, 0, buf.limit()), false) :
+                    new Message(parser.parse(buf, 0, buf.limit()), false);
+            message.setFrom(sender);
+            if (message.getTo().getResource() != null && message.getType() == Message.Type.chat &&
+                    message.getID() != null) {
+                local++;
+            }
+            if (deliver) {
+                XMPPPacketWriter writer = XMPPPacketWriter.getInstance();
+                if (!lazy || !((LazyMessage) message).write(writer)) {
+                    writer.write(message.getElement());
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": " + (iterations * 1000000000L / elapsed) + " messages/s per core (" +
+                local + " routed to full JIDs)");
+    }
+}
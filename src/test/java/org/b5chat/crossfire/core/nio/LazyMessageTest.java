@@ -0,0 +1,116 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Test cases for {@link LazyMessage} and the headers created by {@link StanzaParser}.
+ */
+public class LazyMessageTest {
+
+    private static final String STANZA = "<message to=\"juliet@example.com/balcony\" type=\"chat\" id=\"a&amp;1\">" +
+            "<body>Wherefore art thou, Romeo?</body><active xmlns=\"http://jabber.org/protocol/chatstates\"/></message>";
+
+    @Test
+    public void testRoutingDoesNotBuildElementTree() throws Exception {
+        LazyMessage message = new LazyMessage(scan(STANZA), false);
+        assertEquals(new JID("juliet@example.com/balcony"), message.getTo());
+        assertEquals(Message.Type.chat, message.getType());
+        assertEquals("a&1", message.getID());
+        message.setFrom(new JID("romeo@example.net/orchard"));
+        assertEquals(new JID("romeo@example.net/orchard"), message.getFrom());
+        assertFalse(message.isMaterialized());
+
+        assertEquals("Wherefore art thou, Romeo?", message.getBody());
+        assertTrue(message.isMaterialized());
+    }
+
+    @Test
+    public void testSameXMLAsEagerMessage() throws Exception {
+        Message eager = new Message(StanzaParser.getInstance().parse(wrap(STANZA), 0, wrap(STANZA).limit()));
+        eager.setFrom("romeo@example.net/orchard");
+        LazyMessage lazy = new LazyMessage(scan(STANZA), false);
+        lazy.setFrom("romeo@example.net/orchard");
+        assertEquals(eager.toXML(), lazy.toXML());
+        assertEquals(eager.toXML(), lazy.createCopy().toXML());
+    }
+
+    @Test
+    public void testReceivedBytesAreWrittenWithNewStartTag() throws Exception {
+        Message eager = new Message(StanzaParser.getInstance().parse(wrap(STANZA), 0, wrap(STANZA).limit()));
+        eager.setFrom("romeo@example.net/orchard");
+        XMPPPacketWriter writer = new XMPPPacketWriter();
+        writer.write(eager.getElement());
+        String expected = new String(writer.toByteArray(), "UTF-8");
+
+        LazyMessage lazy = new LazyMessage(scan(STANZA), false);
+        lazy.setFrom("romeo@example.net/orchard");
+        writer.reset();
+        assertTrue(lazy.write(writer));
+        assertEquals(expected, new String(writer.toByteArray(), "UTF-8"));
+        assertFalse(lazy.isMaterialized());
+    }
+
+    @Test
+    public void testEmptyMessageIsWrittenAsEmptyElement() throws Exception {
+        LazyMessage lazy = new LazyMessage(scan("<message to=\"juliet@example.com\" id='a>b' />"), false);
+        lazy.setFrom("romeo@example.net/orchard");
+        XMPPPacketWriter writer = new XMPPPacketWriter();
+        assertTrue(lazy.write(writer));
+        assertEquals("<message to=\"juliet@example.com\" id=\"a&gt;b\" from=\"romeo@example.net/orchard\"/>",
+                new String(writer.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testModifiedMessageIsNotWrittenFromReceivedBytes() throws Exception {
+        LazyMessage lazy = new LazyMessage(scan(STANZA), false);
+        lazy.setBody("Deny thy father");
+        XMPPPacketWriter writer = new XMPPPacketWriter();
+        assertFalse(lazy.write(writer));
+        assertEquals(0, writer.size());
+    }
+
+    @Test
+    public void testStreamNamespaceIsIgnored() throws Exception {
+        LazyMessage message = new LazyMessage(scan("<message xmlns=\"jabber:client\" to=\"juliet@example.com\"/>"), true);
+        assertEquals("<message to=\"juliet@example.com\"/>", message.toXML());
+    }
+
+    @Test
+    public void testPrefixedStanzasAreNotScanned() throws Exception {
+        assertNull(scan("<message xmlns:x=\"urn:x\" x:a=\"1\"/>"));
+        assertNull(scan("<x:message xmlns:x=\"jabber:client\"/>"));
+    }
+
+    @Test
+    public void testStanzasDeclaringNamespacesAreNotScanned() throws Exception {
+        // The content uses a prefix declared by the root element
+        String stanza = "<message xmlns:x=\"jabber:x:oob\" to=\"juliet@example.com\"><x:x><x:url>" +
+                "http://example.com/sonnet.txt</x:url></x:x></message>";
+        assertNull(scan(stanza));
+        assertNull(scan("<message xmlns=\"jabber:client\" xmlns:x=\"jabber:x:oob\"/>"));
+        assertNull(scan("<message xmlns=\"jabber:server\"/>"));
+    }
+
+    @Test(expected = XMLNotWellFormedException.class)
+    public void testNotWellFormed() throws Exception {
+        scan("<message to=\"juliet@example.com\"><body></x></body></message>");
+    }
+
+    private static StanzaHeader scan(String stanza) throws Exception {
+        ByteBuffer buf = wrap(stanza);
+        return StanzaParser.getInstance().scan(buf, 0, buf.limit());
+    }
+
+    private static ByteBuffer wrap(String stanza) throws Exception {
+        return ByteBuffer.wrap(stanza.getBytes("UTF-8"));
+    }
+}
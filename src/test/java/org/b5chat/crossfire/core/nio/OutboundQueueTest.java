@@ -0,0 +1,134 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.common.IoSession;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Test cases for {@link OutboundQueue}.
+ */
+public class OutboundQueueTest {
+
+    private static final int CONGESTED = 1000;
+
+    @Test
+    public void testNotCongested() {
+        OutboundQueue queue = new OutboundQueue(CONGESTED);
+        assertTrue(queue.offer(presence("romeo@example.com/orchard", null), CONGESTED));
+        assertTrue(queue.offer(chatState(), CONGESTED));
+        assertNull(queue.drain(0));
+    }
+
+    @Test
+    public void testChatStatesAreDropped() {
+        OutboundQueue queue = new OutboundQueue(CONGESTED);
+        long dropped = OutboundQueue.getDroppedChatStates();
+        assertFalse(queue.offer(chatState(), CONGESTED + 1));
+        assertEquals(dropped + 1, OutboundQueue.getDroppedChatStates());
+
+        Message message = chatState();
+        message.setBody("Wherefore art thou?");
+        assertTrue(queue.offer(message, CONGESTED + 1));
+        assertTrue(queue.offer(new IQ(IQ.Type.result), CONGESTED + 1));
+    }
+
+    @Test
+    public void testPresencesAreSuperseded() {
+        OutboundQueue queue = new OutboundQueue(CONGESTED);
+        Presence away = presence("romeo@example.com/orchard", null);
+        away.setShow(Presence.Show.away);
+        Presence juliet = presence("juliet@example.com/balcony", null);
+        Presence offline = presence("romeo@example.com/orchard", Presence.Type.unavailable);
+        Presence subscribe = presence("nurse@example.com/home", Presence.Type.subscribe);
+
+        assertFalse(queue.offer(away, CONGESTED + 1));
+        assertFalse(queue.offer(juliet, CONGESTED + 1));
+        // Presences of the same sender are held while there are held presences
+        assertFalse(queue.offer(offline, 0));
+        assertTrue(queue.offer(subscribe, CONGESTED + 1));
+        assertTrue(queue.hasHeldPackets());
+
+        assertNull(queue.drain(CONGESTED + 1));
+        List<Packet> held = queue.drain(CONGESTED);
+        assertEquals(2, held.size());
+        assertEquals(juliet.toXML(), held.get(0).toXML());
+        assertEquals(offline.toXML(), held.get(1).toXML());
+        assertFalse(queue.hasHeldPackets());
+        assertTrue(queue.offer(away, 0));
+    }
+
+    @Test
+    public void testHeldPresencesAreNotChangedByLaterDeliveries() {
+        // Broadcasts deliver the same presence to the queue of each recipient
+        OutboundQueue julietQueue = new OutboundQueue(CONGESTED);
+        OutboundQueue nurseQueue = new OutboundQueue(CONGESTED);
+        Presence presence = presence("romeo@example.com/orchard", null);
+        presence.setTo("juliet@example.com/balcony");
+        assertFalse(julietQueue.offer(presence, CONGESTED + 1));
+        presence.setTo("nurse@example.com/home");
+        assertFalse(nurseQueue.offer(presence, CONGESTED + 1));
+
+        List<Packet> held = julietQueue.drain(0);
+        assertEquals(1, held.size());
+        assertNotSame(presence, held.get(0));
+        assertEquals(new JID("juliet@example.com/balcony"), held.get(0).getTo());
+        held = nurseQueue.drain(0);
+        assertEquals(new JID("nurse@example.com/home"), held.get(0).getTo());
+    }
+
+    @Test
+    public void testDepthDistribution() {
+        List<IoSession> sessions = new ArrayList<IoSession>();
+        for (int depth : new int[] {0, 0, 1024, 1025, 5000000}) {
+            sessions.add(createSession(depth));
+        }
+        int[] distribution = OutboundQueue.getDepthDistribution(sessions);
+        assertEquals(OutboundQueue.DEPTH_LIMITS.length + 1, distribution.length);
+        assertEquals(2, distribution[0]);
+        assertEquals(1, distribution[1]);
+        assertEquals(1, distribution[2]);
+        assertEquals(1, distribution[distribution.length - 1]);
+    }
+
+    private static Presence presence(String from, Presence.Type type) {
+        Presence presence = new Presence(type);
+        presence.setFrom(from);
+        presence.setTo("benvolio@example.com/home");
+        return presence;
+    }
+
+    private static Message chatState() {
+        Message message = new Message();
+        message.setType(Message.Type.chat);
+        message.addChildElement("composing", "http://jabber.org/protocol/chatstates");
+        return message;
+    }
+
+    private static IoSession createSession(final int scheduledBytes) {
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class[] {IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getScheduledWriteBytes")) {
+                            return scheduledBytes;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
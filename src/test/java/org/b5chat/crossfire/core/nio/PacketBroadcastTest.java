@@ -0,0 +1,97 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that a broadcasted packet is serialized as if it was serialized for each recipient.
+ */
+public class PacketBroadcastTest {
+
+    @Test
+    public void testSplicedRecipients() throws Exception {
+        Presence presence = new Presence();
+        presence.setFrom("romeo@example.net/orchard");
+        presence.setStatus("In the orchard");
+        PacketBroadcast.begin(presence);
+        try {
+            for (String to : new String[] {"juliet@example.com", "nurse@example.com/a&b", "juliet@example.com/\"quoted\" é"}) {
+                presence.setTo(to);
+                assertBroadcastBytes(presence);
+            }
+        }
+        finally {
+            PacketBroadcast.end();
+        }
+        assertNull(PacketBroadcast.get(presence));
+    }
+
+    @Test
+    public void testNoRecipient() throws Exception {
+        Message message = new Message();
+        message.setBody("Server is going down");
+        PacketBroadcast.begin(message);
+        try {
+            assertBroadcastBytes(message);
+            assertBroadcastBytes(message);
+            // A TO attribute added during the broadcast
+            message.setTo("juliet@example.com");
+            assertBroadcastBytes(message);
+            message.setTo("romeo@example.net");
+            assertBroadcastBytes(message);
+        }
+        finally {
+            PacketBroadcast.end();
+        }
+    }
+
+    @Test
+    public void testModifiedPacket() throws Exception {
+        Presence presence = new Presence();
+        PacketBroadcast.begin(presence);
+        try {
+            presence.setTo("juliet@example.com");
+            assertBroadcastBytes(presence);
+            PacketBroadcast.packetModified(presence);
+            presence.setStatus("Changed by an interceptor");
+            assertNull(PacketBroadcast.get(presence));
+        }
+        finally {
+            PacketBroadcast.end();
+        }
+    }
+
+    @Test
+    public void testNestedBroadcasts() throws Exception {
+        Presence presence = new Presence();
+        Message message = new Message();
+        PacketBroadcast.begin(presence);
+        try {
+            PacketBroadcast.begin(presence);
+            PacketBroadcast.begin(message);
+            assertNotNull(PacketBroadcast.get(message));
+            assertNull(PacketBroadcast.get(presence));
+            PacketBroadcast.end();
+            PacketBroadcast.end();
+            assertNotNull(PacketBroadcast.get(presence));
+        }
+        finally {
+            PacketBroadcast.end();
+        }
+        assertNull(PacketBroadcast.get(presence));
+    }
+
+    private static void assertBroadcastBytes(Packet packet) throws Exception {
+        PacketBroadcast broadcast = PacketBroadcast.get(packet);
+        assertNotNull(broadcast);
+        XMPPPacketWriter writer = XMPPPacketWriter.getInstance();
+        broadcast.write(writer);
+        assertArrayEquals(XMPPPacketWriterTest.serializeWithXMLWriter(packet.getElement()), writer.toByteArray());
+    }
+}
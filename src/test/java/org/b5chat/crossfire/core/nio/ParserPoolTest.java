@@ -0,0 +1,132 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.TransportType;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.dom4j.Element;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link ParserPool}.
+ */
+public class ParserPoolTest {
+
+    @Test
+    public void testParserIsReleasedAtStanzaBoundary() throws Exception {
+        ParserPool pool = new TestPool();
+        Map<Object, Object> attributes = new HashMap<Object, Object>();
+        IoSession session = createSession(attributes);
+        attributes.put(ParserPool.POOL, pool);
+        XMPPDecoder decoder = new XMPPDecoder();
+        List<Object> stanzas = new ArrayList<Object>();
+
+        decode(decoder, session, "<presence><status>Wherefore art", stanzas);
+        // The stanza is incomplete so the session keeps the parser
+        assertTrue(stanzas.isEmpty());
+        Object parser = attributes.get(ConnectionHandler.XML_PARSER);
+        assertNotNull(parser);
+        assertEquals(0, pool.getIdleCount());
+
+        decode(decoder, session, " thou?</status></presence> ", stanzas);
+        assertEquals(1, stanzas.size());
+        assertEquals("presence", ((Element) stanzas.get(0)).getName());
+        assertNull(attributes.get(ConnectionHandler.XML_PARSER));
+        assertEquals(1, pool.getIdleCount());
+        assertSame(parser, pool.acquire());
+    }
+
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        ParserPool pool = new TestPool();
+        List<Object> parsers = new ArrayList<Object>();
+        for (int i = 0; i < 4; i++) {
+            parsers.add(pool.acquire());
+        }
+        for (Object parser : parsers) {
+            assertTrue(pool.release(parser));
+        }
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void testLightweightParserIsNotRecycledInsideStanza() throws Exception {
+        XMLLightweightParser parser = new XMLLightweightParser("UTF-8");
+        parser.read(ByteBuffer.wrap("<presence><show>away</sh".getBytes("UTF-8")));
+        assertFalse(parser.recycle());
+        parser.read(ByteBuffer.wrap("ow></presence>\n".getBytes("UTF-8")));
+        assertEquals(1, parser.getMsgs().length);
+        assertTrue(parser.recycle());
+        assertEquals(0, parser.buffer.capacity());
+    }
+
+    private static void decode(XMPPDecoder decoder, IoSession session, String text, final List<Object> stanzas)
+            throws Exception {
+        ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+            public void write(Object message) {
+                stanzas.add(message);
+            }
+
+            public void flush() {
+            }
+        };
+        decoder.decode(session, ByteBuffer.wrap(text.getBytes("UTF-8")), out);
+    }
+
+    /**
+     * Creates a session that only keeps attributes.
+     */
+    private static IoSession createSession(final Map<Object, Object> attributes) {
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class[] {IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("getAttribute")) {
+                            return attributes.get(args[0]);
+                        }
+                        if (name.equals("setAttribute")) {
+                            return attributes.put(args[0], args.length > 1 ? args[1] : Boolean.TRUE);
+                        }
+                        if (name.equals("removeAttribute")) {
+                            return attributes.remove(args[0]);
+                        }
+                        if (name.equals("getTransportType")) {
+                            return TransportType.SOCKET;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    private static class TestPool extends ParserPool {
+
+        TestPool() {
+            super(2);
+        }
+
+        @Override
+        Object create() {
+            return new XMLStanzaFramer();
+        }
+
+        @Override
+        boolean recycle(Object parser) {
+            return ((XMLStanzaFramer) parser).recycle();
+        }
+    }
+}
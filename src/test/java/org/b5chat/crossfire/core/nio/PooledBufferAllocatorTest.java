@@ -0,0 +1,123 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link PooledBufferAllocator}.
+ */
+public class PooledBufferAllocatorTest {
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(65536, 262144, 4194304);
+        ByteBuffer buffer = allocator.allocate(4000, false);
+        assertEquals(4000, buffer.limit());
+        java.nio.ByteBuffer memory = buffer.buf();
+        assertEquals(1, allocator.getOutstandingBuffers());
+        buffer.release();
+        assertEquals(0, allocator.getOutstandingBuffers());
+
+        ByteBuffer other = allocator.allocate(3000, false);
+        assertSame(memory, other.buf());
+        assertEquals(0, other.position());
+        assertEquals(3000, other.limit());
+        assertEquals(1, allocator.getHits());
+        assertEquals(1, allocator.getMisses());
+    }
+
+    @Test
+    public void testAutoExpandRecyclesOldBuffer() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(65536, 262144, 4194304);
+        ByteBuffer buffer = allocator.allocate(256, false);
+        buffer.setAutoExpand(true);
+        for (int i = 0; i < 1000; i++) {
+            buffer.put((byte) i);
+        }
+        buffer.flip();
+        assertEquals(1000, buffer.remaining());
+        assertEquals((byte) 999, buffer.get(999));
+        assertEquals(1, allocator.getOutstandingBuffers());
+        buffer.release();
+        assertEquals(0, allocator.getOutstandingBuffers());
+        assertEquals(0, allocator.getOutstandingBytes());
+    }
+
+    @Test
+    public void testSharedBuffers() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(65536, 262144, 4194304);
+        ByteBuffer buffer = allocator.allocate(100, false);
+        buffer.acquire();
+        buffer.release();
+        assertEquals(1, allocator.getOutstandingBuffers());
+        buffer.release();
+        assertEquals(0, allocator.getOutstandingBuffers());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleRelease() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(65536, 262144, 4194304);
+        ByteBuffer buffer = allocator.allocate(100, false);
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test
+    public void testBigBuffersAreNotPooled() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(1024, 262144, 4194304);
+        ByteBuffer buffer = allocator.allocate(5000, true);
+        assertEquals(5000, buffer.capacity());
+        assertEquals(1, allocator.getUnpooledAllocations());
+        assertEquals(0, allocator.getOutstandingBuffers());
+        buffer.release();
+        assertEquals(0, allocator.getOutstandingBuffers());
+    }
+
+    @Test
+    public void testOnlyEnabledThreadsCacheBuffers() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(65536, 262144, 4194304);
+        allocator.allocate(100, false).release();
+        allocator.allocate(100, false).release();
+        assertEquals(0, allocator.getThreadCacheHits());
+        assertEquals(1, allocator.getSharedPoolSize());
+
+        allocator.enableThreadCache();
+        allocator.allocate(100, false).release();
+        allocator.allocate(100, false).release();
+        assertEquals(1, allocator.getThreadCacheHits());
+        assertEquals(0, allocator.getSharedPoolSize());
+    }
+
+    @Test
+    public void testViewsKeepTheMemoryOfTheirBuffer() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(65536, 262144, 4194304);
+        ByteBuffer buffer = allocator.allocate(100, false);
+        ByteBuffer slice = buffer.slice();
+        ByteBuffer duplicate = slice.duplicate();
+        buffer.release();
+        slice.release();
+        assertEquals(1, allocator.getOutstandingBuffers());
+        assertNotSame(duplicate.buf().array(), allocator.allocate(100, false).buf().array());
+        duplicate.release();
+        assertEquals(1, allocator.getOutstandingBuffers());
+        assertSame(buffer.buf(), allocator.allocate(100, false).buf());
+    }
+
+    @Test
+    public void testExpandedBufferWithViewsIsNotRecycled() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(65536, 262144, 4194304);
+        ByteBuffer buffer = allocator.allocate(256, false);
+        ByteBuffer duplicate = buffer.duplicate();
+        buffer.setAutoExpand(true);
+        buffer.put(new byte[1000]);
+        assertEquals(1, allocator.getOutstandingBuffers());
+        duplicate.release();
+        buffer.release();
+        assertEquals(0, allocator.getOutstandingBuffers());
+        assertEquals(1, allocator.getSharedPoolSize());
+    }
+}
@@ -0,0 +1,61 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import org.dom4j.Element;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link StanzaParser} builds the same elements from the received bytes
+ * as parsing the decoded text of the stanza.
+ */
+public class StanzaParserTest {
+
+    private static final String[] STANZAS = {
+            "<message to=\"juliet@example.com/balcony\" type=\"chat\"><body>Wherefore art thou, Romeo? é中</body></message>",
+            "<presence/>",
+            "<iq type=\"get\" id=\"1\"><query xmlns=\"jabber:iq:roster\"/></iq>",
+            "<message><body><![CDATA[</message> <b>not a tag</b>]]></body></message>",
+            "<message><body>&lt;&#65;&#x42;</body><x xmlns=\"urn:x\" a=\"/>\"/></message>"
+    };
+
+    @Test
+    public void testSameElementsAsTextParsing() throws Exception {
+        StanzaParser parser = StanzaParser.getInstance();
+        for (String stanza : STANZAS) {
+            String expected = parser.getReader().read(new StringReader(stanza)).getRootElement().asXML();
+            assertEquals(expected, parse(parser, stanza, false).asXML());
+            assertEquals(expected, parse(parser, stanza, true).asXML());
+        }
+    }
+
+    @Test
+    public void testParserIsReused() throws Exception {
+        StanzaParser parser = StanzaParser.getInstance();
+        parse(parser, STANZAS[0], false);
+        Element element = parse(parser, STANZAS[1], false);
+        assertEquals("presence", element.getName());
+    }
+
+    @Test(expected = XMLNotWellFormedException.class)
+    public void testNotWellFormed() throws Exception {
+        parse(StanzaParser.getInstance(), "<message><body></message>", false);
+    }
+
+    /**
+     * Parses the stanza placed in the middle of a buffer that holds other bytes too.
+     */
+    private static Element parse(StanzaParser parser, String stanza, boolean direct) throws Exception {
+        byte[] bytes = stanza.getBytes("UTF-8");
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(bytes.length + 10) : ByteBuffer.allocate(bytes.length + 10);
+        buf.put("<presence>".getBytes("UTF-8"));
+        buf.put(bytes);
+        buf.flip();
+        Element element = parser.parse(buf, 10, 10 + bytes.length);
+        assertEquals(0, buf.position());
+        return element;
+    }
+}
@@ -0,0 +1,124 @@
+package org.b5chat.crossfire.core.nio;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.executor.ExecutorFilter;
+
+/**
+ * Compares the throughput of a login storm processed by the fixed pool of the client
+ * thread model and by {@link ElasticExecutor}. Each session receives the stanzas of a
+ * login and some of them block as if they were waiting for the database (e.g. loading
+ * the roster or the privacy lists). Stanzas go through MINA's executor filter, like in
+ * the server, and the benchmark checks that the stanzas of each session were processed
+ * in order. This is not a unit test, run it with
+ * <tt>java org.b5chat.crossfire.core.nio.ThreadModelBenchmark [sessions] [blocking millis]</tt>.
+ */
+public class ThreadModelBenchmark {
+
+    /**
+     * Stanzas received during a login and whether processing them blocks.
+     */
+    private static final boolean[] LOGIN = {false, true, false, false, true, true, false, false};
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int blockingMillis = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int threads = 16;
+
+        for (int round = 0; round < 2; round++) {
+            run("Fixed pool (" + threads + " threads)", new ThreadPoolExecutor(threads + 1, threads + 1,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()), sessions, blockingMillis);
+            run("Elastic pool (" + threads + "-1000 threads)", new ElasticExecutor("benchmark",
+                    threads + 1, 1001, 60), sessions, blockingMillis);
+        }
+    }
+
+    private static void run(String name, ExecutorService executor, int sessions, final int blockingMillis)
+            throws Exception {
+        ExecutorFilter filter = new ExecutorFilter(executor);
+        final CountDownLatch done = new CountDownLatch(sessions * LOGIN.length);
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        IoFilter.NextFilter handler = (IoFilter.NextFilter) Proxy.newProxyInstance(
+                IoFilter.NextFilter.class.getClassLoader(), new Class[] {IoFilter.NextFilter.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("messageReceived")) {
+                            IoSession session = (IoSession) args[0];
+                            int stanza = (Integer) args[1];
+                            Integer last = (Integer) session.getAttribute("last");
+                            if (stanza != (last == null ? 0 : last + 1)) {
+                                outOfOrder.incrementAndGet();
+                            }
+                            session.setAttribute("last", stanza);
+                            if (LOGIN[stanza]) {
+                                Thread.sleep(blockingMillis);
+                            }
+                            done.countDown();
+                        }
+                        return null;
+                    }
+                });
+
+        IoSession[] ioSessions = new IoSession[sessions];
+        for (int i = 0; i < sessions; i++) {
+            ioSessions[i] = createSession();
+        }
+        long start = System.nanoTime();
+        // Stanzas of all the sessions arrive interleaved
+        for (int stanza = 0; stanza < LOGIN.length; stanza++) {
+            for (IoSession session : ioSessions) {
+                filter.messageReceived(handler, session, stanza);
+            }
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        int maxThreads = executor instanceof ThreadPoolExecutor ?
+                ((ThreadPoolExecutor) executor).getLargestPoolSize() : -1;
+        executor.shutdown();
+        System.out.println(name + ": " + (sessions * 1000000000L / elapsed) + " logins/s, " +
+                (elapsed / 1000000) + " ms, largest pool: " + maxThreads + " threads, stanzas out of order: " +
+                outOfOrder.get());
+    }
+
+    /**
+     * Creates a session that only keeps attributes.
+     */
+    private static IoSession createSession() {
+        final Map<Object, Object> attributes = new HashMap<Object, Object>();
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class[] {IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        synchronized (attributes) {
+                            if (method.getName().equals("getAttribute")) {
+                                return attributes.get(args[0]);
+                            }
+                            if (method.getName().equals("setAttribute")) {
+                                return attributes.put(args[0], args.length > 1 ? args[1] : Boolean.TRUE);
+                            }
+                            if (method.getName().equals("containsAttribute")) {
+                                return attributes.containsKey(args[0]);
+                            }
+                            if (method.getName().equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                            }
+                            if (method.getName().equals("equals")) {
+                                return proxy == args[0];
+                            }
+                            return null;
+                        }
+                    }
+                });
+    }
+}
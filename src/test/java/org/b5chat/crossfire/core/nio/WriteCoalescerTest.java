@@ -0,0 +1,145 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Test cases for {@link WriteCoalescer}.
+ */
+public class WriteCoalescerTest {
+
+    @Test
+    public void testWritesOutsideOfCycle() throws Exception {
+        List<String> writes = new ArrayList<String>();
+        IoSession session = createSession(writes);
+        WriteCoalescer.write(session, serialize("1"));
+        WriteCoalescer.write(session, serialize("2"));
+        assertEquals(2, writes.size());
+    }
+
+    @Test
+    public void testCoalescedWrites() throws Exception {
+        List<String> writes1 = new ArrayList<String>();
+        List<String> writes2 = new ArrayList<String>();
+        IoSession session1 = createSession(writes1);
+        IoSession session2 = createSession(writes2);
+        long stanzas = WriteCoalescer.getStanzas();
+        long count = WriteCoalescer.getWrites();
+
+        WriteCoalescer.begin(65536);
+        try {
+            WriteCoalescer.write(session1, serialize("1"));
+            WriteCoalescer.write(session2, serialize("2"));
+            WriteCoalescer.write(session1, serialize("3"));
+            assertEquals(0, writes1.size());
+            assertEquals(0, writes2.size());
+        }
+        finally {
+            WriteCoalescer.end();
+        }
+        assertEquals(1, writes1.size());
+        assertEquals(toString(serialize("1")) + toString(serialize("3")), writes1.get(0));
+        assertEquals(toString(serialize("2")), writes2.get(0));
+        assertEquals(stanzas + 3, WriteCoalescer.getStanzas());
+        assertEquals(count + 2, WriteCoalescer.getWrites());
+    }
+
+    @Test
+    public void testFlushBeforeRawText() throws Exception {
+        List<String> writes = new ArrayList<String>();
+        IoSession session = createSession(writes);
+        WriteCoalescer.begin(65536);
+        try {
+            WriteCoalescer.write(session, serialize("1"));
+            WriteCoalescer.flush(session);
+            assertEquals(1, writes.size());
+            WriteCoalescer.write(session, serialize("2"));
+        }
+        finally {
+            WriteCoalescer.end();
+        }
+        assertEquals(2, writes.size());
+    }
+
+    @Test
+    public void testMaxPendingBytes() throws Exception {
+        List<String> writes = new ArrayList<String>();
+        IoSession session = createSession(writes);
+        WriteCoalescer.begin(100);
+        try {
+            // Each stanza has 33 bytes so pending stanzas are written every 4 stanzas
+            for (int i = 0; i < 10; i++) {
+                WriteCoalescer.write(session, serialize(String.valueOf(i)));
+            }
+            assertEquals(2, writes.size());
+        }
+        finally {
+            WriteCoalescer.end();
+        }
+        assertEquals(3, writes.size());
+    }
+
+    @Test
+    public void testNestedCycles() throws Exception {
+        List<String> writes = new ArrayList<String>();
+        IoSession session = createSession(writes);
+        WriteCoalescer.begin(65536);
+        try {
+            WriteCoalescer.begin(65536);
+            WriteCoalescer.write(session, serialize("1"));
+            WriteCoalescer.end();
+            assertEquals(0, writes.size());
+        }
+        finally {
+            WriteCoalescer.end();
+        }
+        assertEquals(1, writes.size());
+    }
+
+    private static XMPPPacketWriter serialize(String body) throws Exception {
+        Message message = new Message();
+        message.setBody(body);
+        XMPPPacketWriter writer = XMPPPacketWriter.getInstance();
+        writer.write(message.getElement());
+        return writer;
+    }
+
+    private static String toString(XMPPPacketWriter writer) throws Exception {
+        return new String(writer.toByteArray(), "UTF-8");
+    }
+
+    /**
+     * Creates a session that keeps the written bytes as strings.
+     */
+    private static IoSession createSession(final List<String> writes) {
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class[] {IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("write")) {
+                            ByteBuffer buffer = (ByteBuffer) args[0];
+                            byte[] bytes = new byte[buffer.remaining()];
+                            buffer.get(bytes);
+                            writes.add(new String(bytes, "UTF-8"));
+                            return null;
+                        }
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
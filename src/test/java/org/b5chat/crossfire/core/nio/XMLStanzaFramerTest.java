@@ -0,0 +1,114 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link XMLStanzaFramer} finds the same stanzas as {@link XMLLightweightParser}
+ * no matter how the received bytes are split between reads.
+ */
+public class XMLStanzaFramerTest {
+
+    private static final String STREAM =
+            "<?xml version='1.0'?>" +
+            "<stream:stream to=\"example.com\" xmlns=\"jabber:client\" " +
+            "xmlns:stream=\"http://etherx.jabber.org/streams\" version=\"1.0\">" +
+            "<message to=\"juliet@example.com/balcony\" type=\"chat\"><body>Wherefore art thou, Romeo? é中𝄞</body></message>" +
+            " \n" +
+            "<presence/>" +
+            "<iq type=\"get\" id=\"1\"><query xmlns=\"jabber:iq:roster\"/></iq>" +
+            "<message><body><![CDATA[</message> <b>not a tag</b>]]></body></message>" +
+            "<message><body>&lt;&#65;&#x42;</body><x a=\"/>\"/></message>" +
+            "</stream:stream>";
+
+    @Test
+    public void testSameStanzasAsLightweightParser() throws Exception {
+        byte[] bytes = STREAM.getBytes("UTF-8");
+        List<String> expected = parseWithLightweightParser(bytes);
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            assertEquals("Chunk size " + chunk, expected, parseWithFramer(bytes, chunk));
+        }
+    }
+
+    @Test
+    public void testIllegalCharacterReference() throws Exception {
+        byte[] bytes = "<message><body>&#x0;</body></message>".getBytes("UTF-8");
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            try {
+                parseWithFramer(bytes, chunk);
+                fail("Illegal character reference was not detected with chunk size " + chunk);
+            }
+            catch (XMLNotWellFormedException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testLegalCharacterReferences() throws Exception {
+        byte[] bytes = "<message><body>&#9;&#x0A;&#0065;&#xFFFD;&#x10FFFF;&# ;&#x;&#xE000</body></message>"
+                .getBytes("UTF-8");
+        assertEquals(1, parseWithFramer(bytes, 3).size());
+    }
+
+    @Test(expected = XMLNotWellFormedException.class)
+    public void testIllegalCharacter() throws Exception {
+        parseWithFramer("<message>\u0001</message>".getBytes("UTF-8"), 4);
+    }
+
+    private static List<String> parseWithLightweightParser(byte[] bytes) throws Exception {
+        XMLLightweightParser parser = new XMLLightweightParser("UTF-8");
+        parser.read(ByteBuffer.wrap(bytes));
+        return new ArrayList<String>(Arrays.asList(parser.getMsgs()));
+    }
+
+    /**
+     * Feeds the framer the way the cumulative decoder does: unconsumed bytes are kept and the
+     * next chunk is appended to them.
+     */
+    private static List<String> parseWithFramer(byte[] bytes, int chunkSize) throws Exception {
+        XMLStanzaFramer framer = new XMLStanzaFramer();
+        List<String> stanzas = new ArrayList<String>();
+        ByteBuffer pending = null;
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, bytes.length - offset);
+            ByteBuffer in;
+            if (pending == null) {
+                in = ByteBuffer.wrap(bytes, offset, length);
+            }
+            else {
+                pending.put(bytes, offset, length);
+                pending.flip();
+                in = pending;
+            }
+            int count = framer.read(in);
+            for (int i = 0; i < count; i++) {
+                int start = framer.getStanzaStart(i);
+                byte[] stanza = new byte[framer.getStanzaEnd(i) - start];
+                for (int j = 0; j < stanza.length; j++) {
+                    stanza[j] = in.get(start + j);
+                }
+                stanzas.add(new String(stanza, "UTF-8"));
+            }
+            if (framer.isStreamClosed()) {
+                stanzas.add("</stream:stream>");
+            }
+            if (in.hasRemaining()) {
+                ByteBuffer remaining = ByteBuffer.allocate(in.remaining() + bytes.length);
+                remaining.put(in);
+                pending = remaining;
+            }
+            else {
+                pending = null;
+            }
+        }
+        return stanzas;
+    }
+}
@@ -0,0 +1,81 @@
+package org.b5chat.crossfire.core.nio;
+
+import java.lang.management.ManagementFactory;
+
+import org.dom4j.Element;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Presence;
+
+/**
+ * Compares the throughput and the allocated bytes per stanza of {@link XMPPPacketWriter}
+ * and {@link org.b5chat.crossfire.core.util.XMLWriter}. This is not a unit test, run it
+ * with <tt>java org.b5chat.crossfire.core.nio.XMPPPacketWriterBenchmark [iterations]</tt>.
+ */
+public class XMPPPacketWriterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+        Message message = new Message();
+        message.setTo("juliet@example.com/balcony");
+        message.setFrom("romeo@example.net/orchard");
+        message.setType(Message.Type.chat);
+        message.setID("purple1a2b3c4d");
+        message.setBody("Wherefore art thou, Romeo? Deny thy father and refuse thy name.");
+        message.addChildElement("active", "http://jabber.org/protocol/chatstates");
+
+        Presence presence = new Presence();
+        presence.setFrom("romeo@example.net/orchard");
+        presence.setTo("juliet@example.com");
+        presence.setShow(Presence.Show.away);
+        presence.setStatus("In the orchard");
+        Element caps = presence.addChildElement("c", "http://jabber.org/protocol/caps");
+        caps.addAttribute("hash", "sha-1");
+        caps.addAttribute("node", "http://example.com/client");
+        caps.addAttribute("ver", "QgayPKawpkPSDYmwT/WM94uAlu0=");
+
+        Element[] stanzas = {message.getElement(), presence.getElement()};
+        for (int round = 0; round < 3; round++) {
+            run("XMLWriter", stanzas, iterations, false);
+            run("XMPPPacketWriter", stanzas, iterations, true);
+        }
+    }
+
+    private static void run(String name, Element[] stanzas, int iterations, boolean packetWriter)
+            throws Exception {
+        long bytes = 0;
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Element stanza = stanzas[i % stanzas.length];
+            if (packetWriter) {
+                XMPPPacketWriter writer = XMPPPacketWriter.getInstance();
+                writer.write(stanza);
+                bytes += writer.size();
+            }
+            else {
+                bytes += XMPPPacketWriterTest.serializeWithXMLWriter(stanza).length;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = getAllocatedBytes() - allocated;
+        System.out.println(name + ": " + (iterations * 1000000000L / elapsed) + " stanzas/s, " +
+                (bytes * 1000L / elapsed) + " MB/s, " +
+                (allocated < 0 ? "n/a" : String.valueOf(allocated / iterations)) + " bytes allocated/stanza");
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread or -1 if the JVM does not provide them.
+     */
+    private static long getAllocatedBytes() {
+        try {
+            Object bean = ManagementFactory.getThreadMXBean();
+            return (Long) Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class)
+                    .invoke(bean, Thread.currentThread().getId());
+        }
+        catch (Exception e) {
+            return -1;
+        }
+    }
+}
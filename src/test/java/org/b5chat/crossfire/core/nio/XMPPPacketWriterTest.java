@@ -0,0 +1,162 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.apache.mina.common.ByteBuffer;
+import org.b5chat.crossfire.core.util.XMLWriter;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that {@link XMPPPacketWriter} produces the same bytes as {@link XMLWriter}.
+ */
+public class XMPPPacketWriterTest {
+
+    @Test
+    public void testMessage() throws Exception {
+        Message message = new Message();
+        message.setTo("juliet@example.com/balcony");
+        message.setFrom("romeo@example.net/orchard");
+        message.setType(Message.Type.chat);
+        message.setID("a\"b<c>&d");
+        message.setBody("Wherefore art thou, Romeo? <&> \"quoted\" é中𝄞\t\r\n");
+        message.setThread("thread");
+        message.addChildElement("active", "http://jabber.org/protocol/chatstates");
+        assertSameBytes(message.getElement());
+    }
+
+    @Test
+    public void testPresence() throws Exception {
+        Presence presence = new Presence();
+        presence.setFrom("romeo@example.net/orchard");
+        presence.setShow(Presence.Show.away);
+        presence.setStatus("In the orchard");
+        presence.setPriority(5);
+        Element caps = presence.addChildElement("c", "http://jabber.org/protocol/caps");
+        caps.addAttribute("hash", "sha-1");
+        caps.addAttribute("node", "http://example.com/client");
+        caps.addAttribute("ver", "QgayPKawpkPSDYmwT/WM94uAlu0=");
+        assertSameBytes(presence.getElement());
+        assertSameBytes(new Presence(Presence.Type.unavailable).getElement());
+    }
+
+    @Test
+    public void testIQ() throws Exception {
+        IQ iq = new IQ(IQ.Type.result);
+        iq.setTo("juliet@example.com/balcony");
+        Element query = iq.setChildElement("query", "jabber:iq:roster");
+        Element item = query.addElement("item");
+        item.addAttribute("jid", "romeo@example.net");
+        item.addAttribute("subscription", "both");
+        item.addElement("group").setText("Friends");
+        assertSameBytes(iq.getElement());
+    }
+
+    @Test
+    public void testParsedStanzas() throws Exception {
+        String[] stanzas = {
+                "<message xmlns=\"jabber:client\" xml:lang=\"en\"><body>a &amp; b</body>" +
+                        "<html xmlns=\"http://jabber.org/protocol/xhtml-im\">" +
+                        "<body xmlns=\"http://www.w3.org/1999/xhtml\"><p>Hi</p></body></html></message>",
+                "<iq xmlns=\"jabber:client\" type=\"set\"><pubsub xmlns=\"http://jabber.org/protocol/pubsub\">" +
+                        "<publish node=\"n\"><item><entry xmlns=\"http://www.w3.org/2005/Atom\" " +
+                        "xmlns:foo=\"urn:foo\"><foo:title foo:lang=\"en\">T</foo:title></entry>" +
+                        "</item></publish></pubsub></iq>",
+                "<message xmlns=\"jabber:client\"><body><![CDATA[<b>not a tag</b>]]></body>" +
+                        "<!--comment--><x xmlns=\"jabber:x:data\" type=\"form\"/></message>",
+                "<presence xmlns=\"jabber:client\"><x xmlns=\"vcard-temp:x:update\"><photo/></x></presence>"
+        };
+        for (String stanza : stanzas) {
+            SAXReader reader = new SAXReader();
+            Element element = reader.read(new StringReader(stanza)).getRootElement();
+            assertSameBytes(element);
+        }
+    }
+
+    @Test
+    public void testPrefixedElements() throws Exception {
+        Element element = DocumentHelper.createElement(QName.get("features", "stream", "http://etherx.jabber.org/streams"));
+        element.add(Namespace.get("db", "jabber:server:dialback"));
+        element.addElement("starttls", "urn:ietf:params:xml:ns:xmpp-tls").addElement("required");
+        element.addElement(QName.get("result", "db", "jabber:server:dialback")).addAttribute("type", "valid");
+        element.addAttribute(QName.get("attr", Namespace.get("p", "urn:p")), "v");
+        assertSameBytes(element);
+    }
+
+    @Test
+    public void testControlCharacters() throws Exception {
+        Message message = new Message();
+        message.setBody("\u0001\u001f\u007f");
+        message.getElement().addAttribute("a", "\u0002");
+        assertSameBytes(message.getElement());
+    }
+
+    @Test
+    public void testUnpairedSurrogate() throws Exception {
+        Message message = new Message();
+        message.setBody("\ud834");
+        try {
+            XMPPPacketWriter.getInstance().write(message.getElement());
+            fail("Unpaired surrogate was encoded");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        XMPPPacketWriter writer = XMPPPacketWriter.getInstance();
+        Message message = new Message();
+        message.setBody(new String(new char[100000]).replace('\0', 'x'));
+        writer.write(message.getElement());
+        assertEquals(serializeWithXMLWriter(message.getElement()).length, writer.size());
+
+        Presence presence = new Presence();
+        writer = XMPPPacketWriter.getInstance();
+        writer.write(presence.getElement());
+        assertArrayEquals(serializeWithXMLWriter(presence.getElement()), writer.toByteArray());
+        ByteBuffer buffer = writer.toByteBuffer();
+        assertEquals(writer.size(), buffer.remaining());
+    }
+
+    private static void assertSameBytes(Element element) throws Exception {
+        byte[] expected = serializeWithXMLWriter(element);
+        XMPPPacketWriter writer = XMPPPacketWriter.getInstance();
+        writer.write(element);
+        byte[] actual = writer.toByteArray();
+        assertEquals(new String(expected, "UTF-8"), new String(actual, "UTF-8"));
+        assertArrayEquals(expected, actual);
+    }
+
+    static byte[] serializeWithXMLWriter(Element element) throws IOException {
+        CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        buffer.setAutoExpand(true);
+        XMLWriter xmlSerializer = new XMLWriter(new ByteBufferWriter(buffer, encoder), new OutputFormat());
+        xmlSerializer.write(element);
+        xmlSerializer.flush();
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,163 @@
+package org.b5chat.crossfire.core.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilter.NextFilter;
+import org.apache.mina.common.IoFilter.WriteRequest;
+import org.junit.Test;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+/**
+ * Test cases for {@link ZlibCompressionFilter}.
+ */
+public class ZlibCompressionFilterTest {
+
+    private static final String STANZA = "<presence from=\"juliet@example.com/balcony\">" +
+            "<status>Wherefore art thou, Romeo?</status><c xmlns=\"http://jabber.org/protocol/caps\" " +
+            "hash=\"sha-1\" node=\"http://example.com/client\" ver=\"QgayPKawpkPSDYmwT/WM94uAlu0=\"/></presence>";
+
+    @Test
+    public void testOutboundCompression() throws Exception {
+        for (int memLevel = 1; memLevel <= 9; memLevel++) {
+            ZlibCompressionFilter filter = new ZlibCompressionFilter(JZlib.Z_DEFAULT_COMPRESSION, 10, memLevel);
+            List<Object> written = new ArrayList<Object>();
+            NextFilter nextFilter = createNextFilter(written);
+
+            // Nothing is compressed until outbound compression is started
+            filter.filterWrite(nextFilter, null, new WriteRequest(wrap("<compressed/>")));
+            filter.setCompressOutbound(true);
+            for (int i = 0; i < 20; i++) {
+                filter.filterWrite(nextFilter, null, new WriteRequest(wrap(STANZA)));
+            }
+            assertEquals(21, written.size());
+            assertEquals("<compressed/>", toString((ByteBuffer) written.get(0)));
+
+            // Each compressed write can be inflated as soon as it is received
+            ZStream inflater = new ZStream();
+            inflater.inflateInit();
+            for (int i = 1; i < written.size(); i++) {
+                assertEquals(STANZA, inflate(inflater, toBytes((ByteBuffer) written.get(i))));
+            }
+            assertEquals(20 * STANZA.length(), filter.getUncompressedBytesSent());
+            assertTrue(filter.getSentCompressionRatio() > 5);
+        }
+    }
+
+    @Test
+    public void testMemLevelIsConfigurable() {
+        // The memory level is set through private members of jzlib 1.0.7. Check them
+        // again when upgrading jzlib.
+        assertTrue(ZlibCompressionFilter.isMemLevelConfigurable());
+    }
+
+    @Test
+    public void testInboundDecompression() throws Exception {
+        ZlibCompressionFilter filter = new ZlibCompressionFilter(JZlib.Z_DEFAULT_COMPRESSION, 15, 8);
+        List<Object> received = new ArrayList<Object>();
+        NextFilter nextFilter = createNextFilter(received);
+
+        ZStream deflater = new ZStream();
+        deflater.deflateInit(JZlib.Z_BEST_COMPRESSION);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            expected.append(STANZA);
+            filter.messageReceived(nextFilter, null, ByteBuffer.wrap(deflate(deflater, STANZA.getBytes("UTF-8"))));
+        }
+        StringBuilder actual = new StringBuilder();
+        for (Object message : received) {
+            actual.append(toString((ByteBuffer) message));
+        }
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expected.length(), filter.getUncompressedBytesReceived());
+        assertTrue(filter.getReceivedCompressionRatio() > 1);
+    }
+
+    @Test
+    public void testLargeStanza() throws Exception {
+        ZlibCompressionFilter filter = new ZlibCompressionFilter(JZlib.Z_DEFAULT_COMPRESSION, 15, 8);
+        filter.setCompressOutbound(true);
+        List<Object> written = new ArrayList<Object>();
+        StringBuilder sb = new StringBuilder("<message><body>");
+        for (int i = 0; i < 20000; i++) {
+            sb.append(i).append(' ');
+        }
+        String stanza = sb.append("</body></message>").toString();
+        filter.filterWrite(createNextFilter(written), null, new WriteRequest(wrap(stanza)));
+
+        ZStream inflater = new ZStream();
+        inflater.inflateInit();
+        assertEquals(stanza, inflate(inflater, toBytes((ByteBuffer) written.get(0))));
+    }
+
+    private static ByteBuffer wrap(String text) throws Exception {
+        return ByteBuffer.wrap(text.getBytes("UTF-8"));
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String toString(ByteBuffer buffer) throws Exception {
+        return new String(toBytes(buffer), "UTF-8");
+    }
+
+    private static String inflate(ZStream inflater, byte[] bytes) throws Exception {
+        return new String(process(inflater, bytes, false), "UTF-8");
+    }
+
+    private static byte[] deflate(ZStream deflater, byte[] bytes) {
+        return process(deflater, bytes, true);
+    }
+
+    private static byte[] process(ZStream stream, byte[] bytes, boolean deflate) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        stream.next_in = bytes;
+        stream.next_in_index = 0;
+        stream.avail_in = bytes.length;
+        do {
+            stream.next_out = chunk;
+            stream.next_out_index = 0;
+            stream.avail_out = chunk.length;
+            int err = deflate ? stream.deflate(JZlib.Z_SYNC_FLUSH) : stream.inflate(JZlib.Z_SYNC_FLUSH);
+            if (err == JZlib.Z_BUF_ERROR) {
+                break;
+            }
+            assertEquals(JZlib.Z_OK, err);
+            out.write(chunk, 0, chunk.length - stream.avail_out);
+        }
+        while (stream.avail_in > 0 || stream.avail_out == 0);
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a next filter that keeps the received or written messages.
+     */
+    private static NextFilter createNextFilter(final List<Object> messages) {
+        return (NextFilter) Proxy.newProxyInstance(NextFilter.class.getClassLoader(),
+                new Class[] {NextFilter.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("messageReceived")) {
+                            messages.add(args[1]);
+                        }
+                        else if (method.getName().equals("filterWrite")) {
+                            messages.add(((WriteRequest) args[1]).getMessage());
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,43 @@
+package org.b5chat.crossfire.core.util;
+
+import org.xmpp.packet.JID;
+
+/**
+ * Compares creating JIDs with getting them from {@link JIDCache} the way that routing does:
+ * a JID is made of the address of each session of a user and its bare form is used to look
+ * up the user. Addresses are taken from a fixed population of users with a few resources
+ * each, so most of them are already cached. This is not a unit test, run it with
+ * <tt>java org.b5chat.crossfire.core.util.JIDCacheBenchmark [iterations] [users]</tt>.
+ */
+public class JIDCacheBenchmark {
+
+    private static final String[] RESOURCES = {"balcony", "orchard", "Psi+", "mobile"};
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        String[] addresses = new String[users * RESOURCES.length];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "user" + (i / RESOURCES.length) + "@example.com/" + RESOURCES[i % RESOURCES.length];
+        }
+        for (int round = 0; round < 3; round++) {
+            run("Creating JIDs", addresses, iterations, false);
+            run("Cached JIDs", addresses, iterations, true);
+        }
+        System.out.println(JIDCache.getStatistics());
+    }
+
+    private static void run(String name, String[] addresses, int iterations, boolean cached) {
+        int length = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String address = addresses[(int) ((i * 7919L) % addresses.length)];
+            JID jid = cached ? JIDCache.get(address) : new JID(address);
+            String bare = cached ? JIDCache.getBare(jid).toString() : new JID(jid.toBareJID()).toString();
+            length += bare.length() + jid.toString().length() + jid.hashCode() % 2;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": " + (iterations * 1000000000L / elapsed) + " lookups/s per core (" +
+                length + ")");
+    }
+}
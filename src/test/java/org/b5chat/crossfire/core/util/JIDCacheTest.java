@@ -0,0 +1,60 @@
+package org.b5chat.crossfire.core.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Test cases for {@link JIDCache}.
+ */
+public class JIDCacheTest {
+
+    @Test
+    public void testCachedJIDsAreEqualToCreatedJIDs() {
+        JID cached = JIDCache.get("Romeo@Example.NET/orchard");
+        JID created = new JID("Romeo@Example.NET/orchard");
+        assertEquals(created, cached);
+        assertEquals(cached, created);
+        assertEquals(created.hashCode(), cached.hashCode());
+        assertEquals(created.toString(), cached.toString());
+        assertEquals("romeo@example.net", cached.toBareJID());
+        assertEquals(0, created.compareTo(cached));
+
+        Set<JID> set = new HashSet<JID>();
+        set.add(created);
+        assertTrue(set.contains(cached));
+    }
+
+    @Test
+    public void testBareJID() {
+        JID full = JIDCache.get("juliet@example.com/balcony");
+        JID bare = JIDCache.getBare(full);
+        assertEquals(new JID("juliet@example.com"), bare);
+        assertSame(bare, JIDCache.get("juliet@example.com"));
+        assertSame(bare, JIDCache.getBare(bare));
+        assertSame(bare, JIDCache.getBare(new JID("juliet@example.com/chamber")));
+        assertEquals(bare, JIDCache.get("juliet", "example.com", null));
+    }
+
+    @Test
+    public void testRepeatedRequestsAreHits() {
+        JID jid = JIDCache.get("nurse@example.com/kitchen");
+        long hits = JIDCache.getHits();
+        long misses = JIDCache.getMisses();
+        assertSame(jid, JIDCache.get("nurse@example.com/kitchen"));
+        assertSame(jid, JIDCache.get("nurse", "example.com", "kitchen"));
+        assertEquals(hits + 2, JIDCache.getHits());
+        assertEquals(misses, JIDCache.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJID() {
+        JIDCache.get("romeo@example net");
+    }
+}
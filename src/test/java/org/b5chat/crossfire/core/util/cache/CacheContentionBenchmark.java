@@ -0,0 +1,73 @@
+package org.b5chat.crossfire.core.util.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of {@link DefaultCache} and {@link ConcurrentCache} when many
+ * threads use the same cache, as worker threads do with the roster and user caches. Each
+ * thread reads random keys from a fixed population and replaces one in ten. The cache is
+ * big enough for every key, so the numbers show the cost of contention and not of misses.
+ * This is not a unit test, run it with
+ * <tt>java org.b5chat.crossfire.core.util.cache.CacheContentionBenchmark [threads] [operations] [keys]</tt>.
+ */
+public class CacheContentionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        for (int round = 0; round < 3; round++) {
+            run(new DefaultCache<String, String>("Default", 64 * 1024 * 1024, 60 * 60 * 1000), threads, operations, keys);
+            run(new ConcurrentCache<String, String>("Concurrent", 64 * 1024 * 1024, 60 * 60 * 1000), threads, operations, keys);
+        }
+    }
+
+    private static void run(final Cache<String, String> cache, int threads, final int operations, final int keys)
+            throws InterruptedException {
+        for (int i = 0; i < keys; i++) {
+            cache.put("user" + i, "roster of user" + i);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong found = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t * 7919 + 1;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int hits = 0;
+                        int random = seed;
+                        for (int i = 0; i < operations; i++) {
+                            random ^= random << 13;
+                            random ^= random >>> 17;
+                            random ^= random << 5;
+                            String key = "user" + ((random & 0x7fffffff) % keys);
+                            if (i % 10 == 0) {
+                                cache.put(key, "roster of " + key);
+                            }
+                            else if (cache.get(key) != null) {
+                                hits++;
+                            }
+                        }
+                        found.addAndGet(hits);
+                    }
+                    catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        System.out.println(cache.getName() + ": " + threads + " threads, " +
+                (threads * (long) operations * 1000000000L / elapsed) + " operations/s (" + found + " hits)");
+    }
+}
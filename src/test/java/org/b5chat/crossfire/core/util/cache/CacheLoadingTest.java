@@ -0,0 +1,177 @@
+package org.b5chat.crossfire.core.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the loading of objects by {@link Cache#get(Object, CacheLoader)}.
+ */
+public class CacheLoadingTest {
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        for (final Cache<String, String> cache : createCaches(-1)) {
+            final AtomicInteger loads = new AtomicInteger();
+            final CountDownLatch loading = new CountDownLatch(1);
+            final CacheLoader<String, String, RuntimeException> loader = new CacheLoader<String, String, RuntimeException>() {
+                public String load(String username) {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    try {
+                        Thread.sleep(200);
+                    }
+                    catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    return "roster of " + username;
+                }
+            };
+            Thread[] threads = new Thread[8];
+            final AtomicInteger found = new AtomicInteger();
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        if ("roster of juliet".equals(cache.get("juliet", loader))) {
+                            found.incrementAndGet();
+                        }
+                    }
+                };
+                threads[i].start();
+                if (i == 0) {
+                    loading.await();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, loads.get());
+            assertEquals(threads.length, found.get());
+            assertEquals(1, cache.getLoadCount());
+            assertTrue(cache.getAverageLoadTime() >= 150);
+            assertEquals("roster of juliet", cache.get("juliet", loader));
+            assertEquals(1, loads.get());
+        }
+    }
+
+    @Test
+    public void testLoaderExceptionIsThrown() {
+        for (Cache<String, String> cache : createCaches(-1)) {
+            try {
+                cache.get("romeo", new CacheLoader<String, String, NotFoundException>() {
+                    public String load(String username) throws NotFoundException {
+                        throw new NotFoundException();
+                    }
+                });
+                fail("Exception was not thrown");
+            }
+            catch (NotFoundException e) {
+                // Expected
+            }
+            assertNull(cache.get("romeo"));
+            // Objects that do not exist are not cached
+            assertNull(cache.get("romeo", new CacheLoader<String, String, RuntimeException>() {
+                public String load(String username) {
+                    return null;
+                }
+            }));
+            assertEquals(0, cache.size());
+            assertEquals(2, cache.getLoadCount());
+        }
+    }
+
+    @Test
+    public void testHotObjectsAreRefreshedBeforeExpiring() throws Exception {
+        for (Cache<String, String> cache : createCaches(200)) {
+            cache.setRefreshAhead(80);
+            final AtomicInteger version = new AtomicInteger();
+            CacheLoader<String, String, RuntimeException> loader = new CacheLoader<String, String, RuntimeException>() {
+                public String load(String username) {
+                    return username + " " + version.incrementAndGet();
+                }
+            };
+            assertEquals("juliet 1", cache.get("juliet", loader));
+            Thread.sleep(180);
+            // Most of the lifetime passed so the object is loaded again in the background
+            assertEquals("juliet 1", cache.get("juliet", loader));
+            for (int i = 0; i < 100 && version.get() < 2; i++) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(20);
+            assertEquals("juliet 2", cache.get("juliet"));
+        }
+    }
+
+    @Test
+    public void testObjectsAreNotRefreshedByDefault() throws Exception {
+        for (Cache<String, String> cache : createCaches(200)) {
+            final AtomicInteger version = new AtomicInteger();
+            CacheLoader<String, String, RuntimeException> loader = new CacheLoader<String, String, RuntimeException>() {
+                public String load(String username) {
+                    return username + " " + version.incrementAndGet();
+                }
+            };
+            assertEquals("juliet 1", cache.get("juliet", loader));
+            Thread.sleep(180);
+            assertEquals("juliet 1", cache.get("juliet", loader));
+            Thread.sleep(100);
+            assertEquals(1, version.get());
+            assertEquals(1, cache.getLoadCount());
+        }
+    }
+
+    @Test
+    public void testCheckedExceptionOfAnotherLoaderIsNotShared() throws Exception {
+        for (final Cache<String, String> cache : createCaches(-1)) {
+            final CountDownLatch loading = new CountDownLatch(1);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        cache.get("romeo", new CacheLoader<String, String, NotFoundException>() {
+                            public String load(String username) throws NotFoundException {
+                                loading.countDown();
+                                try {
+                                    Thread.sleep(200);
+                                }
+                                catch (InterruptedException e) {
+                                    // Ignore
+                                }
+                                throw new NotFoundException();
+                            }
+                        });
+                    }
+                    catch (NotFoundException e) {
+                        // Expected
+                    }
+                }
+            };
+            thread.start();
+            loading.await();
+            // The loader of this thread does not throw NotFoundException so it loads the object itself
+            assertEquals("roster of romeo", cache.get("romeo", new CacheLoader<String, String, RuntimeException>() {
+                public String load(String username) {
+                    return "roster of " + username;
+                }
+            }));
+            thread.join();
+            assertEquals(2, cache.getLoadCount());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cache<String, String>[] createCaches(long maxLifetime) {
+        return new Cache[] {new DefaultCache<String, String>("test", -1, maxLifetime),
+                new ConcurrentCache<String, String>("test", -1, maxLifetime)};
+    }
+
+    private static class NotFoundException extends Exception {
+    }
+}
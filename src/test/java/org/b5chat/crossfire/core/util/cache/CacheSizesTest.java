@@ -0,0 +1,83 @@
+package org.b5chat.crossfire.core.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link CacheSizes} and the weighing of objects added to caches.
+ */
+public class CacheSizesTest {
+
+    @Test
+    public void testObjectsAreSizedWithoutSerialization() throws Exception {
+        // The object is not serializable
+        Route route = new Route();
+        // Header plus a long, an int, a boolean and a reference, aligned to 8 bytes
+        assertEquals(24, CacheSizes.sizeOfInstance(route));
+        assertEquals(24, CacheSizes.sizeOfAnything(route));
+        assertEquals(CacheSizes.sizeOfObject() + CacheSizes.sizeOfInt() + 10 * 8,
+                CacheSizes.sizeOfAnything(new double[10]));
+    }
+
+    @Test
+    public void testLargeCollectionsAreSampled() throws Exception {
+        List<String> small = new ArrayList<String>();
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < CacheSizes.SAMPLE_SIZE; i++) {
+            small.add("user" + (i % 10));
+            map.put("user" + (i + 10), "roster");
+        }
+        int smallSize = CacheSizes.sizeOfCollection(small);
+        assertEquals(36 + CacheSizes.SAMPLE_SIZE * 9, smallSize);
+        List<String> large = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            large.addAll(small);
+        }
+        assertEquals(36 + (smallSize - 36) * 10, CacheSizes.sizeOfCollection(large));
+        assertEquals(36 + CacheSizes.SAMPLE_SIZE * (10 + 10), CacheSizes.sizeOfMap(map));
+    }
+
+    @Test
+    public void testCacheUsesItsWeigher() {
+        Cache<String, Route> cache = new DefaultCache<String, Route>("test", 1024, -1);
+        cache.setWeigher(new CacheWeigher<Route>() {
+            public int sizeOf(Route route) {
+                return 100;
+            }
+        });
+        cache.put("juliet@example.com/balcony", new Route());
+        cache.put("romeo@example.net/orchard", new Route());
+        assertEquals(200, cache.getCacheSize());
+    }
+
+    @Test
+    public void testUnlimitedCachesDoNotWeighObjects() {
+        CacheWeigher<Object> failing = new CacheWeigher<Object>() {
+            public int sizeOf(Object object) {
+                throw new AssertionError("Object was weighed");
+            }
+        };
+        Cache<String, Object> cache = new DefaultCache<String, Object>("test", -1, -1);
+        cache.setWeigher(failing);
+        cache.put("juliet", new Route());
+        assertEquals(1, cache.getCacheSize());
+        cache = new ConcurrentCache<String, Object>("test", -1, -1);
+        cache.setWeigher(failing);
+        cache.put("juliet", new Route());
+        assertTrue(cache.containsKey("juliet"));
+    }
+
+    private static class Route {
+        long created;
+        int priority;
+        boolean available;
+        String address;
+    }
+}
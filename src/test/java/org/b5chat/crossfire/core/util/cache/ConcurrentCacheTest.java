@@ -0,0 +1,84 @@
+package org.b5chat.crossfire.core.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link ConcurrentCache}.
+ */
+public class ConcurrentCacheTest {
+
+    @Test
+    public void testHitsAndMisses() {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, -1);
+        assertNull(cache.put("juliet", "balcony"));
+        assertEquals("balcony", cache.put("juliet", "chamber"));
+        assertEquals("chamber", cache.get("juliet"));
+        assertNull(cache.get("romeo"));
+        assertEquals(1, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+        assertEquals(1, cache.size());
+        assertTrue(cache.getCacheSize() > 0);
+        assertTrue(cache.keySet().contains("juliet"));
+        assertTrue(cache.containsValue("chamber"));
+
+        assertEquals("chamber", cache.remove("juliet"));
+        assertTrue(cache.isEmpty());
+        cache.put("romeo", "orchard");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getCacheHits());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<Integer, String>("test", 10 * 1024, -1);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "value " + i);
+            // Keep reading the first object
+            cache.get(0);
+        }
+        assertTrue(cache.getCacheSize() <= 10 * 1024);
+        assertTrue(cache.size() < 1000);
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.containsKey(0));
+        assertFalse(cache.containsKey(1));
+    }
+
+    @Test
+    public void testObjectsLargerThanCacheAreNotAdded() {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", 100, -1);
+        cache.put("juliet", "balcony");
+        cache.put("juliet", new String(new char[200]));
+        assertFalse(cache.containsKey("juliet"));
+    }
+
+    @Test
+    public void testObjectsExpire() throws Exception {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, 50);
+        cache.put("juliet", "balcony");
+        cache.put("romeo", "orchard");
+        assertEquals("balcony", cache.get("juliet"));
+        Thread.sleep(100);
+        cache.put("nurse", "kitchen");
+        assertNull(cache.get("juliet"));
+        assertFalse(cache.containsKey("romeo"));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.values().size());
+    }
+
+    @Test
+    public void testReplacedObjectsDoNotExpireEarly() throws Exception {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, 150);
+        cache.put("juliet", "balcony");
+        Thread.sleep(100);
+        cache.put("juliet", "chamber");
+        Thread.sleep(100);
+        // The first object expired but the second one did not
+        assertEquals("chamber", cache.get("juliet"));
+    }
+}
@@ -0,0 +1,151 @@
+package org.b5chat.crossfire.core.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.b5chat.crossfire.xmpp.roster.RosterItem;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link OffHeapStore} and its use by {@link DefaultCache}.
+ */
+public class OffHeapStoreTest {
+
+    @Test
+    public void testStoreAndTake() {
+        OffHeapStore store = new OffHeapStore("test", 1024 * 1024);
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'r');
+        String value = new String(chars);
+        assertTrue(store.put("romeo", value, 42));
+        assertTrue(store.containsKey("romeo"));
+        // The serialized string spans several blocks
+        assertTrue(store.getSize() > OffHeapStore.BLOCK_SIZE);
+
+        OffHeapStore.Value taken = store.take("romeo", -1);
+        assertEquals(value, taken.object);
+        assertEquals(42, taken.timestamp);
+        assertNull(store.take("romeo", -1));
+        assertEquals(0, store.getSize());
+        assertEquals(1, store.getPromotions());
+    }
+
+    @Test
+    public void testLeastRecentlyStoredAreDiscarded() {
+        OffHeapStore store = new OffHeapStore("test", 10 * OffHeapStore.BLOCK_SIZE);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(store.put(i, "value " + i, i));
+        }
+        assertEquals(10, store.size());
+        assertEquals(90, store.getEvictions());
+        assertFalse(store.containsKey(89));
+        assertEquals("value 99", store.take(99, -1).object);
+        // Freed blocks are reused before allocating more memory
+        assertEquals(1024 * 1024, store.getAllocatedSize());
+
+        assertFalse(store.put("juliet", new byte[20 * OffHeapStore.BLOCK_SIZE], 0));
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getSize());
+    }
+
+    @Test
+    public void testExpiredAndUnserializableObjects() {
+        OffHeapStore store = new OffHeapStore("test", 1024 * 1024);
+        store.put("romeo", "orchard", 1000);
+        assertNull(store.take("romeo", 2000));
+        assertFalse(store.containsKey("romeo"));
+
+        assertFalse(store.put("juliet", new Object(), 1000));
+        assertEquals(1, store.getFailures());
+
+        // Enums are resolved to the registered instances
+        store.put("nurse", RosterItem.SUB_BOTH, 1000);
+        assertSame(RosterItem.SUB_BOTH, store.take("nurse", -1).object);
+    }
+
+    @Test
+    public void testEvictedObjectsArePromoted() {
+        Cache<Integer, String> cache = new DefaultCache<Integer, String>("test", 10 * 1024, -1, 1024 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "value " + i);
+        }
+        assertTrue(cache.size() < 1000);
+        assertTrue(cache.getOffHeapSize() > 0);
+        assertFalse(cache.keySet().contains(0));
+        assertTrue(cache.containsKey(0));
+
+        assertEquals("value 0", cache.get(0));
+        assertTrue(cache.keySet().contains(0));
+        assertEquals(1, cache.getOffHeapPromotions());
+        assertEquals(1, cache.getCacheHits());
+
+        cache.remove(1);
+        assertNull(cache.get(1));
+        assertEquals(1, cache.getCacheMisses());
+
+        assertEquals(-1, new DefaultCache<Integer, String>("test", 10 * 1024, -1).getOffHeapSize());
+    }
+
+    @Test
+    public void testEvictedObjectsAreSerializedWithoutTheLock() throws Exception {
+        final Cache<String, Object> cache = new DefaultCache<String, Object>("test", 10 * 1024, -1, 1024 * 1024);
+        final BlockingValue blocking = new BlockingValue();
+        cache.put("romeo", blocking);
+        Thread writer = new Thread() {
+            public void run() {
+                // Evicts romeo
+                char[] chars = new char[6 * 1024];
+                Arrays.fill(chars, 'j');
+                cache.put("juliet", new String(chars));
+            }
+        };
+        writer.start();
+        assertTrue(blocking.serializing.await(10, TimeUnit.SECONDS));
+
+        // The cache is usable while romeo is serialized
+        assertTrue(cache.containsKey("juliet"));
+        assertNull(cache.get("romeo"));
+        cache.put("nurse", "value");
+        assertEquals("value", cache.get("nurse"));
+        cache.remove("romeo");
+
+        blocking.release.countDown();
+        writer.join(10000);
+        // Removed while it was serialized, so it is not kept off heap
+        assertFalse(cache.containsKey("romeo"));
+        assertNull(cache.get("romeo"));
+    }
+
+    private static class BlockingValue implements Cacheable {
+
+        private static final long serialVersionUID = 1L;
+
+        final transient CountDownLatch serializing = new CountDownLatch(1);
+        final transient CountDownLatch release = new CountDownLatch(1);
+
+        public int getCachedSize() {
+            return 4 * 1024;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            serializing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+            out.defaultWriteObject();
+        }
+    }
+}
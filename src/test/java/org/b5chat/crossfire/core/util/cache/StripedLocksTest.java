@@ -0,0 +1,69 @@
+package org.b5chat.crossfire.core.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link StripedLocks}.
+ */
+public class StripedLocksTest {
+
+    @Test
+    public void testEqualKeysGetSameLock() {
+        StripedLocks locks = new StripedLocks("Directed Presences", 50);
+        assertEquals(64, locks.getStripes());
+        // Keys do not need to be interned
+        String key = new String("juliet@example.com/balcony");
+        assertSame(locks.getLock("juliet@example.com/balcony"), locks.getLock(key));
+    }
+
+    @Test
+    public void testLocksAreKeptPerCache() {
+        DefaultLocalCacheStrategy strategy = new DefaultLocalCacheStrategy();
+        Cache<String, Object> presences = new DefaultCache<String, Object>("Directed Presences", -1, -1);
+        Cache<String, Object> items = new DefaultCache<String, Object>("Disco Server Items", -1, -1);
+        Lock lock = strategy.getLock("juliet", presences);
+        assertSame(lock, strategy.getLock("juliet", presences));
+        assertSame(strategy.getLocks("Directed Presences"), strategy.getLocks("Directed Presences"));
+        assertFalse(strategy.getLocks("Directed Presences") == strategy.getLocks("Disco Server Items"));
+        strategy.getLock("juliet", items).lock();
+        // The lock of the other cache is not held
+        assertTrue(lock.tryLock());
+        lock.unlock();
+        strategy.getLock("juliet", items).unlock();
+        assertEquals(1, strategy.getLocks("Directed Presences").getAcquisitions());
+        assertEquals(1, strategy.getLocks("Disco Server Items").getAcquisitions());
+    }
+
+    @Test
+    public void testContentionIsCounted() throws Exception {
+        final StripedLocks locks = new StripedLocks("Directed Presences", 16);
+        final Lock lock = locks.getLock("juliet");
+        final CountDownLatch locked = new CountDownLatch(1);
+        lock.lock();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                locked.countDown();
+                locks.getLock("juliet").lock();
+                locks.getLock("juliet").unlock();
+            }
+        };
+        thread.start();
+        locked.await();
+        Thread.sleep(100);
+        lock.unlock();
+        thread.join();
+        assertEquals(2, locks.getAcquisitions());
+        assertEquals(1, locks.getContentions());
+        assertTrue(locks.getWaitTime() >= 50);
+        assertEquals(0, locks.getMaxQueueLength());
+    }
+}
@@ -0,0 +1,149 @@
+package org.b5chat.crossfire.xmpp.route;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.b5chat.crossfire.core.util.ConcurrentHashSet;
+import org.b5chat.crossfire.xmpp.session.IClientSession;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Test cases for {@link BroadcastJob}.
+ */
+public class BroadcastJobTest {
+
+    @Test
+    public void testAllSessionsGetACopyOfTheMessage() throws Exception {
+        Message message = new Message();
+        message.setBody("The server will be restarted in 5 minutes");
+        AtomicInteger processed = new AtomicInteger();
+        Set<Packet> copies = new ConcurrentHashSet<Packet>();
+        List<IClientSession> sessions = createSessions(1050, processed, copies);
+        sessions.add(createFailingSession());
+
+        BroadcastJob job = new BroadcastJob(message, sessions, 100, 0, 4);
+        job.start();
+        waitFor(job);
+        assertEquals(1050, processed.get());
+        assertEquals(1050, job.getDelivered());
+        assertEquals(1, job.getFailed());
+        assertEquals(1051, job.getTotal());
+        assertEquals(100, job.getProgress());
+        // Each chunk delivers its own copy
+        assertEquals(11, copies.size());
+        assertFalse(copies.contains(message));
+        assertTrue(BroadcastJob.getJobs().contains(job));
+    }
+
+    @Test
+    public void testBroadcastIsPaced() throws Exception {
+        AtomicInteger processed = new AtomicInteger();
+        BroadcastJob job = new BroadcastJob(new Message(),
+                createSessions(400, processed, new ConcurrentHashSet<Packet>()), 100, 1000, 2);
+        job.start();
+        waitFor(job);
+        assertEquals(400, processed.get());
+        // The last chunk starts 300 ms after the first one
+        assertTrue(job.getElapsedTime() >= 300);
+    }
+
+    @Test
+    public void testNoSessions() throws Exception {
+        BroadcastJob job = new BroadcastJob(new Message(), new ArrayList<IClientSession>(), 100, 0, 2);
+        job.start();
+        waitFor(job);
+        assertEquals(0, job.getDelivered());
+        assertEquals(100, job.getProgress());
+    }
+
+    @Test
+    public void testInterruptedJobFinishesWithStartedChunks() throws Exception {
+        final CountDownLatch delivering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        List<IClientSession> sessions = new ArrayList<IClientSession>();
+        sessions.add(createSession(new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                delivering.countDown();
+                release.await();
+                return null;
+            }
+        }));
+        AtomicInteger processed = new AtomicInteger();
+        sessions.addAll(createSessions(10, processed, new ConcurrentHashSet<Packet>()));
+        // Only one chunk runs at a time, so the job waits for the first one to start the second
+        final BroadcastJob job = new BroadcastJob(new Message(), sessions, 1, 0, 1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                job.run();
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        };
+        thread.start();
+        delivering.await();
+        thread.interrupt();
+        thread.join(5000);
+        assertTrue(interrupted.get());
+        // The first chunk is still running
+        assertFalse(job.isDone());
+        release.countDown();
+        waitFor(job);
+        assertEquals(1, job.getDelivered());
+        assertEquals(0, processed.get());
+    }
+
+    private static void waitFor(BroadcastJob job) throws InterruptedException {
+        for (int i = 0; i < 500 && !job.isDone(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.isDone());
+    }
+
+    private static List<IClientSession> createSessions(int count, final AtomicInteger processed,
+            final Set<Packet> copies) {
+        List<IClientSession> sessions = new ArrayList<IClientSession>();
+        for (int i = 0; i < count; i++) {
+            sessions.add(createSession(new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("process")) {
+                        processed.incrementAndGet();
+                        copies.add((Packet) args[0]);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            }));
+        }
+        return sessions;
+    }
+
+    private static IClientSession createFailingSession() {
+        return createSession(new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("process")) {
+                    throw new IllegalStateException("Connection closed");
+                }
+                return null;
+            }
+        });
+    }
+
+    private static IClientSession createSession(InvocationHandler handler) {
+        return (IClientSession) Proxy.newProxyInstance(IClientSession.class.getClassLoader(),
+                new Class[] {IClientSession.class}, handler);
+    }
+}
@@ -0,0 +1,114 @@
+package org.b5chat.crossfire.xmpp.route;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.xmpp.component.IQResultListener;
+import org.xmpp.packet.IQ;
+
+/**
+ * Test cases for {@link IQResultTracker}.
+ */
+public class IQResultTrackerTest {
+
+    @Test
+    public void testListenersExpireInDeadlineOrder() {
+        List<String> timedOut = new ArrayList<String>();
+        IQResultTracker tracker = new IQResultTracker();
+        tracker.add("c", new Listener(timedOut), 3000);
+        tracker.add("a", new Listener(timedOut), 1000);
+        tracker.add("b", new Listener(timedOut), 2000);
+
+        assertEquals(0, tracker.expire(999));
+        assertEquals(2, tracker.expire(2000));
+        assertEquals("a", timedOut.get(0));
+        assertEquals("b", timedOut.get(1));
+        assertEquals(1, tracker.getPending());
+        assertEquals(1, tracker.expire(5000));
+        assertEquals(3, tracker.getExpired());
+        assertEquals(0, tracker.getPending());
+    }
+
+    @Test
+    public void testAnsweredListenerDoesNotExpire() {
+        List<String> timedOut = new ArrayList<String>();
+        IQResultTracker tracker = new IQResultTracker();
+        Listener listener = new Listener(timedOut);
+        tracker.add("a", listener, 1000);
+        assertSame(listener, tracker.remove("a"));
+        // The answered listener is not kept until its deadline
+        assertEquals(0, tracker.getDeadlines());
+        assertNull(tracker.remove("a"));
+        assertEquals(0, tracker.expire(2000));
+        assertEquals(0, timedOut.size());
+        assertEquals(1, tracker.getAnswered());
+    }
+
+    @Test
+    public void testReplacedListenerKeepsItsOwnDeadline() {
+        List<String> timedOut = new ArrayList<String>();
+        IQResultTracker tracker = new IQResultTracker();
+        tracker.add("a", new Listener(timedOut), 1000);
+        Listener replacement = new Listener(timedOut);
+        tracker.add("a", replacement, 3000);
+        assertEquals(1, tracker.getDeadlines());
+        assertEquals(0, tracker.expire(2000));
+        assertEquals(1, tracker.getPending());
+        assertEquals(1, tracker.expire(3000));
+        assertEquals(1, timedOut.size());
+    }
+
+    @Test
+    public void testListenersWithTheSameDeadlineAllExpire() {
+        List<String> timedOut = new ArrayList<String>();
+        IQResultTracker tracker = new IQResultTracker();
+        for (int i = 0; i < 100; i++) {
+            tracker.add("id-" + i, new Listener(timedOut), 1000);
+        }
+        assertEquals(100, tracker.getDeadlines());
+        tracker.remove("id-50");
+        assertEquals(99, tracker.getDeadlines());
+        assertEquals(99, tracker.expire(1000));
+        assertEquals(0, tracker.getDeadlines());
+        assertEquals(0, tracker.getPending());
+    }
+
+    @Test
+    public void testListenerMayAddListenersOnTimeout() {
+        final IQResultTracker tracker = new IQResultTracker();
+        final List<String> timedOut = new ArrayList<String>();
+        tracker.add("a", new Listener(timedOut) {
+            @Override
+            public void answerTimeout(String packetId) {
+                super.answerTimeout(packetId);
+                // Retry the request
+                tracker.add("a-retry", new Listener(timedOut), 2000);
+            }
+        }, 1000);
+        assertEquals(1, tracker.expire(1000));
+        assertEquals(1, tracker.getPending());
+        assertEquals(1, tracker.expire(2000));
+        assertEquals("a-retry", timedOut.get(1));
+    }
+
+    private static class Listener implements IQResultListener {
+
+        private final List<String> timedOut;
+
+        Listener(List<String> timedOut) {
+            this.timedOut = timedOut;
+        }
+
+        public void receivedAnswer(IQ packet) {
+        }
+
+        public void answerTimeout(String packetId) {
+            timedOut.add(packetId);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.b5chat.crossfire.xmpp.route;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Test cases for the processing of extended stanza addressing by {@link MulticastRouter}.
+ */
+public class MulticastRouterTest {
+
+    private static final String MESSAGE = "<message from=\"romeo@example.net/orchard\" to=\"example.net\">" +
+            "<addresses xmlns=\"http://jabber.org/protocol/address\">" +
+            "<address type=\"to\" jid=\"juliet@example.net\"/>" +
+            "<address type=\"cc\" jid=\"nurse@example.net/kitchen\" desc=\"Nurse\"/>" +
+            "<address type=\"bcc\" jid=\"benvolio@example.net\"/>" +
+            "<address type=\"to\" jid=\"juliet@example.net\"/>" +
+            "<address type=\"to\" jid=\"mercutio@example.net\" delivered=\"true\"/>" +
+            "<address type=\"to\" uri=\"mailto:friar@example.net\"/>" +
+            "<address type=\"replyto\" jid=\"montague@example.net\"/>" +
+            "</addresses><body>Meet me at the orchard</body></message>";
+
+    @Test
+    public void testRecipientsAreNotDuplicated() throws Exception {
+        List<JID> recipients = MulticastRouter.getRecipients(createMessage().getElement().element("addresses"));
+        assertEquals(3, recipients.size());
+        assertEquals(new JID("juliet@example.net"), recipients.get(0));
+        assertEquals(new JID("nurse@example.net/kitchen"), recipients.get(1));
+        assertEquals(new JID("benvolio@example.net"), recipients.get(2));
+    }
+
+    @Test
+    public void testDeliveredCopyHidesBlindCarbonCopies() throws Exception {
+        Message message = createMessage();
+        Packet copy = MulticastRouter.createCopy(message);
+        List<?> addresses = copy.getElement().element("addresses").elements("address");
+        assertEquals(6, addresses.size());
+        for (Object address : addresses) {
+            assertEquals("true", ((Element) address).attributeValue("delivered"));
+            assertFalse("bcc".equals(((Element) address).attributeValue("type")));
+        }
+        assertEquals("Meet me at the orchard", ((Message) copy).getBody());
+        // The received packet is not modified
+        Element bcc = (Element) message.getElement().element("addresses").elements("address").get(2);
+        assertEquals("bcc", bcc.attributeValue("type"));
+        assertNull(bcc.attributeValue("delivered"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedAddress() throws Exception {
+        Element addresses = DocumentHelper.parseText("<addresses xmlns=\"http://jabber.org/protocol/address\">" +
+                "<address type=\"to\" jid=\"juliet@example net\"/></addresses>").getRootElement();
+        MulticastRouter.getRecipients(addresses);
+    }
+
+    @Test
+    public void testSessionReachedByBareAndFullJIDGetsOneMessage() throws Exception {
+        final List<JID> routed = new ArrayList<JID>();
+        IRoutingTable routingTable = (IRoutingTable) Proxy.newProxyInstance(IRoutingTable.class.getClassLoader(),
+                new Class[] {IRoutingTable.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        JID jid = (JID) args[0];
+                        if (method.getName().equals("getRoutes")) {
+                            if (jid.getNode().equals("juliet")) {
+                                List<JID> sessions = new ArrayList<JID>();
+                                sessions.add(new JID("juliet@example.net/balcony"));
+                                sessions.add(new JID("juliet@example.net/garden"));
+                                return sessions;
+                            }
+                            return Collections.emptyList();
+                        }
+                        if (method.getName().equals("routePacket")) {
+                            routed.add(jid);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        Message message = new Message(DocumentHelper.parseText(
+                "<message from=\"romeo@example.net/orchard\" to=\"example.net\">" +
+                "<addresses xmlns=\"http://jabber.org/protocol/address\">" +
+                "<address type=\"to\" jid=\"juliet@example.net\"/>" +
+                "<address type=\"cc\" jid=\"juliet@example.net/balcony\"/>" +
+                "<address type=\"to\" jid=\"nurse@example.net\"/>" +
+                "<address type=\"to\" jid=\"tybalt@example.org\"/>" +
+                "</addresses><body>Meet me at the orchard</body></message>").getRootElement());
+        new MulticastRouter(routingTable, "example.net").route(message);
+        // The nurse has no session so the message is routed to her bare JID to be stored offline
+        assertEquals("[juliet@example.net/balcony, juliet@example.net/garden, nurse@example.net, tybalt@example.org]",
+                routed.toString());
+    }
+
+    private static Message createMessage() throws Exception {
+        return new Message(DocumentHelper.parseText(MESSAGE).getRootElement());
+    }
+}
@@ -0,0 +1,204 @@
+package org.b5chat.crossfire.xmpp.route;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+
+import org.b5chat.crossfire.xmpp.session.IClientSession;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Test cases for {@link RouteIndex}.
+ */
+public class RouteIndexTest {
+
+    @Test
+    public void testRoutesAreIndexedByBareJID() {
+        RouteIndex index = new RouteIndex();
+        ClientRoute balcony = route("juliet@example.com/balcony", true, 5);
+        ClientRoute chamber = route("juliet@example.com/chamber", false, 0);
+        assertTrue(index.put(balcony));
+        assertTrue(index.put(chamber));
+        assertTrue(index.put(route("romeo@example.net/orchard", true, 0)));
+
+        assertSame(balcony, index.get(new JID("juliet@example.com/balcony")));
+        assertNull(index.get(new JID("juliet@example.com/garden")));
+        assertNull(index.get(new JID("juliet@example.com")));
+        ClientRoute[] routes = index.getRoutes(new JID("juliet@example.com"));
+        assertEquals(2, routes.length);
+        assertSame(balcony, routes[0]);
+        assertSame(chamber, routes[1]);
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testUpdateReplacesRouteOfResource() {
+        RouteIndex index = new RouteIndex();
+        assertTrue(index.put(route("juliet@example.com/balcony", false, 0)));
+        ClientRoute[] before = index.getRoutes(new JID("juliet@example.com"));
+        ClientRoute available = route("juliet@example.com/balcony", true, 10);
+        assertFalse(index.put(available));
+        assertSame(available, index.get(new JID("juliet@example.com/balcony")));
+        assertEquals(1, index.getRoutes(new JID("juliet@example.com")).length);
+        // Readers keep the routes they already got
+        assertFalse(before[0].isAvailable());
+    }
+
+    @Test
+    public void testRemove() {
+        RouteIndex index = new RouteIndex();
+        ClientRoute balcony = route("juliet@example.com/balcony", true, 0);
+        index.put(balcony);
+        index.put(route("juliet@example.com/chamber", true, 0));
+        assertNull(index.remove(new JID("juliet@example.com/garden")));
+        assertSame(balcony, index.remove(new JID("juliet@example.com/balcony")));
+        assertEquals(1, index.getRoutes(new JID("juliet@example.com")).length);
+        assertTrue(index.remove(new JID("juliet@example.com/chamber")) != null);
+        assertEquals(0, index.getRoutes(new JID("juliet@example.com")).length);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testConcurrentUpdatesOfSameUser() throws Exception {
+        final RouteIndex index = new RouteIndex();
+        final int threads = 8;
+        final int resources = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < resources; i++) {
+                        String address = "juliet@example.com/" + thread + "-" + i;
+                        index.put(route(address, false, 0));
+                        index.put(route(address, true, 1));
+                        if (i % 2 == 0) {
+                            index.remove(new JID(address));
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        ClientRoute[] routes = index.getRoutes(new JID("juliet@example.com"));
+        assertEquals(threads * resources / 2, routes.length);
+        for (ClientRoute route : routes) {
+            assertTrue(route.isAvailable());
+        }
+    }
+
+    @Test
+    public void testSingleAvailableResourceIsTarget() {
+        RouteIndex index = new RouteIndex();
+        ClientRoute balcony = route("juliet@example.com/balcony", true, 0);
+        index.put(balcony);
+        index.put(route("juliet@example.com/chamber", false, 10));
+        RouteIndex.UserRoutes routes = index.getUserRoutes(new JID("juliet@example.com"));
+        assertTrue(routes.hasUnavailableRoutes());
+        assertTargets(routes.getTargets(false), balcony);
+        assertTargets(routes.getTargets(true), balcony);
+    }
+
+    @Test
+    public void testNegativePriorityIsNotTarget() {
+        RouteIndex index = new RouteIndex();
+        index.put(route("juliet@example.com/balcony", true, -1));
+        RouteIndex.UserRoutes routes = index.getUserRoutes(new JID("juliet@example.com"));
+        assertFalse(routes.hasUnavailableRoutes());
+        assertEquals(0, routes.getTargets(false).length);
+        assertEquals(0, routes.getTargets(true).length);
+        assertEquals(0, index.getUserRoutes(new JID("romeo@example.net")).getTargets(false).length);
+    }
+
+    @Test
+    public void testHighestPriorityAndShowAreTargets() {
+        RouteIndex index = new RouteIndex();
+        ClientRoute away = route("juliet@example.com/balcony", Presence.Show.away, 5, 0);
+        ClientRoute chat = route("juliet@example.com/chamber", Presence.Show.chat, 5, 0);
+        ClientRoute available = route("juliet@example.com/garden", null, 5, 0);
+        index.put(away);
+        index.put(chat);
+        index.put(available);
+        index.put(route("juliet@example.com/tomb", Presence.Show.chat, 1, 0));
+        RouteIndex.UserRoutes routes = index.getUserRoutes(new JID("juliet@example.com"));
+        assertTargets(routes.getTargets(false), chat);
+        // route.all-resources delivers to all resources with the highest priority
+        assertTargets(routes.getTargets(true), away, chat, available);
+
+        // Targets are selected again when the presence of a session changes
+        index.put(route("juliet@example.com/chamber", Presence.Show.dnd, 5, 0));
+        assertTargets(index.getUserRoutes(new JID("juliet@example.com")).getTargets(false), available);
+        index.remove(new JID("juliet@example.com/garden"));
+        assertTargets(index.getUserRoutes(new JID("juliet@example.com")).getTargets(false), away);
+    }
+
+    @Test
+    public void testMostRecentActivityIsSelected() {
+        ClientRoute older = route("juliet@example.com/balcony", Presence.Show.away, 0, 1000);
+        ClientRoute recent = route("juliet@example.com/chamber", Presence.Show.away, 0, 2000);
+        ClientRoute[] targets = RouteIndex.selectTargets(new ClientRoute[] {older, recent}, false);
+        assertTargets(targets, older, recent);
+        assertSame(recent, RouteIndex.selectMostRecent(targets));
+        assertSame(older, RouteIndex.selectMostRecent(new ClientRoute[] {older}));
+    }
+
+    private static void assertTargets(ClientRoute[] targets, ClientRoute... expected) {
+        assertEquals(expected.length, targets.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertSame(expected[i], targets[i]);
+        }
+    }
+
+    private static ClientRoute route(String address, boolean available, int priority) {
+        Presence presence = new Presence(available ? null : Presence.Type.unavailable);
+        presence.setPriority(priority);
+        return new ClientRoute(null, new JID(address), createSession(presence, 0), false);
+    }
+
+    private static ClientRoute route(String address, Presence.Show show, int priority, long lastActive) {
+        Presence presence = new Presence();
+        presence.setShow(show);
+        presence.setPriority(priority);
+        return new ClientRoute(null, new JID(address), createSession(presence, lastActive), false);
+    }
+
+    /**
+     * Creates a session that only has a presence and a last activity time.
+     */
+    private static IClientSession createSession(final Presence presence, final long lastActive) {
+        return (IClientSession) Proxy.newProxyInstance(IClientSession.class.getClassLoader(),
+                new Class[] {IClientSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("getPresence")) {
+                            return presence;
+                        }
+                        if (name.equals("getLastActiveTime")) {
+                            return lastActive;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+}
@@ -18,9 +18,9 @@
   - limitations under the License.
 --%>
 
-<%@ page import="org.b5chat.crossfire.IConnection,
+<%@ page import="org.b5chat.crossfire.xmpp.IConnection,
                  org.b5chat.crossfire.xmpp.session.LocalClientSession,
-                 org.b5chat.crossfire.core.util.Globals"
+                 org.b5chat.crossfire.core.property.Globals"
     errorPage="error.jsp"
 %>
 <%@ page import="org.b5chat.crossfire.core.util.ParamUtils" %>
@@ -45,10 +45,10 @@
     if (update) {
         // Update c2s compression policy
         LocalClientSession.setCompressionPolicy(
-                clientEnabled ? Connection.CompressionPolicy.optional : Connection.CompressionPolicy.disabled);
+                clientEnabled ? IConnection.CompressionPolicy.optional : IConnection.CompressionPolicy.disabled);
         // Update s2s compression policy
         Globals.setProperty("xmpp.server.compression.policy", serverEnabled ?
-                Connection.CompressionPolicy.optional.toString() : Connection.CompressionPolicy.disabled.toString());
+                IConnection.CompressionPolicy.optional.toString() : IConnection.CompressionPolicy.disabled.toString());
         // Log the event
         webManager.logEvent("set compression policy", "c2s compression = "+clientEnabled+"\ns2s compression = "+serverEnabled);
 %>
@@ -67,8 +67,8 @@
     }
 
     // Set page vars
-    clientEnabled = Connection.CompressionPolicy.optional == LocalClientSession.getCompressionPolicy();
-    serverEnabled = Connection.CompressionPolicy.optional.toString().equals(Globals.getProperty("xmpp.server.compression.policy", Connection.CompressionPolicy.disabled.toString()));
+    clientEnabled = IConnection.CompressionPolicy.optional == LocalClientSession.getCompressionPolicy();
+    serverEnabled = IConnection.CompressionPolicy.optional.toString().equals(Globals.getProperty("xmpp.server.compression.policy", IConnection.CompressionPolicy.disabled.toString()));
 %>
 
 <p>
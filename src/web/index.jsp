@@ -18,6 +18,7 @@
 --%>
 
 <%@ page import="org.apache.mina.transport.socket.nio.SocketAcceptor"%>
+<%@ page import="org.b5chat.crossfire.core.nio.OutboundQueue"%>
 <%@ page import="org.b5chat.crossfire.plugin.admin.AdminConsole"%>
 <%@ page import="org.b5chat.crossfire.*" %>
 <%@ page import="org.b5chat.crossfire.core.container.AdminConsolePlugin" %>
@@ -254,6 +255,43 @@
                     (<%= (Globals.getTimeZone().getRawOffset()/1000/60/60) %> GMT)
                 </td>
             </tr>
+            <tr>
+                <td class="c1"><fmt:message key="index.queue_depths" /></td>
+                <td class="c2">
+                <%  // Number of client sessions for each range of queued bytes
+                    int[] queueDepths = connectionManager.getOutboundQueueDepths();
+                    for (int i = 0; i < queueDepths.length; i++) {
+                        String range = i < OutboundQueue.DEPTH_LIMITS.length ?
+                                "&le; " + (OutboundQueue.DEPTH_LIMITS[i] / 1024) + " KB" :
+                                "&gt; " + (OutboundQueue.DEPTH_LIMITS[i - 1] / 1024) + " KB";
+                %>
+                    <%= range %>: <%= queueDepths[i] %><%= i < queueDepths.length - 1 ? ", " : "" %>
+                <%  } %>
+                </td>
+            </tr>
+            <tr>
+                <td class="c1"><fmt:message key="index.parser_footprint" /></td>
+                <td class="c2">
+                <%  // Bytes kept by client connections for parsing their traffic
+                    long[] retained = connectionManager.getClientRetainedSizes();
+                    long perConnection = retained[0] > 0 ? retained[1] / retained[0] : 0;
+                %>
+                    <fmt:message key="index.parser_footprint.value">
+                        <fmt:param value="<%= perConnection %>" />
+                        <fmt:param value="<%= retained[0] %>" />
+                        <fmt:param value="<%= retained[2] %>" />
+                    </fmt:message>
+                </td>
+            </tr>
+            <tr>
+                <td class="c1"><fmt:message key="index.jid_cache" /></td>
+                <td class="c2">
+                    <fmt:message key="index.jid_cache.value">
+                        <fmt:param value="<%= JIDCache.size() %>" />
+                        <fmt:param value="<%= Math.round(JIDCache.getHitRate()) %>" />
+                    </fmt:message>
+                </td>
+            </tr>
             <tr>
                 <td class="c1"><fmt:message key="index.memory" /></td>
                 <td>
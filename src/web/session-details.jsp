@@ -20,6 +20,10 @@
 <%@ page import="org.b5chat.crossfire.PresenceManager,
                  org.b5chat.crossfire.SessionManager,
                  org.b5chat.crossfire.xmpp.session.IClientSession,
+                 org.b5chat.crossfire.xmpp.session.LocalSession,
+                 org.b5chat.crossfire.xmpp.IConnection,
+                 org.b5chat.crossfire.core.nio.NIOConnection,
+                 org.b5chat.crossfire.core.nio.ZlibCompressionFilter,
                  org.b5chat.crossfire.xmpp.user.User,
                  org.b5chat.crossfire.xmpp.user.UserManager,
                  org.b5chat.crossfire.core.util.Globals,
@@ -262,6 +266,26 @@
             <%= numFormatter.format(currentSess.getNumClientPackets()) %>/<%= numFormatter.format(currentSess.getNumServerPackets()) %>
         </td>
     </tr>
+    <%  IConnection connection = currentSess instanceof LocalSession ? ((LocalSession) currentSess).getConnection() : null;
+        ZlibCompressionFilter compression = connection instanceof NIOConnection ?
+                ((NIOConnection) connection).getCompressionFilter() : null;
+        if (compression != null) {
+            NumberFormat ratioFormatter = NumberFormat.getNumberInstance();
+            ratioFormatter.setMaximumFractionDigits(1);
+    %>
+    <tr>
+        <td class="c1">
+            <fmt:message key="session.details.compression" />
+        </td>
+        <td>
+            <%= ratioFormatter.format(compression.getSentCompressionRatio()) %>:1
+            (<%= numFormatter.format(compression.getUncompressedBytesSent()) %> &rarr; <%= numFormatter.format(compression.getCompressedBytesSent()) %> bytes)
+            /
+            <%= ratioFormatter.format(compression.getReceivedCompressionRatio()) %>:1
+            (<%= numFormatter.format(compression.getUncompressedBytesReceived()) %> &larr; <%= numFormatter.format(compression.getCompressedBytesReceived()) %> bytes)
+        </td>
+    </tr>
+    <%  } %>
     <tr>
         <td class="c1">
             <fmt:message key="session.details.hostname" />
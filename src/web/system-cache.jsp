@@ -148,6 +148,8 @@
     String hitPercent;
     long hits;
     long misses;
+    long offHeapSize;
+    String promotionPercent;
 %>
 
 <form action="system-cache.jsp" method="post" name="cacheForm">
@@ -156,11 +158,12 @@
 <table cellpadding="0" cellspacing="0" border="0" width="100%">
 <thead>
     <tr>
-        <th width="39%" nowrap><fmt:message key="system.cache.head.name" /></th>
+        <th width="29%" nowrap><fmt:message key="system.cache.head.name" /></th>
         <th width="10%" nowrap><fmt:message key="system.cache.head.max" /></th>
         <th width="10%" nowrap><fmt:message key="system.cache.head.current" /></th>
-        <th width="20%" nowrap><fmt:message key="system.cache.head.percent" /></th>
-        <th width="20%" nowrap><fmt:message key="system.cache.head.effectiveness" /></th>
+        <th width="15%" nowrap><fmt:message key="system.cache.head.percent" /></th>
+        <th width="15%" nowrap><fmt:message key="system.cache.head.effectiveness" /></th>
+        <th width="20%" nowrap><fmt:message key="system.cache.head.offheap" /></th>
         <th width="1%" class="c5"><input type="checkbox" name="" value="" onclick="handleCBClick(this);"></th>
     </tr>
 </thead>
@@ -187,6 +190,13 @@
             hitPercent = percentFormat.format(hitValue) + "%";
             lowEffec = (hits > 500 && hitValue < 85.0 && freeMem < 20.0);
         }
+        offHeapSize = cache.getOffHeapSize();
+        if (hits == 0) {
+            promotionPercent = "N/A";
+        }
+        else {
+            promotionPercent = percentFormat.format(100*(double)cache.getOffHeapPromotions()/hits) + "%";
+        }
 %>
     <tr class="<%= (lowEffec ? "b5chat-error" : "") %>">
         <td class="c1">
@@ -217,6 +227,13 @@
         <td class="c4">
             <%= hitPercent%>
         </td>
+        <td class="c4">
+            <% if (offHeapSize != -1) { %>
+                <%= mbFormat.format((double)offHeapSize/(1024*1024)) %> MB (<%= promotionPercent %>)
+            <% } else { %>
+                N/A
+            <% } %>
+        </td>
 
         <td width="1%" class="c5"><input type="checkbox" name="cacheID" value="<%= i %>" onclick="updateControls(this.form);toggleHighlight(this);"></td>
     </tr>
@@ -230,7 +247,7 @@
     <td class="c2">
         <%= mbFormat.format(overallTotal/(1024.0*1024.0)) %> MB
     </td>
-    <td align="right" colspan="4">
+    <td align="right" colspan="5">
         <input type="submit" name="clear" value="<fmt:message key="system.cache.clear-selected" />" disabled>
     </td>
 </tr>
@@ -240,6 +257,10 @@
 
 <p class="b5chat-description">
 <fmt:message key="system.cache.desc.effectiveness" />
+</p>
+
+<p class="b5chat-description">
+<fmt:message key="system.cache.desc.offheap" />
 </p>
 
     <script language="JavaScript" type="text/javascript">
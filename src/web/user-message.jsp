@@ -29,6 +29,8 @@
     errorPage="error.jsp"
 %>
 <%@ page import="java.util.Map" %>
+<%@ page import="java.util.List" %>
+<%@ page import="org.b5chat.crossfire.xmpp.route.BroadcastJob" %>
 
 <%@ taglib uri="http://java.sun.com/jstl/core_rt" prefix="c" %>
 <%@ taglib uri="http://java.sun.com/jstl/fmt_rt" prefix="fmt" %>
@@ -270,6 +272,45 @@ function updateSelect(el) {
 
 </form>
 
+<%  // Progress of the messages sent to all online users
+    List<BroadcastJob> broadcastJobs = BroadcastJob.getJobs();
+    if (user == null && !broadcastJobs.isEmpty()) {
+%>
+<br>
+<div class="b5chat-table">
+<table cellpadding="0" cellspacing="0" border="0" width="600">
+<thead>
+    <tr>
+        <th nowrap>#</th>
+        <th nowrap><fmt:message key="user.message.broadcast.progress" /></th>
+        <th nowrap><fmt:message key="user.message.broadcast.delivered" /></th>
+        <th nowrap><fmt:message key="user.message.broadcast.failed" /></th>
+        <th nowrap><fmt:message key="user.message.broadcast.elapsed" /></th>
+        <th nowrap><fmt:message key="user.message.broadcast.status" /></th>
+    </tr>
+</thead>
+<tbody>
+<%      for (BroadcastJob job : broadcastJobs) { %>
+    <tr class="b5chat-<%= job.getId() % 2 == 0 ? "even" : "odd" %>">
+        <td><%= job.getId() %></td>
+        <td><%= job.getProgress() %>%</td>
+        <td><%= job.getDelivered() %> / <%= job.getTotal() %></td>
+        <td><%= job.getFailed() %></td>
+        <td><%= job.getElapsedTime() %> ms</td>
+        <td>
+            <%  if (job.isDone()) { %>
+                <fmt:message key="user.message.broadcast.done" />
+            <%  } else { %>
+                <fmt:message key="user.message.broadcast.running" />
+            <%  } %>
+        </td>
+    </tr>
+<%      } %>
+</tbody>
+</table>
+</div>
+<%  } %>
+
 <script language="JavaScript" type="text/javascript">
 document.f.message.focus();
 </script>